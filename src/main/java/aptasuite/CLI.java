@@ -8,17 +8,26 @@ import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.List;
 import java.util.Map.Entry;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Predicate;
 import java.util.logging.Level;
+import java.util.stream.StreamSupport;
 
 import org.apache.commons.cli.CommandLine;
 import org.apache.commons.io.FileUtils;
 import org.apache.commons.lang3.time.DateUtils;
 
 import exceptions.InvalidConfigurationException;
+import lib.aptamer.datastructures.AppendManifest;
+import lib.aptamer.datastructures.CycleCountMatrix;
 import lib.aptamer.datastructures.Experiment;
+import lib.aptamer.datastructures.ProjectManifest;
+import lib.aptamer.datastructures.SegmentFile;
 import lib.aptamer.datastructures.SelectionCycle;
+import lib.aptamer.datastructures.SharedPool;
+import lib.aptamer.datastructures.StructurePool;
 import lib.export.Export;
 import lib.parser.aptaplex.AptaPlexParser;
 import lib.parser.aptasim.AptaSimParser;
@@ -52,6 +61,11 @@ public class CLI {
 	 * allows for nearly real-time estimates of the parsing progress.
 	 */
 	Thread structureThread = null;	
+	
+	/**
+	 * The number of aptamers in the pool before the current append, -1 if no append took place
+	 */
+	int appendedFrom = -1;
 
 	public CLI(CommandLine line) {
 
@@ -87,18 +101,58 @@ public class CLI {
 		// Case for AptaPLEX, create a database or overwrite an existing one
 		if (line.hasOption("parse")){
 			
-			// clean up old data if required
+			// An interrupted parse continues from its last checkpoint only if requested and 
+			// if it was started on the same sequencing files
+			boolean resume = false;
 			try {
-				FileUtils.deleteDirectory(Paths.get(projectPath.toString(), "pooldata").toFile());
-				FileUtils.deleteDirectory(Paths.get(projectPath.toString(), "cycledata").toFile());
-				FileUtils.deleteDirectory(Paths.get(projectPath.toString(), "structuredata").toFile());
+				AppendManifest manifest = new AppendManifest(projectPath);
+				if (manifest.isResumable()){
+					if (!line.hasOption("resume")){
+						AptaLogger.log(Level.INFO, this.getClass(), "Discarding the interrupted parse of " + projectPath.toString() + ". Use -resume to continue it from its last checkpoint instead.");
+					}
+					else if (!manifest.matchesInputs(getForwardFiles())){
+						AptaLogger.log(Level.WARNING, this.getClass(), "The interrupted parse of " + projectPath.toString() + " was started on different sequencing files and cannot be resumed. Parsing from scratch.");
+					}
+					else{
+						resume = true;
+					}
+				}
 			} catch (IOException e) {
-				// TODO Auto-generated catch block
-				e.printStackTrace();
+				AptaLogger.log(Level.WARNING, this.getClass(), "Could not read the append manifest: " + e.getMessage());
 			}
 			
-			// call data input logic
-			createDatabase( line.getOptionValue("config") );
+			if (resume){
+				
+				AptaLogger.log(Level.INFO, this.getClass(), "Resuming the interrupted parse from its last checkpoint.");
+				appendToDatabase( line.getOptionValue("config") );
+				
+			}
+			else{
+			
+				// clean up old data if required
+				try {
+					FileUtils.deleteDirectory(Paths.get(projectPath.toString(), "pooldata").toFile());
+					FileUtils.deleteDirectory(Paths.get(projectPath.toString(), "cycledata").toFile());
+					FileUtils.deleteDirectory(Paths.get(projectPath.toString(), "structuredata").toFile());
+					AppendManifest.delete(projectPath);
+					SegmentFile.delete(projectPath);
+					ProjectManifest.delete(projectPath);
+				} catch (IOException e) {
+					// TODO Auto-generated catch block
+					e.printStackTrace();
+				}
+				
+				// call data input logic
+				createDatabase( line.getOptionValue("config") );
+				
+			}
+		}
+		
+		// Case for AptaPLEX, add new sequencing data to an existing database
+		if (line.hasOption("append")){
+			
+			appendToDatabase( line.getOptionValue("config") );
+			
 		}
 		
 		// Case for AptaSIM, create a database or overwrite an existing one
@@ -109,6 +163,9 @@ public class CLI {
 				FileUtils.deleteDirectory(Paths.get(projectPath.toString(), "pooldata").toFile());
 				FileUtils.deleteDirectory(Paths.get(projectPath.toString(), "cycledata").toFile());
 				FileUtils.deleteDirectory(Paths.get(projectPath.toString(), "structuredata").toFile());
+				AppendManifest.delete(projectPath);
+				SegmentFile.delete(projectPath);
+				ProjectManifest.delete(projectPath);
 			} catch (IOException e) {
 				// TODO Auto-generated catch block
 				e.printStackTrace();
@@ -121,18 +178,35 @@ public class CLI {
 		// Case for AptaTRACE
 		if (line.hasOption("structures")){
 			
+			// The structures of the segment would be outdated
+			deleteSegment();
+			
+			// After an append, existing structures are kept and only the new aptamers are predicted.
+			// Shared structures are always kept as they may belong to other projects.
+			String[] existing = Paths.get(SharedPool.getDataPath(projectPath).toString(), "structuredata").toFile().list();
+			boolean incremental = (appendedFrom != -1 || SharedPool.isEnabled()) && existing != null && existing.length != 0;
+			
 			// clean up old data if required
-			try {
-				FileUtils.deleteDirectory(Paths.get(projectPath.toString(), "structuredata").toFile());
-			} catch (IOException e) {
-				// TODO Auto-generated catch block
-				e.printStackTrace();
+			if (!incremental && !SharedPool.isEnabled()){
+				try {
+					FileUtils.deleteDirectory(Paths.get(projectPath.toString(), "structuredata").toFile());
+				} catch (IOException e) {
+					// TODO Auto-generated catch block
+					e.printStackTrace();
+				}
 			}
 						
-			runStructurePrediction( line.getOptionValue("config") );
+			runStructurePrediction( line.getOptionValue("config"), incremental );
 
 		}		
 		
+		// Case for compacting the project into a read only segment
+		if (line.hasOption("compact")){
+			
+			compactDatabase( line.getOptionValue("config") );
+			
+		}
+		
 		// Case for AptaTRACE
 		if (line.hasOption("trace")){
 
@@ -167,6 +241,9 @@ public class CLI {
 		
 		AptaLogger.log(Level.INFO, this.getClass(), "Creating Database");
 		
+		// Record the parsed files so that the project can be appended to later on
+		AppendManifest manifest = openAppendManifest();
+		
 		// Initialize the experiment
 		this.experiment = new Experiment(configFile, true);
 
@@ -175,7 +252,207 @@ public class CLI {
 
 		// Initialize the parser and run it in a thread
 		AptaLogger.log(Level.INFO, this.getClass(), "Initializing parser " + Configuration.getParameters().getString("Parser.backend"));
-		AptaPlexParser parser = new AptaPlexParser();
+		
+		// An incomplete parse is not committed, it can be resumed from its last checkpoint
+		if (!runParser(new AptaPlexParser(manifest))){
+			return;
+		}
+		
+		commitAppendManifest(manifest, getForwardFiles());
+		
+		completeDatabase();
+
+	}
+	
+	/**
+	 * Implements the logic for adding the sequencing files specified in the configuration file, which
+	 * are not yet part of the local database, to the existing pool and selection cycles. Selection 
+	 * cycles not present in the database are created. If a previous append or parse was interrupted, the database 
+	 * is restored to its last checkpoint, or its state prior to that append, and the remaining reads are added.
+	 * @param configFile
+	 */
+	private void appendToDatabase(String configFile) {
+		
+		AptaLogger.log(Level.INFO, this.getClass(), "Appending to Database");
+		
+		// The segment and the manifest do not describe the data added by this append
+		deleteSegment();
+		try {
+			ProjectManifest.delete(Paths.get(Configuration.getParameters().getString("Experiment.projectPath")));
+		} catch (IOException e) {
+			AptaLogger.log(Level.WARNING, this.getClass(), "Could not remove the project manifest: " + e.getMessage());
+		}
+		
+		// This restores the selection cycles of an interrupted append, hence it must happen before they are opened
+		AppendManifest manifest = openAppendManifest();
+		
+		// Load the existing experiment and undo any registrations of an interrupted append
+		this.experiment = new Experiment(configFile, false);
+		// Other projects may have added to a shared pool since, it is only rolled back to its own last checkpoint
+		experiment.getAptamerPool().truncate(experiment.getSharedPool() != null ? experiment.getAptamerPool().size() : manifest.getPoolSize());
+		this.appendedFrom = manifest.getInitialPoolSize();
+
+		AptaLogger.log(Level.INFO, this.getClass(), experiment.getSelectionCycleConfiguration());
+		
+		// Only files which have not been parsed before are added
+		List<Path> newFiles = new ArrayList<Path>();
+		for (Path file : getForwardFiles()){
+			if (!manifest.isParsed(file)){
+				newFiles.add(file);
+			}
+			else if (manifest.hasChanged(file)){
+				AptaLogger.log(Level.WARNING, this.getClass(), "The size of " + file + " changed since it was parsed. It will not be parsed again.");
+			}
+		}
+		
+		if (newFiles.isEmpty()){
+			AptaLogger.log(Level.INFO, this.getClass(), "All sequencing files of the configuration are part of the project already.");
+		}
+		else{
+			AptaLogger.log(Level.INFO, this.getClass(), "Appending " + newFiles.size() + " new sequencing file(s) to the project.");
+			// An incomplete append is not committed, the next append restores its last checkpoint
+			if (!runParser(new AptaPlexParser(manifest))){
+				return;
+			}
+		}
+		
+		commitAppendManifest(manifest, newFiles);
+		
+		completeDatabase();
+		
+		AptaLogger.log(Level.INFO, this.getClass(), "Added " + (experiment.getAptamerPool().size() - appendedFrom) + " new aptamers to the pool.");
+		
+	}
+	
+	/**
+	 * Writes the data of the project into a single read only segment which is used
+	 * instead of the configured backends by all subsequent analyses
+	 * @param configFile
+	 */
+	private void compactDatabase(String configFile){
+		
+		AptaLogger.log(Level.INFO, this.getClass(), "Compacting the project");
+		
+		Path projectPath = Paths.get(Configuration.getParameters().getString("Experiment.projectPath"));
+		
+		// Make sure we have prior data or load it from disk. The segment must be 
+		// created from the configured backends rather than from a previous segment.
+		if (experiment == null) {
+			deleteSegment();
+			AptaLogger.log(Level.INFO, this.getClass(), "Loading data from disk");
+			this.experiment = new Experiment(configFile, false);
+		}
+		else{
+			AptaLogger.log(Level.INFO, this.getClass(), "Using existing data");
+		}
+		
+		// Include the structures if they have been predicted
+		String[] existing = Paths.get(SharedPool.getDataPath(projectPath).toString(), "structuredata").toFile().list();
+		if (experiment.getStructurePool() == null && existing != null && existing.length != 0){
+			experiment.instantiateStructurePool(false);
+		}
+		
+		long tStart = System.currentTimeMillis();
+		try {
+			SegmentFile.write(experiment, projectPath);
+		} catch (IOException e) {
+			AptaLogger.log(Level.SEVERE, this.getClass(), "Could not compact the project in " + projectPath + ": " + e.getMessage());
+			throw new IllegalStateException("Could not compact the project in " + projectPath, e);
+		}
+		
+		AptaLogger.log(Level.INFO, this.getClass(), String.format("Compaction completed in %s seconds.", ((System.currentTimeMillis() - tStart) / 1000.0)));
+		
+	}
+	
+	/**
+	 * Records the data of the project once it has been created or appended to, so that 
+	 * subsequent runs can open the selection cycles on demand
+	 */
+	private void completeDatabase(){
+		
+		if (experiment.getSharedPool() != null){
+			experiment.registerWithSharedPool();
+		}
+		
+		Path projectPath = Paths.get(Configuration.getParameters().getString("Experiment.projectPath"));
+		
+		try {
+			ProjectManifest.write(experiment, projectPath);
+		} catch (IOException e) {
+			AptaLogger.log(Level.WARNING, this.getClass(), "Could not write the project manifest, the project will be loaded eagerly: " + e.getMessage());
+		}
+		
+	}
+	
+	/**
+	 * Removes the segment of the project, if any, as it no longer reflects the data
+	 */
+	private void deleteSegment(){
+		
+		Path projectPath = Paths.get(Configuration.getParameters().getString("Experiment.projectPath"));
+		
+		try {
+			SegmentFile.delete(projectPath);
+		} catch (IOException e) {
+			AptaLogger.log(Level.WARNING, this.getClass(), "Could not remove the segment of the project: " + e.getMessage());
+		}
+		
+	}
+	
+	/**
+	 * Opens the append manifest of the project and starts a new append
+	 */
+	private AppendManifest openAppendManifest(){
+		
+		Path projectPath = Paths.get(Configuration.getParameters().getString("Experiment.projectPath"));
+		
+		try {
+			AppendManifest manifest = new AppendManifest(projectPath);
+			manifest.begin();
+			return manifest;
+		} catch (IOException e) {
+			AptaLogger.log(Level.SEVERE, this.getClass(), "Could not prepare the project in " + projectPath + " for parsing: " + e.getMessage());
+			throw new IllegalStateException("Could not prepare the project in " + projectPath + " for parsing.", e);
+		}
+		
+	}
+	
+	/**
+	 * Records the successful completion of an append. The data must have been written to disk.
+	 * @param manifest
+	 * @param parsedFiles the forward read files parsed by the append
+	 */
+	private void commitAppendManifest(AppendManifest manifest, List<Path> parsedFiles){
+		
+		try {
+			manifest.commit(parsedFiles, experiment.getAptamerPool().size());
+		} catch (IOException e) {
+			AptaLogger.log(Level.SEVERE, this.getClass(), "Could not complete the append manifest: " + e.getMessage());
+			throw new IllegalStateException("Could not complete the append manifest.", e);
+		}
+		
+	}
+	
+	/**
+	 * @return the forward read files of the configuration
+	 */
+	private List<Path> getForwardFiles(){
+		
+		List<Path> files = new ArrayList<Path>();
+		for (String file : Configuration.getParameters().getStringArray("AptaplexParser.forwardFiles")){
+			files.add(Paths.get(file));
+		}
+		
+		return files;
+	}
+	
+	/**
+	 * Runs <code>parser</code> in a separate thread while reporting its progress and sets 
+	 * the pool and cycles of the experiment to read only afterwards.
+	 * @param parser
+	 * @return true if all reads have been parsed, false if the parser failed or was interrupted
+	 */
+	private boolean runParser(AptaPlexParser parser){
 
 		parserThread = new Thread(parser, "AptaPlex Main");
 
@@ -215,6 +492,14 @@ public class CLI {
 			} catch (InterruptedException ie) {
 			}
 		}
+		
+		// An interrupted parser still has to stop its threads
+		try {
+			parserThread.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		
 		// final update
 		System.out.println(parser.Progress().getProgress() + "\r");
 
@@ -238,9 +523,16 @@ public class CLI {
 			}
 		}
 
+		boolean completed = parser.isCompleted();
+		if (!completed){
+			AptaLogger.log(Level.SEVERE, this.getClass(), "Parsing did not complete. The project is restored to its last checkpoint by the next call of -append, or of -parse together with -resume.");
+		}
+		
 		// clean up
 		parserThread = null;
 		parser = null;
+		
+		return completed;
 
 	}
 
@@ -315,6 +607,8 @@ public class CLI {
 			}
 		}
 		
+		completeDatabase();
+		
 		// clean up
 		parserThread = null;
 		parser = null;
@@ -324,7 +618,12 @@ public class CLI {
 	}
 	
 	
-	private void runStructurePrediction(String configFile){
+	/**
+	 * Predicts the structures of the aptamers in the pool
+	 * @param configFile
+	 * @param incremental if true, the existing structures are kept and only the aptamers added by the current append are predicted
+	 */
+	private void runStructurePrediction(String configFile, boolean incremental){
 		
 		AptaLogger.log(Level.INFO, this.getClass(), "Starting Structure Predition");
 		
@@ -337,11 +636,37 @@ public class CLI {
 			AptaLogger.log(Level.INFO, this.getClass(), "Using existing sequencing data");
 		}
 		
-		// Create a new instance of the StructurePool
-		experiment.instantiateStructurePool(true);
+		// Create a new instance of the StructurePool or add to the existing one
+		experiment.instantiateStructurePool(!incremental);
 		
 		// Start parallel processing of structure prediction
-		CapRFactory caprf = new CapRFactory(experiment.getAptamerPool().iterator());
+		CapRFactory caprf = null;
+		final int total;
+		if (incremental && experiment.getSharedPool() != null){
+			
+			// Other projects may have added aptamers anywhere in the shared pool, predict all without a structure
+			AptaLogger.log(Level.INFO, this.getClass(), "Predicting the structures of the aptamers missing from the shared structure pool only");
+			
+			final StructurePool structures = experiment.getStructurePool();
+			Predicate<Entry<byte[], Integer>> missing = new Predicate<Entry<byte[], Integer>>(){
+				@Override
+				public boolean test(Entry<byte[], Integer> entry) {
+					return structures.getStructure(entry.getValue()) == null;
+				}
+			};
+			
+			caprf = new CapRFactory(StreamSupport.stream(experiment.getAptamerPool().spliterator(), true).filter(missing).spliterator());
+			total = (int) StreamSupport.stream(experiment.getAptamerPool().spliterator(), true).filter(missing).count();
+		}
+		else if (incremental){
+			AptaLogger.log(Level.INFO, this.getClass(), "Predicting the structures of the aptamers added by the append only");
+			caprf = new CapRFactory(experiment.getAptamerPool().spliterator(appendedFrom + 1, experiment.getAptamerPool().size() + 1));
+			total = experiment.getAptamerPool().size() - appendedFrom;
+		}
+		else{
+			caprf = new CapRFactory(experiment.getAptamerPool().spliterator());
+			total = experiment.getAptamerPool().size();
+		}
 		
 		structureThread = new Thread(caprf);
 
@@ -373,8 +698,8 @@ public class CLI {
 		while (structureThread.isAlive() && !structureThread.isInterrupted()) {
 			try {
 				long current_progress = caprf.getProgress().longValue();
-				long eta = (experiment.getAptamerPool().size()-current_progress)/(current_progress-sps+1);
-				System.out.print(String.format("Completed: %s/%s (%s structures per second  ETA:%s)     " + "\r", current_progress, experiment.getAptamerPool().size(), current_progress-sps, String.format("%02d:%02d:%02d", eta / 3600, (eta % 3600) / 60, eta % 60)));
+				long eta = (total-current_progress)/(current_progress-sps+1);
+				System.out.print(String.format("Completed: %s/%s (%s structures per second  ETA:%s)     " + "\r", current_progress, total, current_progress-sps, String.format("%02d:%02d:%02d", eta / 3600, (eta % 3600) / 60, eta % 60)));
 				sps = current_progress;
 				
 				// Once every second should suffice
@@ -384,7 +709,7 @@ public class CLI {
 			}
 		}
 		// final update
-		System.out.print(        String.format("Completed: %s/%s                                            ", caprf.getProgress(), experiment.getAptamerPool().size()));
+		System.out.print(        String.format("Completed: %s/%s                                            ", caprf.getProgress(), total));
 
 		AptaLogger.log(Level.INFO, this.getClass(), String.format("Structure prediction completed in %s seconds.\n",
 				((System.currentTimeMillis() - tParserStart) / 1000.0)));
@@ -422,12 +747,14 @@ public class CLI {
 		long tParserStart = System.currentTimeMillis();
 		int counter = 0;
 		StringBuilder sb = new StringBuilder();
-		for (Entry<byte[], Integer> aptamer : experiment.getAptamerPool().iterator()){
+		// Scan the counts of all cycles sequentially instead of querying every cycle for every aptamer
+		CycleCountMatrix matrix = experiment.getCycleCountMatrix();
+		for (Entry<Integer, int[]> row : matrix.iterator()){
 			counter++;
-			sb.append(new String(aptamer.getKey()));
+			sb.append(new String(experiment.getAptamerPool().getAptamer(row.getKey())));
 			sb.append("\t");
-			for (SelectionCycle sc : experiment.getAllSelectionCycles()){
-				sb.append(sc.getAptamerCardinality(aptamer.getValue()));
+			for (int count : row.getValue()){
+				sb.append(count);
 				sb.append("\t");
 			}
 			sb.append("\t");
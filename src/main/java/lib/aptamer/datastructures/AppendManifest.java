@@ -0,0 +1,498 @@
+/**
+ *
+ */
+package lib.aptamer.datastructures;
+
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Properties;
+import java.util.Set;
+import java.util.logging.Level;
+
+import org.apache.commons.io.FileUtils;
+
+import utilities.AptaLogger;
+
+/**
+ * @author Jan Hoinka
+ *
+ * Transactional record of the sequencing files parsed into a project. It allows new files to be
+ * appended to an existing project without reparsing the previous ones, and an interrupted append
+ * to be rolled back.
+ *
+ * The manifest is stored in <code>append.manifest</code> in the project folder. It contains the state
+ * of the project (<code>committed</code> or <code>appending</code>), the size of the pool after the last
+ * completed parse, and the forward read files parsed so far together with their size.
+ *
+ * An append proceeds as follows:
+ * <code>begin()</code> copies the selection cycle data to <code>append.backup</code> before the stores are
+ * opened and marks the project as <code>appending</code>. The pool is not copied since it only grows, only
+ * the names of its files are recorded. Aptamers registered during an append all have ids larger than the
+ * recorded pool size and are removed by <code>AptamerPool.truncate</code>. Once the new data is on disk,
+ * <code>commit()</code> records the new files and pool size and removes the backup.
+ *
+ * If the application dies in between, the project remains in state <code>appending</code>. The next
+ * call to <code>begin()</code> then restores the cycle data from the backup and removes the pool files
+ * created by the interrupted append. Together with truncating the pool to <code>getPoolSize()</code>,
+ * this returns the project to the last committed state. The manifest itself is always replaced atomically.
+ *
+ * Long running parses additionally record checkpoints. A checkpoint takes a new backup, completes the
+ * files parsed so far and records the number of reads consumed from each file currently being parsed.
+ * An interrupted append is then restored to its last checkpoint rather than to its beginning, and the
+ * parse can resume from there.
+ */
+public class AppendManifest {
+
+	/**
+	 * Version of the manifest layout
+	 */
+	private static final String VERSION = "1";
+
+	private static final String STATE_COMMITTED = "committed";
+
+	private static final String STATE_APPENDING = "appending";
+
+	/**
+	 * Folders backed up during an append, relative to the project path
+	 */
+	private static final String[] BACKUP_FOLDERS = { "cycledata" };
+
+	/**
+	 * Folders of which only the file names are recorded during an append, relative to the project path.
+	 * Files created by an interrupted append are removed.
+	 */
+	private static final String[] SNAPSHOT_FOLDERS = { "pooldata" };
+
+	/**
+	 * The project the manifest belongs to
+	 */
+	private Path projectPath = null;
+
+	/**
+	 * Location of the manifest
+	 */
+	private Path manifestPath = null;
+
+	/**
+	 * Prefix of the folders holding the backup of the current append or checkpoint
+	 */
+	private static final String BACKUP_PREFIX = "append.backup";
+
+	/**
+	 * The content of the manifest
+	 */
+	private Properties properties = new Properties();
+
+	/**
+	 * Reads the manifest of the project at <code>projectPath</code>. Projects without a
+	 * manifest are treated as empty, committed projects.
+	 * @param projectPath the project folder
+	 * @throws IOException
+	 */
+	public AppendManifest(Path projectPath) throws IOException{
+
+		this.projectPath = projectPath;
+		this.manifestPath = Paths.get(projectPath.toString(), "append.manifest");
+
+		if (Files.exists(manifestPath)){
+
+			try (FileInputStream in = new FileInputStream(manifestPath.toFile())){
+				properties.load(in);
+			}
+
+			if (!VERSION.equals(properties.getProperty("version"))){
+				throw new IOException("Unsupported version " + properties.getProperty("version") + " of " + manifestPath.toString());
+			}
+
+		}
+		else{
+
+			properties.setProperty("version", VERSION);
+			properties.setProperty("state", STATE_COMMITTED);
+			properties.setProperty("poolSize", "0");
+
+		}
+
+	}
+
+	/**
+	 * Removes the manifest and any backup of the project at <code>projectPath</code>,
+	 * e.g. before the project is parsed from scratch
+	 * @param projectPath the project folder
+	 * @throws IOException
+	 */
+	public static void delete(Path projectPath) throws IOException{
+
+		Files.deleteIfExists(Paths.get(projectPath.toString(), "append.manifest"));
+		deleteBackups(projectPath, null);
+
+	}
+
+	/**
+	 * Removes all backup folders of the project at <code>projectPath</code> except <code>keep</code>
+	 * @param projectPath the project folder
+	 * @param keep the backup to keep, or null
+	 * @throws IOException
+	 */
+	private static void deleteBackups(Path projectPath, Path keep) throws IOException{
+
+		try (DirectoryStream<Path> directoryStream = Files.newDirectoryStream(projectPath, BACKUP_PREFIX + "*")) {
+			for (Path folder : directoryStream){
+				if (!folder.equals(keep)){
+					FileUtils.deleteDirectory(folder.toFile());
+				}
+			}
+		}
+
+	}
+
+	/**
+	 * @return the location of the backup the project is restored from
+	 */
+	private Path getBackupPath(){
+
+		return Paths.get(projectPath.toString(), properties.getProperty("backup", BACKUP_PREFIX));
+
+	}
+
+	/**
+	 * @return true if an append was started but did not complete
+	 */
+	public boolean isInterrupted(){
+
+		return STATE_APPENDING.equals(properties.getProperty("state"));
+
+	}
+
+	/**
+	 * @return true if an append was interrupted after it recorded a checkpoint, i.e. it can be resumed
+	 */
+	public boolean isResumable(){
+
+		return isInterrupted() && properties.getProperty("checkpoint") != null;
+
+	}
+
+	/**
+	 * @return the number of aptamers in the pool after the last completed parse, append or checkpoint
+	 */
+	public int getPoolSize(){
+
+		return Integer.parseInt(properties.getProperty("poolSize"));
+
+	}
+
+	/**
+	 * @return the number of aptamers in the pool when the current append began
+	 */
+	public int getInitialPoolSize(){
+
+		return Integer.parseInt(properties.getProperty("initialPoolSize", properties.getProperty("poolSize")));
+
+	}
+
+	/**
+	 * @param forwardFile a forward read file
+	 * @return true if <code>forwardFile</code> has been parsed into the project by a completed parse or append,
+	 * or completely before the last checkpoint
+	 */
+	public boolean isParsed(Path forwardFile){
+
+		return properties.getProperty("input." + key(forwardFile)) != null;
+
+	}
+
+	/**
+	 * @param forwardFile a parsed forward read file
+	 * @return true if the size of <code>forwardFile</code> differs from the time it was parsed
+	 */
+	public boolean hasChanged(Path forwardFile){
+
+		String size = properties.getProperty("input." + key(forwardFile));
+
+		try {
+			return size != null && Long.parseLong(size) != Files.size(forwardFile);
+		} catch (IOException e) {
+			// A missing file has been parsed before, the reader reports the error otherwise
+			return false;
+		}
+
+	}
+
+	/**
+	 * @param forwardFiles the forward read files of the current configuration
+	 * @return true if every file recorded by this manifest is part of <code>forwardFiles</code> and
+	 * none of the completely parsed ones has changed since
+	 */
+	public boolean matchesInputs(Iterable<Path> forwardFiles){
+
+		Set<String> keys = new HashSet<String>();
+		for (Path file : forwardFiles){
+			keys.add(key(file));
+		}
+
+		for (String name : properties.stringPropertyNames()){
+			
+			String file = null;
+			if (name.startsWith("input.")){
+				file = name.substring("input.".length());
+			}
+			else if (name.startsWith("position.")){
+				file = name.substring("position.".length());
+			}
+			
+			if (file != null && (!keys.contains(file) || hasChanged(Paths.get(file)))){
+				return false;
+			}
+		}
+
+		return true;
+
+	}
+
+	/**
+	 * @param forwardFile a forward read file
+	 * @return the number of reads of <code>forwardFile</code> which were consumed before the last 
+	 * checkpoint of an interrupted append, 0 if none
+	 */
+	public long getPosition(Path forwardFile){
+
+		String reads = properties.getProperty("position." + key(forwardFile));
+		return reads == null ? 0 : Long.parseLong(reads);
+
+	}
+
+	/**
+	 * Starts a new append. Must be called before the stores of the project are opened. If the
+	 * previous append was interrupted, the cycle data is restored from its last backup instead, and
+	 * the caller must truncate the pool to <code>getPoolSize()</code> once it has been opened.
+	 * @throws IOException
+	 */
+	public void begin() throws IOException{
+
+		if (isInterrupted()){
+
+			AptaLogger.log(Level.INFO, this.getClass(), "The previous append did not complete. Restoring the project to " + getPoolSize() + " aptamers.");
+			restore();
+			return;
+
+		}
+
+		// Remove left-overs of earlier backups, then copy the current state
+		deleteBackups(projectPath, null);
+		properties.setProperty("backup", BACKUP_PREFIX);
+		backup(getBackupPath());
+
+		// Only now the project can be modified
+		properties.setProperty("initialPoolSize", properties.getProperty("poolSize"));
+		properties.setProperty("state", STATE_APPENDING);
+		write();
+
+	}
+
+	/**
+	 * Records a consistent state of an ongoing append. All data up to this point must have been 
+	 * written to disk and the stores must not be modified until this method returns.
+	 * @param parsedFiles the forward read files which have been parsed completely since the append began
+	 * @param positions the forward read files being parsed, each with the number of its reads which have been added to the stores
+	 * @param poolSize the number of aptamers in the pool
+	 * @throws IOException
+	 */
+	public void checkpoint(Iterable<Path> parsedFiles, Map<Path, Long> positions, int poolSize) throws IOException{
+
+		long tStart = System.currentTimeMillis();
+
+		// The previous backup remains valid until the manifest refers to the new one
+		int checkpoint = Integer.parseInt(properties.getProperty("checkpoint", "0")) + 1;
+		String backup = BACKUP_PREFIX + "." + checkpoint;
+
+		FileUtils.deleteDirectory(Paths.get(projectPath.toString(), backup).toFile());
+		backup(Paths.get(projectPath.toString(), backup));
+
+		for (Path file : parsedFiles){
+			properties.setProperty("input." + key(file), Long.toString(Files.exists(file) ? Files.size(file) : -1));
+		}
+
+		clearProperties("position.");
+		for (Entry<Path, Long> position : positions.entrySet()){
+			properties.setProperty("position." + key(position.getKey()), Long.toString(position.getValue()));
+		}
+
+		properties.setProperty("poolSize", Integer.toString(poolSize));
+		properties.setProperty("checkpoint", Integer.toString(checkpoint));
+		properties.setProperty("backup", backup);
+		write();
+
+		deleteBackups(projectPath, getBackupPath());
+
+		AptaLogger.log(Level.INFO, this.getClass(), "Recorded checkpoint " + checkpoint + " at " + poolSize + " aptamers in " + ((System.currentTimeMillis() - tStart) / 1000.0) + " seconds.");
+
+	}
+
+	/**
+	 * Copies the backed up folders to <code>backupPath</code> and records the
+	 * content of the snapshot folders
+	 * @param backupPath the folder to store the backup in
+	 * @throws IOException
+	 */
+	private void backup(Path backupPath) throws IOException{
+
+		long tStart = System.currentTimeMillis();
+		for (String folder : BACKUP_FOLDERS){
+
+			Path source = Paths.get(projectPath.toString(), folder);
+			if (Files.isDirectory(source)){
+				FileUtils.copyDirectory(source.toFile(), Paths.get(backupPath.toString(), folder).toFile());
+			}
+			else{
+				Files.createDirectories(Paths.get(backupPath.toString(), folder));
+			}
+
+		}
+
+		AptaLogger.log(Level.CONFIG, this.getClass(), "Backed up the selection cycles in " + ((System.currentTimeMillis() - tStart) / 1000.0) + " seconds.");
+
+		for (String folder : SNAPSHOT_FOLDERS){
+
+			clearProperties(folder + ".");
+
+			Path source = Paths.get(projectPath.toString(), folder);
+			if (Files.isDirectory(source)){
+				try (DirectoryStream<Path> directoryStream = Files.newDirectoryStream(source)) {
+					for (Path file : directoryStream){
+						properties.setProperty(folder + "." + file.getFileName(), Long.toString(Files.size(file)));
+					}
+				}
+			}
+
+		}
+
+	}
+
+	/**
+	 * Removes all properties starting with <code>prefix</code>
+	 */
+	private void clearProperties(String prefix){
+
+		for (String name : properties.stringPropertyNames()){
+			if (name.startsWith(prefix)){
+				properties.remove(name);
+			}
+		}
+
+	}
+
+	/**
+	 * Replaces the content of the backed up folders by their backup and removes the
+	 * files created in the snapshot folders
+	 * @throws IOException
+	 */
+	private void restore() throws IOException{
+
+		for (String folder : SNAPSHOT_FOLDERS){
+
+			Path target = Paths.get(projectPath.toString(), folder);
+			if (!Files.isDirectory(target)){
+				continue;
+			}
+
+			try (DirectoryStream<Path> directoryStream = Files.newDirectoryStream(target)) {
+				for (Path file : directoryStream){
+					if (properties.getProperty(folder + "." + file.getFileName()) == null){
+						Files.delete(file);
+					}
+				}
+			}
+		}
+
+		Path backupPath = getBackupPath();
+
+		for (String folder : BACKUP_FOLDERS){
+
+			Path target = Files.createDirectories(Paths.get(projectPath.toString(), folder));
+			Path source = Paths.get(backupPath.toString(), folder);
+
+			if (!Files.isDirectory(source)){
+				throw new IOException("The backup of " + folder + " is missing in " + backupPath.toString());
+			}
+
+			// Files created during the append
+			try (DirectoryStream<Path> directoryStream = Files.newDirectoryStream(target)) {
+				for (Path file : directoryStream){
+					if (Files.notExists(source.resolve(file.getFileName()))){
+						Files.delete(file);
+					}
+				}
+			}
+
+			// Files modified during the append
+			try (DirectoryStream<Path> directoryStream = Files.newDirectoryStream(source)) {
+				for (Path file : directoryStream){
+					Files.copy(file, target.resolve(file.getFileName()), StandardCopyOption.REPLACE_EXISTING);
+				}
+			}
+		}
+
+	}
+
+	/**
+	 * Completes the current append. The stores of the project must have been written to disk.
+	 * @param forwardFiles the forward read files parsed by this append
+	 * @param poolSize the number of aptamers in the pool
+	 * @throws IOException
+	 */
+	public void commit(Iterable<Path> forwardFiles, int poolSize) throws IOException{
+
+		for (Path file : forwardFiles){
+			properties.setProperty("input." + key(file), Long.toString(Files.exists(file) ? Files.size(file) : -1));
+		}
+
+		clearProperties("position.");
+		properties.remove("checkpoint");
+		properties.remove("backup");
+		properties.remove("initialPoolSize");
+
+		properties.setProperty("poolSize", Integer.toString(poolSize));
+		properties.setProperty("state", STATE_COMMITTED);
+		write();
+
+		deleteBackups(projectPath, null);
+
+	}
+
+	/**
+	 * Atomically replaces the manifest on disk
+	 * @throws IOException
+	 */
+	private void write() throws IOException{
+
+		Path tmp = Paths.get(manifestPath.toString() + ".tmp");
+
+		try (FileOutputStream out = new FileOutputStream(tmp.toFile())){
+			properties.store(out, "AptaSuite append manifest");
+			out.getFD().sync();
+		}
+
+		Files.move(tmp, manifestPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+	}
+
+	/**
+	 * @return the key under which <code>file</code> is recorded
+	 */
+	private static String key(Path file){
+
+		return file.toAbsolutePath().normalize().toString();
+
+	}
+
+}
@@ -0,0 +1,212 @@
+/**
+ *
+ */
+package lib.aptamer.datastructures;
+
+import java.util.Arrays;
+
+import it.unimi.dsi.fastutil.bytes.ByteArrays;
+import it.unimi.dsi.fastutil.objects.Object2IntOpenCustomHashMap;
+
+/**
+ * @author Jan Hoinka
+ *
+ * A reusable container of (sequence, rr_start, rr_end, count) tuples which can be
+ * handed to <code>AptamerPool.registerAptamers</code> and
+ * <code>SelectionCycle.addToSelectionCycle(AptamerBatch)</code> in order to
+ * amortize locking and disk writes over many aptamers.
+ *
+ * The entries are stored in parallel arrays which grow as required. Instances
+ * are not thread-safe and are meant to be filled by a single producer.
+ *
+ * An aggregating batch stores every sequence only once and sums up the counts of
+ * duplicates instead, so that the backends are only consulted once per distinct
+ * sequence. The bounds of the randomized region of the first occurrence are kept,
+ * just like the pool keeps the bounds of the first registration.
+ */
+public class AptamerBatch {
+
+	/**
+	 * The aptamer sequences, including primers
+	 */
+	private byte[][] sequences;
+
+	/**
+	 * The start indices (inclusive) of the randomized regions
+	 */
+	private int[] rrStarts;
+
+	/**
+	 * The end indices (exclusive) of the randomized regions
+	 */
+	private int[] rrEnds;
+
+	/**
+	 * The number of times each sequence has been observed
+	 */
+	private int[] counts;
+
+	/**
+	 * The number of entries currently in the batch
+	 */
+	private int size = 0;
+
+	/**
+	 * The sum of the counts of all entries
+	 */
+	private long totalCount = 0;
+
+	/**
+	 * Position of each sequence in the batch, null if duplicates are not aggregated
+	 */
+	private Object2IntOpenCustomHashMap<byte[]> index = null;
+
+	/**
+	 * Creates an empty batch
+	 * @param capacity the initial number of entries the batch can hold before growing
+	 */
+	public AptamerBatch(int capacity){
+
+		this(capacity, false);
+
+	}
+
+	/**
+	 * Creates an empty batch
+	 * @param capacity the initial number of entries the batch can hold before growing
+	 * @param aggregate if true, duplicate sequences are stored once with the sum of their counts
+	 */
+	public AptamerBatch(int capacity, boolean aggregate){
+
+		capacity = Math.max(1, capacity);
+
+		sequences = new byte[capacity][];
+		rrStarts = new int[capacity];
+		rrEnds = new int[capacity];
+		counts = new int[capacity];
+
+		if (aggregate){
+			index = new Object2IntOpenCustomHashMap<byte[]>(capacity, ByteArrays.HASH_STRATEGY);
+			index.defaultReturnValue(-1);
+		}
+
+	}
+
+	/**
+	 * Appends an aptamer to the batch
+	 * @param a the aptamer sequence
+	 * @param rr_start the index (inclusive) in <code>a</code> at which the randomized region begins
+	 * @param rr_end the index (exclusive) in <code>a</code> at which the randomized region ends
+	 * @param count the number by which the cardinality of <code>a</code> should be increased
+	 */
+	public void add(byte[] a, int rr_start, int rr_end, int count){
+
+		totalCount += count;
+
+		if (index != null){
+
+			int position = index.getInt(a);
+			if (position != -1){
+				counts[position] += count;
+				return;
+			}
+
+			index.put(a, size);
+		}
+
+		if (size == sequences.length){
+			int capacity = sequences.length * 2;
+			sequences = Arrays.copyOf(sequences, capacity);
+			rrStarts = Arrays.copyOf(rrStarts, capacity);
+			rrEnds = Arrays.copyOf(rrEnds, capacity);
+			counts = Arrays.copyOf(counts, capacity);
+		}
+
+		sequences[size] = a;
+		rrStarts[size] = rr_start;
+		rrEnds[size] = rr_end;
+		counts[size] = count;
+		size++;
+
+	}
+
+	/**
+	 * @see AptamerBatch#add(byte[], int, int, int)
+	 */
+	public void add(byte[] a, int rr_start, int rr_end){
+		add(a, rr_start, rr_end, 1);
+	}
+
+	/**
+	 * Appends a single occurrence of an aptamer held in a buffer owned by the caller. 
+	 * The sequence is only copied if the batch does not aggregate it with an existing 
+	 * entry, hence <code>a</code> may be overwritten once this method returns.
+	 * @see AptamerBatch#add(byte[], int, int, int)
+	 */
+	public void addCopy(byte[] a, int rr_start, int rr_end){
+
+		if (index != null){
+
+			int position = index.getInt(a);
+			if (position != -1){
+				counts[position]++;
+				totalCount++;
+				return;
+			}
+
+		}
+
+		add(a.clone(), rr_start, rr_end, 1);
+
+	}
+
+	public byte[] getSequence(int index){
+		return sequences[index];
+	}
+
+	public int getRandomizedRegionStart(int index){
+		return rrStarts[index];
+	}
+
+	public int getRandomizedRegionEnd(int index){
+		return rrEnds[index];
+	}
+
+	public int getCount(int index){
+		return counts[index];
+	}
+
+	/**
+	 * @return the number of entries in the batch, i.e. the number of distinct sequences of an aggregating batch
+	 */
+	public int size(){
+		return size;
+	}
+
+	/**
+	 * @return the sum of the counts of all entries
+	 */
+	public long getTotalCount(){
+		return totalCount;
+	}
+
+	public boolean isEmpty(){
+		return size == 0;
+	}
+
+	/**
+	 * Removes all entries while keeping the allocated capacity
+	 */
+	public void clear(){
+
+		// release the references to the sequences
+		Arrays.fill(sequences, 0, size, null);
+		size = 0;
+		totalCount = 0;
+
+		if (index != null){
+			index.clear();
+		}
+
+	}
+}
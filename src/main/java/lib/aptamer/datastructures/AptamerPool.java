@@ -5,6 +5,10 @@ package lib.aptamer.datastructures;
 
 import java.io.Serializable;
 import java.util.Map.Entry;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 /**
  * @author Jan Hoinka
@@ -33,7 +37,7 @@ public interface AptamerPool extends Serializable{
 	 * @param a The aptamer sequence to be added to the pool
 	 * @param rr_start the index (inclusive) in <code>a</code> at which the randomized region begins  
 	 * @param rr_end the index (exclusive) in <code>a</code> at which the randomized region ends
-	 * @return A unique integer for sequence <code>a</code>
+	 * @return A unique integer for sequence <code>a</code>, -1 if the backend cannot store <code>a</code>
 	 */
 	public int registerAptamer(byte[] a, int rr_start, int rr_end);
 	
@@ -44,6 +48,18 @@ public interface AptamerPool extends Serializable{
 	public int registerAptamer(String a, int rr_start, int rr_end);
 	
 	
+	/**
+	 * Registers all aptamers of <code>batch</code> in the pool in a single operation. 
+	 * Implementations are expected to amortize locking and storage writes over the 
+	 * whole batch. The counts of the batch are ignored by the pool.
+	 * 
+	 * @param batch the aptamers to be added to the pool
+	 * @return the unique identifiers of the aptamers in the same order as in <code>batch</code>, 
+	 * -1 for aptamers the backend cannot store, which are skipped without failing the batch
+	 */
+	public int[] registerAptamers(AptamerBatch batch);
+	
+	
 	/**
 	 * Retrieves the unique identifier on an aptamer in the pool. 
 	 * @param a The aptamer sequence 
@@ -100,11 +116,28 @@ public interface AptamerPool extends Serializable{
 	
 	
 	/**
-	 * Removes all items from the current pool.
+	 * Removes all items from the current pool. The pool must not be accessed concurrently.
 	 */
 	public void clear();
 	
 	
+	/**
+	 * Removes all aptamers with an id larger than <code>size</code>, i.e. undoes all registrations
+	 * performed after the pool contained <code>size</code> aptamers. Used to roll back interrupted 
+	 * appends. The pool must not be modified concurrently.
+	 * @param size the number of aptamers to keep
+	 */
+	public void truncate(int size);
+	
+	
+	/**
+	 * Writes all aptamers registered so far to disk, such that they survive an abnormal termination 
+	 * of the application. Registrations performed after the checkpoint can then be undone with 
+	 * <code>truncate</code>. The pool must not be modified concurrently.
+	 */
+	public void checkpoint();
+	
+	
 	/**
 	 * Optional. Closes any file handles the implementing class might have.
 	 */
@@ -144,4 +177,55 @@ public interface AptamerPool extends Serializable{
 	 * Provides an iterator over every id in the pool
 	 */
 	public Iterable<Integer> id_iterator();
+	
+	
+	/**
+	 * Provides a spliterator over every aptamer in the pool together with its 
+	 * unique id, i.e. the same view as <code>iterator()</code>. Implementing classes 
+	 * should split along their internal partitions so that the pool can be 
+	 * consumed in parallel. The default implementation cannot be split efficiently.
+	 */
+	public default Spliterator<Entry<byte[], Integer>> spliterator(){
+		return Spliterators.spliterator(iterator().iterator(), size(), Spliterator.NONNULL);
+	}
+	
+	
+	/**
+	 * Provides a spliterator over the aptamers with ids <code>from</code> (inclusive) to 
+	 * <code>to</code> (exclusive) together with their unique id, e.g. the aptamers registered
+	 * by a particular append. Since ids are dense, the range is split by id.
+	 * @param from the first id (inclusive)
+	 * @param to the last id (exclusive)
+	 */
+	public default Spliterator<Entry<byte[], Integer>> spliterator(int from, int to){
+		return new IdRangeSpliterator(this, from, to);
+	}
+	
+	
+	/**
+	 * Provides a spliterator over the inverse view of the pool, i.e. the same view 
+	 * as <code>inverse_view_iterator()</code>. The default implementation cannot be 
+	 * split efficiently.
+	 */
+	public default Spliterator<Entry<Integer, byte[]>> inverse_view_spliterator(){
+		return Spliterators.spliterator(inverse_view_iterator().iterator(), size(), Spliterator.NONNULL);
+	}
+	
+	
+	/**
+	 * Provides a stream over every aptamer in the pool together with its unique id.
+	 * Use <code>stream().parallel()</code> to process the pool concurrently.
+	 */
+	public default Stream<Entry<byte[], Integer>> stream(){
+		return StreamSupport.stream(spliterator(), false);
+	}
+	
+	
+	/**
+	 * Provides a stream over the inverse view of the pool.
+	 * Use <code>inverse_view_stream().parallel()</code> to process the pool concurrently.
+	 */
+	public default Stream<Entry<Integer, byte[]>> inverse_view_stream(){
+		return StreamSupport.stream(inverse_view_spliterator(), false);
+	}
 }
@@ -0,0 +1,402 @@
+/**
+ *
+ */
+package lib.aptamer.datastructures;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.nio.ByteBuffer;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Spliterator;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+
+import utilities.AptaLogger;
+
+/**
+ * @author Jan Hoinka
+ *
+ * Decorator for any <code>AptamerPool</code> which keeps the results of recent lookups in memory.
+ * Repeated calls to <code>getAptamer</code>, <code>getAptamerBounds</code> and <code>getIdentifier</code>
+ * for the same, frequently accessed, aptamers are answered without consulting the bloom filters
+ * and files of the underlying pool.
+ *
+ * Each kind of lookup has its own cache of at most <code>capacity</code> entries with least recently
+ * used eviction. In order to reduce contention, every cache is split into <code>SEGMENTS</code>
+ * independently locked segments.
+ *
+ * The arrays returned by <code>getAptamer</code> are shared among callers and must not be modified.
+ */
+public class CachedAptamerPool implements AptamerPool {
+
+	private static final long serialVersionUID = 4235184871957408732L;
+
+	/**
+	 * Number of independently locked segments per cache, must be a power of two
+	 */
+	private static final int SEGMENTS = 16;
+
+	/**
+	 * The pool all operations are delegated to
+	 */
+	private AptamerPool pool = null;
+
+	/**
+	 * Maximal number of entries of each cache
+	 */
+	private int capacity;
+
+	/**
+	 * id -> aptamer
+	 */
+	private transient LRUCache<Integer, byte[]> aptamers = null;
+
+	/**
+	 * id -> bounds of the randomized region
+	 */
+	private transient LRUCache<Integer, AptamerBounds> bounds = null;
+
+	/**
+	 * aptamer -> id
+	 */
+	private transient LRUCache<ByteBuffer, Integer> identifiers = null;
+
+	/**
+	 * @param pool the pool to put the cache in front of
+	 * @param capacity maximal number of entries in each of the caches
+	 */
+	public CachedAptamerPool(AptamerPool pool, int capacity){
+
+		this.pool = pool;
+		this.capacity = capacity;
+
+		initializeCaches();
+
+		AptaLogger.log(Level.CONFIG, this.getClass(), "Caching up to " + capacity + " lookups of " + pool.getClass().getSimpleName());
+
+	}
+
+	private void initializeCaches(){
+
+		aptamers = new LRUCache<Integer, byte[]>(capacity);
+		bounds = new LRUCache<Integer, AptamerBounds>(capacity);
+		identifiers = new LRUCache<ByteBuffer, Integer>(capacity);
+
+	}
+
+	/**
+	 * @author Jan Hoinka
+	 * Bounded map with least recently used eviction and hit/miss accounting
+	 */
+	private static class LRUCache<K, V> {
+
+		private LinkedHashMap<K, V>[] segments = null;
+
+		private AtomicLong hits = new AtomicLong();
+
+		private AtomicLong misses = new AtomicLong();
+
+		@SuppressWarnings({"unchecked", "rawtypes"})
+		public LRUCache(int capacity){
+
+			final int segmentCapacity = Math.max(1, (capacity + SEGMENTS - 1) / SEGMENTS);
+
+			segments = new LinkedHashMap[SEGMENTS];
+			for (int x=0; x<SEGMENTS; x++){
+
+				segments[x] = new LinkedHashMap<K, V>(16, 0.75f, true){
+
+					private static final long serialVersionUID = 1L;
+
+					@Override
+					protected boolean removeEldestEntry(Map.Entry<K, V> eldest) {
+						return size() > segmentCapacity;
+					}
+				};
+			}
+		}
+
+		private LinkedHashMap<K, V> segment(K key){
+
+			int h = key.hashCode();
+			return segments[(h ^ (h >>> 16)) & (SEGMENTS - 1)];
+
+		}
+
+		public V get(K key){
+
+			LinkedHashMap<K, V> segment = segment(key);
+			V value = null;
+
+			synchronized(segment){
+				value = segment.get(key);
+			}
+
+			if (value == null){
+				misses.incrementAndGet();
+			}
+			else{
+				hits.incrementAndGet();
+			}
+
+			return value;
+		}
+
+		public void put(K key, V value){
+
+			LinkedHashMap<K, V> segment = segment(key);
+
+			synchronized(segment){
+				segment.put(key, value);
+			}
+		}
+
+		public void clear(){
+
+			for (LinkedHashMap<K, V> segment : segments){
+				synchronized(segment){
+					segment.clear();
+				}
+			}
+		}
+	}
+
+	@Override
+	public int registerAptamer(byte[] a, int rr_start, int rr_end) {
+
+		int id = pool.registerAptamer(a, rr_start, rr_end);
+		if (id != -1){
+			identifiers.put(ByteBuffer.wrap(a.clone()), id);
+		}
+
+		return id;
+	}
+
+	@Override
+	public int registerAptamer(String a, int rr_start, int rr_end) {
+
+		return registerAptamer(a.getBytes(), rr_start, rr_end);
+
+	}
+
+	@Override
+	public int[] registerAptamers(AptamerBatch batch) {
+
+		return pool.registerAptamers(batch);
+
+	}
+
+	@Override
+	public int getIdentifier(byte[] a) {
+
+		Integer id = identifiers.get(ByteBuffer.wrap(a));
+		if (id != null){
+			return id;
+		}
+
+		// Unknown aptamers are not cached as they might be registered later on
+		int result = pool.getIdentifier(a);
+		if (result != -1){
+			identifiers.put(ByteBuffer.wrap(a.clone()), result);
+		}
+
+		return result;
+	}
+
+	@Override
+	public int getIdentifier(String a) {
+
+		return getIdentifier(a.getBytes());
+
+	}
+
+	@Override
+	public byte[] getAptamer(int id) {
+
+		byte[] a = aptamers.get(id);
+		if (a != null){
+			return a;
+		}
+
+		a = pool.getAptamer(id);
+		if (a != null){
+			aptamers.put(id, a);
+		}
+
+		return a;
+	}
+
+	@Override
+	public AptamerBounds getAptamerBounds(int id) {
+
+		AptamerBounds b = bounds.get(id);
+		if (b != null){
+			return b;
+		}
+
+		b = pool.getAptamerBounds(id);
+		if (b != null){
+			bounds.put(id, b);
+		}
+
+		return b;
+	}
+
+	@Override
+	public Boolean containsAptamer(byte[] a) {
+
+		return getIdentifier(a) != -1;
+
+	}
+
+	@Override
+	public Boolean containsAptamer(String a) {
+
+		return getIdentifier(a.getBytes()) != -1;
+
+	}
+
+	@Override
+	public Boolean containsAptamer(int id) {
+
+		return pool.containsAptamer(id);
+
+	}
+
+	@Override
+	public int size() {
+
+		return pool.size();
+
+	}
+
+	@Override
+	public void clear() {
+
+		pool.clear();
+		aptamers.clear();
+		bounds.clear();
+		identifiers.clear();
+
+	}
+
+	@Override
+	public void truncate(int size) {
+
+		pool.truncate(size);
+		aptamers.clear();
+		bounds.clear();
+		identifiers.clear();
+
+	}
+
+	@Override
+	public void checkpoint() {
+
+		pool.checkpoint();
+
+	}
+
+	@Override
+	public void close() {
+
+		AptaLogger.log(Level.CONFIG, this.getClass(), getStatistics());
+		pool.close();
+
+	}
+
+	@Override
+	public void setReadOnly() {
+
+		pool.setReadOnly();
+
+	}
+
+	@Override
+	public void setReadWrite() {
+
+		pool.setReadWrite();
+
+	}
+
+	@Override
+	public Iterable<Entry<byte[], Integer>> iterator() {
+
+		return pool.iterator();
+
+	}
+
+	@Override
+	public Iterable<Entry<Integer, byte[]>> inverse_view_iterator() {
+
+		return pool.inverse_view_iterator();
+
+	}
+
+	@Override
+	public Iterable<Integer> id_iterator() {
+
+		return pool.id_iterator();
+
+	}
+
+	@Override
+	public Spliterator<Entry<byte[], Integer>> spliterator() {
+
+		return pool.spliterator();
+
+	}
+
+	@Override
+	public Spliterator<Entry<Integer, byte[]>> inverse_view_spliterator() {
+
+		return pool.inverse_view_spliterator();
+
+	}
+
+	/**
+	 * @return the pool the lookups are delegated to
+	 */
+	public AptamerPool getPool(){
+		return pool;
+	}
+
+	/**
+	 * @return the number of lookups answered from the caches
+	 */
+	public long getHitCount(){
+		return aptamers.hits.get() + bounds.hits.get() + identifiers.hits.get();
+	}
+
+	/**
+	 * @return the number of lookups which had to be delegated to the pool
+	 */
+	public long getMissCount(){
+		return aptamers.misses.get() + bounds.misses.get() + identifiers.misses.get();
+	}
+
+	/**
+	 * @return a human readable summary of the hits and misses of each cache
+	 */
+	public String getStatistics(){
+
+		return String.format("Cache statistics (hits/misses): getAptamer %s/%s, getAptamerBounds %s/%s, getIdentifier %s/%s",
+				aptamers.hits.get(), aptamers.misses.get(),
+				bounds.hits.get(), bounds.misses.get(),
+				identifiers.hits.get(), identifiers.misses.get());
+
+	}
+
+	/**
+	 * The caches are not serialized, start with empty ones
+	 */
+	private void readObject(ObjectInputStream ois) throws ClassNotFoundException, IOException {
+
+		ois.defaultReadObject();
+		initializeCaches();
+
+	}
+
+}
@@ -0,0 +1,32 @@
+/**
+ *
+ */
+package lib.aptamer.datastructures;
+
+/**
+ * @author Jan Hoinka
+ * API for the compression codecs used by the disk based stores. Implementing classes are
+ * instantiated by reflection from their simple class name, as specified for instance in
+ * <code>MapDBAptamerPool.codec</code>, and must provide a constructor taking the <code>Path</code>
+ * of the file the codec is used for. Codecs which require auxiliary data, such as a dictionary,
+ * store it next to that file.
+ *
+ * Implementing classes must be thread-safe.
+ */
+public interface Codec {
+
+	/**
+	 * @param data the buffer containing the data to encode
+	 * @param length the number of bytes of <code>data</code> to encode, starting at index 0
+	 * @return the encoded data or null if the data cannot be encoded more compactly
+	 */
+	public byte[] encode(byte[] data, int length);
+
+	/**
+	 * @param data data previously returned by <code>encode</code>
+	 * @param rawLength the number of bytes which were passed to <code>encode</code>
+	 * @return the original data
+	 */
+	public byte[] decode(byte[] data, int rawLength);
+
+}
@@ -0,0 +1,288 @@
+/**
+ *
+ */
+package lib.aptamer.datastructures;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.logging.Level;
+
+import org.mapdb.DB;
+import org.mapdb.DataInput2;
+import org.mapdb.DataOutput2;
+import org.mapdb.serializer.GroupSerializer;
+import org.mapdb.serializer.SerializerCompressionWrapper;
+
+import utilities.AptaLogger;
+
+/**
+ * @author Jan Hoinka
+ * Adapter applying a <code>Codec</code> to the output of a MapDB serializer, analogous to
+ * MapDB's <code>SerializerCompressionWrapper</code>. Each record starts with the length of the
+ * serialized data plus one, followed by the length of the encoded data and the encoded data.
+ * If the codec cannot reduce the size of the data, a 0 is written followed by the data as is.
+ *
+ * The codec of every MapDB file is recorded inside the file itself, so that a file is always
+ * read with the codec it was written with, independent of the current configuration.
+ *
+ * @param <E> the type of the serialized elements
+ */
+public class CodecSerializer<E> implements GroupSerializer<E> {
+
+	/**
+	 * Name of the record storing the codec inside each MapDB file
+	 */
+	private static final String CODEC_RECORD = "codec";
+
+	/**
+	 * The serializer whose output is encoded
+	 */
+	private GroupSerializer<E> serializer = null;
+
+	/**
+	 * The codec applied to the serialized data
+	 */
+	private Codec codec = null;
+
+	public CodecSerializer(GroupSerializer<E> serializer, Codec codec){
+
+		this.serializer = serializer;
+		this.codec = codec;
+
+	}
+
+	/**
+	 * Records <code>codec</code> in a newly created MapDB file and returns the corresponding serializer.
+	 * @param db the MapDB instance of <code>file</code>
+	 * @param file the location of the MapDB file
+	 * @param serializer the serializer whose output should be encoded
+	 * @param codec the simple class name of the <code>Codec</code> implementation
+	 * @return the serializer to use for the data in <code>file</code>
+	 */
+	public static <E> GroupSerializer<E> create(DB db, Path file, GroupSerializer<E> serializer, String codec){
+
+		db.atomicString(CODEC_RECORD, codec).create();
+
+		return wrap(serializer, instantiate(codec, file));
+
+	}
+
+	/**
+	 * Returns the serializer for an existing MapDB file using the codec recorded in it.
+	 * @param db the MapDB instance of <code>file</code>
+	 * @param file the location of the MapDB file
+	 * @param serializer the serializer whose output is encoded
+	 * @param legacyCodec the codec of files created before the codec was recorded
+	 * @return the serializer to use for the data in <code>file</code>
+	 */
+	public static <E> GroupSerializer<E> open(DB db, Path file, GroupSerializer<E> serializer, String legacyCodec){
+
+		String codec = db.exists(CODEC_RECORD) ? db.atomicString(CODEC_RECORD).open().get() : legacyCodec;
+
+		AptaLogger.log(Level.CONFIG, CodecSerializer.class, "Using " + codec + " for " + file.toString());
+
+		return wrap(serializer, instantiate(codec, file));
+
+	}
+
+	/**
+	 * @param serializer
+	 * @param codec
+	 * @return <code>serializer</code> combined with <code>codec</code>
+	 */
+	private static <E> GroupSerializer<E> wrap(GroupSerializer<E> serializer, Codec codec){
+
+		// These retain the format of files created before the introduction of codecs
+		if (codec instanceof NoneCodec){
+			return serializer;
+		}
+		if (codec instanceof LZFCodec){
+			return new SerializerCompressionWrapper<E>(serializer);
+		}
+
+		return new CodecSerializer<E>(serializer, codec);
+
+	}
+
+	/**
+	 * Use reflection so the codec can be defined in the configuration file
+	 * @param codec the simple class name of the <code>Codec</code> implementation
+	 * @param file the file the codec is used for
+	 * @return a new instance of the codec
+	 */
+	private static Codec instantiate(String codec, Path file){
+
+		try {
+
+			return (Codec) Class.forName("lib.aptamer.datastructures." + codec).getConstructor(Path.class).newInstance(file);
+
+		} catch (ClassNotFoundException | ClassCastException | NoSuchMethodException | InstantiationException | IllegalAccessException e) {
+
+			AptaLogger.log(Level.SEVERE, CodecSerializer.class, "Error, the codec " + codec + " could not be found.");
+			throw new IllegalStateException("The codec " + codec + " could not be found.", e);
+
+		} catch (InvocationTargetException e) {
+
+			AptaLogger.log(Level.SEVERE, CodecSerializer.class, "Error, could not instantiate the codec " + codec + " for " + file.toString());
+			throw new IllegalStateException("Could not instantiate the codec " + codec + " for " + file.toString(), e.getCause());
+
+		}
+	}
+
+	/**
+	 * Encodes the content of <code>raw</code> and writes it to <code>out</code>
+	 */
+	private void write(DataOutput2 out, DataOutput2 raw) throws IOException{
+
+		byte[] encoded = raw.pos == 0 ? null : codec.encode(raw.buf, raw.pos);
+
+		if (encoded == null){
+			out.packInt(0);
+			out.write(raw.buf, 0, raw.pos);
+			return;
+		}
+
+		out.packInt(raw.pos + 1);
+		out.packInt(encoded.length);
+		out.write(encoded);
+
+	}
+
+	/**
+	 * @param in positioned after the raw length
+	 * @param rawLength the length of the data before encoding
+	 * @return the decoded data
+	 */
+	private DataInput2 read(DataInput2 in, int rawLength) throws IOException{
+
+		byte[] encoded = new byte[in.unpackInt()];
+		in.readFully(encoded);
+
+		return new DataInput2.ByteArray(codec.decode(encoded, rawLength));
+
+	}
+
+	@Override
+	public void serialize(DataOutput2 out, E value) throws IOException {
+
+		DataOutput2 raw = new DataOutput2();
+		serializer.serialize(raw, value);
+		write(out, raw);
+
+	}
+
+	@Override
+	public E deserialize(DataInput2 in, int available) throws IOException {
+
+		int rawLength = in.unpackInt() - 1;
+
+		if (rawLength == -1){
+			return serializer.deserialize(in, available > 0 ? available - 1 : available);
+		}
+
+		return serializer.deserialize(read(in, rawLength), rawLength);
+	}
+
+	@Override
+	public void valueArraySerialize(DataOutput2 out, Object vals) throws IOException {
+
+		DataOutput2 raw = new DataOutput2();
+		serializer.valueArraySerialize(raw, vals);
+
+		if (raw.pos == 0){
+			return;
+		}
+
+		write(out, raw);
+	}
+
+	@Override
+	public Object valueArrayDeserialize(DataInput2 in, int size) throws IOException {
+
+		if (size == 0){
+			return serializer.valueArrayEmpty();
+		}
+
+		int rawLength = in.unpackInt() - 1;
+
+		if (rawLength == -1){
+			return serializer.valueArrayDeserialize(in, size);
+		}
+
+		return serializer.valueArrayDeserialize(read(in, rawLength), size);
+	}
+
+	@Override
+	public int valueArraySearch(Object keys, E key) {
+		return serializer.valueArraySearch(keys, key);
+	}
+
+	@SuppressWarnings("rawtypes")
+	@Override
+	public int valueArraySearch(Object keys, E key, Comparator comparator) {
+		return serializer.valueArraySearch(keys, key, comparator);
+	}
+
+	@Override
+	public E valueArrayGet(Object vals, int pos) {
+		return serializer.valueArrayGet(vals, pos);
+	}
+
+	@Override
+	public int valueArraySize(Object vals) {
+		return serializer.valueArraySize(vals);
+	}
+
+	@Override
+	public Object valueArrayEmpty() {
+		return serializer.valueArrayEmpty();
+	}
+
+	@Override
+	public Object valueArrayPut(Object vals, int pos, E newValue) {
+		return serializer.valueArrayPut(vals, pos, newValue);
+	}
+
+	@Override
+	public Object valueArrayUpdateVal(Object vals, int pos, E newValue) {
+		return serializer.valueArrayUpdateVal(vals, pos, newValue);
+	}
+
+	@Override
+	public Object valueArrayFromArray(Object[] objects) {
+		return serializer.valueArrayFromArray(objects);
+	}
+
+	@Override
+	public Object valueArrayCopyOfRange(Object vals, int from, int to) {
+		return serializer.valueArrayCopyOfRange(vals, from, to);
+	}
+
+	@Override
+	public Object valueArrayDeleteValue(Object vals, int pos) {
+		return serializer.valueArrayDeleteValue(vals, pos);
+	}
+
+	@Override
+	public boolean equals(E a1, E a2) {
+		return serializer.equals(a1, a2);
+	}
+
+	@Override
+	public int hashCode(E e, int seed) {
+		return serializer.hashCode(e, seed);
+	}
+
+	@Override
+	public int compare(E o1, E o2) {
+		return serializer.compare(o1, o2);
+	}
+
+	@Override
+	public boolean isTrusted() {
+		return serializer.isTrusted();
+	}
+
+}
@@ -0,0 +1,128 @@
+/**
+ *
+ */
+package lib.aptamer.datastructures;
+
+import java.util.List;
+import java.util.Spliterator;
+import java.util.function.Consumer;
+
+/**
+ * @author Jan Hoinka
+ *
+ * Spliterator concatenating the spliterators of several independent partitions of
+ * a data structure, such as the shards or files of a pool. Splitting first divides
+ * the partitions among the resulting spliterators. Once only a single partition is
+ * left, splitting is delegated to the spliterator of that partition.
+ *
+ * @param <T> the type of elements
+ */
+public class CompositeSpliterator<T> implements Spliterator<T> {
+
+	/**
+	 * The spliterators of all partitions
+	 */
+	private List<Spliterator<T>> parts = null;
+
+	/**
+	 * Index of the current partition
+	 */
+	private int index;
+
+	/**
+	 * Index of the first partition not covered by this spliterator
+	 */
+	private int fence;
+
+	/**
+	 * @param parts one spliterator per partition. None of them must have been advanced yet.
+	 */
+	public CompositeSpliterator(List<Spliterator<T>> parts){
+
+		this(parts, 0, parts.size());
+
+	}
+
+	private CompositeSpliterator(List<Spliterator<T>> parts, int index, int fence){
+
+		this.parts = parts;
+		this.index = index;
+		this.fence = fence;
+
+	}
+
+	@Override
+	public boolean tryAdvance(Consumer<? super T> action) {
+
+		while (index < fence){
+
+			if (parts.get(index).tryAdvance(action)){
+				return true;
+			}
+
+			index++;
+		}
+
+		return false;
+	}
+
+	@Override
+	public void forEachRemaining(Consumer<? super T> action) {
+
+		while (index < fence){
+			parts.get(index++).forEachRemaining(action);
+		}
+
+	}
+
+	@Override
+	public Spliterator<T> trySplit() {
+
+		// Hand off half of the partitions...
+		if (fence - index > 1){
+
+			int mid = (index + fence) >>> 1;
+			Spliterator<T> prefix = new CompositeSpliterator<T>(parts, index, mid);
+			index = mid;
+
+			return prefix;
+		}
+
+		// ...or split the last one
+		if (index < fence){
+			return parts.get(index).trySplit();
+		}
+
+		return null;
+	}
+
+	@Override
+	public long estimateSize() {
+
+		long size = 0;
+		for (int x=index; x<fence; x++){
+
+			size += parts.get(x).estimateSize();
+			if (size < 0){
+				return Long.MAX_VALUE;
+			}
+
+		}
+
+		return size;
+	}
+
+	@Override
+	public int characteristics() {
+
+		// Only report what all partitions have in common. The concatenation of sorted
+		// partitions is not necessarily sorted.
+		int characteristics = ~Spliterator.SORTED;
+		for (int x=index; x<fence; x++){
+			characteristics &= parts.get(x).characteristics();
+		}
+
+		return index < fence ? characteristics : Spliterator.SIZED | Spliterator.SUBSIZED;
+	}
+
+}
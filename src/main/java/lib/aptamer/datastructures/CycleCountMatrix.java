@@ -0,0 +1,264 @@
+/**
+ *
+ */
+package lib.aptamer.datastructures;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map.Entry;
+import java.util.NoSuchElementException;
+import java.util.logging.Level;
+
+import utilities.AptaLogger;
+
+/**
+ * @author Jan Hoinka
+ *
+ * Column oriented view of the aptamer counts of all selection cycles of an experiment.
+ * Each cycle is stored as one memory mapped column of <code>int</code>s indexed by aptamer id,
+ * so that retrieving the counts of an aptamer across all cycles amounts to one positional
+ * read per cycle, and iterating over all aptamers is a sequential scan of the columns.
+ *
+ * The columns are built from the selection cycles once and stored in
+ * <code>countmatrix</code> in the project folder. Each column starts with a header of
+ * <code>HEADER_SIZE</code> bytes containing the version, the number of aptamer ids, and the
+ * total and unique size of the cycle it was created from. On subsequent instantiations,
+ * a column is only rebuilt if its header does not match the current state of the data.
+ *
+ * The matrix is a snapshot, modifications to the selection cycles after its creation are
+ * not reflected.
+ */
+public class CycleCountMatrix {
+
+	/**
+	 * Version of the layout of the column files
+	 */
+	private static final int VERSION = 1;
+
+	/**
+	 * Number of bytes preceding the counts in each column
+	 */
+	private static final int HEADER_SIZE = 16;
+
+	/**
+	 * The selection cycles in the order of the columns
+	 */
+	private List<SelectionCycle> cycles = null;
+
+	/**
+	 * One column per entry in <code>cycles</code>
+	 */
+	private MappedArena[] columns = null;
+
+	/**
+	 * The largest aptamer id covered by the matrix
+	 */
+	private int maxId = 0;
+
+	/**
+	 * Opens the count matrix of <code>cycles</code>, creating or updating the columns on disk as required
+	 * @param projectPath the working directory of the current project
+	 * @param pool the aptamer pool the ids of the cycles refer to
+	 * @param cycles the selection cycles in the order the columns should appear in
+	 * @throws IOException
+	 */
+	public CycleCountMatrix(Path projectPath, AptamerPool pool, List<SelectionCycle> cycles) throws IOException{
+
+		this.cycles = new ArrayList<SelectionCycle>(cycles);
+		this.columns = new MappedArena[cycles.size()];
+		this.maxId = pool.size();
+
+		Path matrixPath = Files.createDirectories(Paths.get(projectPath.toString(), "countmatrix"));
+
+		for (int x=0; x<columns.length; x++){
+
+			SelectionCycle cycle = this.cycles.get(x);
+			Path file = Paths.get(matrixPath.toString(), cycle.getRound() + "_" + cycle.getName() + ".column");
+
+			MappedArena column = new MappedArena(file, false);
+
+			if (column.capacity() >= HEADER_SIZE
+					&& column.getInt(0) == VERSION
+					&& column.getInt(4) == maxId
+					&& column.getInt(8) == cycle.getSize()
+					&& column.getInt(12) == cycle.getUniqueSize()){
+
+				AptaLogger.log(Level.CONFIG, this.getClass(), "Using existing count column " + file.toString());
+
+			}
+			else{
+
+				// Start from an empty file so that ids without counts read as 0
+				column.delete();
+				column = new MappedArena(file, false);
+				buildColumn(column, cycle);
+
+			}
+
+			columns[x] = column;
+		}
+
+	}
+
+	/**
+	 * Writes the counts of <code>cycle</code> into <code>column</code>
+	 * @param column an empty column
+	 * @param cycle the selection cycle
+	 */
+	private void buildColumn(MappedArena column, SelectionCycle cycle){
+
+		AptaLogger.log(Level.INFO, this.getClass(), "Building count column for selection cycle " + cycle.getName());
+		long tStart = System.currentTimeMillis();
+
+		column.ensureCapacity(HEADER_SIZE + 4L * (maxId + 1));
+
+		for (Entry<Integer, Integer> entry : cycle.iterator()){
+
+			if (entry.getKey() > 0 && entry.getKey() <= maxId){
+				column.putInt(HEADER_SIZE + 4L * entry.getKey(), entry.getValue());
+			}
+
+		}
+
+		// Only write the header once the content is complete
+		column.putInt(4, maxId);
+		column.putInt(8, cycle.getSize());
+		column.putInt(12, cycle.getUniqueSize());
+		column.putInt(0, VERSION);
+		column.force();
+
+		AptaLogger.log(Level.INFO, this.getClass(), "Column for selection cycle " + cycle.getName() + " created in " + ((System.currentTimeMillis() - tStart) / 1000.0) + " seconds.");
+	}
+
+	/**
+	 * @param id the aptamer id
+	 * @param cycle the index of the selection cycle in <code>getSelectionCycles()</code>
+	 * @return the number of times the aptamer was sequenced in that cycle
+	 */
+	public int getCount(int id, int cycle){
+
+		if (id <= 0 || id > maxId){
+			return 0;
+		}
+
+		return columns[cycle].getInt(HEADER_SIZE + 4L * id);
+	}
+
+	/**
+	 * @param id the aptamer id
+	 * @return the counts of the aptamer in all selection cycles, in the order of <code>getSelectionCycles()</code>
+	 */
+	public int[] getCounts(int id){
+
+		return getCounts(id, new int[columns.length]);
+
+	}
+
+	/**
+	 * Retrieves the counts of an aptamer in all selection cycles without allocating a new array
+	 * @param id the aptamer id
+	 * @param row receives the counts, must be of size <code>getSelectionCycles().size()</code>
+	 * @return <code>row</code>
+	 */
+	public int[] getCounts(int id, int[] row){
+
+		for (int x=0; x<columns.length; x++){
+			row[x] = getCount(id, x);
+		}
+
+		return row;
+	}
+
+	/**
+	 * @return the selection cycles corresponding to the columns of the matrix
+	 */
+	public List<SelectionCycle> getSelectionCycles(){
+		return cycles;
+	}
+
+	/**
+	 * @return the largest aptamer id covered by the matrix
+	 */
+	public int getMaxId(){
+		return maxId;
+	}
+
+	public void close(){
+
+		for (MappedArena column : columns){
+			column.close();
+		}
+
+	}
+
+	/**
+	 * @author Jan Hoinka
+	 * Internal class implementing the iterator over the rows of the matrix, i.e. id->counts
+	 * in ascending order of the ids. Aptamers which are not present in any cycle are skipped.
+	 */
+	private class RowIterator implements Iterable<Entry<Integer, int[]>> {
+
+		@Override
+		public Iterator<Entry<Integer, int[]>> iterator() {
+
+			return new Iterator<Entry<Integer, int[]>>() {
+
+				private int currentId = 0;
+
+				private int[] next = null;
+
+				@Override
+				public boolean hasNext() {
+
+					while (next == null && currentId < maxId){
+
+						currentId++;
+						int[] row = getCounts(currentId);
+
+						for (int count : row){
+							if (count != 0){
+								next = row;
+								break;
+							}
+						}
+					}
+
+					return next != null;
+				}
+
+				@Override
+				public Entry<Integer, int[]> next() {
+
+					if (!hasNext()){
+						throw new NoSuchElementException();
+					}
+
+					Entry<Integer, int[]> entry = new AbstractMap.SimpleImmutableEntry<Integer, int[]>(currentId, next);
+					next = null;
+
+					return entry;
+				}
+
+				@Override
+				public void remove() {
+					throw new UnsupportedOperationException();
+				}
+			};
+		}
+	}
+
+	/**
+	 * Provide public access to the rows of the matrix
+	 * @return Iterable over id->counts, the counts being in the order of <code>getSelectionCycles()</code>
+	 */
+	public Iterable<Entry<Integer, int[]>> iterator(){
+		return new RowIterator();
+	}
+
+}
@@ -0,0 +1,144 @@
+/**
+ *
+ */
+package lib.aptamer.datastructures;
+
+import java.nio.file.Path;
+
+/**
+ * @author Jan Hoinka
+ * Codec specific to nucleotide sequences. Every byte is stored using 2 bits, where
+ * A=00, C=01, G=10, and T=11. Bytes which are not one of these characters, such as
+ * <code>N</code> or the length prefix added by the serializers, are stored in
+ * a list of exceptions following the packed data. Each exception consists of its
+ * distance to the previous exception as variable length integer followed by the
+ * original byte.
+ *
+ * Data with too many exceptions is not encoded.
+ */
+public class DNA2BitCodec implements Codec {
+
+	/**
+	 * Maps each byte to its 2 bit code or -1 if it must be stored as exception
+	 */
+	private static final byte[] CODES = new byte[256];
+
+	/**
+	 * Maps each 2 bit code to its nucleotide
+	 */
+	private static final byte[] NUCLEOTIDES = { 'A', 'C', 'G', 'T' };
+
+	static{
+
+		for (int x=0; x<CODES.length; x++){
+			CODES[x] = -1;
+		}
+		for (int x=0; x<NUCLEOTIDES.length; x++){
+			CODES[NUCLEOTIDES[x]] = (byte) x;
+		}
+
+	}
+
+	/**
+	 * @param file the file the codec is used for
+	 */
+	public DNA2BitCodec(Path file){ }
+
+	/**
+	 * @param value
+	 * @return the number of bytes required to store <code>value</code> as variable length integer
+	 */
+	private static int varIntSize(int value){
+
+		int size = 1;
+		while ((value >>>= 7) != 0){
+			size++;
+		}
+
+		return size;
+	}
+
+	@Override
+	public byte[] encode(byte[] data, int length) {
+
+		int packedLength = (length + 3) / 4;
+
+		// Determine the size of the exceptions first
+		int encodedLength = packedLength;
+		int previous = 0;
+		for (int x=0; x<length; x++){
+
+			if (CODES[data[x] & 0xFF] == -1){
+
+				encodedLength += varIntSize(x - previous) + 1;
+				previous = x;
+
+				if (encodedLength >= length){
+					return null;
+				}
+			}
+		}
+
+		byte[] encoded = new byte[encodedLength];
+
+		// The packed nucleotides...
+		for (int x=0; x<length; x++){
+
+			int code = CODES[data[x] & 0xFF];
+			if (code != -1){
+				encoded[x >>> 2] |= code << ((x & 3) << 1);
+			}
+		}
+
+		// ...followed by the exceptions
+		int pos = packedLength;
+		previous = 0;
+		for (int x=0; x<length; x++){
+
+			if (CODES[data[x] & 0xFF] == -1){
+
+				int delta = x - previous;
+				while ((delta & ~0x7F) != 0){
+					encoded[pos++] = (byte) ((delta & 0x7F) | 0x80);
+					delta >>>= 7;
+				}
+				encoded[pos++] = (byte) delta;
+				encoded[pos++] = data[x];
+
+				previous = x;
+			}
+		}
+
+		return encoded;
+	}
+
+	@Override
+	public byte[] decode(byte[] data, int rawLength) {
+
+		byte[] decoded = new byte[rawLength];
+
+		for (int x=0; x<rawLength; x++){
+			decoded[x] = NUCLEOTIDES[(data[x >>> 2] >>> ((x & 3) << 1)) & 3];
+		}
+
+		int pos = (rawLength + 3) / 4;
+		int index = 0;
+		while (pos < data.length){
+
+			int delta = 0;
+			int shift = 0;
+			byte b;
+			do {
+				b = data[pos++];
+				delta |= (b & 0x7F) << shift;
+				shift += 7;
+			} while ((b & 0x80) != 0);
+
+			index += delta;
+			decoded[index] = data[pos++];
+		}
+
+		return decoded;
+	}
+
+}
@@ -5,6 +5,7 @@ package lib.aptamer.datastructures;
 
 import java.io.File;
 import java.io.FileNotFoundException;
+import java.io.IOException;
 import java.io.Serializable;
 import java.lang.reflect.InvocationTargetException;
 import java.nio.file.Files;
@@ -20,6 +21,7 @@ import exceptions.InvalidConfigurationException;
 import exceptions.InvalidSelectionCycleException;
 import utilities.AptaLogger;
 import utilities.Configuration;
+import utilities.MemoryBudget;
 
 
 /**
@@ -89,6 +91,30 @@ public class Experiment implements Serializable{
 	 */
 	private ArrayList<SelectionCycle> allSelectionCycles = new ArrayList<SelectionCycle>();
 	
+	/**
+	 * Column oriented view of the counts of all selection cycles. It is created on demand
+	 * by <code>getCycleCountMatrix()</code> once the selection cycles have been populated. 
+	 */
+	private transient CycleCountMatrix countMatrix = null;
+	
+	/**
+	 * True if the data is read from the segment of a compacted project rather than from
+	 * the configured backends, see <code>SegmentFile</code>
+	 */
+	private boolean useSegment = false;
+	
+	/**
+	 * The pool shared with other projects if <code>AptamerPool.sharedPath</code> is set, 
+	 * null otherwise. Its lock is held until the process exits.
+	 */
+	private transient SharedPool sharedPool = null;
+	
+	/**
+	 * The manifest of a project loaded from disk, if it is present and matches the configuration. 
+	 * The selection cycles it describes are opened lazily.
+	 */
+	private transient ProjectManifest projectManifest = null;
+	
 	/**
 	 * Constructs a new experiment. If <code>configFile</code> is null, an empty
 	 * experiment is created, otherwise the data as defined in the file, will be
@@ -107,12 +133,34 @@ public class Experiment implements Serializable{
 		// Now set name and description
 		this.name = Configuration.getParameters().getString("Experiment.name");
 		this.description = Configuration.getParameters().getString("Experiment.description");
+		
+		// Analyses of a compacted project are served by the read only segment
+		Path projectPath = Paths.get(Configuration.getParameters().getString("Experiment.projectPath"));
+		useSegment = !newdb && Configuration.getParameters().getBoolean("SegmentFile.enabled") && SegmentFile.exists(projectPath);
+		if (useSegment){
+			AptaLogger.log(Level.INFO, this.getClass(), "Reading the compacted project from " + SegmentFile.getPath(projectPath));
+		}
+
+		// A shared pool lives outside the project and is only created by the first project using it
+		Path poolPath = projectPath;
+		boolean poolNewdb = newdb;
+		if (!useSegment && SharedPool.isEnabled()){
+			try {
+				sharedPool = new SharedPool(SharedPool.getDataPath(projectPath));
+			} catch (IOException e) {
+				AptaLogger.log(Level.SEVERE, this.getClass(), "Error, could not open the shared pool in " + SharedPool.getDataPath(projectPath));
+				e.printStackTrace();
+				System.exit(0);
+			}
+			poolPath = sharedPool.getPath();
+			poolNewdb = newdb && !sharedPool.contains("pooldata");
+		}
 
 		// Create a new AptamerPool instance. Use reflection so we can define the backend
 		// in the configuration file
 		Class c = null;
 		try {
-			c = Class.forName("lib.aptamer.datastructures." + Configuration.getParameters().getString("AptamerPool.backend"));
+			c = Class.forName("lib.aptamer.datastructures." + (useSegment ? "SegmentAptamerPool" : Configuration.getParameters().getString("AptamerPool.backend")));
 		} catch (ClassNotFoundException e) {
 
 			AptaLogger.log(Level.SEVERE, this.getClass(), "Error, the backend for the AptamerPool could not be found.");
@@ -123,7 +171,7 @@ public class Experiment implements Serializable{
 		// Try to instantiate the class...
 		boolean instanceSuccess = false;
 		try {
-			pool = (AptamerPool)c.getConstructor(Path.class, boolean.class).newInstance(Paths.get(Configuration.getParameters().getString("Experiment.projectPath")), newdb);
+			pool = (AptamerPool)c.getConstructor(Path.class, boolean.class).newInstance(poolPath, poolNewdb);
 			instanceSuccess = true;
 		} catch (InstantiationException e) {
 			AptaLogger.log(Level.SEVERE, this.getClass(), "Error, could not instantiate the backend for the AptamerPool");
@@ -146,6 +194,31 @@ public class Experiment implements Serializable{
 			}
 		}
 		
+		if (sharedPool != null){
+			registerWithSharedPool();
+		}
+		
+		// Optionally answer repeated lookups from memory
+		int cacheSize = Configuration.getParameters().getInt("AptamerPool.cacheSize");
+		if (cacheSize < 0){
+			cacheSize = MemoryBudget.getCacheCapacity(0.05, 256);
+		}
+		if (cacheSize > 0){
+			pool = new CachedAptamerPool(pool, cacheSize);
+		}
+		
+		// Use the manifest of an existing project to defer opening the selection cycles
+		if (!newdb && !useSegment && Configuration.getParameters().getBoolean("ProjectManifest.enabled")){
+			projectManifest = ProjectManifest.read(projectPath);
+			if (projectManifest != null && !projectManifest.matches(projectPath, pool)){
+				AptaLogger.log(Level.INFO, this.getClass(), "Ignoring the project manifest as it does not match the data on disk or the configuration.");
+				projectManifest = null;
+			}
+			if (projectManifest != null){
+				AptaLogger.log(Level.CONFIG, this.getClass(), "Using the project manifest: " + projectManifest.toString());
+			}
+		}
+		
 		// Set the SelectionCycle instances
 		
 		// Get all information regarding the selection cycles
@@ -220,11 +293,25 @@ public class Experiment implements Serializable{
 	 */
 	public void instantiateStructurePool(boolean newdb){
 		
+		// Structures are only served by the segment if they were predicted before the project was compacted
+		Path projectPath = Paths.get(Configuration.getParameters().getString("Experiment.projectPath"));
+		Path structurePath = projectPath;
+		String backend = Configuration.getParameters().getString("StructurePool.backend");
+		if (useSegment && !newdb && SegmentFile.hasSection(projectPath, SegmentFile.STRUCTURES, "structures")){
+			backend = "SegmentStructurePool";
+		}
+		
+		// Shared structures are keyed by the ids of the shared pool and are never recreated
+		else if (sharedPool != null){
+			structurePath = sharedPool.getPath();
+			newdb = newdb && !sharedPool.contains("structuredata");
+		}
+		
 		// Create a new StructurePool instance. Use reflection so we can define the backend
 		// in the configuration file
 		Class s = null;
 		try {
-			s = Class.forName("lib.aptamer.datastructures." + Configuration.getParameters().getString("StructurePool.backend"));
+			s = Class.forName("lib.aptamer.datastructures." + backend);
 		} catch (ClassNotFoundException e) {
 
 			AptaLogger.log(Level.SEVERE, this.getClass(), "Error, the backend for the AptamerPool could not be found.");
@@ -235,7 +322,7 @@ public class Experiment implements Serializable{
 		// Try to instantiate the class...
 		boolean instanceSuccess = false;
 		try {
-			structures = (StructurePool)s.getConstructor(Path.class, boolean.class).newInstance(Paths.get(Configuration.getParameters().getString("Experiment.projectPath")), newdb);
+			structures = (StructurePool)s.getConstructor(Path.class, boolean.class).newInstance(structurePath, newdb);
 			instanceSuccess = true;
 		} catch (InstantiationException e) {
 			AptaLogger.log(Level.SEVERE, this.getClass(), "Error, could not instantiate the backend for the StructurePool");
@@ -259,6 +346,30 @@ public class Experiment implements Serializable{
 		}
 	}
 	
+	/**
+	 * Records in the shared pool that this project references all aptamers currently 
+	 * contained in it. Must be called whenever the project added aptamers to the pool.
+	 */
+	public void registerWithSharedPool(){
+		
+		try {
+			sharedPool.register(Paths.get(Configuration.getParameters().getString("Experiment.projectPath")), pool.size());
+		} catch (IOException e) {
+			AptaLogger.log(Level.WARNING, this.getClass(), "Could not register the project with the shared pool in " + sharedPool.getPath());
+			e.printStackTrace();
+		}
+		
+		AptaLogger.log(Level.INFO, this.getClass(), "Using the shared pool in " + sharedPool.getPath() + " with " + pool.size() + " aptamers referenced by " + sharedPool.getReferenceCount() + " projects");
+		
+	}
+	
+	/**
+	 * @return the pool shared with other projects, or null if the pool belongs to this project only
+	 */
+	public SharedPool getSharedPool(){
+		return sharedPool;
+	}
+	
 	/**
 	 * Retrieves the AptamerPool instance of this Experiment
 	 * @return
@@ -301,12 +412,64 @@ public class Experiment implements Serializable{
 			throw new InvalidSelectionCycleException("The selection cycle round " + round + " of " + name + " is invalid. Please check your configuration.");
 		}
 		
+		// Cycles described by the manifest of the project are only opened once their data is accessed
+		SelectionCycle cycle = null;
+		ProjectManifest.Cycle description = projectManifest == null || newdb ? null : projectManifest.getCycle(name, round, isControlSelection, isCounterSelection);
+		if (description != null){
+			cycle = new LazySelectionCycle(description);
+		}
+		else{
+			cycle = createSelectionCycle(name, round, isControlSelection, isCounterSelection, newdb);
+		}
+		
+		// Assign the selection cycle to the corresponding datastructure
+		if (!cycle.isControlSelection() && !cycle.isCounterSelection()){
+			selectionCycles.set(cycle.getRound(), cycle);
+		}
+		
+		else if (cycle.isControlSelection()){
+			
+			// We need to create a container if not present 
+			if (controlSelectionCycles.get(cycle.getRound()) == null){
+				controlSelectionCycles.set(cycle.getRound(), new ArrayList<SelectionCycle>());
+			}
+			// Now we can add the cycle
+			controlSelectionCycles.get(cycle.getRound()).add(cycle);
+		}
+		
+		else if (cycle.isCounterSelection()){
+			
+			// We need to create a container if not present 
+			if (counterSelectionCycles.get(cycle.getRound()) == null){
+				counterSelectionCycles.set(cycle.getRound(), new ArrayList<SelectionCycle>());
+			}
+			// Now we can add the cycle
+			counterSelectionCycles.get(cycle.getRound()).add(cycle);
+		}
+		
+		// finally, add it to the complete list of cyckes
+		allSelectionCycles.add(cycle);
+		
+		return cycle;
+	}
+	
+	/**
+	 * Instantiates the configured backend of a selection cycle without registering it
+	 * @param name The unique name of the selection cycle
+	 * @param round The selection round this cycle belongs to
+	 * @param isControlSelection Whether this selection cycle represents a control selection
+	 * @param isCounterSelection Whether this selection represents a counter selection
+	 * @param newdb true if a new instance should be created, false, if an existing instance should be loaded from disk
+	 * @return the instance of the SelectionCycle
+	 */
+	SelectionCycle createSelectionCycle(String name, int round, boolean isControlSelection, boolean isCounterSelection, boolean newdb){
+		
 		SelectionCycle cycle = null;
 		
 		// Create a new SelectionCycle instance. Use reflection so we can define the backend in the configuration
 		Class selection_cycle_class = null;
 		try {
-			selection_cycle_class = Class.forName("lib.aptamer.datastructures." + Configuration.getParameters().getString("SelectionCycle.backend"));
+			selection_cycle_class = Class.forName("lib.aptamer.datastructures." + (useSegment && !newdb ? "SegmentSelectionCycle" : Configuration.getParameters().getString("SelectionCycle.backend")));
 		} catch (ClassNotFoundException e) {
 
 			AptaLogger.log(Level.SEVERE, this.getClass(), "Error, the backend for the SelectionCycle could not be found.");
@@ -340,34 +503,6 @@ public class Experiment implements Serializable{
 			}
 		}
 		
-		// Assign the selection cycle to the corresponding datastructure
-		if (!cycle.isControlSelection() && !cycle.isCounterSelection()){
-			selectionCycles.set(cycle.getRound(), cycle);
-		}
-		
-		else if (cycle.isControlSelection()){
-			
-			// We need to create a container if not present 
-			if (controlSelectionCycles.get(cycle.getRound()) == null){
-				controlSelectionCycles.set(cycle.getRound(), new ArrayList<SelectionCycle>());
-			}
-			// Now we can add the cycle
-			controlSelectionCycles.get(cycle.getRound()).add(cycle);
-		}
-		
-		else if (cycle.isCounterSelection()){
-			
-			// We need to create a container if not present 
-			if (counterSelectionCycles.get(cycle.getRound()) == null){
-				counterSelectionCycles.set(cycle.getRound(), new ArrayList<SelectionCycle>());
-			}
-			// Now we can add the cycle
-			counterSelectionCycles.get(cycle.getRound()).add(cycle);
-		}
-		
-		// finally, add it to the complete list of cyckes
-		allSelectionCycles.add(cycle);
-		
 		return cycle;
 	}
 	
@@ -582,4 +717,26 @@ public class Experiment implements Serializable{
 	public StructurePool getStructurePool(){
 		return this.structures;
 	}
+	
+	/**
+	 * Get the count matrix of all selection cycles, in the order of <code>getAllSelectionCycles()</code>.
+	 * The matrix is built on the first call and reused thereafter, hence this function should only
+	 * be called once the data has been parsed.
+	 * @return
+	 */
+	public CycleCountMatrix getCycleCountMatrix(){
+		
+		if (this.countMatrix == null){
+			
+			try {
+				this.countMatrix = new CycleCountMatrix(Paths.get(Configuration.getParameters().getString("Experiment.projectPath")), pool, allSelectionCycles);
+			} catch (IOException e) {
+				AptaLogger.log(Level.SEVERE, this.getClass(), "Error, could not create the count matrix in " + Configuration.getParameters().getString("Experiment.projectPath"));
+				throw new IllegalStateException("Could not create the count matrix", e);
+			}
+			
+		}
+		
+		return this.countMatrix;
+	}
 }
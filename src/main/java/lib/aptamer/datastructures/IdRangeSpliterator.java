@@ -0,0 +1,49 @@
+/**
+ *
+ */
+package lib.aptamer.datastructures;
+
+import java.util.AbstractMap;
+import java.util.Map.Entry;
+
+/**
+ * @author Jan Hoinka
+ *
+ * Spliterator over the aptamers of a pool with ids in a given range, keyed by sequence.
+ * The aptamers are resolved by their id, hence this works with any <code>AptamerPool</code>.
+ */
+class IdRangeSpliterator extends IndexRangeSpliterator<Entry<byte[], Integer>> {
+
+	/**
+	 * The pool the aptamers are read from
+	 */
+	private AptamerPool pool = null;
+
+	/**
+	 * @param pool the pool the aptamers are read from
+	 * @param from the first id (inclusive)
+	 * @param to the last id (exclusive)
+	 */
+	public IdRangeSpliterator(AptamerPool pool, int from, int to){
+
+		super(from, to);
+		this.pool = pool;
+
+	}
+
+	@Override
+	protected Entry<byte[], Integer> get(int index) {
+
+		byte[] a = pool.getAptamer(index);
+		return a == null ? null : new AbstractMap.SimpleImmutableEntry<byte[], Integer>(a, index);
+
+	}
+
+	@Override
+	protected IndexRangeSpliterator<Entry<byte[], Integer>> create(int from, int to) {
+
+		return new IdRangeSpliterator(pool, from, to);
+
+	}
+
+}
@@ -0,0 +1,103 @@
+/**
+ *
+ */
+package lib.aptamer.datastructures;
+
+import java.util.Spliterator;
+import java.util.function.Consumer;
+
+/**
+ * @author Jan Hoinka
+ *
+ * Spliterator over a contiguous range of integer positions, such as aptamer ids
+ * or offsets into a sorted column, which can be resolved to elements independently
+ * of each other. Splitting halves the remaining range.
+ *
+ * Implementing classes provide the element at a given position and a way to
+ * create a spliterator over a sub range.
+ *
+ * @param <T> the type of elements
+ */
+public abstract class IndexRangeSpliterator<T> implements Spliterator<T> {
+
+	/**
+	 * Ranges smaller than this are not split any further
+	 */
+	private static final int MIN_SPLIT_SIZE = 1024;
+
+	/**
+	 * The next position to be visited
+	 */
+	private int index;
+
+	/**
+	 * The first position past the range (exclusive)
+	 */
+	private int fence;
+
+	/**
+	 * @param from the first position (inclusive)
+	 * @param to the last position (exclusive)
+	 */
+	public IndexRangeSpliterator(int from, int to){
+
+		this.index = from;
+		this.fence = to;
+
+	}
+
+	/**
+	 * @param index a position in the range of this spliterator
+	 * @return the element at <code>index</code> or null if there is none at that position
+	 */
+	protected abstract T get(int index);
+
+	/**
+	 * @param from the first position (inclusive)
+	 * @param to the last position (exclusive)
+	 * @return a new spliterator over the positions <code>from</code> to <code>to</code>
+	 */
+	protected abstract IndexRangeSpliterator<T> create(int from, int to);
+
+	@Override
+	public boolean tryAdvance(Consumer<? super T> action) {
+
+		while (index < fence){
+
+			T element = get(index++);
+
+			if (element != null){
+				action.accept(element);
+				return true;
+			}
+
+		}
+
+		return false;
+	}
+
+	@Override
+	public Spliterator<T> trySplit() {
+
+		if (fence - index < 2 * MIN_SPLIT_SIZE){
+			return null;
+		}
+
+		int mid = (index + fence) >>> 1;
+		Spliterator<T> prefix = create(index, mid);
+		index = mid;
+
+		return prefix;
+	}
+
+	@Override
+	public long estimateSize() {
+		return fence - index;
+	}
+
+	@Override
+	public int characteristics() {
+		return Spliterator.ORDERED | Spliterator.NONNULL;
+	}
+
+}
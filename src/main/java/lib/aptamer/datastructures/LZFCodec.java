@@ -0,0 +1,61 @@
+/**
+ *
+ */
+package lib.aptamer.datastructures;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+import org.mapdb.DataInput2;
+import org.mapdb.DataOutput2;
+import org.mapdb.Serializer;
+import org.mapdb.serializer.GroupSerializer;
+import org.mapdb.serializer.SerializerCompressionWrapper;
+
+/**
+ * @author Jan Hoinka
+ * Codec using the LZF compression shipped with MapDB. This is the compression
+ * the MapDB stores have used historically. Fast, but with a moderate compression ratio.
+ *
+ * MapDB only exposes LZF through <code>SerializerCompressionWrapper</code>, hence
+ * the data is encoded in the format of that class.
+ */
+public class LZFCodec implements Codec {
+
+	/**
+	 * MapDB's LZF serializer, thread-safe
+	 */
+	private static final GroupSerializer<byte[]> lzf = new SerializerCompressionWrapper<byte[]>(Serializer.BYTE_ARRAY);
+
+	/**
+	 * @param file the file the codec is used for
+	 */
+	public LZFCodec(Path file){ }
+
+	@Override
+	public byte[] encode(byte[] data, int length) {
+
+		DataOutput2 out = new DataOutput2();
+
+		try {
+			lzf.serialize(out, length == data.length ? data : Arrays.copyOf(data, length));
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+
+		return out.pos < length ? out.copyBytes() : null;
+	}
+
+	@Override
+	public byte[] decode(byte[] data, int rawLength) {
+
+		try {
+			return lzf.deserialize(new DataInput2.ByteArray(data), data.length);
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+
+	}
+
+}
@@ -0,0 +1,338 @@
+/**
+ *
+ */
+package lib.aptamer.datastructures;
+
+import java.util.ArrayList;
+import java.util.ListIterator;
+import java.util.Map.Entry;
+import java.util.Spliterator;
+import java.util.logging.Level;
+
+import utilities.AptaLogger;
+import utilities.Configuration;
+
+/**
+ * @author Jan Hoinka
+ *
+ * Selection cycle of a project loaded from disk whose store is opened on first access. The name,
+ * round, type and sizes are known from the <code>ProjectManifest</code>, hence listing the cycles
+ * of a project and navigating between them does not touch their data. All other operations open
+ * the configured backend and are delegated to it.
+ */
+public class LazySelectionCycle implements SelectionCycle {
+
+	private static final long serialVersionUID = -6082113965203814776L;
+
+	/**
+	 * The name of this selection cycle as defined in the configuration file
+	 */
+	private String name;
+
+	/**
+	 * The selection cycle number corresponding to this instance
+	 */
+	private int round;
+
+	/**
+	 * True if this cycle corresponds to a control cycle.
+	 */
+	private boolean isControlSelection = false;
+
+	/**
+	 * True if this cycle corresponds to a counter selection.
+	 */
+	private boolean isCounterSelection = false;
+
+	/**
+	 * Sizes of the cycle as recorded in the manifest, valid until the store is opened
+	 */
+	private int size = 0;
+
+	private int unique_size = 0;
+
+	/**
+	 * True if <code>setReadOnly</code> was called before the store was opened
+	 */
+	private boolean readOnly = false;
+
+	/**
+	 * The backend, null until the data is accessed
+	 */
+	private volatile SelectionCycle cycle = null;
+
+	/**
+	 * @param description of the cycle as recorded in the manifest of the project
+	 */
+	public LazySelectionCycle(ProjectManifest.Cycle description){
+
+		this.name = description.getName();
+		this.round = description.getRound();
+		this.isControlSelection = description.isControlSelection();
+		this.isCounterSelection = description.isCounterSelection();
+		this.size = description.getSize();
+		this.unique_size = description.getUniqueSize();
+
+	}
+
+	/**
+	 * @return the backend of this cycle, opened from disk if required
+	 */
+	private SelectionCycle open(){
+
+		SelectionCycle opened = cycle;
+
+		if (opened == null){
+			synchronized (this){
+				if (cycle == null){
+
+					AptaLogger.log(Level.CONFIG, this.getClass(), "Opening the store of selection cycle " + name + " on first access.");
+
+					SelectionCycle backend = Configuration.getExperiment().createSelectionCycle(name, round, isControlSelection, isCounterSelection, false);
+					if (readOnly){
+						backend.setReadOnly();
+					}
+					cycle = backend;
+				}
+				opened = cycle;
+			}
+		}
+
+		return opened;
+	}
+
+	/**
+	 * @return true if the store of this cycle has been opened
+	 */
+	public boolean isOpen(){
+		return cycle != null;
+	}
+
+	@Override
+	public String toString(){
+
+		return this.name + " (" + this.getSize() + ")";
+
+	}
+
+	@Override
+	public int addToSelectionCycle(String a, int rr_start, int rr_end) {
+		return open().addToSelectionCycle(a, rr_start, rr_end);
+	}
+
+	@Override
+	public int addToSelectionCycle(byte[] a, int rr_start, int rr_end) {
+		return open().addToSelectionCycle(a, rr_start, rr_end);
+	}
+
+	@Override
+	public int addToSelectionCycle(byte[] a, int rr_start, int rr_end, int count) {
+		return open().addToSelectionCycle(a, rr_start, rr_end, count);
+	}
+
+	@Override
+	public int addToSelectionCycle(String a, int rr_start, int rr_end, int count) {
+		return open().addToSelectionCycle(a, rr_start, rr_end, count);
+	}
+
+	@Override
+	public int[] addToSelectionCycle(AptamerBatch batch) {
+		return open().addToSelectionCycle(batch);
+	}
+
+	@Override
+	public boolean containsAptamer(String a) {
+		return open().containsAptamer(a);
+	}
+
+	@Override
+	public boolean containsAptamer(byte[] a) {
+		return open().containsAptamer(a);
+	}
+
+	@Override
+	public int getAptamerCardinality(String a) {
+		return open().getAptamerCardinality(a);
+	}
+
+	@Override
+	public int getAptamerCardinality(byte[] a) {
+		return open().getAptamerCardinality(a);
+	}
+
+	@Override
+	public int getAptamerCardinality(int id) {
+		return open().getAptamerCardinality(id);
+	}
+
+	@Override
+	public int getSize() {
+
+		SelectionCycle opened = cycle;
+		return opened == null ? size : opened.getSize();
+
+	}
+
+	@Override
+	public int getUniqueSize() {
+
+		SelectionCycle opened = cycle;
+		return opened == null ? unique_size : opened.getUniqueSize();
+
+	}
+
+	@Override
+	public SelectionCycle getNextSelectionCycle() {
+
+		ArrayList<SelectionCycle> cycles = Configuration.getExperiment().getSelectionCycles();
+
+		// The element we aim to find
+		SelectionCycle next = null;
+
+		// Create iterator starting at the selection cycle and advance until we find the next element
+		ListIterator<SelectionCycle> li = cycles.listIterator(this.round);
+		while (li.hasNext() && next==null){
+
+			SelectionCycle current_cycle = li.next();
+			if (current_cycle != null){
+				next = current_cycle;
+			}
+
+		}
+
+		return next;
+
+	}
+
+	@Override
+	public SelectionCycle getPreviousSelectionCycle() {
+
+		ArrayList<SelectionCycle> cycles = Configuration.getExperiment().getSelectionCycles();
+
+		// The element we aim to find
+		SelectionCycle previous = null;
+
+		// Create iterator starting at the selection cycle and advance until we find the next element
+		ListIterator<SelectionCycle> li = cycles.listIterator(this.round);
+		while (li.hasPrevious() && previous==null){
+
+			SelectionCycle current_cycle = li.previous();
+			if (current_cycle != null){
+				previous = current_cycle;
+			}
+
+		}
+
+		return previous;
+	}
+
+	@Override
+	public ArrayList<SelectionCycle> getControlCycles() {
+
+		// If no control cycle is present, we return an empty list as specified by the interface
+		if (Configuration.getExperiment().getControlSelectionCycles().get(this.round) == null){
+			return new ArrayList<SelectionCycle>();
+		}
+
+		// Otherwise, we return the actual cycles
+		return Configuration.getExperiment().getControlSelectionCycles().get(this.round);
+
+	}
+
+	@Override
+	public ArrayList<SelectionCycle> getCounterSelectionCycles() {
+
+		// If no control cycle is present, we return an empty list as specified by the interface
+		if (Configuration.getExperiment().getCounterSelectionCycles().get(this.round) == null){
+			return new ArrayList<SelectionCycle>();
+		}
+
+		// Otherwise, we return the actual cycles
+		return Configuration.getExperiment().getCounterSelectionCycles().get(this.round);
+
+	}
+
+	@Override
+	public String getName() {
+		return name;
+	}
+
+	@Override
+	public int getRound() {
+		return round;
+	}
+
+	@Override
+	public boolean isControlSelection() {
+		return isControlSelection;
+	}
+
+	@Override
+	public boolean isCounterSelection() {
+		return isCounterSelection;
+	}
+
+	@Override
+	public synchronized void setReadOnly() {
+
+		// Applied once the store is opened
+		readOnly = true;
+
+		if (cycle != null){
+			cycle.setReadOnly();
+		}
+
+	}
+
+	@Override
+	public synchronized void setReadWrite() {
+
+		readOnly = false;
+
+		if (cycle != null){
+			cycle.setReadWrite();
+		}
+
+	}
+
+	@Override
+	public synchronized void checkpoint() {
+
+		// A cycle which was never opened has not been modified
+		if (cycle != null){
+			cycle.checkpoint();
+		}
+
+	}
+
+	@Override
+	public synchronized void close() {
+
+		// Nothing to close if the store was never opened
+		if (cycle != null){
+			cycle.close();
+		}
+
+	}
+
+	@Override
+	public Iterable<Entry<Integer, Integer>> iterator() {
+		return open().iterator();
+	}
+
+	@Override
+	public Iterable<Entry<byte[], Integer>> sequence_iterator() {
+		return open().sequence_iterator();
+	}
+
+	@Override
+	public Iterable<Integer> id_iterator() {
+		return open().id_iterator();
+	}
+
+	@Override
+	public Spliterator<Entry<Integer, Integer>> spliterator() {
+		return open().spliterator();
+	}
+
+}
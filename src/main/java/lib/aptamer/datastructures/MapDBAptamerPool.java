@@ -1,45 +1,63 @@
 /**
- * 
+ *
  */
 package lib.aptamer.datastructures;
 
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.nio.file.DirectoryStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.AbstractMap;
 import java.util.ArrayList;
-import java.util.BitSet;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.ListIterator;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
 import org.mapdb.BTreeMap;
 import org.mapdb.DB;
+import org.mapdb.DBException;
 import org.mapdb.DBMaker;
 import org.mapdb.HTreeMap;
 import org.mapdb.Serializer;
 import org.mapdb.serializer.SerializerCompressionWrapper;
 
-import orestes.bloomfilter.BloomFilter;
-import orestes.bloomfilter.FilterBuilder;
 import utilities.AptaLogger;
 import utilities.Configuration;
+import utilities.MemoryBudget;
 
 /**
  * Implements the AptamerPool interface using a non-volatile based storage solution in order
  * to minimize memory usage at the expense of speed.
+ *
+ * Sequences are hash-partitioned into <code>MapDBAptamerPool.concurrentShards</code> independent
+ * shards, each with its own lock, bloom filters and MapDB files. Registrations of sequences
+ * falling into different shards can hence be performed concurrently. Identifiers are allocated
+ * lock-free from a global counter and remain dense. With a single shard (the default), the
+ * behavior and file layout correspond to a non-sharded pool.
  * @author Jan Hoinka
  *
  */
 public class MapDBAptamerPool implements AptamerPool {
-	
+
 	/**
-	 * 
+	 *
 	 */
 	private static final long serialVersionUID = -1376976629428257697L;
 
@@ -47,105 +65,112 @@ public class MapDBAptamerPool implements AptamerPool {
 	 * Path on file system for the current experiment
 	 */
 	private Path projectPath = null;
-	
+
 	/**
 	 * Folder in <code>projectPath</code> which contains all the sequencing data
 	 * of an experiment that does not fit into volatile memory.
 	 */
 	private Path poolDataPath = null;
-	
+
 
 	/**
-	 * The total number of expected items in the bloom filter.
+	 * The number of items the first layer of the bloom filters is dimensioned for. The filters 
+	 * grow beyond this capacity as required.
 	 */
-	private int bloomFilterCapacity = Configuration.getParameters().getInt("MapDBAptamerPool.bloomFilterCapacity");
-	
-	
+	private int bloomFilterCapacity = (int) MemoryBudget.getBloomFilterCapacity(Configuration.getParameters().getInt("MapDBAptamerPool.bloomFilterCapacity"));
+
+
 	/**
 	 * The expected false positive rate
 	 */
 	private double bloomFilterCollisionProbability = Configuration.getParameters().getDouble("MapDBAptamerPool.bloomFilterCollisionProbability");
-	
-	
-	/**
-	 * The bloom filter is used in order to provide atomic and space efficient checks on 
-	 * whether a sequence is already contained in the pool.
-	 */
-	private transient BloomFilter<String> bloomFilter = new FilterBuilder(bloomFilterCapacity, bloomFilterCollisionProbability).buildBloomFilter(); //TODO: make parameters class vars and implement getters and setters
-	
-	
+
+
 	/**
-	 * List of bloom filters, one per entry in <code>poolData</code>. This will be used to speed up
-	 * retrieval time of sequences.
+	 * The number of independent shards the sequences are partitioned into.
+	 * For existing data sets, this value is determined from the files on disk.
 	 */
-	private transient List<BloomFilter<String>> poolDataBloomFilter = new ArrayList<BloomFilter<String>>();
-	
-	
+	private int numberOfShards = Math.max(1, Configuration.getParameters().getInt("MapDBAptamerPool.concurrentShards"));
+
+
 	/**
-	 * Collection of HashMaps backed by MapDB which stores aptamer data on disk for
-	 * memory efficiency.
+	 * The shards of this pool. A sequence is always stored in shard <code>shardIndex(sequence)</code>.
 	 */
-	private transient List<HTreeMap<byte[], Integer>> poolData = new ArrayList<HTreeMap<byte[], Integer>>();
+	private transient PoolShard[] shards = null;
+
 
 	/**
-	 * HashMap backed by MapDB which stores aptamer boundary data on disk for
-	 * memory efficiency. Here, boundary stands for start (inclusive) and end (exclusive) index 
-	 * of the randomized region.
+	 * The inverse view of the <code>poolData</code> mapping ids to aptamers together with
+	 * the aptamer boundary data. Here, boundary stands for start (inclusive) and end (exclusive) index
+	 * of the randomized region. Since ids are dense, both are resolved by a positional
+	 * read from memory mapped files.
 	 */
-	private transient HTreeMap<Integer, int[]> boundsData = null;
-	
+	private transient MappedInverseView poolDataInverse = null;
+
+
 	/**
-	 * The inverse view of the <code>poolData</code> mapping ids to aptamers
+	 * Minimal perfect hash index over the sequences of the pool. It only exists while the
+	 * pool is read only, in which case it answers all lookups by sequence.
 	 */
-	private transient BTreeMap<Integer, byte[]> poolDataInverse = null;
-	
-	
+	private transient volatile PerfectHashIndex perfectHashIndex = null;
+
 	/**
-	 * Fast lookup of membership for <code>poolDataInverse</code>
+	 * Whether <code>setReadOnly()</code> builds <code>perfectHashIndex</code>
 	 */
-	private BitSet poolDataInverseFilter = new BitSet(bloomFilterCapacity);
-	
-	
+	private boolean usePerfectHashIndex = Configuration.getParameters().getBoolean("MapDBAptamerPool.perfectHashIndex");
+
 	/**
-	 * Stores the file locations of the mapdb instance in <code>poolData</code>.
+	 * False once the file of <code>perfectHashIndex</code> is known to be absent. The file describes the 
+	 * content of the pool at the time it was built and is removed before the pool changes.
 	 */
-	private List<Path> poolDataPaths = new ArrayList<Path>();
+	private transient volatile boolean perfectHashIndexOnDisk = true;
+
 
-	
 	/**
 	 * The maximal number of unique aptamers to store in one TreeMap. The performance of TreeMap decreases
 	 * noticeable with large volumes of data. As a workaround, we split the data into buckets of TreeMaps
-	 * of size <code>maxItemsPerTreeMap</code>. 
+	 * of size <code>maxItemsPerTreeMap</code>.
+	 */
+	private int maxTreeMapCapacity = MemoryBudget.getFileCapacity(Configuration.getParameters().getInt("MapDBAptamerPool.maxTreeMapCapacity"), APTAMER_FILE_BYTES);
+
+	/**
+	 * Approximate number of bytes an aptamer occupies in a TreeMap file, used to size the files
+	 */
+	private static final long APTAMER_FILE_BYTES = 128;
+
+	/**
+	 * Simple class name of the <code>Codec</code> used for new files. Existing files are
+	 * read with the codec they were created with.
 	 */
-	private int maxTreeMapCapacity = Configuration.getParameters().getInt("MapDBAptamerPool.maxTreeMapCapacity");
-	
-	
+	private String codec = Configuration.getParameters().getString("MapDBAptamerPool.codec");
+
 	/**
-	 * The number of elements of the tree map that is currently been filled.
-	 * We need to keep this record separately as the .size() function of dbmap
-	 * objects is noticeably slow.
+	 * The total number of all items stored in this class. Also serves as the
+	 * source of new identifiers.
 	 */
-	private int currentTreeMapSize = 0;
-	
+	private AtomicInteger poolSize = new AtomicInteger(0);
+
+
 	/**
-	 * The total number of all items stored in this class
+	 * File name pattern of the shard files, <code>data####.mapdb</code> for
+	 * single shard pools and <code>shard##_data####.mapdb</code> otherwise.
 	 */
-	private int poolSize = 0;
-	
+	private static final Pattern shardFilePattern = Pattern.compile("(?:shard(\\d+)_)?data(\\d+)\\.mapdb");
+
 	/**
 	 * Constructor
 	 * @param projectPath must point to the current projects working directory
-	 * all files related to the analysis of the HT-SELEX experiment are stored 
+	 * all files related to the analysis of the HT-SELEX experiment are stored
 	 * in that path. It must exist and be writable for the user.
-	 * @param newdb if true, a new database is created on file. 
-	 * Any previously existing database will be deleted. If false, the existing database 
+	 * @param newdb if true, a new database is created on file.
+	 * Any previously existing database will be deleted. If false, the existing database
 	 * will be read from disk.
 	 * @throws FileNotFoundException if projectPath does not exist on file system.
 	 */
 	public MapDBAptamerPool(Path projectPath, boolean newdb) throws IOException{
-		
+
 		AptaLogger.log(Level.INFO, this.getClass(), "Instantiating MapDBAptamerPool");
-		
+
 		// Make sure the folder is writable
 		// Files.isWritable() might fail on different platforms and permission combinations,
 		// hence we need to check it manually.
@@ -158,354 +183,491 @@ public class MapDBAptamerPool implements AptamerPool {
 			AptaLogger.log(Level.SEVERE, this.getClass(),"The project path " + projectPath.toString() + " is not writable.");
 			throw (new IllegalStateException("The project path " + projectPath.toString() + " is not writable.") );
 		}
-		
+
 		// Set the project path and pool data path
 		this.projectPath = projectPath;
-		
+
 		// Check if the data path exists, and if not create it
 		this.poolDataPath = Files.createDirectories(Paths.get(this.projectPath.toString(), "pooldata"));
-		
-		
+
+
 		// If we are reading an existing database, iterate over the folder and open the individual MapDB instances
-		if (! newdb){ 
+		if (! newdb){
 			AptaLogger.log(Level.INFO, this.getClass(), "Searching for existing datasets in " + poolDataPath.toString());
+
+			// The shard files must be opened in order, so collect and sort them first
+			List<Path> files = new ArrayList<Path>();
 			try (DirectoryStream<Path> directoryStream = Files.newDirectoryStream(Paths.get(poolDataPath.toString()))) {
-				
+
 				for (Path file : directoryStream) {
-	                
+
 	    			// Open and read the TreeMap, skip the inverse file, and the bounds data (will be loaded explicitly for each data file)
-	    			if (Files.isRegularFile(file) && 
-	    					!file.getFileName().toString().equals("data_inverse.mapdb") &&
-	    					!file.getFileName().toString().contains("bounds") ){
-	    				
-	    				AptaLogger.log(Level.INFO, this.getClass(), "Processing " + file.getFileName().toString());
-	    				long tParserStart = System.currentTimeMillis();
-	    		
-	    				DB db = DBMaker
-	    					    .fileDB(file.toFile())
-	    					    .fileMmapEnableIfSupported() // Only enable mmap on supported platforms
-	    					    .concurrencyScale(8) // TODO: Number of threads make this a parameter?
-	    					    .executorEnable()
-	    					    .make();
-	
-	    				HTreeMap<byte[], Integer> dbmap = db.hashMap("map")
-	    						.keySerializer(new SerializerCompressionWrapper<byte[]>(Serializer.BYTE_ARRAY))
-	    						.valueSerializer(Serializer.INTEGER)
-	    						.open();
-	    				
-	    				poolData.add(dbmap);
-	    				poolDataPaths.add(file);
-
-	    				// Setup helper variables	    				
-	    				BloomFilter<String> localBloomFilter = new FilterBuilder(maxTreeMapCapacity, bloomFilterCollisionProbability).buildBloomFilter();
-	    				poolDataBloomFilter.add(localBloomFilter);
-	    				
-	    				// Update values
-	    				int currentDBmapSize = dbmap.size();
-	    				poolSize += currentDBmapSize;
-	    				currentTreeMapSize = currentDBmapSize;
-
-	    				// Update bloom filter content
-	    				Iterator<byte[]> dbmapIterator = dbmap.getKeys().iterator();
-	    				while (dbmapIterator.hasNext()){
-	    					byte[] current_element = dbmapIterator.next(); 
-	    					bloomFilter.add(current_element);
-	    					localBloomFilter.add(current_element);
-	    				}
-	    				
-	    				AptaLogger.log(Level.CONFIG, this.getClass(), 
-	    						"Found and loaded file " + file.toString() + "\n" +
-	    						"Total number of aptamers in file: " + currentTreeMapSize + "\n" +
-	    						"Total number of aptamers: " + poolSize + "\n" + 
-	    						"Processed in " + ((System.currentTimeMillis() - tParserStart) / 1000.0) + " seconds."
-	    						);
+	    			if (Files.isRegularFile(file) && shardFilePattern.matcher(file.getFileName().toString()).matches()){
+	    				files.add(file);
 	    			}
-	                
+
 	            }
 	        } catch (IOException ex) {}
-			
+
+			// Sorted numerically by shard and file index, the names are not padded beyond four digits
+			java.util.Collections.sort(files, new java.util.Comparator<Path>(){
+
+				@Override
+				public int compare(Path a, Path b) {
+
+					Matcher ma = shardFilePattern.matcher(a.getFileName().toString());
+					Matcher mb = shardFilePattern.matcher(b.getFileName().toString());
+					ma.matches();
+					mb.matches();
+
+					int shardA = ma.group(1) == null ? 0 : Integer.parseInt(ma.group(1));
+					int shardB = mb.group(1) == null ? 0 : Integer.parseInt(mb.group(1));
+					if (shardA != shardB){
+						return Integer.compare(shardA, shardB);
+					}
+
+					return Integer.compare(Integer.parseInt(ma.group(2)), Integer.parseInt(mb.group(2)));
+				}
+
+			});
+
+			// The number of shards is defined by the data on disk
+			numberOfShards = 1;
+			for (Path file : files){
+				Matcher matcher = shardFilePattern.matcher(file.getFileName().toString());
+				matcher.matches();
+				if (matcher.group(1) != null){
+					numberOfShards = Math.max(numberOfShards, Integer.parseInt(matcher.group(1))+1);
+				}
+			}
+
+			initializeShards();
+
+			for (Path file : files) {
+
+				Matcher matcher = shardFilePattern.matcher(file.getFileName().toString());
+				matcher.matches();
+				PoolShard shard = shards[matcher.group(1) == null ? 0 : Integer.parseInt(matcher.group(1))];
+
+				AptaLogger.log(Level.INFO, this.getClass(), "Processing " + file.getFileName().toString());
+				long tParserStart = System.currentTimeMillis();
+
+				DB db = openShardFile(file);
+
+				HTreeMap<byte[], Integer> dbmap = db.hashMap("map")
+						.keySerializer(CodecSerializer.open(db, file, Serializer.BYTE_ARRAY, "NoneCodec"))
+						.valueSerializer(Serializer.INTEGER)
+						.open();
+
+				// The bloom filter of the file is persisted next to it
+				MappedBloomFilter localBloomFilter = new MappedBloomFilter(bloomFilterPath(file), Math.min(maxTreeMapCapacity, Math.max(1, bloomFilterCapacity / numberOfShards)), bloomFilterCollisionProbability);
+
+				// Update values
+				int currentDBmapSize = dbmap.size();
+				poolSize.addAndGet(currentDBmapSize);
+				shard.currentTreeMapSize = currentDBmapSize;
+
+				shard.poolData.add(dbmap);
+				shard.poolDataBloomFilter.add(localBloomFilter);
+				shard.poolDataPaths.add(file);
+
+				AptaLogger.log(Level.CONFIG, this.getClass(),
+						"Found and loaded file " + file.toString() + "\n" +
+						"Total number of aptamers in file: " + currentDBmapSize + "\n" +
+						"Total number of aptamers: " + poolSize.get() + "\n" +
+						"Processed in " + ((System.currentTimeMillis() - tParserStart) / 1000.0) + " seconds."
+						);
+            }
+
+			// Make sure the persisted bloom filters agree with the data and rebuild them otherwise.
+			// Files of earlier sessions are not modified anymore, new aptamers go to new files.
+			// Hence, existing data stays intact should this session not be closed properly.
+			for (PoolShard shard : shards){
+				shard.validateBloomFilters();
+				shard.sealed = true;
+			}
+
 			// Now load and initialize the inverse view of the data
 			AptaLogger.log(Level.CONFIG, this.getClass(), "Reading inverse view.");
-			
-			DB db_inverse = DBMaker
-				    .fileDB(Paths.get(poolDataPath.toString(), "data_inverse" + ".mapdb").toFile())
-				    .fileMmapEnableIfSupported() // Only enable mmap on supported platforms
-				    .concurrencyScale(8) // TODO: Number of threads make this a parameter?
-				    .executorEnable()
-				    .make();
 
-			poolDataInverse = db_inverse.treeMap("map")
-					.valuesOutsideNodesEnable()
-					.keySerializer(Serializer.INTEGER)
-					.valueSerializer(new SerializerCompressionWrapper<byte[]>(Serializer.BYTE_ARRAY))
-			        .open();
-			
-			// Update the filter content
-			Iterator<Integer> inverse_iterator = poolDataInverse.keyIterator();
-			while (inverse_iterator.hasNext()){
-				poolDataInverseFilter.set(inverse_iterator.next());
+			poolDataInverse = new MappedInverseView(poolDataPath, "data_inverse");
+
+			// Projects created with earlier versions store the inverse view and bounds in MapDB
+			if (Files.exists(Paths.get(poolDataPath.toString(), "data_inverse" + ".mapdb"))){
+				migrateInverseView();
 			}
-			
-			
-			// now load the corresponding Bounds file
-			Path boundsfile = Paths.get(poolDataPath.toString(), "bounds" + ".mapdb");
-
-			AptaLogger.log(Level.CONFIG, this.getClass(), "Reading bounds file " + boundsfile.toString());
-			
-			DB db_bounds = DBMaker
-				    .fileDB(boundsfile.toFile())
-				    .fileMmapEnableIfSupported() // Only enable mmap on supported platforms
-				    .concurrencyScale(8) // TODO: Number of threads make this a parameter?
-				    .executorEnable()
-				    .make();
 
-			boundsData = db_bounds.hashMap("map")
-					.keySerializer(Serializer.INTEGER)
-					.valueSerializer(Serializer.INT_ARRAY)
-					.open();
-			
-			
-			AptaLogger.log(Level.INFO, this.getClass(), "Found and loaded a total of " + poolSize + " aptamers on disk.");
-			
-		}
-		else{ 
-			
-		// Create an empty instance of the MapDB Container...
-		Path file = Paths.get(poolDataPath.toString(), "data" + String.format("%04d", poolData.size()) + ".mapdb");
-		DB db = DBMaker
-			    .fileDB(file.toFile())
+			if (poolDataInverse.size() != poolSize.get()){
+				AptaLogger.log(Level.WARNING, this.getClass(), "The inverse view contains " + poolDataInverse.size() + " aptamers but the pool contains " + poolSize.get() + ". The project might not have been closed properly.");
+			}
+
+
+			AptaLogger.log(Level.INFO, this.getClass(), "Found and loaded a total of " + poolSize.get() + " aptamers in " + numberOfShards + " shard(s) on disk.");
+
+		}
+		else{
+
+			createDatabase();
+
+		}
+	}
+
+	/**
+	 * Creates empty MapDB containers, filters, bounds and inverse view files in <code>poolDataPath</code>
+	 * @throws IOException
+	 */
+	private void createDatabase() throws IOException{
+
+		// Create an empty instance of the MapDB Container for each shard...
+		initializeShards();
+		for (PoolShard shard : shards){
+			shard.bloomFilter.clear();
+			shard.addTreeMap();
+		}
+
+		// ... as well as a new inverse view including the bounds
+		poolDataInverse = new MappedInverseView(poolDataPath, "data_inverse");
+		poolDataInverse.clear();
+
+		AptaLogger.log(Level.CONFIG, this.getClass(), "Created new inverse view in " + poolDataPath.toString());
+
+	}
+
+	/**
+	 * Copies the inverse view and bounds data of projects created with earlier versions, which 
+	 * are stored in <code>data_inverse.mapdb</code> and <code>bounds.mapdb</code>, into 
+	 * <code>poolDataInverse</code> and removes the old files afterwards.
+	 * @throws IOException
+	 */
+	private void migrateInverseView() throws IOException{
+
+		AptaLogger.log(Level.INFO, this.getClass(), "Converting inverse view and bounds data to the memory mapped format.");
+		long tStart = System.currentTimeMillis();
+
+		Path inversefile = Paths.get(poolDataPath.toString(), "data_inverse" + ".mapdb");
+		Path boundsfile = Paths.get(poolDataPath.toString(), "bounds" + ".mapdb");
+
+		DB db_inverse = DBMaker
+			    .fileDB(inversefile.toFile())
 			    .fileMmapEnableIfSupported() // Only enable mmap on supported platforms
-			    .concurrencyScale(8) // TODO: Number of threads make this a parameter?
-			    .executorEnable()
+			    .readOnly()
 			    .make();
 
-		HTreeMap<byte[], Integer> dbmap = db.hashMap("map")
-				.keySerializer(Serializer.BYTE_ARRAY)
-				.valueSerializer(Serializer.INTEGER)
-		        .create();
-		
-		poolDataPaths.add(file);
-		poolData.add(dbmap);
-		
-		AptaLogger.log(Level.CONFIG, this.getClass(), "Created new file " + file.toString());
-
-		// ... as well as a new bounds file
-		Path boundsfile = Paths.get(poolDataPath.toString(), "bounds" + ".mapdb");
-		
+		BTreeMap<Integer, byte[]> legacyInverse = db_inverse.treeMap("map")
+				.valuesOutsideNodesEnable()
+				.keySerializer(Serializer.INTEGER)
+				.valueSerializer(new SerializerCompressionWrapper<byte[]>(Serializer.BYTE_ARRAY))
+		        .open();
+
 		DB db_bounds = DBMaker
 			    .fileDB(boundsfile.toFile())
 			    .fileMmapEnableIfSupported() // Only enable mmap on supported platforms
-			    .concurrencyScale(8) // TODO: Number of threads make this a parameter?
-			    .executorEnable()
+			    .readOnly()
 			    .make();
 
-		boundsData = db_bounds.hashMap("map")
+		HTreeMap<Integer, int[]> legacyBounds = db_bounds.hashMap("map")
 				.keySerializer(Serializer.INTEGER)
 				.valueSerializer(Serializer.INT_ARRAY)
-				.create();
-		
-		AptaLogger.log(Level.CONFIG, this.getClass(), "Created new bounds file " + boundsfile.toString());
-		
-		BloomFilter<String> localBloomFilter = new FilterBuilder(maxTreeMapCapacity, bloomFilterCollisionProbability).buildBloomFilter();
-		poolDataBloomFilter.add(localBloomFilter);
-		
-		currentTreeMapSize = 0;
-		
-	
-		// Create the inverse view files
-		DB db_inverse = DBMaker
-			    .fileDB(Paths.get(poolDataPath.toString(), "data_inverse" + ".mapdb").toFile())
-			    .fileMmapEnableIfSupported() // Only enable mmap on supported platforms
-			    .concurrencyScale(8) // TODO: Number of threads make this a parameter?
-			    .executorEnable()
-			    .make();
+				.open();
+
+		// Start from scratch in case a previous conversion was interrupted
+		poolDataInverse.clear();
+
+		Iterator<Entry<Integer, byte[]>> inverse_iterator = legacyInverse.getEntries().iterator();
+		while (inverse_iterator.hasNext()){
+
+			Entry<Integer, byte[]> entry = inverse_iterator.next();
+			int[] bounds = legacyBounds.get(entry.getKey());
+
+			poolDataInverse.put(entry.getKey(), entry.getValue(), bounds[0], bounds[1]);
 
-		poolDataInverse = db_inverse.treeMap("map")
-				.valuesOutsideNodesEnable()
-				.keySerializer(Serializer.INTEGER)
-				.valueSerializer(new SerializerCompressionWrapper<byte[]>(Serializer.BYTE_ARRAY))
-		        .create();
-		
-		AptaLogger.log(Level.CONFIG, this.getClass(), "Created new inverse file " + Paths.get(poolDataPath.toString(), "data_inverse" + ".mapdb").toFile());
-		
 		}
+
+		poolDataInverse.force();
+
+		legacyInverse.close();
+		legacyBounds.close();
+
+		Files.delete(inversefile);
+		Files.delete(boundsfile);
+		Files.deleteIfExists(Paths.get(poolDataPath.toString(), "data_inverse" + ".bitset"));
+
+		AptaLogger.log(Level.INFO, this.getClass(), "Converted " + poolDataInverse.size() + " aptamers in " + ((System.currentTimeMillis() - tStart) / 1000.0) + " seconds.");
+
 	}
-		
-	/* (non-Javadoc)
-	 * @see aptamer.pool.AptamerPool#registerAptamer(byte[] a)
+
+	/**
+	 * @param file a shard file <code>*.mapdb</code>
+	 * @return the location of the copy of <code>file</code> taken by the last checkpoint
 	 */
-	public synchronized int registerAptamer(byte[] a, int rr_start, int rr_end){
-		
-		// Check if the item is already registered, and if so, return its identifier
-		int identifier = this.getIdentifier(a);
-		if (identifier != -1){
-			return identifier;
-		}
-		
-		// Check that the current map is not at max capacity and create a new map if that is the case
-		if (currentTreeMapSize == maxTreeMapCapacity){
-			
-			Path file = Paths.get(poolDataPath.toString(), "data" + String.format("%04d", poolData.size()) + ".mapdb");
-			
-			AptaLogger.log(Level.CONFIG, this.getClass(), 
-					"Current Map is at max capacity creating new file " + file.toString() + "\n" +
-					"Total number of aptamers: " + poolSize 
-					);
-			
-			DB db = DBMaker
+	private static Path checkpointCopyPath(Path file){
+
+		return file.resolveSibling(file.getFileName().toString() + ".checkpoint");
+
+	}
+
+	/**
+	 * Opens an existing shard file for writing. The current file of a shard is modified after a 
+	 * checkpoint, should the application not be shut down properly it is replaced by the copy 
+	 * taken at that checkpoint.
+	 * @param file a shard file <code>*.mapdb</code>
+	 * @return the store of <code>file</code>
+	 */
+	private DB openShardFile(Path file){
+
+		try {
+
+			return DBMaker
 				    .fileDB(file.toFile())
 				    .fileMmapEnableIfSupported() // Only enable mmap on supported platforms
 				    .concurrencyScale(8) // TODO: Number of threads make this a parameter?
 				    .executorEnable()
 				    .make();
 
-			HTreeMap<byte[], Integer> dbmap = db.hashMap("map")
-					.keySerializer(Serializer.BYTE_ARRAY)
-					.valueSerializer(Serializer.INTEGER)
-			        .create();
+		} catch (DBException.DataCorruption e) {
+
+			Path copy = checkpointCopyPath(file);
+			if (!Files.exists(copy)){
+				throw e;
+			}
+
+			AptaLogger.log(Level.WARNING, this.getClass(), file.getFileName() + " was not closed properly, restoring it from the last checkpoint.");
+
+			try {
+				Files.copy(copy, file, StandardCopyOption.REPLACE_EXISTING);
+			} catch (IOException ex) {
+				throw new IllegalStateException("Could not restore " + file.toString(), ex);
+			}
+
+			return DBMaker
+				    .fileDB(file.toFile())
+				    .fileMmapEnableIfSupported() // Only enable mmap on supported platforms
+				    .concurrencyScale(8) // TODO: Number of threads make this a parameter?
+				    .executorEnable()
+				    .make();
+		}
+
+	}
+
+	/**
+	 * @param file a shard file <code>*.mapdb</code>
+	 * @return the location of the bloom filter persisted for <code>file</code>
+	 */
+	private static Path bloomFilterPath(Path file){
+
+		String name = file.getFileName().toString();
+		return file.resolveSibling(name.substring(0, name.length() - ".mapdb".length()) + ".bloom");
+
+	}
+
+	/**
+	 * Creates <code>numberOfShards</code> empty shards.
+	 */
+	private void initializeShards(){
+
+		shards = new PoolShard[numberOfShards];
+		for (int x=0; x<numberOfShards; x++){
+			shards[x] = new PoolShard(x);
+		}
+
+	}
+
+	/**
+	 * Determines the shard a sequence belongs to
+	 * @param a the aptamer sequence
+	 * @return index into <code>shards</code>
+	 */
+	private int shardIndex(byte[] a){
+
+		if (numberOfShards == 1){
+			return 0;
+		}
+
+		// spread the bits of the hash code before reducing it to the number of shards
+		int h = Arrays.hashCode(a);
+		h ^= (h >>> 16);
+		h *= 0x85EBCA6B;
+		h ^= (h >>> 13);
+
+		return (h & 0x7FFFFFFF) % numberOfShards;
+	}
+
+	/* (non-Javadoc)
+	 * @see aptamer.pool.AptamerPool#registerAptamer(byte[] a)
+	 */
+	public int registerAptamer(byte[] a, int rr_start, int rr_end){
+
+		if (perfectHashIndexOnDisk){
+			deletePerfectHashIndex();
+		}
+
+		PoolShard shard = shards[shardIndex(a)];
+
+		// Only registrations falling into the same shard have to wait for each other
+		synchronized(shard){
+
+			// Check if the item is already registered, and if so, return its identifier
+			int identifier = shard.getIdentifier(a);
+			if (identifier != -1){
+				return identifier;
+			}
+
+			// Check that the current map is not at max capacity and create a new map if that is the case
+			if (shard.currentTreeMapSize >= maxTreeMapCapacity || shard.sealed){
+
+				AptaLogger.log(Level.CONFIG, this.getClass(),
+						"Current Map of shard " + shard.index + " is at max capacity creating new file.\n" +
+						"Total number of aptamers: " + poolSize.get()
+						);
+
+				shard.addTreeMap();
+
+			}
+
+			// Now insert the sequence using a fresh identifier
+			identifier = poolSize.incrementAndGet();
+
+			shard.poolData.get(shard.poolData.size()-1).put(a, identifier);
+			shard.currentTreeMapSize++;
+			shard.bloomFilter.add(a);
+			shard.poolDataBloomFilter.get(shard.poolData.size()-1).add(a);
+
+			// and the inverse view including the bounds data
+			poolDataInverse.put(identifier, a, rr_start, rr_end);
+
+			return identifier;
+		}
+	}
 
-			poolDataPaths.add(file);
-			poolData.add(dbmap);
-			
-			BloomFilter<String> localBloomFilter = new FilterBuilder(maxTreeMapCapacity, bloomFilterCollisionProbability).buildBloomFilter();
-			poolDataBloomFilter.add(localBloomFilter);
-			
-			currentTreeMapSize = 0;
-			
-		}
-
-		// Now insert the sequence
-		poolData.get(poolData.size()-1).put(a, ++poolSize);
-		currentTreeMapSize++;
-		bloomFilter.add(a);
-		poolDataBloomFilter.get(poolData.size()-1).add(a);
-		
-		poolDataInverse.put(poolSize, a);
-		poolDataInverseFilter.set(poolSize);
-		
-		// and the bounds data
-		boundsData.put(identifier, new int[]{rr_start,rr_end});
-		
-		return poolSize;
-	}
-	
 	/* (non-Javadoc)
 	 * @see aptamer.pool.AptamerPool#registerAptamer(byte[] a)
 	 */
 	public int registerAptamer(String a, int rr_start, int rr_end){
-		
+
 		return registerAptamer(a.getBytes(), rr_start, rr_end);
-	
+
+	}
+
+	/* (non-Javadoc)
+	 * @see lib.aptamer.datastructures.AptamerPool#registerAptamers(lib.aptamer.datastructures.AptamerBatch)
+	 */
+	public int[] registerAptamers(AptamerBatch batch){
+
+		if (perfectHashIndexOnDisk){
+			deletePerfectHashIndex();
+		}
+
+		int[] ids = new int[batch.size()];
+
+		// Group the entries of the batch by shard so that every shard is only locked once
+		int[] shardOf = new int[batch.size()];
+		int[] offsets = new int[numberOfShards+1];
+		for (int x=0; x<batch.size(); x++){
+			shardOf[x] = shardIndex(batch.getSequence(x));
+			offsets[shardOf[x]+1]++;
+		}
+
+		for (int x=0; x<numberOfShards; x++){
+			offsets[x+1] += offsets[x];
+		}
+
+		int[] order = new int[batch.size()];
+		int[] fill = Arrays.copyOf(offsets, numberOfShards);
+		for (int x=0; x<batch.size(); x++){
+			order[fill[shardOf[x]]++] = x;
+		}
+
+		// Now register each group with its shard
+		for (int x=0; x<numberOfShards; x++){
+
+			if (offsets[x] != offsets[x+1]){
+				shards[x].registerAptamers(batch, order, offsets[x], offsets[x+1], ids);
+			}
+
+		}
+
+		return ids;
 	}
 
 	/* (non-Javadoc)
 	 * @see aptamer.pool.AptamerPool#getIdentifier(byte[] a)
 	 */
 	public int getIdentifier(byte[] a) {
-		
-		// Check for existence using bloom filter. 
-		if (!bloomFilter.contains(a)){
-			return -1; // This result is always accurate (no false negatives)
-		}
-		
-		Integer identifier = null;
-		
-		// Iterate over all treeMaps and bloomFilters
-		ListIterator<HTreeMap<byte[], Integer>> lim = poolData.listIterator(poolData.size());
-		ListIterator<BloomFilter<String>> lib = poolDataBloomFilter.listIterator(poolData.size());
-		
-		// Iterate in reverse
-		while(lim.hasPrevious() && identifier == null) {
-			
-			// Prevent expensive disk lookups by using the bloom filters...
-			if(! lib.previous().contains(a) ){
-				lim.previous();
-				continue;
-			}
-			
-			// ... and only look it up when we have to
-			identifier = lim.previous().get(a); //note, in case of a false positive, this returns null
 
+		// A frozen pool is answered by one hash and one verification read
+		PerfectHashIndex index = perfectHashIndex;
+		if (index != null){
+			return index.getIdentifier(a);
 		}
-		
-		if (identifier == null){identifier = -1;}
-		
-		return identifier;
+
+		return shards[shardIndex(a)].getIdentifier(a);
+
 	}
 
-	
+
 	/* (non-Javadoc)
 	 * @see aptamer.pool.AptamerPool#getIdentifier(byte[] a)
 	 */
 	public int getIdentifier(String a) {
-		
+
 		return getIdentifier(a.getBytes());
-		
+
 	}
-	
+
 	/* (non-Javadoc)
 	 * @see aptamer.pool.AptamerPool#getAptamer(int id)
 	 */
 	public byte[] getAptamer(int id) {
-		
-		// Check if the aptamer is present in the pool via fast lookup
-		if (!containsAptamer(id)){
-			return null;
-		}
-		
-		// find and return the sequence
+
+		// Positional lookup, null if the aptamer is not present
 		return this.poolDataInverse.get(id);
-		
+
 	}
-	
+
 	/* (non-Javadoc)
 	 * @see aptamer.pool.AptamerPool#getAptamerBounds(int id)
 	 */
 	public AptamerBounds getAptamerBounds(int id) {
-		
-		// Check if the aptamer is present in the pool via fast lookup
-		if (!containsAptamer(id)){
-			return null;
-		}
-	
-		return new AptamerBounds(boundsData.get(id));
-		
+
+		// Positional lookup, null if the aptamer is not present
+		return this.poolDataInverse.getBounds(id);
+
 	}
-	
+
 	/* (non-Javadoc)
 	 * @see aptamer.pool.AptamerPool#hasAptamer(byte[])
 	 */
 	public Boolean containsAptamer(byte[] a) {
-		
+
 		return getIdentifier(a) != -1;
 
 	}
 
-	
+
 	/* (non-Javadoc)
 	 * @see aptamer.pool.AptamerPool#hasAptamer(java.lang.String)
 	 */
 	public Boolean containsAptamer(String a) {
-		
+
 		return getIdentifier(a.getBytes()) != -1;
 
-	}	
-	
+	}
+
 	/* (non-Javadoc)
 	 * @see aptamer.pool.AptamerPool#containsAptamer(int)
 	 */
 	public Boolean containsAptamer(int id) {
-		
-		return this.poolDataInverseFilter.get(id);
-				
+
+		return this.poolDataInverse.contains(id);
+
 	}
-	
+
 	@Override
 	public int size() {
-		return poolSize;
+		return poolSize.get();
 	}
-	
-	
+
+
 	/**
 	 * This function closes all the file handles that where created or opened
 	 * during the lifetime of the class instance. If it is not called, a
@@ -513,279 +675,677 @@ public class MapDBAptamerPool implements AptamerPool {
 	 *  next execution of the application when using the same project path.
 	 */
 	public void close(){
-		
+
 		AptaLogger.log(Level.CONFIG, this.getClass(), "Closing pool file handles.");
-		
-		// Iterate over each TreeMap instance and close it
-		ListIterator<HTreeMap<byte[], Integer>> li = poolData.listIterator(poolData.size());
 
-		// Iterate in reverse
-		while(li.hasPrevious()) {
-			
-			li.previous().close();
+		closePerfectHashIndex();
+		closeMaps();
 
-		}
+		// Close the persisted filters
+		for (PoolShard shard : shards){
+
+			shard.bloomFilter.close();
+			for (MappedBloomFilter filter : shard.poolDataBloomFilter){
+				filter.close();
+			}
 
-		// Close the bounds data
-		boundsData.close();
+		}
 
-		// Close the inverse view
 		poolDataInverse.close();
 	}
-	
-	
-	/* (non-Javadoc)
-	 * @see lib.aptamer.pool.AptamerPool#clear()
+
+	/**
+	 * Opens the perfect hash index of the pool, building it if the pool changed since it
+	 * was last built. Pools too large to build the index within the memory budget
+	 * keep using the bloom filters and shards.
+	 */
+	private void openPerfectHashIndex(){
+
+		if (!usePerfectHashIndex){
+			return;
+		}
+
+		if (PerfectHashIndex.getConstructionBytes(poolSize.get()) > MemoryBudget.getHeapBudget() / 2){
+			AptaLogger.log(Level.WARNING, this.getClass(), "Not enough memory to build the perfect hash index for " + poolSize.get() + " aptamers. Lookups use the bloom filters instead.");
+			return;
+		}
+
+		long tStart = System.currentTimeMillis();
+
+		try {
+			PerfectHashIndex index = PerfectHashIndex.open(Paths.get(poolDataPath.toString(), "pool.mphf"), poolDataInverse);
+
+			AptaLogger.log(Level.CONFIG, this.getClass(), String.format("Opened perfect hash index over %s aptamers with %s levels (%.2f bits per aptamer) in %s seconds.",
+					index.size(), index.getNumberOfLevels(), index.getBitsPerKey(), (System.currentTimeMillis() - tStart) / 1000.0));
+
+			perfectHashIndexOnDisk = true;
+			perfectHashIndex = index;
+
+		} catch (IOException e) {
+			AptaLogger.log(Level.WARNING, this.getClass(), "Could not open the perfect hash index: " + e.getMessage() + ". Lookups use the bloom filters instead.");
+		}
+	}
+
+	/**
+	 * Closes the perfect hash index, if any. The file remains on disk and is reused
+	 * by <code>setReadOnly()</code> as long as the pool does not change, see 
+	 * <code>deletePerfectHashIndex()</code>.
+	 */
+	private void closePerfectHashIndex(){
+
+		PerfectHashIndex index = perfectHashIndex;
+		if (index != null){
+			perfectHashIndex = null;
+			index.close();
+		}
+
+	}
+
+	/**
+	 * Closes the perfect hash index and removes its file from disk. Must be called before the content 
+	 * of the pool changes, as an index reopened over a pool of the same size would map sequences 
+	 * to wrong identifiers otherwise.
+	 */
+	private synchronized void deletePerfectHashIndex(){
+
+		if (!perfectHashIndexOnDisk){
+			return;
+		}
+
+		closePerfectHashIndex();
+
+		try {
+			Files.deleteIfExists(Paths.get(poolDataPath.toString(), "pool.mphf"));
+		} catch (IOException e) {
+			AptaLogger.log(Level.SEVERE, this.getClass(), "Could not remove the perfect hash index of " + poolDataPath.toString());
+			throw new IllegalStateException("Could not remove the perfect hash index of " + poolDataPath.toString(), e);
+		}
+
+		perfectHashIndexOnDisk = false;
+
+	}
+
+	/**
+	 * Closes the MapDB instances only. The filters and the inverse view
+	 * remain open and are written to disk.
+	 */
+	private void closeMaps(){
+
+		// Iterate over each TreeMap instance of every shard and close it
+		for (PoolShard shard : shards){
+
+			ListIterator<HTreeMap<byte[], Integer>> li = shard.poolData.listIterator(shard.poolData.size());
+
+			// Iterate in reverse
+			while(li.hasPrevious()) {
+
+				li.previous().close();
+
+			}
+		}
+
+		// Flush the filters so they are consistent with the maps
+		for (PoolShard shard : shards){
+
+			shard.bloomFilter.force();
+			for (MappedBloomFilter filter : shard.poolDataBloomFilter){
+				filter.force();
+			}
+
+		}
+
+		poolDataInverse.force();
+
+		// All files are consistent on disk, the copies of the last checkpoint are obsolete
+		for (PoolShard shard : shards){
+			for (Path file : shard.poolDataPaths){
+				try {
+					Files.deleteIfExists(checkpointCopyPath(file));
+				} catch (IOException e) {
+					AptaLogger.log(Level.WARNING, this.getClass(), "Could not delete " + checkpointCopyPath(file).toString());
+				}
+			}
+		}
+	}
+
+
+	/* (non-Javadoc)
+	 * @see lib.aptamer.pool.AptamerPool#clear()
 	 */
 	public void clear(){
-		
+
 		// Make sure all file handles are closed before deleting the files.
 		this.close();
-		
+
 		// Now delete all the content in the project folder
 		AptaLogger.log(Level.CONFIG, this.getClass(), "Deleting all content in " + poolDataPath.toString());
 		try (DirectoryStream<Path> directoryStream = Files.newDirectoryStream(Paths.get(poolDataPath.toString()))) {
-			
+
 			for (Path file : directoryStream) {
-				
+
 				Files.delete(file);
 			}
-			
+
         } catch (IOException ex) {}
-		
-		// Reset the pool data
-		this.poolData.clear();
-		this.poolDataPaths.clear();
-
-		// Reset the bounds data
-		this.boundsData.clear();
-		
-		// Reset the inverse pool data
-		this.poolDataInverse.clear();
-		this.poolDataInverseFilter.clear();
-		
-		// Reset the bloom filters
-		bloomFilter.clear();
-		poolDataBloomFilter.clear();
-		
+
 		// Reset the counts
-		this.poolSize = 0;
-		this.currentTreeMapSize = 0;
-		
+		this.poolSize.set(0);
+
+		// Start over with empty maps, filters, bounds data, and inverse view
+		try {
+			createDatabase();
+		} catch (IOException e) {
+			AptaLogger.log(Level.SEVERE, this.getClass(), "Could not recreate the pool in " + poolDataPath.toString());
+			throw new IllegalStateException("Could not recreate the pool in " + poolDataPath.toString(), e);
+		}
+
+	}
+
+
+	/* (non-Javadoc)
+	 * @see lib.aptamer.datastructures.AptamerPool#truncate(int)
+	 */
+	public void truncate(int size){
+
+		if (size >= poolSize.get()){
+			return;
+		}
+
+		AptaLogger.log(Level.INFO, this.getClass(), "Removing " + (poolSize.get() - size) + " aptamers registered after the pool contained " + size + " aptamers.");
+
+		deletePerfectHashIndex();
+
+		// Remove the sequences from the maps of their shards, the inverse view tells us which ones
+		for (int id=poolDataInverse.getMaxId(); id>size; id--){
+
+			byte[] a = poolDataInverse.get(id);
+			if (a == null){
+				continue;
+			}
+
+			PoolShard shard = shards[shardIndex(a)];
+			for (int x=shard.poolData.size()-1; x>=0; x--){
+				if (shard.poolDataBloomFilter.get(x).contains(a) && shard.poolData.get(x).remove(a) != null){
+					break;
+				}
+			}
+
+		}
+
+		poolDataInverse.truncate(size);
+		poolSize.set(size);
+
+		// The filters still contain the removed sequences, rebuild the affected ones
+		for (PoolShard shard : shards){
+			shard.validateBloomFilters();
+			shard.currentTreeMapSize = shard.poolData.get(shard.poolData.size()-1).size();
+		}
+
 	}
-	
-	
+
+
 	/**
 	 * Sets the maximal number of items per TreeMap. This operation is only valid
-	 * for new data sets and an exception is thrown if this function is called on 
+	 * for new data sets and an exception is thrown if this function is called on
 	 * existing data sets.
 	 */
 	public void setMaxTreeMapCapacity(int maxCapacity){
-		
-		if (poolSize != 0){
+
+		if (poolSize.get() != 0){
 			throw new UnsupportedOperationException("Cannot change the maximal capacity for existing projects.");
 		}
-		
+
 		this.maxTreeMapCapacity = maxCapacity;
 	}
-	
-	
+
+
 	/**
 	 * Set the new number of expected elements to be inserted into the bloom filter.
-	 * Note, this function can only be called before the first aptamer is registered 
+	 * Note, this function can only be called before the first aptamer is registered
 	 * using <code>registerAptamer(String)</code>. Otherwise an exception is thrown
 	 * @param capacity
 	 */
 	public void setBloomFilterCapacity(int capacity) throws UnsupportedOperationException{
-		
+
 		// Make sure no aptamer has been registered
 		if (this.size() != 0)
 		{
 			throw new UnsupportedOperationException("Cannot change bloom filter capacity. The pool is not empty.");
 		}
-		
+
 		this.bloomFilterCapacity = capacity;
-		bloomFilter = new FilterBuilder(bloomFilterCapacity, bloomFilterCollisionProbability).buildBloomFilter();
-		
+		for (PoolShard shard : shards){
+			shard.bloomFilter.delete();
+			shard.bloomFilter = shard.createShardBloomFilter();
+		}
+
 	}
-	
-	
+
+
 	/**
 	 * Returns the current bloom filter capacity
 	 * @return
 	 */
 	public int getBloomFilterCapacity(){
-		
+
 		return this.bloomFilterCapacity;
-	
+
 	}
-	
+
 
 	/**
 	 * Set the new collision probability for the bloom filter.
-	 * Note, this function can only be called before the first aptamer is registered 
+	 * Note, this function can only be called before the first aptamer is registered
 	 * using <code>registerAptamer(String)</code>. Otherwise an exception is thrown
 	 * @param capacity
 	 */
 	public void setBloomFilterCollisionProbability(double prob) throws UnsupportedOperationException{
-		
+
 		// Make sure no aptamer has been registered
 		if (this.size() != 0)
 		{
 			throw new UnsupportedOperationException("Cannot change bloom filter capacity. The pool is not empty.");
 		}
-		
+
 		this.bloomFilterCollisionProbability = prob;
-		bloomFilter = new FilterBuilder(bloomFilterCapacity, bloomFilterCollisionProbability).buildBloomFilter();
-		
+		for (PoolShard shard : shards){
+			shard.bloomFilter.delete();
+			shard.bloomFilter = shard.createShardBloomFilter();
+		}
+
 	}
-	
-	
+
+
 	/**
 	 * Returns the current bloom filter capacity
 	 * @return
 	 */
 	public double getBloomFilterCollisionProbability(){
-		
+
 		return this.bloomFilterCollisionProbability;
-	
-	}	
-	
-	 @Override
+
+	}
+
+
+	/**
+	 * Returns the number of shards the sequences of this pool are partitioned into
+	 * @return
+	 */
+	public int getNumberOfShards(){
+
+		return this.numberOfShards;
+
+	}
+
+	@Override
     public void setReadOnly(){
-    	
+
     	// close all the file handles
-    	close();
-    	
-    	// clear references
-    	poolData.clear();
-    	
-    	// reopen as read only
-		for (Path file : poolDataPaths) {
-            
-			// Open and read the TreeMap
-			if (Files.isRegularFile(file)){
-				
-				DB db = DBMaker
-					    .fileDB(file.toFile())
-					    .fileMmapEnableIfSupported() // Only enable mmap on supported platforms
-					    .concurrencyScale(8) // TODO: Number of threads make this a parameter?
-					    .executorEnable()
-					    .readOnly()
-					    .make();
+    	closePerfectHashIndex();
+    	closeMaps();
 
-				HTreeMap<byte[], Integer> dbmap = db.hashMap("map")
-						.keySerializer(new SerializerCompressionWrapper<byte[]>(Serializer.BYTE_ARRAY))
-						.valueSerializer(Serializer.INTEGER)
-						.open();
-				
-				poolData.add(dbmap);
-				
-				AptaLogger.log(Level.CONFIG, this.getClass(), "Reopened as read only file " + file.toString() );
-			}
-            
-        }
-		
-		// same for the bounds data
-		DB db = DBMaker
-			    .fileDB(Paths.get(poolDataPath.toString(), "bounds" + ".mapdb").toFile())
-			    .fileMmapEnableIfSupported() // Only enable mmap on supported platforms
-			    .concurrencyScale(8) // TODO: Number of threads make this a parameter?
-			    .executorEnable()
-			    .readOnly()
-			    .make();
+    	// reopen as read only
+    	reopenMaps(true);
 
-		boundsData = db.hashMap("map")
-				.keySerializer(Serializer.INTEGER)
-				.valueSerializer(Serializer.INT_ARRAY)
-				.open();
-		
-		
-		AptaLogger.log(Level.CONFIG, this.getClass(), "Reopened as read only file " + Paths.get(poolDataPath.toString(), "bounds" + ".mapdb").toString() );
-		
-		// do the same for the inverse view
-		DB db_inverse = DBMaker
-			    .fileDB(Paths.get(poolDataPath.toString(), "data_inverse" + ".mapdb").toFile())
-			    .fileMmapEnableIfSupported() // Only enable mmap on supported platforms
-			    .concurrencyScale(8) // TODO: Number of threads make this a parameter?
-			    .executorEnable()
-			    .readOnly()
-			    .make();
+    	// The content is frozen now, so every sequence can be given its own slot
+    	openPerfectHashIndex();
+    }
 
-		poolDataInverse = db_inverse.treeMap("map")
-				.valuesOutsideNodesEnable()
-				.keySerializer(Serializer.INTEGER)
-				.valueSerializer(new SerializerCompressionWrapper<byte[]>(Serializer.BYTE_ARRAY))
-		        .open();
-		
-		AptaLogger.log(Level.CONFIG, this.getClass(), "Reopened as read only file " + Paths.get(poolDataPath.toString(), "data_inverse" + ".mapdb").toString() );
-    }	
-	
 	@Override
     public void setReadWrite(){
-    	
+
     	// close all the file handles
-    	close();
-    	
-    	// clear references
-    	poolData.clear();
-    	
+    	closePerfectHashIndex();
+    	closeMaps();
+
     	// reopen as read/write
-		for (Path file : poolDataPaths) {
-            
-			// Open and read the TreeMap
-			if (Files.isRegularFile(file)){
-				
-				DB db = DBMaker
-					    .fileDB(file.toFile())
-					    .fileMmapEnableIfSupported() // Only enable mmap on supported platforms
-					    .concurrencyScale(8) // TODO: Number of threads make this a parameter?
-					    .executorEnable()
-					    .make();
+    	reopenMaps(false);
+    }
 
-				HTreeMap<byte[], Integer> dbmap = db.hashMap("map")
-						.keySerializer(new SerializerCompressionWrapper<byte[]>(Serializer.BYTE_ARRAY))
-						.valueSerializer(Serializer.INTEGER)
-						.open();
-				
-				poolData.add(dbmap);
-				
-				AptaLogger.log(Level.CONFIG, this.getClass(), "Reopened as read/write file " + file.toString() );
+	/* (non-Javadoc)
+	 * @see lib.aptamer.datastructures.AptamerPool#checkpoint()
+	 */
+	@Override
+	public void checkpoint(){
+
+		// Closing the maps writes them to disk in a consistent state
+		closeMaps();
+
+		try {
+
+			// New aptamers keep going to the current file of each shard. Its copy replaces it should 
+			// the application not be shut down properly, all other files are not modified anymore.
+			for (PoolShard shard : shards){
+				if (!shard.sealed && shard.currentTreeMapSize < maxTreeMapCapacity){
+					Path file = shard.poolDataPaths.get(shard.poolDataPaths.size()-1);
+					Files.copy(file, checkpointCopyPath(file), StandardCopyOption.REPLACE_EXISTING);
+				}
 			}
-            
-        }
-		
-		// same for the bounds data
-		DB db = DBMaker
-			    .fileDB(Paths.get(poolDataPath.toString(), "bounds" + ".mapdb").toFile())
-			    .fileMmapEnableIfSupported() // Only enable mmap on supported platforms
-			    .concurrencyScale(8) // TODO: Number of threads make this a parameter?
-			    .executorEnable()
-			    .make();
 
-		boundsData = db.hashMap("map")
-				.keySerializer(Serializer.INTEGER)
-				.valueSerializer(Serializer.INT_ARRAY)
-				.open();
-		
-		AptaLogger.log(Level.CONFIG, this.getClass(), "Reopened as read/write file " + Paths.get(poolDataPath.toString(), "bounds" + ".mapdb").toString() );
-		
-		// and the inverse view
-		DB db_inverse = DBMaker
-			    .fileDB(Paths.get(poolDataPath.toString(), "data_inverse" + ".mapdb").toFile())
-			    .fileMmapEnableIfSupported() // Only enable mmap on supported platforms
-			    .concurrencyScale(8) // TODO: Number of threads make this a parameter?
-			    .executorEnable()
-			    .make();
+		} catch (IOException e) {
+			throw new IllegalStateException("Could not copy the pool files for the checkpoint", e);
+		} finally {
+			reopenMaps(false);
+		}
+
+		AptaLogger.log(Level.CONFIG, this.getClass(), "Checkpoint of " + poolSize.get() + " aptamers written to disk.");
+	}
+
+	/**
+	 * Reopens the files of all shards after a call to <code>closeMaps()</code>
+	 * @param readOnly whether to open them in read only mode
+	 */
+	private void reopenMaps(boolean readOnly){
+
+    	for (PoolShard shard : shards){
+
+	    	// clear references
+	    	shard.poolData.clear();
+
+			for (Path file : shard.poolDataPaths) {
+
+				// Open and read the TreeMap
+				if (Files.isRegularFile(file)){
+
+					DBMaker.Maker maker = DBMaker
+						    .fileDB(file.toFile())
+						    .fileMmapEnableIfSupported() // Only enable mmap on supported platforms
+						    .concurrencyScale(8) // TODO: Number of threads make this a parameter?
+						    .executorEnable();
+
+					if (readOnly){
+						maker = maker.readOnly();
+					}
+
+					DB db = maker.make();
+
+					HTreeMap<byte[], Integer> dbmap = db.hashMap("map")
+							.keySerializer(CodecSerializer.open(db, file, Serializer.BYTE_ARRAY, "NoneCodec"))
+							.valueSerializer(Serializer.INTEGER)
+							.open();
+
+					shard.poolData.add(dbmap);
+
+					AptaLogger.log(Level.CONFIG, this.getClass(), "Reopened as " + (readOnly ? "read only" : "read/write") + " file " + file.toString() );
+				}
+
+	        }
+    	}
+	}
+
+
+	/**
+	 * @author Jan Hoinka
+	 * A hash partition of the pool. Each shard owns its TreeMaps, the corresponding
+	 * bloom filters and file locations. Its monitor guards all modifications.
+	 *
+	 * The lists are copy-on-write so that lookups can iterate over them while
+	 * another thread appends a new TreeMap.
+	 */
+	private class PoolShard {
+
+		/**
+		 * The position of this shard in <code>shards</code>
+		 */
+		private int index;
+
+		/**
+		 * The bloom filter is used in order to provide atomic and space efficient checks on
+		 * whether a sequence is already contained in this shard.
+		 */
+		private MappedBloomFilter bloomFilter = null;
+
+		/**
+		 * List of bloom filters, one per entry in <code>poolData</code>. This will be used to speed up
+		 * retrieval time of sequences.
+		 */
+		private List<MappedBloomFilter> poolDataBloomFilter = new CopyOnWriteArrayList<MappedBloomFilter>();
+
+		/**
+		 * Collection of HashMaps backed by MapDB which stores aptamer data on disk for
+		 * memory efficiency.
+		 */
+		private List<HTreeMap<byte[], Integer>> poolData = new CopyOnWriteArrayList<HTreeMap<byte[], Integer>>();
+
+		/**
+		 * Stores the file locations of the mapdb instance in <code>poolData</code>.
+		 */
+		private List<Path> poolDataPaths = new CopyOnWriteArrayList<Path>();
+
+		/**
+		 * The number of elements of the tree map that is currently been filled.
+		 * We need to keep this record separately as the .size() function of dbmap
+		 * objects is noticeably slow.
+		 */
+		private int currentTreeMapSize = 0;
+
+		/**
+		 * If true, the current TreeMap belongs to an earlier session and a new
+		 * one is created before the next aptamer is inserted
+		 */
+		private boolean sealed = false;
+
+		public PoolShard(int index){
+
+			this.index = index;
+			this.bloomFilter = createShardBloomFilter();
+
+		}
+
+		/**
+		 * Opens the persisted bloom filter of this shard. The global capacity 
+		 * is distributed evenly among the shards.
+		 */
+		private MappedBloomFilter createShardBloomFilter(){
+
+			String fileName = (numberOfShards == 1 ? "pool" : "shard" + String.format("%02d", index)) + ".bloom";
+
+			try {
+				return new MappedBloomFilter(Paths.get(poolDataPath.toString(), fileName), Math.max(1, bloomFilterCapacity / numberOfShards), bloomFilterCollisionProbability);
+			} catch (IOException e) {
+				throw new IllegalStateException("Could not open bloom filter " + fileName, e);
+			}
+
+		}
+
+		/**
+		 * Compares the item counts of the persisted bloom filters with the sizes of the 
+		 * corresponding maps and rebuilds those filters which do not match, e.g. 
+		 * because the application was not shut down properly.
+		 */
+		private void validateBloomFilters(){
+
+			long shardSize = 0;
+			for (HTreeMap<byte[], Integer> dbmap : poolData){
+				shardSize += dbmap.size();
+			}
+
+			boolean shardValid = bloomFilter.getCount() == shardSize;
+			if (!shardValid){
+				AptaLogger.log(Level.INFO, MapDBAptamerPool.class, "Rebuilding bloom filter " + bloomFilter.getPath().getFileName());
+				bloomFilter.clear();
+			}
+
+			for (int x=0; x<poolData.size(); x++){
+
+				MappedBloomFilter localBloomFilter = poolDataBloomFilter.get(x);
+				boolean localValid = localBloomFilter.getCount() == poolData.get(x).size();
+
+				if (!localValid){
+					AptaLogger.log(Level.INFO, MapDBAptamerPool.class, "Rebuilding bloom filter " + localBloomFilter.getPath().getFileName());
+					localBloomFilter.clear();
+				}
+
+				// Only touch the data if one of the filters is out of date
+				if (!localValid || !shardValid){
+
+					Iterator<byte[]> dbmapIterator = poolData.get(x).getKeys().iterator();
+					while (dbmapIterator.hasNext()){
+						byte[] current_element = dbmapIterator.next();
+						if (!shardValid){
+							bloomFilter.add(current_element);
+						}
+						if (!localValid){
+							localBloomFilter.add(current_element);
+						}
+					}
+				}
+			}
+		}
+
+		/**
+		 * Creates a new, empty, TreeMap file for this shard and makes it the current one
+		 */
+		private void addTreeMap(){
+
+			String fileName = (numberOfShards == 1 ? "" : "shard" + String.format("%02d", index) + "_") + "data" + String.format("%04d", poolData.size()) + ".mapdb";
+			Path file = Paths.get(poolDataPath.toString(), fileName);
+
+			DB db = DBMaker
+				    .fileDB(file.toFile())
+				    .fileMmapEnableIfSupported() // Only enable mmap on supported platforms
+				    .concurrencyScale(8) // TODO: Number of threads make this a parameter?
+				    .executorEnable()
+				    .make();
+
+			HTreeMap<byte[], Integer> dbmap = db.hashMap("map")
+					.keySerializer(CodecSerializer.create(db, file, Serializer.BYTE_ARRAY, codec))
+					.valueSerializer(Serializer.INTEGER)
+					.counterEnable() // size() is used to validate the persisted bloom filters
+			        .create();
+
+			MappedBloomFilter localBloomFilter = null;
+			try {
+				localBloomFilter = new MappedBloomFilter(bloomFilterPath(file), Math.min(maxTreeMapCapacity, Math.max(1, bloomFilterCapacity / numberOfShards)), bloomFilterCollisionProbability);
+			} catch (IOException e) {
+				throw new IllegalStateException("Could not create bloom filter for " + file.toString(), e);
+			}
+			localBloomFilter.clear();
+
+			poolDataBloomFilter.add(localBloomFilter);
+			poolDataPaths.add(file);
+			poolData.add(dbmap);
+
+			currentTreeMapSize = 0;
+			sealed = false;
+
+			AptaLogger.log(Level.CONFIG, this.getClass(), "Created new file " + file.toString());
+
+		}
+
+		/**
+		 * Registers the entries <code>order[from]</code> to <code>order[to-1]</code> of <code>batch</code> 
+		 * with this shard. New sequences are collected and written to the TreeMaps with one 
+		 * <code>putAll</code> per file.
+		 * @param batch the aptamers to register
+		 * @param order indices into <code>batch</code> 
+		 * @param from first position in <code>order</code> (inclusive)
+		 * @param to last position in <code>order</code> (exclusive)
+		 * @param ids receives the identifiers at the positions given by <code>order</code>
+		 */
+		private synchronized void registerAptamers(AptamerBatch batch, int[] order, int from, int to, int[] ids){
+
+			// Sequences new to this shard, keyed by content in order to catch duplicates within the batch
+			Map<ByteBuffer, Integer> fresh = new HashMap<ByteBuffer, Integer>();
+
+			// Pending writes
+			Map<byte[], Integer> pendingData = new HashMap<byte[], Integer>();
+
+			for (int y=from; y<to; y++){
+
+				int x = order[y];
+				byte[] a = batch.getSequence(x);
+
+				// Check if the item is already registered, either on disk or earlier in this batch
+				int identifier = getIdentifier(a);
+				if (identifier == -1){
+					Integer batch_identifier = fresh.get(ByteBuffer.wrap(a));
+					if (batch_identifier != null){
+						identifier = batch_identifier;
+					}
+				}
+
+				if (identifier != -1){
+					ids[x] = identifier;
+					continue;
+				}
+
+				// Check that the current map is not at max capacity and create a new map if that is the case
+				if (currentTreeMapSize >= maxTreeMapCapacity || sealed){
+
+					poolData.get(poolData.size()-1).putAll(pendingData);
+					pendingData.clear();
+
+					AptaLogger.log(Level.CONFIG, MapDBAptamerPool.class,
+							"Current Map of shard " + index + " is at max capacity creating new file.\n" +
+							"Total number of aptamers: " + poolSize.get()
+							);
+
+					addTreeMap();
+				}
+
+				identifier = poolSize.incrementAndGet();
+
+				pendingData.put(a, identifier);
+				currentTreeMapSize++;
+				bloomFilter.add(a);
+				poolDataBloomFilter.get(poolData.size()-1).add(a);
+				fresh.put(ByteBuffer.wrap(a), identifier);
+
+				poolDataInverse.put(identifier, a, batch.getRandomizedRegionStart(x), batch.getRandomizedRegionEnd(x));
+
+				ids[x] = identifier;
+			}
+
+			// Write everything to disk
+			if (!pendingData.isEmpty()){
+
+				poolData.get(poolData.size()-1).putAll(pendingData);
+
+			}
+		}
+
+		/**
+		 * Looks up the identifier of <code>a</code> in this shard
+		 * @param a the aptamer sequence
+		 * @return the identifier or -1 if <code>a</code> is not part of this shard
+		 */
+		private int getIdentifier(byte[] a){
+
+			// Check for existence using bloom filter.
+			if (!bloomFilter.contains(a)){
+				return -1; // This result is always accurate (no false negatives)
+			}
+
+			Integer identifier = null;
+
+			// Iterate over all treeMaps and bloomFilters. Both lists grow together,
+			// so we snapshot their size first.
+			int size = Math.min(poolData.size(), poolDataBloomFilter.size());
+			ListIterator<HTreeMap<byte[], Integer>> lim = poolData.listIterator(size);
+			ListIterator<MappedBloomFilter> lib = poolDataBloomFilter.listIterator(size);
+
+			// Iterate in reverse
+			while(lim.hasPrevious() && identifier == null) {
+
+				// Prevent expensive disk lookups by using the bloom filters...
+				if(! lib.previous().contains(a) ){
+					lim.previous();
+					continue;
+				}
+
+				// ... and only look it up when we have to
+				identifier = lim.previous().get(a); //note, in case of a false positive, this returns null
+
+			}
+
+			if (identifier == null){identifier = -1;}
+
+			return identifier;
+		}
+
+	}
 
-		poolDataInverse = db_inverse.treeMap("map")
-				.valuesOutsideNodesEnable()
-				.keySerializer(Serializer.INTEGER)
-				.valueSerializer(new SerializerCompressionWrapper<byte[]>(Serializer.BYTE_ARRAY))
-		        .open();
-		
-		AptaLogger.log(Level.CONFIG, this.getClass(), "Reopened as read only file " + Paths.get(poolDataPath.toString(), "data_inverse" + ".mapdb").toString() );
-    }		 
 
 	/**
 	 * @author Jan Hoinka
@@ -797,26 +1357,36 @@ public class MapDBAptamerPool implements AptamerPool {
 
 		@Override
 	    public Iterator<Entry<byte[], Integer>> iterator() {
+
+			// Flatten the TreeMaps of all shards
+			final List<HTreeMap<byte[], Integer>> poolData = new ArrayList<HTreeMap<byte[], Integer>>();
+			for (PoolShard shard : shards){
+				poolData.addAll(shard.poolData);
+			}
+
 	        Iterator<Map.Entry<byte[], Integer>> it = new Iterator<Map.Entry<byte[], Integer>>() {
 
 	            private int currentTreeMapIndex = 0;
 	            private Iterator<Entry<byte[], Integer>> currentTreeMapIterator= poolData.get(currentTreeMapIndex).getEntries().iterator();
-	            
+
 	            @Override
 	            public boolean hasNext() {
-	                return currentTreeMapIterator.hasNext() || currentTreeMapIndex < poolData.size()-1;
+
+	            	// Skip over empty maps
+	            	while (!currentTreeMapIterator.hasNext() && currentTreeMapIndex < poolData.size()-1){
+	            		currentTreeMapIndex++;
+	            		currentTreeMapIterator= poolData.get(currentTreeMapIndex).getEntries().iterator();
+	            	}
+
+	                return currentTreeMapIterator.hasNext();
 	            }
 
 	            @Override
 	            public Entry<byte[], Integer> next() {
-	            	
+
 	            	// Move on to the next map if all items from the previous have been iterated over
-	                if (!currentTreeMapIterator.hasNext() && currentTreeMapIndex < poolData.size()-1)
-	                {
-	                	currentTreeMapIndex++;
-	                	currentTreeMapIterator= poolData.get(currentTreeMapIndex).getEntries().iterator();
-	                }
-	                	
+	                hasNext();
+
 	                return currentTreeMapIterator.next();
 	            }
 
@@ -828,7 +1398,7 @@ public class MapDBAptamerPool implements AptamerPool {
 	        return it;
 	    }
 	}
-	
+
 	/**
 	 * @author Jan Hoinka
 	 * Make use of internal classes so we can provide iterators for id.
@@ -837,36 +1407,87 @@ public class MapDBAptamerPool implements AptamerPool {
 
 		@Override
 	    public Iterator<Integer> iterator() {
-	        
-	        return poolDataInverse.keyIterator();
-	        
+
+	        return new Iterator<Integer>() {
+
+	        	// Ids are dense, hence we can simply walk over the range of the inverse view
+	        	private int currentId = 0;
+	        	private int maxId = poolDataInverse.getMaxId();
+
+	            @Override
+	            public boolean hasNext() {
+
+	            	while (currentId < maxId && !poolDataInverse.contains(currentId+1)){
+	            		currentId++;
+	            	}
+
+	                return currentId < maxId;
+	            }
+
+	            @Override
+	            public Integer next() {
+
+	            	if (!hasNext()){
+	            		throw new NoSuchElementException();
+	            	}
+
+	                return ++currentId;
+	            }
+
+	            @Override
+	            public void remove() {
+	                throw new UnsupportedOperationException();
+	            }
+	        };
+
 	    }
 	}
-	
+
 	/**
 	 * @author Jan Hoinka
-	 * Internal class implementing the iterator of the inverse view of the pool content, 
+	 * Internal class implementing the iterator of the inverse view of the pool content,
 	 * i.e id->aptamer
 	 */
 	private class InverseViewPoolIterator implements Iterable<Entry<Integer,byte[]>> {
-		
+
 		@Override
 		public Iterator<Entry<Integer,byte[]>> iterator(){
-	    	return poolDataInverse.getEntries().iterator();
+
+			final Iterator<Integer> ids = new IdIterator().iterator();
+
+			return new Iterator<Entry<Integer,byte[]>>() {
+
+				@Override
+				public boolean hasNext() {
+					return ids.hasNext();
+				}
+
+				@Override
+				public Entry<Integer, byte[]> next() {
+
+					int id = ids.next();
+					return new AbstractMap.SimpleImmutableEntry<Integer, byte[]>(id, poolDataInverse.get(id));
+				}
+
+				@Override
+				public void remove() {
+					throw new UnsupportedOperationException();
+				}
+			};
 	    }
-		
+
 	}
 
-        
+
     /**
-     * Provide public access to the iterator, since <code>PoolCollection</code> implements 
+     * Provide public access to the iterator, since <code>PoolCollection</code> implements
      * <code>Iterable</code>.
      * @return Instance of <code>PoolCollection</code>.
      */
     public Iterable<Entry<byte[], Integer>> iterator(){
     	return new PoolIterator();
     }
-    
+
     /**
      * Provide public access to the iterator of the inverse view of the pool.
      * @return Instance of <code>PoolCollectionInverse</code>
@@ -877,9 +1498,63 @@ public class MapDBAptamerPool implements AptamerPool {
 
 	@Override
 	public Iterable<Integer> id_iterator() {
-		
+
 		return new IdIterator();
-		
+
+	}
+
+	/* (non-Javadoc)
+	 * @see lib.aptamer.datastructures.AptamerPool#spliterator()
+	 */
+	@Override
+	public Spliterator<Entry<byte[], Integer>> spliterator() {
+
+		// Every TreeMap of every shard can be traversed independently
+		List<Spliterator<Entry<byte[], Integer>>> parts = new ArrayList<Spliterator<Entry<byte[], Integer>>>();
+		for (PoolShard shard : shards){
+			for (HTreeMap<byte[], Integer> dbmap : shard.poolData){
+				parts.add(Spliterators.spliteratorUnknownSize(dbmap.getEntries().iterator(), Spliterator.NONNULL));
+			}
+		}
+
+		return new CompositeSpliterator<Entry<byte[], Integer>>(parts);
+
+	}
+
+	/* (non-Javadoc)
+	 * @see lib.aptamer.datastructures.AptamerPool#inverse_view_spliterator()
+	 */
+	@Override
+	public Spliterator<Entry<Integer, byte[]>> inverse_view_spliterator() {
+
+		// The ids are dense, so the inverse view can be split by id range
+		return new InverseViewSpliterator(1, poolDataInverse.getMaxId()+1);
+
+	}
+
+	/**
+	 * @author Jan Hoinka
+	 * Spliterator over a range of ids of the inverse view
+	 */
+	private class InverseViewSpliterator extends IndexRangeSpliterator<Entry<Integer, byte[]>> {
+
+		public InverseViewSpliterator(int from, int to) {
+			super(from, to);
+		}
+
+		@Override
+		protected Entry<Integer, byte[]> get(int id) {
+
+			byte[] a = poolDataInverse.get(id);
+			return a == null ? null : new AbstractMap.SimpleImmutableEntry<Integer, byte[]>(id, a);
+
+		}
+
+		@Override
+		protected IndexRangeSpliterator<Entry<Integer, byte[]>> create(int from, int to) {
+			return new InverseViewSpliterator(from, to);
+		}
+
 	}
 
 
@@ -3,6 +3,10 @@
  */
 package lib.aptamer.datastructures;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
@@ -16,6 +20,10 @@ import java.util.List;
 import java.util.ListIterator;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -25,11 +33,9 @@ import org.mapdb.DBMaker;
 import org.mapdb.Serializer;
 import org.mapdb.serializer.SerializerCompressionWrapper;
 
-import orestes.bloomfilter.BloomFilter;
-import orestes.bloomfilter.CountingBloomFilter;
-import orestes.bloomfilter.FilterBuilder;
 import utilities.AptaLogger;
 import utilities.Configuration;
+import utilities.MemoryBudget;
 
 /**
  * @author Jan Hoinka
@@ -44,6 +50,11 @@ public class MapDBSelectionCycle implements SelectionCycle{
 	 */
 	private static final long serialVersionUID = 5440879993287731191L;
 
+	/**
+	 * Version of the layout of the metadata file
+	 */
+	private static final int META_VERSION = 1;
+
 	
 	/**
 	 * The name of this selection cycle as defined in the configuration file
@@ -107,9 +118,23 @@ public class MapDBSelectionCycle implements SelectionCycle{
 	
 	
 	/**
-	 * Bloom Filter for fast member lookup
+	 * The number of lock stripes used to guard concurrent updates of the counts.
+	 * Aptamer ids are assigned to stripes via <code>id % numberOfStripes</code>.
+	 */
+	private int numberOfStripes = Math.max(1, Configuration.getParameters().getInt("MapDBSelectionCycle.concurrentShards"));
+	
+	
+	/**
+	 * One monitor per stripe. Updates to ids of different stripes can proceed in parallel.
+	 */
+	private transient Object[] stripeLocks = null;
+	
+	
+	/**
+	 * Bloom Filters for fast member lookup, one per stripe. They are persisted 
+	 * next to the cycle data so that they do not need to be rebuilt on reopen. 
 	 */
-	private transient BloomFilter<Integer> poolContent = new FilterBuilder(Configuration.getParameters().getInt("MapDBAptamerPool.bloomFilterCapacity"), Configuration.getParameters().getDouble("MapDBSelectionCycle.bloomFilterCollisionProbability")).buildBloomFilter();
+	private transient List<MappedBloomFilter> poolContent = null;
 	
 	
 	/**
@@ -118,17 +143,22 @@ public class MapDBSelectionCycle implements SelectionCycle{
 	 */
 	private transient BTreeMap<Integer,Integer> poolContentCounts = null;
 	
+	/**
+	 * The store backing <code>poolContentCounts</code>
+	 */
+	private transient DB db = null;
+	
 	
 	/**
 	 * Counts the total number of aptamer molecules belonging to this selection cycle
 	 */
-	private int size = 0;
+	private AtomicInteger size = new AtomicInteger(0);
 	
 	
 	/**
 	 * Counts the total number of unique aptamers belonging to this selection cycle
 	 */
-	private int unique_size = 0;
+	private AtomicInteger unique_size = new AtomicInteger(0);
 	
 	public MapDBSelectionCycle(String name, int round, boolean isControlSelection, boolean isCounterSelection, boolean newdb) throws IOException{
 		
@@ -143,20 +173,23 @@ public class MapDBSelectionCycle implements SelectionCycle{
 				
 		// Check if the data path exists, and if not create it
 		Path poolDataPath = Files.createDirectories(Paths.get(projectPath.toString(), "cycledata"));
+		
+		// Set up the lock stripes and their bloom filters
+		initializeStripes();
 
 		// Determine the unique file name associated with this cycle
 		String cycleFileName = round + "_" + name + ".mapdb";
 
 		// Create map or read from file
-		DB db = DBMaker
+		db = DBMaker
 			    .fileDB(Paths.get(poolDataPath.toString(), cycleFileName).toFile())
 			    .fileMmapEnableIfSupported() // Only enable mmap on supported platforms
 			    .concurrencyScale(8) // TODO: Number of threads make this a parameter?
 			    .executorEnable()
 			    .make();
 		
-		// Creating a new database
-		if (newdb)
+		// Creating a new database, also for cycles added to an existing project
+		if (newdb || !db.exists("map"))
 		{
 			AptaLogger.log(Level.CONFIG, this.getClass(), "Creating new file '" + Paths.get(poolDataPath.toString(), cycleFileName).toFile() + "' for selection cycle " + name + ".");
 	
@@ -165,6 +198,10 @@ public class MapDBSelectionCycle implements SelectionCycle{
 					.keySerializer(Serializer.INTEGER)
 					.valueSerializer(Serializer.INTEGER)
 			        .create();
+			
+			for (MappedBloomFilter filter : poolContent){
+				filter.clear();
+			}
 		}
 		else { // we need to read from file and update class members
 			AptaLogger.log(Level.CONFIG, this.getClass(), "Reading from file '" + Paths.get(poolDataPath.toString(), cycleFileName).toFile() + "' for selection cycle " + name + ".");
@@ -175,76 +212,305 @@ public class MapDBSelectionCycle implements SelectionCycle{
 					.valueSerializer(Serializer.INTEGER)
 			        .open();
 			
-			// update class members
-			Iterator<Entry<Integer, Integer>> entryit = poolContentCounts.entryIterator();
-			while ( entryit.hasNext() ){
-				Entry<Integer, Integer> entry = entryit.next();
+			// update class members from the metadata written on close if it is consistent with the filters
+			if (!readMeta()){
+				
+				AptaLogger.log(Level.INFO, this.getClass(), "Rebuilding bloom filters for selection cycle " + name + ".");
+				rebuildStripes();
 				
-				poolContent.add(entry.getKey());
-				size += entry.getValue();
-				unique_size++;
 			}
 		}
 	}
 	
+	/**
+	 * Creates the monitors and opens the persisted bloom filters of all stripes. 
+	 * The initial capacity of the filters is distributed evenly among the stripes.
+	 */
+	private void initializeStripes() throws IOException{
+		
+		int capacity = (int) MemoryBudget.getBloomFilterCapacity(Configuration.getParameters().getInt("MapDBAptamerPool.bloomFilterCapacity"));
+		
+		stripeLocks = new Object[numberOfStripes];
+		poolContent = new ArrayList<MappedBloomFilter>(numberOfStripes);
+		
+		for (int x=0; x<numberOfStripes; x++){
+			stripeLocks[x] = new Object();
+			poolContent.add(new MappedBloomFilter(
+					Paths.get(getCycleDataPath().toString(), round + "_" + name + "_" + String.format("%02d", x) + ".bloom"), 
+					Math.max(1, capacity / numberOfStripes), 
+					Configuration.getParameters().getDouble("MapDBSelectionCycle.bloomFilterCollisionProbability")));
+		}
+		
+	}
+	
+	/**
+	 * Recomputes the bloom filters and the sizes of this cycle from the data on disk 
+	 */
+	private void rebuildStripes(){
+		
+		for (MappedBloomFilter filter : poolContent){
+			filter.clear();
+		}
+		
+		size.set(0);
+		unique_size.set(0);
+		
+		Iterator<Entry<Integer, Integer>> entryit = poolContentCounts.entryIterator();
+		while ( entryit.hasNext() ){
+			Entry<Integer, Integer> entry = entryit.next();
+			
+			poolContent.get(stripe(entry.getKey())).add(entry.getKey());
+			size.addAndGet(entry.getValue());
+			unique_size.incrementAndGet();
+		}
+		
+	}
+	
+	/**
+	 * @return the sum of the item counts of all stripe filters
+	 */
+	private long getFilterCount(){
+		
+		long count = 0;
+		for (MappedBloomFilter filter : poolContent){
+			count += filter.getCount();
+		}
+		
+		return count;
+	}
+	
+	/**
+	 * @return the folder containing the data of all selection cycles
+	 */
+	private Path getCycleDataPath(){
+		
+		Path projectPath = Paths.get(Configuration.getParameters().getString("Experiment.projectPath"));
+		return Paths.get(projectPath.toString(), "cycledata");
+		
+	}
+	
+	/**
+	 * @return the location of the metadata of this cycle
+	 */
+	private Path getMetaPath(){
+		return Paths.get(getCycleDataPath().toString(), round + "_" + name + ".meta");
+	}
+	
+	/**
+	 * Reads the sizes of this cycle as stored by <code>writeMeta</code>. The metadata is only accepted
+	 * if it agrees with the persisted bloom filters. It is removed after reading, since it becomes 
+	 * stale with the next modification of the cycle.
+	 * @return true if the metadata was present and valid
+	 */
+	private boolean readMeta(){
+		
+		Path meta = getMetaPath();
+		if (!Files.exists(meta)){
+			return false;
+		}
+		
+		boolean valid = false;
+		
+		try (DataInputStream in = new DataInputStream(new FileInputStream(meta.toFile()))){
+			
+			if (in.readInt() == META_VERSION){
+				
+				int meta_size = in.readInt();
+				int meta_unique_size = in.readInt();
+				
+				if (meta_unique_size == getFilterCount()){
+					size.set(meta_size);
+					unique_size.set(meta_unique_size);
+					valid = true;
+				}
+			}
+			
+		} catch (IOException e) {
+			AptaLogger.log(Level.WARNING, this.getClass(), "Could not read " + meta.toString());
+		}
+		
+		try {
+			Files.deleteIfExists(meta);
+		} catch (IOException e) {
+			AptaLogger.log(Level.WARNING, this.getClass(), "Could not delete " + meta.toString());
+		}
+		
+		return valid;
+	}
+	
+	/**
+	 * Persists the sizes of this cycle and flushes the bloom filters so that
+	 * they can be reused when the cycle is opened the next time
+	 */
+	private void writeMeta(){
+		
+		for (MappedBloomFilter filter : poolContent){
+			filter.force();
+		}
+		
+		try (DataOutputStream out = new DataOutputStream(new FileOutputStream(getMetaPath().toFile()))){
+			
+			out.writeInt(META_VERSION);
+			out.writeInt(size.get());
+			out.writeInt(unique_size.get());
+			
+		} catch (IOException e) {
+			AptaLogger.log(Level.WARNING, this.getClass(), "Could not write " + getMetaPath().toString());
+		}
+	}
+	
+	/**
+	 * @param id the aptamer id
+	 * @return the stripe <code>id</code> belongs to
+	 */
+	private int stripe(int id){
+		return (id & 0x7FFFFFFF) % numberOfStripes;
+	}
+	
 	@Override
 	public String toString(){
 		
-		return this.name + " (" + this.size + ")";
+		return this.name + " (" + this.size.get() + ")";
 		
 	}
 
 
-	public synchronized int addToSelectionCycle(byte[] a, int rr_start, int rr_end, int count) {
+	public int addToSelectionCycle(byte[] a, int rr_start, int rr_end, int count) {
 		
 		// Check if the aptamer is already present in the pool and add it if not
 		int id_a = Configuration.getExperiment().getAptamerPool().registerAptamer(a, rr_start, rr_end);
 		
+		// skip aptamers the pool could not store
+		if (id_a < 1){
+			return id_a;
+		}
+		
 		// Update the pool size
-		size+=count;
+		size.addAndGet(count);
+		
+		// Only updates to the same stripe need to be serialized
+		int stripe = stripe(id_a);
+		MappedBloomFilter stripeContent = poolContent.get(stripe);
+		
+		synchronized(stripeLocks[stripe]){
+		
+			// Fast membership checking due to bloom filter
+			if (! stripeContent.contains(id_a)){ // this is always accurate, no false negatives
+				
+				unique_size.incrementAndGet();
+				poolContentCounts.put(id_a, count);
+				stripeContent.add(id_a);
 				
-		// Fast membership checking due to bloom filter
-		if (! poolContent.contains(id_a)){ // this is always accurate, no false negatives
-			
-			unique_size++;
-			poolContentCounts.put(id_a, count);
-			poolContent.add(id_a);
-			
-		}
-		else{ // we need to update the count...
-			
-			Integer current_count = poolContentCounts.get(id_a);
-			
-			if (current_count == null){ // catch false positives
-				current_count = 0;
-				poolContent.add(id_a);
 			}
-			poolContentCounts.put(id_a, current_count+count);
-			
+			else{ // we need to update the count...
+				
+				Integer current_count = poolContentCounts.get(id_a);
+				
+				if (current_count == null){ // catch false positives
+					current_count = 0;
+					unique_size.incrementAndGet();
+					stripeContent.add(id_a);
+				}
+				poolContentCounts.put(id_a, current_count+count);
+				
+			}
+		
 		}
 		
 		return id_a;
 		
 	}
 	
-	public synchronized int addToSelectionCycle(byte[] a, int rr_start, int rr_end) {
+	public int addToSelectionCycle(byte[] a, int rr_start, int rr_end) {
 		return addToSelectionCycle(a, rr_start, rr_end, 1);
 	}
 	
-	public synchronized int addToSelectionCycle(String a, int rr_start, int rr_end){
+	public int addToSelectionCycle(String a, int rr_start, int rr_end){
 		return addToSelectionCycle(a.getBytes(), rr_start, rr_end, 1);
 	}
 
-	public synchronized int addToSelectionCycle(String a, int rr_start, int rr_end, int count){
+	public int addToSelectionCycle(String a, int rr_start, int rr_end, int count){
 		return addToSelectionCycle(a.getBytes(), rr_start, rr_end, count);
 	}
+
+	public int[] addToSelectionCycle(AptamerBatch batch){
+
+		// Register all aptamers with the pool in one go
+		int[] ids = Configuration.getExperiment().getAptamerPool().registerAptamers(batch);
+
+		// Combine the counts of identical aptamers and group them by stripe
+		List<Map<Integer,Integer>> stripeCounts = new ArrayList<Map<Integer,Integer>>(numberOfStripes);
+		for (int x=0; x<numberOfStripes; x++){
+			stripeCounts.add(new TreeMap<Integer,Integer>());
+		}
+
+		int total = 0;
+		for (int x=0; x<ids.length; x++){
+
+			// skip the aptamers the pool could not store
+			if (ids[x] < 1){
+				continue;
+			}
+
+			Map<Integer,Integer> counts = stripeCounts.get(stripe(ids[x]));
+			Integer current_count = counts.get(ids[x]);
+			counts.put(ids[x], current_count == null ? batch.getCount(x) : current_count + batch.getCount(x));
+			total += batch.getCount(x);
+
+		}
+
+		// Update the pool size
+		size.addAndGet(total);
+
+		// Merge with the counts on disk, locking each stripe only once
+		for (int x=0; x<numberOfStripes; x++){
+
+			Map<Integer,Integer> counts = stripeCounts.get(x);
+			if (counts.isEmpty()){
+				continue;
+			}
+
+			MappedBloomFilter stripeContent = poolContent.get(x);
+
+			synchronized(stripeLocks[x]){
+
+				for (Entry<Integer,Integer> entry : counts.entrySet()){
+
+					// Fast membership checking due to bloom filter
+					if (! stripeContent.contains(entry.getKey())){ // this is always accurate, no false negatives
+
+						unique_size.incrementAndGet();
+						stripeContent.add(entry.getKey());
+
+					}
+					else{ // we need to update the count...
+
+						Integer current_count = poolContentCounts.get(entry.getKey());
+
+						if (current_count == null){ // catch false positives
+							unique_size.incrementAndGet();
+							stripeContent.add(entry.getKey());
+						}
+						else{
+							entry.setValue(current_count + entry.getValue());
+						}
+
+					}
+				}
+
+				poolContentCounts.putAll(counts);
+			}
+		}
+
+		return ids;
+	}
 	
 	public boolean containsAptamer(byte[] a) {
 		
 		// Get the corresponding aptamer id from the pool
 		int id_a = Configuration.getExperiment().getAptamerPool().getIdentifier(a);
 		
-		if (! poolContent.contains(id_a)){
+		if (id_a == -1 || ! poolContent.get(stripe(id_a)).contains(id_a)){
 			return false;
 		}
 		
@@ -282,11 +548,11 @@ public class MapDBSelectionCycle implements SelectionCycle{
 	}
 	
 	public int getSize() {
-		return size;
+		return size.get();
 	}
 
 	public int getUniqueSize() {
-		return unique_size;
+		return unique_size.get();
 	}
 	
 	public String getName(){	
@@ -379,7 +645,7 @@ public class MapDBSelectionCycle implements SelectionCycle{
 		Path poolDataPath = Paths.get(projectPath.toString(), "cycledata");
 		String cycleFileName = round + "_" + name + ".mapdb";
 		
-		DB db = DBMaker
+		db = DBMaker
 			    .fileDB(Paths.get(poolDataPath.toString(), cycleFileName).toFile())
 			    .fileMmapEnableIfSupported() // Only enable mmap on supported platforms
 			    .concurrencyScale(8) // TODO: Number of threads make this a parameter?
@@ -394,6 +660,9 @@ public class MapDBSelectionCycle implements SelectionCycle{
 		
 		AptaLogger.log(Level.CONFIG, this.getClass(), "Reopened as read only file " + Paths.get(poolDataPath.toString(), cycleFileName).toString() );
 		
+		// No further modifications are expected, so the current state can be persisted
+		writeMeta();
+		
 	}
 	
 	@Override
@@ -401,11 +670,18 @@ public class MapDBSelectionCycle implements SelectionCycle{
 		
 		poolContentCounts.close();
 		
+		// The persisted sizes become stale with the next modification
+		try {
+			Files.deleteIfExists(getMetaPath());
+		} catch (IOException e) {
+			AptaLogger.log(Level.WARNING, this.getClass(), "Could not delete " + getMetaPath().toString());
+		}
+		
 		Path projectPath = Paths.get(Configuration.getParameters().getString("Experiment.projectPath"));
 		Path poolDataPath = Paths.get(projectPath.toString(), "cycledata");
 		String cycleFileName = round + "_" + name + ".mapdb";
 		
-		DB db = DBMaker
+		db = DBMaker
 			    .fileDB(Paths.get(poolDataPath.toString(), cycleFileName).toFile())
 			    .fileMmapEnableIfSupported() // Only enable mmap on supported platforms
 			    .concurrencyScale(8) // TODO: Number of threads make this a parameter?
@@ -420,9 +696,29 @@ public class MapDBSelectionCycle implements SelectionCycle{
 		AptaLogger.log(Level.CONFIG, this.getClass(), "Reopened as read/write file " + Paths.get(poolDataPath.toString(), cycleFileName).toString() );
 	}
 	
+	@Override
+	public void checkpoint() {
+		
+		// The file remains open, a copy of it is consistent as long as the cycle is not modified. 
+		// The sizes are not persisted, they are recomputed should the cycle be restored from the copy.
+		if (!db.getStore().isReadOnly()){
+			db.commit();
+		}
+		
+		for (MappedBloomFilter filter : poolContent){
+			filter.force();
+		}
+		
+	}
+	
 	
 	public void close(){
 		this.poolContentCounts.close();
+		
+		writeMeta();
+		for (MappedBloomFilter filter : poolContent){
+			filter.close();
+		}
 	}
 	
 	/**
@@ -466,7 +762,7 @@ public class MapDBSelectionCycle implements SelectionCycle{
 		Path poolDataPath = Paths.get(projectPath.toString(), "cycledata");
 		String cycleFileName = round + "_" + name + ".mapdb";
 		
-		DB db = DBMaker
+		db = DBMaker
 			    .fileDB(Paths.get(poolDataPath.toString(), cycleFileName).toFile())
 			    .fileMmapEnableIfSupported() // Only enable mmap on supported platforms
 			    .concurrencyScale(8) // TODO: Number of threads make this a parameter?
@@ -479,13 +775,11 @@ public class MapDBSelectionCycle implements SelectionCycle{
 				.valueSerializer(Serializer.INTEGER)
 		        .createOrOpen();
 	
-		// Fill the bloom filter. Since we know the precise size by now, and the maps are read only
-		// we can save resources by setting the size to the dbmap size
-		poolContent = new FilterBuilder(unique_size, Configuration.getParameters().getDouble("MapDBSelectionCycle.bloomFilterCollisionProbability")).buildBloomFilter();
+		// Open the persisted bloom filters and only rebuild them if they are out of date
+		initializeStripes();
 		
-		Iterator<Entry<Integer, Integer>> contentit = poolContentCounts.entryIterator();
-		while (contentit.hasNext()){
-			poolContent.add(contentit.next().getKey());
+		if (getFilterCount() != unique_size.get()){
+			rebuildStripes();
 		}
 	}
 
@@ -568,4 +862,23 @@ public class MapDBSelectionCycle implements SelectionCycle{
 		return new IdIterator();
 	}
 	
+	@Override
+	public Spliterator<Entry<Integer, Integer>> spliterator() {
+		
+		// Partition the id space into ranges which can be traversed independently
+		int maxId = Configuration.getExperiment().getAptamerPool().size();
+		int ranges = Math.max(1, Math.min(maxId / 1024, 4 * Runtime.getRuntime().availableProcessors()));
+		
+		List<Spliterator<Entry<Integer, Integer>>> parts = new ArrayList<Spliterator<Entry<Integer, Integer>>>(ranges);
+		for (int x=0; x<ranges; x++){
+			
+			int from = x == 0 ? Integer.MIN_VALUE : (int) (1 + (long) maxId * x / ranges);
+			int to = x == ranges-1 ? Integer.MAX_VALUE : (int) (1 + (long) maxId * (x+1) / ranges);
+			
+			parts.add(Spliterators.spliteratorUnknownSize(poolContentCounts.subMap(from, true, to, x == ranges-1).entrySet().iterator(), Spliterator.ORDERED | Spliterator.NONNULL));
+		}
+		
+		return new CompositeSpliterator<Entry<Integer, Integer>>(parts);
+	}
+	
 }
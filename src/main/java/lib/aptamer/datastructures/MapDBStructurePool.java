@@ -11,11 +11,16 @@ import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.AbstractMap;
 import java.util.ArrayList;
-import java.util.BitSet;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.Iterator;
 import java.util.List;
 import java.util.ListIterator;
+import java.util.Spliterator;
+import java.util.Spliterators;
 import java.util.Map.Entry;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 import java.util.logging.Level;
 
 import org.mapdb.BTreeMap;
@@ -23,12 +28,10 @@ import org.mapdb.DB;
 import org.mapdb.DBMaker;
 import org.mapdb.HTreeMap;
 import org.mapdb.Serializer;
-import org.mapdb.serializer.SerializerCompressionWrapper;
 
-import orestes.bloomfilter.BloomFilter;
-import orestes.bloomfilter.FilterBuilder;
 import utilities.AptaLogger;
 import utilities.Configuration;
+import utilities.MemoryBudget;
 
 /**
  * @author Jan Hoinka
@@ -60,9 +63,10 @@ public class MapDBStructurePool implements StructurePool {
 	private List<Path> structureDataPaths = new ArrayList<Path>();
 	
 	/**
-	 * The total number of expected items in the bitSet
+	 * The number of items the first layer of the global bloom filter is dimensioned for. 
+	 * The filter grows beyond this capacity as required.
 	 */
-	private int globalFilterCapacity = Configuration.getParameters().getInt("MapDBAptamerPool.bloomFilterCapacity");
+	private int globalFilterCapacity = (int) MemoryBudget.getBloomFilterCapacity(Configuration.getParameters().getInt("MapDBAptamerPool.bloomFilterCapacity"));
 
 	
 	/**
@@ -74,7 +78,18 @@ public class MapDBStructurePool implements StructurePool {
 	/**
 	 * Maximal number of items to store in one treemap
 	 */
-	private int maxTreeMapCapacity = Configuration.getParameters().getInt("MapDBStructurePool.maxTreeMapCapacity");
+	private int maxTreeMapCapacity = MemoryBudget.getFileCapacity(Configuration.getParameters().getInt("MapDBStructurePool.maxTreeMapCapacity"), STRUCTURE_BYTES);
+	
+	/**
+	 * Approximate number of bytes a structure occupies in memory and on disk, used to size the files and buffers
+	 */
+	private static final long STRUCTURE_BYTES = 2048;
+	
+	/**
+	 * Simple class name of the <code>Codec</code> used for new files. Existing files are 
+	 * read with the codec they were created with.
+	 */
+	private String codec = Configuration.getParameters().getString("MapDBStructurePool.codec");
 	
 	/**
 	 * The structural data of the aptamer 
@@ -83,14 +98,15 @@ public class MapDBStructurePool implements StructurePool {
 	
 	
 	/**
-	 * Fast lookup of membership for <code>structureData</code>
+	 * Fast lookup of membership for <code>structureData</code>. Persisted as <code>structure.bloom</code>.
 	 */
-	private BloomFilter<Integer> globalStructureDataFilter = new FilterBuilder(globalFilterCapacity, bloomFilterCollisionProbability).buildBloomFilter(); 
+	private MappedBloomFilter globalStructureDataFilter = null; 
 	
 	/**
-	 * Fast lookup of membership for <code>structureData</code>
+	 * Fast lookup of membership for <code>structureData</code>, one per file. Each filter is 
+	 * persisted next to its file with the extension <code>.bloom</code>.
 	 */
-	private List<BloomFilter<Integer>> structureDataFilter = new ArrayList<BloomFilter<Integer>>();
+	private List<MappedBloomFilter> structureDataFilter = new ArrayList<MappedBloomFilter>();
 	
 	/**
 	 * Number of element found on disk
@@ -104,6 +120,58 @@ public class MapDBStructurePool implements StructurePool {
 	 */
 	private int currentTreeMapSize = 0;
 	
+	/**
+	 * Number of structures which can be buffered for the background writer. If 0, 
+	 * <code>registerStructure</code> writes to disk synchronously.
+	 */
+	private int writeBehindCapacity = MemoryBudget.getQueueCapacity(Configuration.getParameters().getInt("MapDBStructurePool.writeBehindCapacity"), STRUCTURE_BYTES);
+	
+	/**
+	 * Maximal number of structures the background writer inserts at once
+	 */
+	private int writeBehindBatchSize = Configuration.getParameters().getInt("MapDBStructurePool.writeBehindBatchSize");
+	
+	/**
+	 * Structures registered but not yet handed to the background writer. Null if write-behind is disabled.
+	 */
+	private BlockingQueue<Entry<Integer, double[]>> writeQueue = null;
+	
+	/**
+	 * The thread draining <code>writeQueue</code> into the maps
+	 */
+	private Thread writerThread = null;
+	
+	/**
+	 * Number of registered structures which have not been written to the maps yet. 
+	 * Modifications are guarded by <code>writeLock</code>.
+	 */
+	private volatile long pendingWrites = 0;
+	
+	/**
+	 * Monitor used to wait for the background writer to catch up
+	 */
+	private final Object writeLock = new Object();
+	
+	/**
+	 * The first error encountered by the background writer, if any
+	 */
+	private volatile RuntimeException writerError = null;
+	
+	/**
+	 * Marks the end of <code>writeQueue</code>, causing the background writer to stop
+	 */
+	private static final Entry<Integer, double[]> END_OF_QUEUE = new AbstractMap.SimpleImmutableEntry<Integer, double[]>(0, null);
+	
+	/**
+	 * Orders buffered structures by id so that each batch is inserted in key order
+	 */
+	private static final Comparator<Entry<Integer, double[]>> ID_ORDER = new Comparator<Entry<Integer, double[]>>(){
+		@Override
+		public int compare(Entry<Integer, double[]> o1, Entry<Integer, double[]> o2) {
+			return Integer.compare(o1.getKey(), o2.getKey());
+		}
+	};
+	
 	/**
 	 * Constructor
 	 * @param projectPath must point to the current projects working directory
@@ -130,58 +198,59 @@ public class MapDBStructurePool implements StructurePool {
 		// Check if the data path exists, and if not create it
 		this.structureDataPath = Files.createDirectories(Paths.get(this.projectPath.toString(), "structuredata"));
 		
+		// Open the global filter, its content is validated once the data files are known
+		globalStructureDataFilter = new MappedBloomFilter(Paths.get(structureDataPath.toString(), "structure.bloom"), globalFilterCapacity, bloomFilterCollisionProbability);
+		
 		
 		// If we are reading an existing database, iterate over the folder and open the individual MapDB instances
 		if (! newdb){ 
 			AptaLogger.log(Level.INFO, this.getClass(), "Searching for existing datasets in " + structureDataPath.toString());
 
-			try (DirectoryStream<Path> directoryStream = Files.newDirectoryStream(Paths.get(structureDataPath.toString()))) {
+			// The files must be opened in order, so collect and sort them first
+			List<Path> files = new ArrayList<Path>();
+			try (DirectoryStream<Path> directoryStream = Files.newDirectoryStream(Paths.get(structureDataPath.toString()), "data[0-9]*.mapdb")) {
 				
 				for (Path file : directoryStream) {
-	                
-	    			// Open and read the TreeMap, skip the inverse file
-	    			if (Files.isRegularFile(file)){
-	    				
-	    				DB db_structure = DBMaker
-					    .fileDB(file.toFile())
-					    .fileMmapEnableIfSupported() // Only enable mmap on supported platforms
-					    .concurrencyScale(8) // TODO: Number of threads make this a parameter?
-					    .executorEnable()
-					    .make();
-	
-	    				BTreeMap<Integer, double[]> dbmap = db_structure.treeMap("map")
-						.valuesOutsideNodesEnable()
-						.keySerializer(Serializer.INTEGER)
-						.valueSerializer(new SerializerCompressionWrapper(Serializer.DOUBLE_ARRAY))
-				        .open();
-	    				
-	    				structureData.add(dbmap);
-	    				structureDataPaths.add(file);
-	    				
-	    				BloomFilter<Integer> localBloomFilter = new FilterBuilder(maxTreeMapCapacity, bloomFilterCollisionProbability).buildBloomFilter();
-	    				structureDataFilter.add(localBloomFilter);
-	    				
-	    				// Update values
-	    				currentTreeMapSize = dbmap.size();
-	    				structureDataSize += currentTreeMapSize;
-	    				
-	    				// Update the filter content
-	    				Iterator<Integer> iterator = dbmap.keyIterator();
-	    				while (iterator.hasNext()){
-	    					Integer item = iterator.next();
-	    					localBloomFilter.add(item);
-	    					globalStructureDataFilter.add(item);
-	    				}
-	    				
-	    				AptaLogger.log(Level.CONFIG, this.getClass(), 
-	    						"Found and loaded file " + file.toString() + "\n" +
-	    						"Total number of aptamers in file: " + currentTreeMapSize + "\n" +
-	    						"Total number of aptamers: " + structureDataSize
-	    						);
-		                
-		            }
+					if (Files.isRegularFile(file)){
+						files.add(file);
+					}
 				}
-        	} catch (IOException ex) {}
+			} catch (IOException ex) {}
+			
+			Collections.sort(files);
+			
+			for (Path file : files) {
+				
+				// Open and read the TreeMap
+				DB db_structure = DBMaker
+				    .fileDB(file.toFile())
+				    .fileMmapEnableIfSupported() // Only enable mmap on supported platforms
+				    .concurrencyScale(8) // TODO: Number of threads make this a parameter?
+				    .executorEnable()
+				    .make();
+
+				BTreeMap<Integer, double[]> dbmap = db_structure.treeMap("map")
+					.valuesOutsideNodesEnable()
+					.keySerializer(Serializer.INTEGER)
+					.valueSerializer(CodecSerializer.open(db_structure, file, Serializer.DOUBLE_ARRAY, "LZFCodec"))
+			        .open();
+				
+				structureData.add(dbmap);
+				structureDataPaths.add(file);
+				
+				MappedBloomFilter localBloomFilter = new MappedBloomFilter(bloomFilterPath(file), Math.min(maxTreeMapCapacity, globalFilterCapacity), bloomFilterCollisionProbability);
+				structureDataFilter.add(localBloomFilter);
+				
+				// Update values
+				currentTreeMapSize = dbmap.size();
+				structureDataSize += currentTreeMapSize;
+				
+				AptaLogger.log(Level.CONFIG, this.getClass(), 
+						"Found and loaded file " + file.toString() + "\n" +
+						"Total number of aptamers in file: " + currentTreeMapSize + "\n" +
+						"Total number of aptamers: " + structureDataSize
+						);
+			}
 			
 			// If no structure data exists on disk, we need to fail here
 			if (structureData.isEmpty()){
@@ -189,36 +258,120 @@ public class MapDBStructurePool implements StructurePool {
 				throw new IllegalStateException("No structure data was found on disk but is required for this operation.");
 			}
 			
+			// Make sure the persisted bloom filters agree with the data and rebuild them otherwise
+			validateBloomFilters();
+			
 			AptaLogger.log(Level.INFO, this.getClass(), "Found and loaded a total of " + structureDataSize + " structures on disk.");
 			
 		}
 		else{ // Create an empty instance of the MapDB Container
 
-			DB db_structure = DBMaker
-				    .fileDB(Paths.get(structureDataPath.toString(), "data" + String.format("%04d", structureData.size()) + ".mapdb").toFile())
-				    .fileMmapEnableIfSupported() // Only enable mmap on supported platforms
-				    .concurrencyScale(8) // TODO: Number of threads make this a parameter?
-				    .executorEnable()
-				    .make();
-	
-			BTreeMap<Integer, double[]> dbmap = db_structure.treeMap("map")
-					.valuesOutsideNodesEnable()
-					.keySerializer(Serializer.INTEGER)
-					.valueSerializer(new SerializerCompressionWrapper(Serializer.DOUBLE_ARRAY))
-			        .create();
-			
-			structureDataPaths.add(Paths.get(structureDataPath.toString(), "data" + String.format("%04d", structureData.size()) + ".mapdb"));
-			structureData.add(dbmap);
-	
-			BloomFilter<Integer> localBloomFilter = new FilterBuilder(maxTreeMapCapacity, bloomFilterCollisionProbability).buildBloomFilter();
-			structureDataFilter.add(localBloomFilter);
+			globalStructureDataFilter.clear();
+			addTreeMap();
+		
+		}
+		
+		// Hand the disk writes to a background thread if requested
+		if (writeBehindCapacity > 0){
 			
-			currentTreeMapSize = 0;
+			writeQueue = new ArrayBlockingQueue<Entry<Integer, double[]>>(writeBehindCapacity);
+			writerThread = new Thread(new StructureWriter(), "MapDBStructurePool Writer");
+			writerThread.setDaemon(true);
+			writerThread.start();
 			
-			AptaLogger.log(Level.CONFIG, this.getClass(), "Created new file " + Paths.get(structureDataPath.toString(), "data" + String.format("%04d", structureData.size()) + ".mapdb").toFile());
+			AptaLogger.log(Level.CONFIG, this.getClass(), "Using write-behind buffer of " + writeBehindCapacity + " structures");
+		}
 		
+	}
+	
+	/**
+	 * Creates a new, empty, TreeMap file and makes it the current one
+	 */
+	private void addTreeMap(){
+		
+		Path file = Paths.get(structureDataPath.toString(), "data" + String.format("%04d", structureData.size()) + ".mapdb");
+		
+		DB db_structure = DBMaker
+			    .fileDB(file.toFile())
+			    .fileMmapEnableIfSupported() // Only enable mmap on supported platforms
+			    .concurrencyScale(8) // TODO: Number of threads make this a parameter?
+			    .executorEnable()
+			    .make();
+
+		BTreeMap<Integer, double[]> dbmap = db_structure.treeMap("map")
+				.valuesOutsideNodesEnable()
+				.keySerializer(Serializer.INTEGER)
+				.valueSerializer(CodecSerializer.create(db_structure, file, Serializer.DOUBLE_ARRAY, codec))
+				.counterEnable() // size() is used to validate the persisted bloom filters
+		        .create();
+
+		MappedBloomFilter localBloomFilter = null;
+		try {
+			localBloomFilter = new MappedBloomFilter(bloomFilterPath(file), Math.min(maxTreeMapCapacity, globalFilterCapacity), bloomFilterCollisionProbability);
+		} catch (IOException e) {
+			throw new IllegalStateException("Could not create bloom filter for " + file.toString(), e);
 		}
+		localBloomFilter.clear();
+		
+		structureDataPaths.add(file);
+		structureData.add(dbmap);
+		structureDataFilter.add(localBloomFilter);
 		
+		currentTreeMapSize = 0;
+		
+		AptaLogger.log(Level.CONFIG, this.getClass(), "Created new file " + file.toString());
+		
+	}
+	
+	/**
+	 * @param file a structure file <code>*.mapdb</code>
+	 * @return the location of the bloom filter persisted for <code>file</code>
+	 */
+	private static Path bloomFilterPath(Path file){
+
+		String name = file.getFileName().toString();
+		return file.resolveSibling(name.substring(0, name.length() - ".mapdb".length()) + ".bloom");
+
+	}
+	
+	/**
+	 * Compares the item counts of the persisted bloom filters with the sizes of the 
+	 * corresponding maps and rebuilds those filters which do not match, e.g. 
+	 * because the application was not shut down properly.
+	 */
+	private void validateBloomFilters(){
+		
+		boolean globalValid = globalStructureDataFilter.getCount() == structureDataSize;
+		if (!globalValid){
+			AptaLogger.log(Level.INFO, this.getClass(), "Rebuilding bloom filter " + globalStructureDataFilter.getPath().getFileName());
+			globalStructureDataFilter.clear();
+		}
+		
+		for (int x=0; x<structureData.size(); x++){
+			
+			MappedBloomFilter localBloomFilter = structureDataFilter.get(x);
+			boolean localValid = localBloomFilter.getCount() == structureData.get(x).size();
+			
+			if (!localValid){
+				AptaLogger.log(Level.INFO, this.getClass(), "Rebuilding bloom filter " + localBloomFilter.getPath().getFileName());
+				localBloomFilter.clear();
+			}
+			
+			// Only touch the data if one of the filters is out of date
+			if (!localValid || !globalValid){
+				
+				Iterator<Integer> iterator = structureData.get(x).keyIterator();
+				while (iterator.hasNext()){
+					Integer item = iterator.next();
+					if (!localValid){
+						localBloomFilter.add(item);
+					}
+					if (!globalValid){
+						globalStructureDataFilter.add(item);
+					}
+				}
+			}
+		}
 	}
 	
 	
@@ -229,36 +382,51 @@ public class MapDBStructurePool implements StructurePool {
 	 * @see lib.aptamer.datastructures.StructurePool#registerStructure(int, double[])
 	 */
 	@Override
-	public synchronized void registerStructure(int id, double[] structure) {
+	public void registerStructure(int id, double[] structure) {
+		
+		if (writeQueue == null){
+			insert(id, structure);
+			return;
+		}
+		
+		checkWriter();
+		
+		synchronized(writeLock){
+			pendingWrites++;
+		}
+		
+		// Only blocks if the writer falls behind by more than writeBehindCapacity structures
+		try {
+			writeQueue.put(new AbstractMap.SimpleImmutableEntry<Integer, double[]>(id, structure));
+		} catch (InterruptedException e) {
+			
+			synchronized(writeLock){
+				pendingWrites--;
+				writeLock.notifyAll();
+			}
+			
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted while registering the structure of aptamer " + id, e);
+		}
+		
+	}
+	
+	/**
+	 * Writes the structure of aptamer <code>id</code> to the current map
+	 * @param id the unique identifier corresponding to the aptamer in question
+	 * @param structure the structural information for that aptamer
+	 */
+	private synchronized void insert(int id, double[] structure) {
 		
 		// Check that the current map is not at max capacity and create a new map if that is the case
-		if (currentTreeMapSize == maxTreeMapCapacity){
+		if (currentTreeMapSize >= maxTreeMapCapacity){
 			
 			AptaLogger.log(Level.CONFIG, this.getClass(), 
 					"Current Structure Map is at max capacity creating new file " + Paths.get(structureDataPath.toString(), "data" + String.format("%04d", structureData.size()) + ".mapdb").toString() + "\n" +
 					"Total number of aptamers: " + this.structureDataSize 
 					);
 			
-			DB db_structure = DBMaker
-				    .fileDB(Paths.get(structureDataPath.toString(), "data" + String.format("%04d", structureData.size()) + ".mapdb").toFile())
-				    .fileMmapEnableIfSupported() // Only enable mmap on supported platforms
-				    .concurrencyScale(8) // TODO: Number of threads make this a parameter?
-				    .executorEnable()
-				    .make();
-
-			BTreeMap<Integer, double[]> dbmap = db_structure.treeMap("map")
-					.valuesOutsideNodesEnable()
-					.keySerializer(Serializer.INTEGER)
-					.valueSerializer(new SerializerCompressionWrapper(Serializer.DOUBLE_ARRAY))
-			        .create();
-
-			structureDataPaths.add(Paths.get(structureDataPath.toString(), "data" + String.format("%04d", structureData.size()) + ".mapdb"));
-			structureData.add(dbmap);
-			
-			BloomFilter<Integer> localBloomFilter = new FilterBuilder(maxTreeMapCapacity, bloomFilterCollisionProbability).buildBloomFilter();
-			this.structureDataFilter.add(localBloomFilter);
-			
-			currentTreeMapSize = 0;
+			addTreeMap();
 			
 		}
 
@@ -270,6 +438,126 @@ public class MapDBStructurePool implements StructurePool {
 		this.structureDataFilter.get(structureData.size()-1).add(id);
 		
 	}
+	
+	/**
+	 * Blocks until all structures passed to <code>registerStructure</code> have been 
+	 * written to the maps. Returns immediately if write-behind is disabled.
+	 */
+	public void flush(){
+		
+		if (writeQueue == null){
+			return;
+		}
+		
+		synchronized(writeLock){
+			while (pendingWrites > 0){
+				try {
+					writeLock.wait();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					break;
+				}
+			}
+		}
+		
+		checkWriter();
+		
+	}
+	
+	/**
+	 * Propagates any failure of the background writer to the calling thread
+	 */
+	private void checkWriter(){
+		
+		if (writerError != null){
+			throw new IllegalStateException("Could not write structures to disk", writerError);
+		}
+		
+	}
+	
+	/**
+	 * Finishes all pending writes and terminates the background writer
+	 */
+	private void stopWriter(){
+		
+		if (writerThread == null){
+			return;
+		}
+		
+		try {
+			writeQueue.put(END_OF_QUEUE);
+			writerThread.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		
+		writerThread = null;
+		writeQueue = null;
+		
+	}
+	
+	/**
+	 * @author Jan Hoinka
+	 * Background writer draining <code>writeQueue</code>. Structures are taken in batches 
+	 * of up to <code>writeBehindBatchSize</code>, sorted by id and inserted while holding 
+	 * the lock of the pool once per batch.
+	 */
+	private class StructureWriter implements Runnable {
+
+		@Override
+		public void run() {
+			
+			List<Entry<Integer, double[]>> batch = new ArrayList<Entry<Integer, double[]>>(writeBehindBatchSize);
+			boolean done = false;
+			
+			while (!done){
+				
+				try {
+					batch.add(writeQueue.take());
+				} catch (InterruptedException e) {
+					break;
+				}
+				writeQueue.drainTo(batch, writeBehindBatchSize - 1);
+				
+				Collections.sort(batch, ID_ORDER);
+				
+				int written = 0;
+				for (Entry<Integer, double[]> entry : batch){
+					if (entry == END_OF_QUEUE){
+						done = true;
+					}
+					else{
+						written++;
+					}
+				}
+				
+				// After a failure, keep draining so that producers are not blocked forever
+				if (writerError == null){
+					try {
+						synchronized(MapDBStructurePool.this){
+							for (Entry<Integer, double[]> entry : batch){
+								if (entry != END_OF_QUEUE){
+									insert(entry.getKey(), entry.getValue());
+								}
+							}
+						}
+					} catch (RuntimeException e) {
+						AptaLogger.log(Level.SEVERE, MapDBStructurePool.class, "Error writing structures to disk: " + e.getMessage());
+						writerError = e;
+					}
+				}
+				
+				synchronized(writeLock){
+					pendingWrites -= written;
+					writeLock.notifyAll();
+				}
+				
+				batch.clear();
+			}
+			
+		}
+		
+	}
 
 	/* (non-Javadoc)
 	 * @see lib.aptamer.datastructures.StructurePool#getStructure(int)
@@ -277,6 +565,11 @@ public class MapDBStructurePool implements StructurePool {
 	@Override
 	public double[] getStructure(int id) {
 
+		// Make sure structures registered before are visible
+		if (pendingWrites > 0){
+			flush();
+		}
+		
 		// Check for existence using bloom filter. 
 		if (!this.globalStructureDataFilter.contains(id)){
 			return null; // This result is always accurate (no false negatives)
@@ -286,7 +579,7 @@ public class MapDBStructurePool implements StructurePool {
 		
 		// Iterate over all treeMaps and bloomFilters
 		ListIterator<BTreeMap<Integer,double[]>> lim = structureData.listIterator(structureData.size());
-		ListIterator<BloomFilter<Integer>> lib = this.structureDataFilter.listIterator(structureData.size());
+		ListIterator<MappedBloomFilter> lib = this.structureDataFilter.listIterator(structureData.size());
 		
 		// Iterate in reverse
 		while(lim.hasPrevious() && structure == null) {
@@ -312,6 +605,22 @@ public class MapDBStructurePool implements StructurePool {
 	@Override
 	public void close(){
 		
+		stopWriter();
+		closeMaps();
+		
+		// Close the persisted filters
+		globalStructureDataFilter.close();
+		for (MappedBloomFilter filter : structureDataFilter){
+			filter.close();
+		}
+	}
+	
+	/**
+	 * Closes the MapDB instances only. The filters remain open
+	 * and are written to disk.
+	 */
+	private void closeMaps(){
+		
 		// Iterate over each TreeMap instance and close it
 		ListIterator<BTreeMap<Integer, double[]>> li = structureData.listIterator(structureData.size());
 
@@ -321,6 +630,12 @@ public class MapDBStructurePool implements StructurePool {
 			li.previous().close();
 
 		}
+		
+		// Flush the filters so they are consistent with the maps
+		globalStructureDataFilter.force();
+		for (MappedBloomFilter filter : structureDataFilter){
+			filter.force();
+		}
 	}
 	
 
@@ -330,8 +645,10 @@ public class MapDBStructurePool implements StructurePool {
 	@Override
     public void setReadOnly(){
     	
+    	flush();
+    	
     	// close all the file handles
-    	close();
+    	closeMaps();
     	
     	// clear references
     	structureData.clear();
@@ -353,7 +670,7 @@ public class MapDBStructurePool implements StructurePool {
 				BTreeMap<Integer, double[]> dbmap = db.treeMap("map")
 						.valuesOutsideNodesEnable()
 						.keySerializer(Serializer.INTEGER)
-						.valueSerializer(new SerializerCompressionWrapper(Serializer.DOUBLE_ARRAY))
+						.valueSerializer(CodecSerializer.open(db, file, Serializer.DOUBLE_ARRAY, "LZFCodec"))
 				        .open();
 				
 				structureData.add(dbmap);
@@ -371,8 +688,10 @@ public class MapDBStructurePool implements StructurePool {
 	@Override
     public void setReadWrite(){
     	
+    	flush();
+    	
     	// close all the file handles
-    	close();
+    	closeMaps();
     	
     	// clear references
     	structureData.clear();
@@ -393,7 +712,7 @@ public class MapDBStructurePool implements StructurePool {
 				BTreeMap<Integer, double[]> dbmap = db.treeMap("map")
 						.valuesOutsideNodesEnable()
 						.keySerializer(Serializer.INTEGER)
-						.valueSerializer(new SerializerCompressionWrapper(Serializer.DOUBLE_ARRAY))
+						.valueSerializer(CodecSerializer.open(db, file, Serializer.DOUBLE_ARRAY, "LZFCodec"))
 				        .open();
 				
 				structureData.add(dbmap);
@@ -493,6 +812,20 @@ public class MapDBStructurePool implements StructurePool {
 		return new AptamerStructureIterator();
 	}
 
+	@Override
+	public Spliterator<Entry<Integer, double[]>> spliterator() {
+		
+		flush();
+		
+		// Every TreeMap can be traversed independently
+		List<Spliterator<Entry<Integer, double[]>>> parts = new ArrayList<Spliterator<Entry<Integer, double[]>>>();
+		for (BTreeMap<Integer, double[]> dbmap : structureData){
+			parts.add(Spliterators.spliteratorUnknownSize(dbmap.entryIterator(), Spliterator.ORDERED | Spliterator.NONNULL));
+		}
+		
+		return new CompositeSpliterator<Entry<Integer, double[]>>(parts);
+	}
+
 
 
 
@@ -0,0 +1,317 @@
+/**
+ *
+ */
+package lib.aptamer.datastructures;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * @author Jan Hoinka
+ *
+ * Growable, memory mapped storage area backed by a single file on disk.
+ * Since a single <code>MappedByteBuffer</code> cannot address more than
+ * 2GB, the file is mapped in chunks of <code>CHUNK_SIZE</code> bytes which
+ * are transparently addressed by <code>long</code> positions. Values
+ * crossing a chunk boundary are assembled byte by byte.
+ *
+ * Mapping a region extends the file to its end, hence only the required
+ * capacity is mapped. The last chunk may be shorter than <code>CHUNK_SIZE</code>
+ * and is remapped as the arena grows, by at least a factor of two to keep
+ * the number of remappings small.
+ *
+ * Absolute reads and writes to distinct regions of the arena are safe to be
+ * performed concurrently. Growing the arena is synchronized internally.
+ */
+public class MappedArena {
+
+	/**
+	 * The number of bits used to address a position inside a chunk
+	 */
+	private static final int CHUNK_BITS = 26;
+
+	/**
+	 * The size of a single mapped region in bytes (64MB)
+	 */
+	private static final long CHUNK_SIZE = 1L << CHUNK_BITS;
+
+	/**
+	 * Mask to extract the position inside a chunk
+	 */
+	private static final long CHUNK_MASK = CHUNK_SIZE - 1;
+
+	/**
+	 * The smallest capacity mapped for a writable arena, capacities are multiples thereof
+	 */
+	private static final long MIN_CAPACITY = 4096;
+
+	/**
+	 * The location of the arena on the file system
+	 */
+	private Path file = null;
+
+	/**
+	 * File handle of the arena
+	 */
+	private RandomAccessFile raf = null;
+
+	/**
+	 * Channel used to map the individual chunks
+	 */
+	private FileChannel channel = null;
+
+	/**
+	 * The currently mapped chunks. The array is replaced as a whole on growth
+	 * so that concurrent readers always see a consistent view.
+	 */
+	private volatile MappedByteBuffer[] chunks = new MappedByteBuffer[0];
+
+	/**
+	 * The number of bytes currently mapped
+	 */
+	private volatile long capacity = 0;
+
+	/**
+	 * If true, the arena cannot grow and is mapped in read only mode
+	 */
+	private boolean readOnly = false;
+
+	/**
+	 * Opens or creates the arena at <code>file</code>.
+	 * @param file the location of the arena on disk
+	 * @param readOnly if true, the file must exist and is mapped read only
+	 * @throws IOException
+	 */
+	public MappedArena(Path file, boolean readOnly) throws IOException{
+
+		this.file = file;
+		this.readOnly = readOnly;
+
+		raf = new RandomAccessFile(file.toFile(), readOnly ? "r" : "rw");
+		channel = raf.getChannel();
+
+		// Map everything that is already present on disk
+		if (channel.size() > 0){
+			ensureCapacity(channel.size());
+		}
+
+	}
+
+	/**
+	 * Makes sure that all positions smaller than <code>capacity</code> are addressable.
+	 * @param capacity the number of bytes required
+	 */
+	public void ensureCapacity(long capacity){
+
+		if (capacity <= this.capacity){
+			return;
+		}
+
+		synchronized(this){
+
+			long current = this.capacity;
+
+			if (capacity <= current){
+				return;
+			}
+
+			// Read only arenas map the file as it is, writable ones grow geometrically in whole pages
+			long target = capacity;
+			if (!readOnly){
+				target = Math.max(target, Math.min(2 * current, current + CHUNK_SIZE));
+				target = (target + MIN_CAPACITY - 1) / MIN_CAPACITY * MIN_CAPACITY;
+			}
+
+			MappedByteBuffer[] previous = chunks;
+			int required = (int) ((target + CHUNK_SIZE - 1) >>> CHUNK_BITS);
+
+			// The last chunk is remapped unless it is complete
+			int first = previous.length;
+			if (first > 0 && previous[first-1].capacity() < CHUNK_SIZE){
+				first--;
+			}
+
+			MappedByteBuffer[] grown = new MappedByteBuffer[required];
+			System.arraycopy(previous, 0, grown, 0, first);
+
+			try {
+				for (int x=first; x<required; x++){
+
+					long start = ((long) x) << CHUNK_BITS;
+					long length = Math.min(CHUNK_SIZE, target - start);
+
+					grown[x] = channel.map(readOnly ? MapMode.READ_ONLY : MapMode.READ_WRITE, start, length);
+				}
+			} catch (IOException e) {
+				throw new IllegalStateException("Could not map " + file.toString() + " into memory.", e);
+			}
+
+			chunks = grown;
+			this.capacity = target;
+		}
+
+	}
+
+	/**
+	 * @return the number of bytes currently addressable in this arena
+	 */
+	public long capacity(){
+		return capacity;
+	}
+
+	public byte getByte(long pos){
+		return chunks[(int) (pos >>> CHUNK_BITS)].get((int) (pos & CHUNK_MASK));
+	}
+
+	public void putByte(long pos, byte value){
+		chunks[(int) (pos >>> CHUNK_BITS)].put((int) (pos & CHUNK_MASK), value);
+	}
+
+	public char getChar(long pos){
+		if ((pos & CHUNK_MASK) <= CHUNK_SIZE - 2){
+			return chunks[(int) (pos >>> CHUNK_BITS)].getChar((int) (pos & CHUNK_MASK));
+		}
+		return (char) ( ((getByte(pos) & 0xFF) << 8) | (getByte(pos+1) & 0xFF) );
+	}
+
+	public void putChar(long pos, char value){
+		if ((pos & CHUNK_MASK) <= CHUNK_SIZE - 2){
+			chunks[(int) (pos >>> CHUNK_BITS)].putChar((int) (pos & CHUNK_MASK), value);
+			return;
+		}
+		putByte(pos, (byte) (value >>> 8));
+		putByte(pos+1, (byte) value);
+	}
+
+	public int getInt(long pos){
+		if ((pos & CHUNK_MASK) <= CHUNK_SIZE - 4){
+			return chunks[(int) (pos >>> CHUNK_BITS)].getInt((int) (pos & CHUNK_MASK));
+		}
+		int value = 0;
+		for (int x=0; x<4; x++){
+			value = (value << 8) | (getByte(pos+x) & 0xFF);
+		}
+		return value;
+	}
+
+	public void putInt(long pos, int value){
+		if ((pos & CHUNK_MASK) <= CHUNK_SIZE - 4){
+			chunks[(int) (pos >>> CHUNK_BITS)].putInt((int) (pos & CHUNK_MASK), value);
+			return;
+		}
+		for (int x=3; x>=0; x--){
+			putByte(pos+x, (byte) value);
+			value >>>= 8;
+		}
+	}
+
+	public long getLong(long pos){
+		if ((pos & CHUNK_MASK) <= CHUNK_SIZE - 8){
+			return chunks[(int) (pos >>> CHUNK_BITS)].getLong((int) (pos & CHUNK_MASK));
+		}
+		long value = 0;
+		for (int x=0; x<8; x++){
+			value = (value << 8) | (getByte(pos+x) & 0xFF);
+		}
+		return value;
+	}
+
+	public void putLong(long pos, long value){
+		if ((pos & CHUNK_MASK) <= CHUNK_SIZE - 8){
+			chunks[(int) (pos >>> CHUNK_BITS)].putLong((int) (pos & CHUNK_MASK), value);
+			return;
+		}
+		for (int x=7; x>=0; x--){
+			putByte(pos+x, (byte) value);
+			value >>>= 8;
+		}
+	}
+
+	/**
+	 * Copies <code>length</code> bytes starting at <code>pos</code> into <code>dst</code>
+	 */
+	public void get(long pos, byte[] dst, int offset, int length){
+		while (length > 0){
+
+			// Copy chunk by chunk, using a private view so that concurrent reads do not interfere
+			int inChunk = (int) (pos & CHUNK_MASK);
+			int n = (int) Math.min(length, CHUNK_SIZE - inChunk);
+
+			ByteBuffer view = chunks[(int) (pos >>> CHUNK_BITS)].duplicate();
+			view.position(inChunk);
+			view.get(dst, offset, n);
+
+			pos += n;
+			offset += n;
+			length -= n;
+		}
+	}
+
+	/**
+	 * Copies <code>length</code> bytes of <code>src</code> into the arena starting at <code>pos</code>
+	 */
+	public void put(long pos, byte[] src, int offset, int length){
+		for (int x=0; x<length; x++){
+			putByte(pos+x, src[offset+x]);
+		}
+	}
+
+	/**
+	 * Writes any changes to the storage device
+	 */
+	public void force(){
+
+		if (readOnly){
+			return;
+		}
+
+		for (MappedByteBuffer chunk : chunks){
+			chunk.force();
+		}
+	}
+
+	/**
+	 * Flushes all changes and closes the file handles. The mapped regions
+	 * are released once they are garbage collected.
+	 */
+	public void close(){
+
+		force();
+		chunks = new MappedByteBuffer[0];
+		capacity = 0;
+
+		try {
+			channel.close();
+			raf.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Closes the arena and removes the file from disk
+	 */
+	public void delete(){
+
+		close();
+
+		try {
+			Files.deleteIfExists(file);
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * @return the location of the arena on disk
+	 */
+	public Path getPath(){
+		return file;
+	}
+}
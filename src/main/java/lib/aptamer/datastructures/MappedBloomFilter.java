@@ -0,0 +1,397 @@
+/**
+ *
+ */
+package lib.aptamer.datastructures;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * @author Jan Hoinka
+ *
+ * Scalable Bloom filter whose bit vectors live in a memory mapped file, so that it
+ * survives the application and can be reopened in constant time instead of
+ * being rebuilt from the data it summarizes.
+ *
+ * Rather than allocating a filter for the largest conceivable number of items up front,
+ * the filter starts with a single layer dimensioned for the expected number of items.
+ * Whenever the newest layer reaches its capacity, a new layer with twice the capacity and
+ * half the false positive rate is appended (Almeida et al., Scalable Bloom Filters). Items
+ * are added to the newest layer and looked up in all of them. Since the rates of the layers form
+ * a geometric series, the overall false positive rate stays close to the one requested.
+ *
+ * The file starts with a header of <code>HEADER_SIZE</code> bytes storing the version,
+ * the number of layers, the capacity and false positive rate of the first layer, and the
+ * number of items added so far. The latter allows the caller to validate the filter against
+ * the size of the data it was built from, e.g. after an unclean shutdown. Each layer consists
+ * of a header of <code>LAYER_HEADER_SIZE</code> bytes (number of hash functions, number of bits,
+ * capacity, and number of items) followed by its bit vector.
+ *
+ * Lookups are thread-safe. Additions must be synchronized by the caller.
+ */
+public class MappedBloomFilter {
+
+	/**
+	 * Version of the file layout
+	 */
+	private static final int VERSION = 2;
+
+	/**
+	 * Number of bytes preceding the first layer
+	 */
+	private static final int HEADER_SIZE = 32;
+
+	/**
+	 * Number of bytes preceding the bit vector of each layer
+	 */
+	private static final int LAYER_HEADER_SIZE = 32;
+
+	/**
+	 * Factor by which the false positive rate of each layer is tightened compared to the previous one
+	 */
+	private static final double TIGHTENING_RATIO = 0.5;
+
+	/**
+	 * @author Jan Hoinka
+	 * The dimensions and location of a single layer
+	 */
+	private static class Layer {
+
+		/**
+		 * Position of the layer header in the file
+		 */
+		long offset;
+
+		/**
+		 * Size of the bit vector, always a multiple of 64
+		 */
+		long numberOfBits;
+
+		/**
+		 * Number of bit positions set per item
+		 */
+		int numberOfHashes;
+
+		/**
+		 * Number of items after which the next layer is created
+		 */
+		long capacity;
+
+		/**
+		 * Number of items added to this layer
+		 */
+		long count;
+
+		/**
+		 * @return the position of the first byte following this layer
+		 */
+		long end(){
+			return offset + LAYER_HEADER_SIZE + numberOfBits / 8;
+		}
+	}
+
+	/**
+	 * Location of the filter on disk
+	 */
+	private Path file = null;
+
+	/**
+	 * The mapped file
+	 */
+	private MappedArena arena = null;
+
+	/**
+	 * The capacity of the first layer
+	 */
+	private long initialCapacity;
+
+	/**
+	 * The false positive rate of the filter as a whole
+	 */
+	private double falsePositiveProbability;
+
+	/**
+	 * The layers in order of creation. The array is replaced as a whole on growth
+	 * so that concurrent readers always see a consistent view.
+	 */
+	private volatile Layer[] layers = new Layer[0];
+
+	/**
+	 * Number of items added to the filter
+	 */
+	private long count = 0;
+
+	/**
+	 * Opens the filter stored at <code>file</code>. If the file does not exist, or was created
+	 * with an incompatible layout, a new and empty filter is created in its place. An existing
+	 * filter keeps the dimensions it was created with.
+	 * @param file the location of the filter on disk
+	 * @param expectedItems the number of items the first layer is dimensioned for
+	 * @param falsePositiveProbability the expected false positive rate of the filter
+	 * @throws IOException
+	 */
+	public MappedBloomFilter(Path file, long expectedItems, double falsePositiveProbability) throws IOException{
+
+		this.file = file;
+		this.initialCapacity = Math.max(1, expectedItems);
+		this.falsePositiveProbability = falsePositiveProbability;
+
+		if (Files.exists(file)){
+
+			arena = new MappedArena(file, false);
+
+			// Only reuse the content if it is compatible with the current layout
+			if (arena.capacity() >= HEADER_SIZE && arena.getInt(0) == VERSION && arena.getInt(4) > 0){
+
+				open();
+				return;
+			}
+
+			arena.delete();
+		}
+
+		create();
+	}
+
+	/**
+	 * Reads the layers of an existing filter
+	 */
+	private void open(){
+
+		int numberOfLayers = arena.getInt(4);
+		initialCapacity = arena.getLong(8);
+		falsePositiveProbability = Double.longBitsToDouble(arena.getLong(16));
+		count = arena.getLong(24);
+
+		Layer[] existing = new Layer[numberOfLayers];
+		long offset = HEADER_SIZE;
+		for (int x=0; x<numberOfLayers; x++){
+
+			Layer layer = new Layer();
+			layer.offset = offset;
+			layer.numberOfHashes = arena.getInt(offset);
+			layer.numberOfBits = arena.getLong(offset + 8);
+			layer.capacity = arena.getLong(offset + 16);
+			layer.count = arena.getLong(offset + 24);
+
+			existing[x] = layer;
+			offset = layer.end();
+		}
+
+		layers = existing;
+	}
+
+	/**
+	 * Creates a new, empty, filter file
+	 * @throws IOException
+	 */
+	private void create() throws IOException{
+
+		arena = new MappedArena(file, false);
+		arena.ensureCapacity(HEADER_SIZE);
+
+		arena.putInt(0, VERSION);
+		arena.putLong(8, initialCapacity);
+		arena.putLong(16, Double.doubleToLongBits(falsePositiveProbability));
+		arena.putLong(24, 0);
+
+		count = 0;
+		layers = new Layer[0];
+		addLayer();
+	}
+
+	/**
+	 * Appends a new layer with twice the capacity and half the false positive rate of the previous one
+	 */
+	private void addLayer(){
+
+		Layer[] current = layers;
+		int index = current.length;
+
+		Layer layer = new Layer();
+		layer.offset = index == 0 ? HEADER_SIZE : current[index-1].end();
+		layer.capacity = initialCapacity << Math.min(index, 62 - (63 - Long.numberOfLeadingZeros(initialCapacity)));
+
+		// The rates of all layers sum up to falsePositiveProbability
+		double probability = falsePositiveProbability * (1 - TIGHTENING_RATIO) * Math.pow(TIGHTENING_RATIO, index);
+
+		// Optimal dimensions, see Broder & Mitzenmacher, Network Applications of Bloom Filters
+		long bits = (long) Math.ceil(-layer.capacity * Math.log(probability) / (Math.log(2) * Math.log(2)));
+		layer.numberOfBits = Math.max(64, (bits + 63) & ~63L);
+		layer.numberOfHashes = Math.max(1, (int) Math.round(((double) layer.numberOfBits / layer.capacity) * Math.log(2)));
+		layer.count = 0;
+
+		arena.ensureCapacity(layer.end());
+		arena.putInt(layer.offset, layer.numberOfHashes);
+		arena.putLong(layer.offset + 8, layer.numberOfBits);
+		arena.putLong(layer.offset + 16, layer.capacity);
+		arena.putLong(layer.offset + 24, 0);
+
+		// Publish the layer only after it was written completely
+		Layer[] grown = new Layer[index + 1];
+		System.arraycopy(current, 0, grown, 0, index);
+		grown[index] = layer;
+
+		arena.putInt(4, grown.length);
+		layers = grown;
+	}
+
+	public void add(byte[] a){
+
+		add(hash(a));
+
+	}
+
+	public boolean contains(byte[] a){
+
+		return contains(hash(a));
+
+	}
+
+	public void add(int a){
+
+		add(mix(a));
+
+	}
+
+	public boolean contains(int a){
+
+		return contains(mix(a));
+
+	}
+
+	/**
+	 * Sets the bits for the item with 64 bit hash <code>h</code> in the newest layer using double hashing
+	 */
+	private void add(long h){
+
+		Layer layer = layers[layers.length - 1];
+		if (layer.count >= layer.capacity){
+			addLayer();
+			layer = layers[layers.length - 1];
+		}
+
+		int h1 = (int) h;
+		int h2 = (int) (h >>> 32);
+
+		for (int x=1; x<=layer.numberOfHashes; x++){
+
+			long bit = ((h1 + x * (long) h2) & Long.MAX_VALUE) % layer.numberOfBits;
+			long pos = layer.offset + LAYER_HEADER_SIZE + (bit >>> 6) * 8;
+
+			arena.putLong(pos, arena.getLong(pos) | (1L << (bit & 63)));
+		}
+
+		arena.putLong(layer.offset + 24, ++layer.count);
+		arena.putLong(24, ++count);
+	}
+
+	private boolean contains(long h){
+
+		int h1 = (int) h;
+		int h2 = (int) (h >>> 32);
+
+		for (Layer layer : layers){
+
+			boolean found = true;
+
+			for (int x=1; x<=layer.numberOfHashes; x++){
+
+				long bit = ((h1 + x * (long) h2) & Long.MAX_VALUE) % layer.numberOfBits;
+
+				if ((arena.getLong(layer.offset + LAYER_HEADER_SIZE + (bit >>> 6) * 8) & (1L << (bit & 63))) == 0){
+					found = false;
+					break;
+				}
+			}
+
+			if (found){
+				return true;
+			}
+		}
+
+		return false;
+	}
+
+	/**
+	 * FNV-1a followed by the finalizer of MurmurHash3
+	 */
+	static long hash(byte[] a){
+
+		long h = 0xcbf29ce484222325L;
+		for (int x=0; x<a.length; x++){
+			h ^= a[x];
+			h *= 0x100000001b3L;
+		}
+
+		return mix(h);
+	}
+
+	/**
+	 * The 64 bit finalizer of MurmurHash3
+	 */
+	static long mix(long h){
+
+		h ^= (h >>> 33);
+		h *= 0xff51afd7ed558ccdL;
+		h ^= (h >>> 33);
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= (h >>> 33);
+
+		return h;
+	}
+
+	/**
+	 * @return the number of items added since the filter was created
+	 */
+	public long getCount(){
+		return count;
+	}
+
+	/**
+	 * @return the number of layers the filter has grown to
+	 */
+	public int getNumberOfLayers(){
+		return layers.length;
+	}
+
+	/**
+	 * Removes all items from the filter and shrinks it back to a single layer
+	 */
+	public void clear(){
+
+		arena.delete();
+
+		try {
+			create();
+		} catch (IOException e) {
+			throw new IllegalStateException("Could not recreate " + file.toString(), e);
+		}
+	}
+
+	/**
+	 * Writes any changes to the storage device
+	 */
+	public void force(){
+		arena.force();
+	}
+
+	public void close(){
+		arena.close();
+	}
+
+	/**
+	 * Closes the filter and removes the file from disk
+	 */
+	public void delete(){
+		arena.delete();
+	}
+
+	/**
+	 * @return the location of the filter on disk
+	 */
+	public Path getPath(){
+		return file;
+	}
+}
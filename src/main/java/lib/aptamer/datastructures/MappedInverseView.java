@@ -0,0 +1,317 @@
+/**
+ *
+ */
+package lib.aptamer.datastructures;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+/**
+ * @author Jan Hoinka
+ *
+ * Memory mapped id->aptamer store exploiting the fact that aptamer ids are dense
+ * and assigned sequentially. It consists of two files:
+ *
+ * <code>name.offsets</code> is a flat array of <code>long</code>s indexed by id, each pointing into the heap.
+ * A value of 0 indicates that no aptamer was stored for that id.
+ *
+ * <code>name.heap</code> starts with a header of <code>HEADER_SIZE</code> bytes (version, end of
+ * the heap, number of records, largest id), followed by one record per aptamer consisting of the
+ * sequence length, the start and end of the randomized region and the sequence itself.
+ *
+ * Lookups of the sequence or bounds of an id are therefore O(1) positional reads.
+ * Reads are lock free, writes are synchronized.
+ */
+public class MappedInverseView {
+
+	/**
+	 * Version of the file layout
+	 */
+	private static final int VERSION = 1;
+
+	/**
+	 * Number of bytes preceding the records in the heap
+	 */
+	private static final int HEADER_SIZE = 32;
+
+	/**
+	 * Number of bytes preceding the sequence of each record
+	 */
+	private static final int RECORD_HEADER_SIZE = 12;
+
+	/**
+	 * Location of the offsets array
+	 */
+	private Path offsetsPath = null;
+
+	/**
+	 * Location of the heap
+	 */
+	private Path heapPath = null;
+
+	/**
+	 * Positions of the records in <code>heap</code> indexed by id
+	 */
+	private volatile MappedArena offsets = null;
+
+	/**
+	 * The records
+	 */
+	private volatile MappedArena heap = null;
+
+	/**
+	 * First unused position in <code>heap</code>
+	 */
+	private long heapSize = HEADER_SIZE;
+
+	/**
+	 * Number of records stored
+	 */
+	private volatile long count = 0;
+
+	/**
+	 * The largest id stored
+	 */
+	private volatile int maxId = 0;
+
+	/**
+	 * Opens the view stored in <code>directory</code> or creates an empty one if it does not exist
+	 * @param directory the folder containing the files
+	 * @param name the common prefix of the file names
+	 * @throws IOException
+	 */
+	public MappedInverseView(Path directory, String name) throws IOException{
+
+		this.offsetsPath = Paths.get(directory.toString(), name + ".offsets");
+		this.heapPath = Paths.get(directory.toString(), name + ".heap");
+
+		open();
+
+	}
+
+	private void open() throws IOException{
+
+		offsets = new MappedArena(offsetsPath, false);
+		heap = new MappedArena(heapPath, false);
+
+		if (heap.capacity() >= HEADER_SIZE && heap.getInt(0) == VERSION){
+
+			heapSize = heap.getLong(8);
+			count = heap.getLong(16);
+			maxId = (int) heap.getLong(24);
+
+		}
+		else{
+
+			heap.ensureCapacity(HEADER_SIZE);
+			heapSize = HEADER_SIZE;
+			count = 0;
+			maxId = 0;
+			writeHeader();
+
+		}
+	}
+
+	private void writeHeader(){
+
+		heap.putInt(0, VERSION);
+		heap.putLong(8, heapSize);
+		heap.putLong(16, count);
+		heap.putLong(24, maxId);
+
+	}
+
+	/**
+	 * Stores aptamer <code>a</code> and its randomized region under <code>id</code>
+	 * @param id the unique identifier of the aptamer, must be larger than 0
+	 * @param a the aptamer sequence
+	 * @param rr_start the index (inclusive) in <code>a</code> at which the randomized region begins
+	 * @param rr_end the index (exclusive) in <code>a</code> at which the randomized region ends
+	 */
+	public synchronized void put(int id, byte[] a, int rr_start, int rr_end){
+
+		long record = heapSize;
+
+		heap.ensureCapacity(record + RECORD_HEADER_SIZE + a.length);
+		heap.putInt(record, a.length);
+		heap.putInt(record + 4, rr_start);
+		heap.putInt(record + 8, rr_end);
+		heap.put(record + RECORD_HEADER_SIZE, a, 0, a.length);
+
+		heapSize += RECORD_HEADER_SIZE + a.length;
+
+		// Publish the record only after it has been written completely
+		offsets.ensureCapacity(((long) id + 1) * 8);
+		if (offsets.getLong(((long) id) * 8) == 0){
+			count++;
+		}
+		offsets.putLong(((long) id) * 8, record);
+
+		maxId = Math.max(maxId, id);
+		writeHeader();
+
+	}
+
+	/**
+	 * @param id
+	 * @return the position of the record of <code>id</code> or 0 if none exists
+	 */
+	private long recordOf(int id){
+
+		long pos = ((long) id) * 8;
+
+		if (id <= 0 || pos + 8 > offsets.capacity()){
+			return 0;
+		}
+
+		return offsets.getLong(pos);
+	}
+
+	/**
+	 * @param id
+	 * @return true if an aptamer was stored under <code>id</code>
+	 */
+	public boolean contains(int id){
+
+		return recordOf(id) != 0;
+
+	}
+
+	/**
+	 * @param id
+	 * @return the aptamer stored under <code>id</code> or null if none exists
+	 */
+	public byte[] get(int id){
+
+		long record = recordOf(id);
+		if (record == 0){
+			return null;
+		}
+
+		byte[] a = new byte[heap.getInt(record)];
+		heap.get(record + RECORD_HEADER_SIZE, a, 0, a.length);
+
+		return a;
+	}
+
+	/**
+	 * Compares the aptamer stored under <code>id</code> with <code>a</code> without copying it
+	 * @param id
+	 * @param a the aptamer sequence
+	 * @return true if <code>a</code> is stored under <code>id</code>
+	 */
+	public boolean matches(int id, byte[] a){
+
+		long record = recordOf(id);
+		if (record == 0 || heap.getInt(record) != a.length){
+			return false;
+		}
+
+		for (int x=0; x<a.length; x++){
+			if (heap.getByte(record + RECORD_HEADER_SIZE + x) != a[x]){
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+	/**
+	 * @param id
+	 * @return the bounds of the randomized region of the aptamer stored under <code>id</code> or null if none exists
+	 */
+	public AptamerBounds getBounds(int id){
+
+		long record = recordOf(id);
+		if (record == 0){
+			return null;
+		}
+
+		return new AptamerBounds(heap.getInt(record + 4), heap.getInt(record + 8));
+	}
+
+	/**
+	 * @return the number of aptamers stored
+	 */
+	public long size(){
+		return count;
+	}
+
+	/**
+	 * @return the largest id stored, 0 if the view is empty
+	 */
+	public int getMaxId(){
+		return maxId;
+	}
+
+	/**
+	 * Removes all aptamers with an id larger than <code>maxId</code>. Their records must have
+	 * been stored after those of all remaining ids, so that the heap can be cut at the first of them.
+	 * @param maxId the largest id to keep
+	 */
+	public synchronized void truncate(int maxId){
+
+		long end = heapSize;
+		for (int id=this.maxId; id>Math.max(0, maxId); id--){
+
+			long record = recordOf(id);
+			if (record != 0){
+				end = Math.min(end, record);
+				offsets.putLong(((long) id) * 8, 0);
+				count--;
+			}
+
+		}
+
+		heapSize = end;
+		while (this.maxId > 0 && (this.maxId > maxId || recordOf(this.maxId) == 0)){
+			this.maxId--;
+		}
+
+		writeHeader();
+
+	}
+
+	/**
+	 * Removes all aptamers from the view
+	 */
+	public synchronized void clear(){
+
+		offsets.delete();
+		heap.delete();
+
+		try {
+			open();
+		} catch (IOException e) {
+			throw new IllegalStateException("Could not recreate " + heapPath.toString(), e);
+		}
+	}
+
+	/**
+	 * Writes any changes to the storage device
+	 */
+	public void force(){
+
+		offsets.force();
+		heap.force();
+
+	}
+
+	public void close(){
+
+		offsets.close();
+		heap.close();
+
+	}
+
+	/**
+	 * Closes the view and removes the files from disk
+	 */
+	public void delete(){
+
+		offsets.delete();
+		heap.delete();
+
+	}
+}
@@ -0,0 +1,29 @@
+/**
+ *
+ */
+package lib.aptamer.datastructures;
+
+import java.nio.file.Path;
+
+/**
+ * @author Jan Hoinka
+ * Codec storing the data as is
+ */
+public class NoneCodec implements Codec {
+
+	/**
+	 * @param file the file the codec is used for
+	 */
+	public NoneCodec(Path file){ }
+
+	@Override
+	public byte[] encode(byte[] data, int length) {
+		return null;
+	}
+
+	@Override
+	public byte[] decode(byte[] data, int rawLength) {
+		return data;
+	}
+
+}
@@ -0,0 +1,996 @@
+/**
+ *
+ */
+package lib.aptamer.datastructures;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.AbstractMap;
+import java.util.Iterator;
+import java.util.Map.Entry;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.logging.Level;
+
+import exceptions.InvalidAlphabetException;
+import utilities.AptaLogger;
+import utilities.Configuration;
+
+/**
+ * @author Jan Hoinka
+ *
+ * Implements the AptamerPool interface by storing every aptamer 2-bit packed
+ * (A=00, C=01, G=10, T=11) in memory mapped arenas outside of the java heap.
+ *
+ * Lookups by sequence are handled by a primitive open-addressing hash index
+ * which maps the hash of the packed sequence to its identifier. Hence,
+ * <code>registerAptamer</code> and <code>getIdentifier</code> require a single
+ * probe sequence rather than a cascade of bloom filter checks and tree lookups.
+ *
+ * Identifiers are assigned densely, starting at 1, in order of registration.
+ * Sequences containing characters other than A C G and T, or exceeding 65535 
+ * nucleotides, cannot be stored. They are skipped and assigned the identifier -1.
+ */
+public class PackedAptamerPool implements AptamerPool {
+
+	/**
+	 *
+	 */
+	private static final long serialVersionUID = 3806367221823560093L;
+
+	/**
+	 * Version of the on-disk layout. Stored in the meta file.
+	 */
+	private static final int VERSION = 1;
+
+	/**
+	 * Size in bytes of an entry in <code>records</code>. Each entry is composed of
+	 * the offset of the packed sequence in <code>sequences</code> (long), the hash
+	 * of the packed sequence (int), the length of the sequence in nucleotides (char)
+	 * and the start (inclusive) and end (exclusive) index of the randomized region (char, char).
+	 */
+	private static final int RECORD_SIZE = 20;
+
+	/**
+	 * The maximal fraction of occupied slots in the hash index before it is grown
+	 */
+	private static final double LOAD_FACTOR = 0.5;
+
+	/**
+	 * Folder in the project path which contains all the sequencing data
+	 * of an experiment that does not fit into volatile memory.
+	 */
+	private Path poolDataPath = null;
+
+	/**
+	 * The 2-bit packed sequences, stored back to back
+	 */
+	private transient MappedArena sequences = null;
+
+	/**
+	 * Fixed size entries indexed by aptamer id
+	 */
+	private transient MappedArena records = null;
+
+	/**
+	 * The open-addressing hash index. Each slot stores an aptamer id, 0 denotes an empty slot.
+	 */
+	private transient MappedArena index = null;
+
+	/**
+	 * The number of slots in <code>index</code>. Always a power of two.
+	 */
+	private long indexCapacity = Configuration.getParameters().getLong("PackedAptamerPool.initialCapacity");
+
+	/**
+	 * The number of bytes used in <code>sequences</code>
+	 */
+	private long sequencesSize = 0;
+
+	/**
+	 * The total number of all items stored in this class. Only modified under the write lock, 
+	 * after the record of a new aptamer has been written, so that it can be read without locking.
+	 */
+	private volatile int poolSize = 0;
+
+	/**
+	 * Once set, no more aptamers can be registered
+	 */
+	private boolean readOnly = false;
+
+	/**
+	 * Guards the hash index against concurrent growth while lookups are performed
+	 */
+	private transient ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+	/**
+	 * Per thread scratch space for packing query sequences, avoids allocations on lookups
+	 */
+	private transient ThreadLocal<byte[]> scratch = new ThreadLocal<byte[]>(){
+		@Override
+		protected byte[] initialValue(){
+			return new byte[64];
+		}
+	};
+
+	/**
+	 * Constructor
+	 * @param projectPath must point to the current projects working directory
+	 * all files related to the analysis of the HT-SELEX experiment are stored
+	 * in that path. It must exist and be writable for the user.
+	 * @param newdb if true, a new database is created on file.
+	 * Any previously existing database will be deleted. If false, the existing database
+	 * will be read from disk.
+	 * @throws FileNotFoundException if projectPath does not exist on file system.
+	 */
+	public PackedAptamerPool(Path projectPath, boolean newdb) throws IOException{
+
+		AptaLogger.log(Level.INFO, this.getClass(), "Instantiating PackedAptamerPool");
+
+		// Make sure the folder is writable
+		try{
+			File sample = new File(projectPath.toFile(), "deleteme.txt");
+			sample.createNewFile();
+			sample.delete();
+		}
+		catch (IOException e){
+			AptaLogger.log(Level.SEVERE, this.getClass(),"The project path " + projectPath.toString() + " is not writable.");
+			throw (new IllegalStateException("The project path " + projectPath.toString() + " is not writable.") );
+		}
+
+		// Check if the data path exists, and if not create it
+		this.poolDataPath = Files.createDirectories(Paths.get(projectPath.toString(), "pooldata"));
+
+		if (! newdb){
+
+			AptaLogger.log(Level.INFO, this.getClass(), "Searching for existing datasets in " + poolDataPath.toString());
+
+			readMeta();
+
+		}
+		else{
+
+			// Remove any previous data
+			Files.deleteIfExists(Paths.get(poolDataPath.toString(), "packed_sequences.arena"));
+			Files.deleteIfExists(Paths.get(poolDataPath.toString(), "packed_records.arena"));
+			Files.deleteIfExists(Paths.get(poolDataPath.toString(), "packed_index.arena"));
+
+			// the index capacity must be a power of two
+			indexCapacity = Long.highestOneBit(Math.max(indexCapacity, 1024) * 2 - 1);
+
+		}
+
+		sequences = new MappedArena(Paths.get(poolDataPath.toString(), "packed_sequences.arena"), false);
+		records = new MappedArena(Paths.get(poolDataPath.toString(), "packed_records.arena"), false);
+		index = new MappedArena(Paths.get(poolDataPath.toString(), "packed_index.arena"), false);
+		index.ensureCapacity(indexCapacity * 4);
+
+		if (newdb){
+			writeMeta();
+			AptaLogger.log(Level.CONFIG, this.getClass(), "Created new packed pool in " + poolDataPath.toString());
+		}
+		else{
+			AptaLogger.log(Level.INFO, this.getClass(), "Found and loaded a total of " + poolSize + " aptamers on disk.");
+		}
+
+	}
+
+	/* (non-Javadoc)
+	 * @see lib.aptamer.datastructures.AptamerPool#registerAptamer(byte[], int, int)
+	 */
+	@Override
+	public int registerAptamer(byte[] a, int rr_start, int rr_end) {
+
+		lock.writeLock().lock();
+		try{
+
+			if (readOnly){
+				throw new UnsupportedOperationException("Cannot register aptamers. The pool is in read only mode.");
+			}
+
+			// The sequence is stored 2-bit packed, and the length and the bounds as char
+			if (!isValid(a) || !fitsRecord(a, rr_start, rr_end)){
+				AptaLogger.log(Level.WARNING, this.getClass(), "Skipped an aptamer of length " + a.length + " which contains characters other than A C G or T or exceeds " + (int) Character.MAX_VALUE + " nucleotides.");
+				return -1;
+			}
+
+			byte[] packed = pack(a);
+			int packedLength = packedLength(a.length);
+			int hash = hash(packed, packedLength, a.length);
+
+			// Check if the item is already registered, and if so, return its identifier
+			long slot = hash & (indexCapacity-1);
+			int candidate;
+			while ( (candidate = index.getInt(slot*4)) != 0 ){
+
+				if (matches(candidate, packed, packedLength, a.length, hash)){
+					return candidate;
+				}
+
+				slot = (slot + 1) & (indexCapacity-1);
+			}
+
+			// Now insert the sequence, it becomes visible to readers once the pool size is updated
+			int id = poolSize + 1;
+
+			sequences.ensureCapacity(sequencesSize + packedLength);
+			sequences.put(sequencesSize, packed, 0, packedLength);
+
+			long record = ((long) id) * RECORD_SIZE;
+			records.ensureCapacity(record + RECORD_SIZE);
+			records.putLong(record, sequencesSize);
+			records.putInt(record + 8, hash);
+			records.putChar(record + 12, (char) a.length);
+			records.putChar(record + 14, (char) rr_start);
+			records.putChar(record + 16, (char) rr_end);
+
+			sequencesSize += packedLength;
+
+			index.putInt(slot*4, id);
+			poolSize = id;
+
+			// Make sure the probe sequences remain short
+			if (poolSize > indexCapacity * LOAD_FACTOR){
+				growIndex();
+			}
+
+			return id;
+
+		}
+		finally{
+			lock.writeLock().unlock();
+		}
+	}
+
+	/* (non-Javadoc)
+	 * @see lib.aptamer.datastructures.AptamerPool#registerAptamer(java.lang.String, int, int)
+	 */
+	@Override
+	public int registerAptamer(String a, int rr_start, int rr_end) {
+
+		return registerAptamer(a.getBytes(), rr_start, rr_end);
+
+	}
+
+	/* (non-Javadoc)
+	 * @see lib.aptamer.datastructures.AptamerPool#registerAptamers(lib.aptamer.datastructures.AptamerBatch)
+	 */
+	@Override
+	public int[] registerAptamers(AptamerBatch batch) {
+
+		int[] ids = new int[batch.size()];
+		int skipped = 0;
+
+		// The write lock is reentrant, so we only pay for acquiring it once per batch
+		lock.writeLock().lock();
+		try{
+
+			for (int x=0; x<batch.size(); x++){
+
+				byte[] a = batch.getSequence(x);
+
+				// A single sequence which cannot be stored must not fail the whole batch
+				if (!isValid(a) || !fitsRecord(a, batch.getRandomizedRegionStart(x), batch.getRandomizedRegionEnd(x))){
+					ids[x] = -1;
+					skipped++;
+					continue;
+				}
+
+				ids[x] = registerAptamer(a, batch.getRandomizedRegionStart(x), batch.getRandomizedRegionEnd(x));
+			}
+
+		}
+		finally{
+			lock.writeLock().unlock();
+		}
+
+		if (skipped > 0){
+			AptaLogger.log(Level.WARNING, this.getClass(), "Skipped " + skipped + " aptamers which contain characters other than A C G or T or exceed " + (int) Character.MAX_VALUE + " nucleotides.");
+		}
+
+		return ids;
+	}
+
+	/* (non-Javadoc)
+	 * @see lib.aptamer.datastructures.AptamerPool#getIdentifier(byte[])
+	 */
+	@Override
+	public int getIdentifier(byte[] a) {
+
+		// Sequences outside the alphabet cannot be part of the pool
+		if (!isValid(a)){
+			return -1;
+		}
+
+		lock.readLock().lock();
+		try{
+
+			byte[] packed = pack(a);
+			int packedLength = packedLength(a.length);
+			int hash = hash(packed, packedLength, a.length);
+
+			long slot = hash & (indexCapacity-1);
+			int candidate;
+			while ( (candidate = index.getInt(slot*4)) != 0 ){
+
+				if (matches(candidate, packed, packedLength, a.length, hash)){
+					return candidate;
+				}
+
+				slot = (slot + 1) & (indexCapacity-1);
+			}
+
+			return -1;
+
+		}
+		finally{
+			lock.readLock().unlock();
+		}
+
+	}
+
+	/* (non-Javadoc)
+	 * @see lib.aptamer.datastructures.AptamerPool#getIdentifier(java.lang.String)
+	 */
+	@Override
+	public int getIdentifier(String a) {
+
+		return getIdentifier(a.getBytes());
+
+	}
+
+	/* (non-Javadoc)
+	 * @see lib.aptamer.datastructures.AptamerPool#getAptamer(int)
+	 */
+	@Override
+	public byte[] getAptamer(int id) {
+
+		if (!containsAptamer(id)){
+			return null;
+		}
+
+		long record = ((long) id) * RECORD_SIZE;
+		long offset = records.getLong(record);
+		int length = records.getChar(record + 12);
+
+		// unpack the sequence
+		byte[] aptamer = new byte[length];
+		for (int x=0; x<length; x++){
+			int code = (sequences.getByte(offset + (x >>> 2)) >>> (6 - 2*(x & 3))) & 3;
+			aptamer[x] = ALPHABET[code];
+		}
+
+		return aptamer;
+
+	}
+
+	/* (non-Javadoc)
+	 * @see lib.aptamer.datastructures.AptamerPool#getAptamerBounds(int)
+	 */
+	@Override
+	public AptamerBounds getAptamerBounds(int id) {
+
+		if (!containsAptamer(id)){
+			return null;
+		}
+
+		long record = ((long) id) * RECORD_SIZE;
+
+		return new AptamerBounds(records.getChar(record + 14), records.getChar(record + 16));
+
+	}
+
+	/* (non-Javadoc)
+	 * @see lib.aptamer.datastructures.AptamerPool#containsAptamer(byte[])
+	 */
+	@Override
+	public Boolean containsAptamer(byte[] a) {
+
+		return getIdentifier(a) != -1;
+
+	}
+
+	/* (non-Javadoc)
+	 * @see lib.aptamer.datastructures.AptamerPool#containsAptamer(java.lang.String)
+	 */
+	@Override
+	public Boolean containsAptamer(String a) {
+
+		return getIdentifier(a.getBytes()) != -1;
+
+	}
+
+	/* (non-Javadoc)
+	 * @see lib.aptamer.datastructures.AptamerPool#containsAptamer(int)
+	 */
+	@Override
+	public Boolean containsAptamer(int id) {
+
+		return id > 0 && id <= poolSize;
+
+	}
+
+	@Override
+	public int size() {
+		return poolSize;
+	}
+
+	/**
+	 * Removes all items from the pool. The arenas are replaced, hence neither lookups nor 
+	 * registrations must be performed concurrently, <code>getAptamer</code> and 
+	 * <code>getAptamerBounds</code> read them without locking.
+	 * @see lib.aptamer.datastructures.AptamerPool#clear()
+	 */
+	@Override
+	public void clear() {
+
+		lock.writeLock().lock();
+		try{
+
+			AptaLogger.log(Level.CONFIG, this.getClass(), "Deleting all content in " + poolDataPath.toString());
+
+			sequences.delete();
+			records.delete();
+			index.delete();
+
+			poolSize = 0;
+			sequencesSize = 0;
+
+			sequences = new MappedArena(Paths.get(poolDataPath.toString(), "packed_sequences.arena"), false);
+			records = new MappedArena(Paths.get(poolDataPath.toString(), "packed_records.arena"), false);
+			index = new MappedArena(Paths.get(poolDataPath.toString(), "packed_index.arena"), false);
+			index.ensureCapacity(indexCapacity * 4);
+
+			writeMeta();
+
+		} catch (IOException e) {
+			AptaLogger.log(Level.SEVERE, this.getClass(), "Error clearing pool data in " + poolDataPath.toString());
+			e.printStackTrace();
+		}
+		finally{
+			lock.writeLock().unlock();
+		}
+
+	}
+
+	/* (non-Javadoc)
+	 * @see lib.aptamer.datastructures.AptamerPool#truncate(int)
+	 */
+	@Override
+	public void truncate(int size) {
+
+		lock.writeLock().lock();
+		try{
+
+			if (size > poolSize || (size == poolSize && !hasStaleIndexEntries())){
+				return;
+			}
+
+			AptaLogger.log(Level.INFO, this.getClass(), "Truncating the pool from " + poolSize + " to " + size + " aptamers.");
+
+			// Sequences are stored in order of their ids, so the removed ones form the tail
+			sequencesSize = records.getLong(((long) size + 1) * RECORD_SIZE);
+			poolSize = size;
+
+			rebuildIndex(indexCapacity);
+
+		}
+		finally{
+			lock.writeLock().unlock();
+		}
+
+	}
+
+	/**
+	 * The index is a memory mapped file and might contain identifiers registered after the
+	 * meta information was last written, e.g. if the application was not shut down properly.
+	 * @return true if the index contains identifiers larger than <code>poolSize</code>
+	 */
+	private boolean hasStaleIndexEntries(){
+
+		long slots = Math.min(index.capacity() / 4, indexCapacity);
+		for (long slot=0; slot<slots; slot++){
+			if (index.getInt(slot*4) > poolSize){
+				return true;
+			}
+		}
+
+		return false;
+	}
+
+	/**
+	 * Writes all data to disk and closes the file handles. The meta information
+	 * must be current on disk in order to reopen the pool in a later session.
+	 */
+	@Override
+	public void close() {
+
+		AptaLogger.log(Level.CONFIG, this.getClass(), "Closing pool file handles.");
+
+		lock.writeLock().lock();
+		try{
+			writeMeta();
+
+			sequences.close();
+			records.close();
+			index.close();
+		}
+		finally{
+			lock.writeLock().unlock();
+		}
+
+	}
+
+	/* (non-Javadoc)
+	 * @see lib.aptamer.datastructures.AptamerPool#checkpoint()
+	 */
+	@Override
+	public void checkpoint() {
+
+		lock.writeLock().lock();
+		try{
+
+			// The data must be on disk before the meta information refers to it
+			sequences.force();
+			records.force();
+			index.force();
+			writeMeta();
+
+		}
+		finally{
+			lock.writeLock().unlock();
+		}
+
+	}
+
+	/* (non-Javadoc)
+	 * @see lib.aptamer.datastructures.AptamerPool#setReadOnly()
+	 */
+	@Override
+	public void setReadOnly() {
+
+		lock.writeLock().lock();
+		try{
+			readOnly = true;
+
+			// Make sure everything is persisted
+			writeMeta();
+			sequences.force();
+			records.force();
+			index.force();
+		}
+		finally{
+			lock.writeLock().unlock();
+		}
+
+	}
+
+	/* (non-Javadoc)
+	 * @see lib.aptamer.datastructures.AptamerPool#setReadWrite()
+	 */
+	@Override
+	public void setReadWrite() {
+
+		lock.writeLock().lock();
+		try{
+			readOnly = false;
+		}
+		finally{
+			lock.writeLock().unlock();
+		}
+
+	}
+
+	/**
+	 * Doubles the number of slots in the hash index and reinserts all identifiers.
+	 * The hash of each sequence is stored in <code>records</code>, so no sequence
+	 * needs to be read in the process. Must be called while holding the write lock.
+	 */
+	private void growIndex(){
+
+		long newCapacity = indexCapacity * 2;
+
+		AptaLogger.log(Level.CONFIG, this.getClass(), "Growing hash index to " + newCapacity + " slots. Total number of aptamers: " + poolSize);
+
+		rebuildIndex(newCapacity);
+
+	}
+
+	/**
+	 * Replaces the hash index by one with <code>newCapacity</code> slots containing the 
+	 * identifiers <code>1</code> to <code>poolSize</code>. Must be called while holding the write lock.
+	 */
+	private void rebuildIndex(long newCapacity){
+
+		Path indexPath = Paths.get(poolDataPath.toString(), "packed_index.arena");
+		Path tmpPath = Paths.get(poolDataPath.toString(), "packed_index.arena.tmp");
+
+		try {
+
+			Files.deleteIfExists(tmpPath);
+			MappedArena grown = new MappedArena(tmpPath, false);
+			grown.ensureCapacity(newCapacity * 4);
+
+			for (int id=1; id<=poolSize; id++){
+
+				long slot = records.getInt(((long) id) * RECORD_SIZE + 8) & (newCapacity-1);
+				while (grown.getInt(slot*4) != 0){
+					slot = (slot + 1) & (newCapacity-1);
+				}
+				grown.putInt(slot*4, id);
+
+			}
+
+			index.delete();
+			grown.close();
+			Files.move(tmpPath, indexPath);
+
+			index = new MappedArena(indexPath, false);
+			indexCapacity = newCapacity;
+
+			writeMeta();
+
+		} catch (IOException e) {
+			AptaLogger.log(Level.SEVERE, this.getClass(), "Error growing the hash index at " + indexPath.toString());
+			throw new IllegalStateException("Error growing the hash index at " + indexPath.toString(), e);
+		}
+
+	}
+
+	/**
+	 * Compares the packed query against the aptamer with identifier <code>id</code>
+	 */
+	private boolean matches(int id, byte[] packed, int packedLength, int length, int hash){
+
+		long record = ((long) id) * RECORD_SIZE;
+
+		// Cheap checks first
+		if (records.getInt(record + 8) != hash || records.getChar(record + 12) != length){
+			return false;
+		}
+
+		long offset = records.getLong(record);
+		for (int x=0; x<packedLength; x++){
+			if (sequences.getByte(offset + x) != packed[x]){
+				return false;
+			}
+		}
+
+		return true;
+
+	}
+
+	/**
+	 * Nucleotides in order of their 2-bit code
+	 */
+	private static final byte[] ALPHABET = {'A', 'C', 'G', 'T'};
+
+	/**
+	 * @return the number of bytes required to store <code>length</code> nucleotides 2-bit packed
+	 */
+	private static int packedLength(int length){
+		return (length + 3) >>> 2;
+	}
+
+	/**
+	 * Packs <code>a</code> into the scratch space of the current thread
+	 * @return the scratch space containing the packed sequence
+	 */
+	private byte[] pack(byte[] a){
+
+		int packedLength = packedLength(a.length);
+
+		byte[] packed = scratch.get();
+		if (packed.length < packedLength){
+			packed = new byte[packedLength];
+			scratch.set(packed);
+		}
+
+		for (int x=0; x<packedLength; x++){
+			packed[x] = 0;
+		}
+
+		for (int x=0; x<a.length; x++){
+
+			int code;
+			switch (a[x]){
+				case 'A': code = 0; break;
+				case 'C': code = 1; break;
+				case 'G': code = 2; break;
+				case 'T': code = 3; break;
+				default:
+					throw new InvalidAlphabetException("Aptamer " + new String(a) + " contains characters other than A C G or T.");
+			}
+
+			packed[x >>> 2] |= code << (6 - 2*(x & 3));
+		}
+
+		return packed;
+	}
+
+	/**
+	 * @return true if the length of <code>a</code> and the bounds of its randomized region can be stored in a record
+	 */
+	private static boolean fitsRecord(byte[] a, int rr_start, int rr_end){
+
+		return a.length <= Character.MAX_VALUE
+				&& rr_start >= 0 && rr_start <= Character.MAX_VALUE
+				&& rr_end >= 0 && rr_end <= Character.MAX_VALUE;
+
+	}
+
+	/**
+	 * @return true if <code>a</code> only consists of A C G and T
+	 */
+	private static boolean isValid(byte[] a){
+
+		for (int x=0; x<a.length; x++){
+			if (a[x] != 'A' && a[x] != 'C' && a[x] != 'G' && a[x] != 'T'){
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+	/**
+	 * FNV-1a hash over the packed sequence, finalized with the murmur3 mixer
+	 */
+	private static int hash(byte[] packed, int packedLength, int length){
+
+		int h = 0x811C9DC5 ^ length;
+		for (int x=0; x<packedLength; x++){
+			h ^= packed[x] & 0xFF;
+			h *= 0x01000193;
+		}
+
+		h ^= h >>> 16;
+		h *= 0x85EBCA6B;
+		h ^= h >>> 13;
+		h *= 0xC2B2AE35;
+		h ^= h >>> 16;
+
+		return h;
+	}
+
+	/**
+	 * Reads the state of the pool from the meta file on disk
+	 */
+	private void readMeta() throws IOException{
+
+		Path meta = Paths.get(poolDataPath.toString(), "packed.meta");
+
+		if (Files.notExists(meta)){
+			AptaLogger.log(Level.SEVERE, this.getClass(), "No packed pool data was found in " + poolDataPath.toString());
+			throw new IllegalStateException("No packed pool data was found in " + poolDataPath.toString());
+		}
+
+		try (DataInputStream dis = new DataInputStream(new FileInputStream(meta.toFile()))){
+
+			int version = dis.readInt();
+			if (version != VERSION){
+				throw new IllegalStateException("Unsupported packed pool version " + version + " in " + meta.toString());
+			}
+
+			poolSize = dis.readInt();
+			sequencesSize = dis.readLong();
+			indexCapacity = dis.readLong();
+
+		}
+	}
+
+	/**
+	 * Stores the state of the pool in the meta file on disk. The file is replaced
+	 * atomically so that it remains readable if the application terminates abnormally.
+	 */
+	private void writeMeta(){
+
+		Path meta = Paths.get(poolDataPath.toString(), "packed.meta");
+		Path tmp = Paths.get(poolDataPath.toString(), "packed.meta.tmp");
+
+		try {
+
+			try (FileOutputStream fos = new FileOutputStream(tmp.toFile()); DataOutputStream dos = new DataOutputStream(fos)){
+
+				dos.writeInt(VERSION);
+				dos.writeInt(poolSize);
+				dos.writeLong(sequencesSize);
+				dos.writeLong(indexCapacity);
+
+				dos.flush();
+				fos.getFD().sync();
+
+			}
+
+			Files.move(tmp, meta, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+		} catch (IOException e) {
+			AptaLogger.log(Level.SEVERE, this.getClass(), "Error writing " + meta.toString());
+			e.printStackTrace();
+		}
+
+	}
+
+	/**
+	 * @author Jan Hoinka
+	 * Iterates over all identifiers in the order they have been assigned
+	 */
+	private class IdIterator implements Iterator<Integer> {
+
+		private int current = 0;
+
+		@Override
+		public boolean hasNext() {
+			return current < poolSize;
+		}
+
+		@Override
+		public Integer next() {
+
+			if (!hasNext()){
+				throw new NoSuchElementException();
+			}
+
+			return ++current;
+		}
+
+		@Override
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+	}
+
+	/* (non-Javadoc)
+	 * @see lib.aptamer.datastructures.AptamerPool#iterator()
+	 */
+	@Override
+	public Iterable<Entry<byte[], Integer>> iterator() {
+
+		return new Iterable<Entry<byte[], Integer>>(){
+
+			@Override
+			public Iterator<Entry<byte[], Integer>> iterator() {
+
+				return new Iterator<Entry<byte[], Integer>>(){
+
+					private IdIterator ids = new IdIterator();
+
+					@Override
+					public boolean hasNext() {
+						return ids.hasNext();
+					}
+
+					@Override
+					public Entry<byte[], Integer> next() {
+						int id = ids.next();
+						return new AbstractMap.SimpleEntry<byte[], Integer>(getAptamer(id), id);
+					}
+
+					@Override
+					public void remove() {
+						throw new UnsupportedOperationException();
+					}
+				};
+			}
+		};
+	}
+
+	/* (non-Javadoc)
+	 * @see lib.aptamer.datastructures.AptamerPool#inverse_view_iterator()
+	 */
+	@Override
+	public Iterable<Entry<Integer, byte[]>> inverse_view_iterator() {
+
+		return new Iterable<Entry<Integer, byte[]>>(){
+
+			@Override
+			public Iterator<Entry<Integer, byte[]>> iterator() {
+
+				return new Iterator<Entry<Integer, byte[]>>(){
+
+					private IdIterator ids = new IdIterator();
+
+					@Override
+					public boolean hasNext() {
+						return ids.hasNext();
+					}
+
+					@Override
+					public Entry<Integer, byte[]> next() {
+						int id = ids.next();
+						return new AbstractMap.SimpleEntry<Integer, byte[]>(id, getAptamer(id));
+					}
+
+					@Override
+					public void remove() {
+						throw new UnsupportedOperationException();
+					}
+				};
+			}
+		};
+	}
+
+	/* (non-Javadoc)
+	 * @see lib.aptamer.datastructures.AptamerPool#id_iterator()
+	 */
+	@Override
+	public Iterable<Integer> id_iterator() {
+
+		return new Iterable<Integer>(){
+
+			@Override
+			public Iterator<Integer> iterator() {
+				return new IdIterator();
+			}
+		};
+	}
+
+	/* (non-Javadoc)
+	 * @see lib.aptamer.datastructures.AptamerPool#spliterator()
+	 */
+	@Override
+	public Spliterator<Entry<byte[], Integer>> spliterator() {
+		return new PoolSpliterator(1, poolSize+1);
+	}
+
+	/* (non-Javadoc)
+	 * @see lib.aptamer.datastructures.AptamerPool#inverse_view_spliterator()
+	 */
+	@Override
+	public Spliterator<Entry<Integer, byte[]>> inverse_view_spliterator() {
+		return new InverseViewSpliterator(1, poolSize+1);
+	}
+
+	/**
+	 * @author Jan Hoinka
+	 * Spliterator over a range of identifiers, providing the aptamer->id view
+	 */
+	private class PoolSpliterator extends IndexRangeSpliterator<Entry<byte[], Integer>> {
+
+		public PoolSpliterator(int from, int to) {
+			super(from, to);
+		}
+
+		@Override
+		protected Entry<byte[], Integer> get(int id) {
+			return new AbstractMap.SimpleEntry<byte[], Integer>(getAptamer(id), id);
+		}
+
+		@Override
+		protected IndexRangeSpliterator<Entry<byte[], Integer>> create(int from, int to) {
+			return new PoolSpliterator(from, to);
+		}
+	}
+
+	/**
+	 * @author Jan Hoinka
+	 * Spliterator over a range of identifiers, providing the id->aptamer view
+	 */
+	private class InverseViewSpliterator extends IndexRangeSpliterator<Entry<Integer, byte[]>> {
+
+		public InverseViewSpliterator(int from, int to) {
+			super(from, to);
+		}
+
+		@Override
+		protected Entry<Integer, byte[]> get(int id) {
+			return new AbstractMap.SimpleEntry<Integer, byte[]>(id, getAptamer(id));
+		}
+
+		@Override
+		protected IndexRangeSpliterator<Entry<Integer, byte[]>> create(int from, int to) {
+			return new InverseViewSpliterator(from, to);
+		}
+	}
+
+}
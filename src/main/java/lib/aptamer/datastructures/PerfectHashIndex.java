@@ -0,0 +1,442 @@
+/**
+ *
+ */
+package lib.aptamer.datastructures;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * @author Jan Hoinka
+ *
+ * Minimal perfect hash index mapping the aptamers of a frozen pool to their identifiers.
+ * Once a pool no longer changes, every sequence can be assigned a unique slot in
+ * <code>[0, n)</code> by a minimal perfect hash function, so that a lookup costs one
+ * hash computation plus one verification read, no matter how many files the
+ * pool consists of.
+ *
+ * The hash function follows BBHash (Limasset et al., Fast and scalable minimal perfect
+ * hashing for massive key sets). Each level is a bit vector of <code>GAMMA</code> bits per
+ * remaining key. A key is placed on the first level where its position is not shared with any
+ * other key. Keys colliding on all levels, which only happens if their 64 bit hashes coincide,
+ * are stored in a small overflow table sorted by hash.
+ *
+ * Every slot stores a 32 bit fingerprint of the key and its identifier. The fingerprint rejects
+ * almost all sequences which are not part of the pool without touching the pool, the
+ * remaining candidates are verified against the inverse view.
+ *
+ * The file starts with a header of <code>HEADER_SIZE</code> bytes (version, number of levels,
+ * number of keys, largest id, size of the overflow table, number of words of the bit vectors)
+ * followed by the first word of each level, the slots, the bit vectors of all levels, the rank
+ * of each word, and the overflow table. The version is written last, so that incomplete files
+ * are rejected on open.
+ *
+ * Lookups are thread-safe.
+ */
+public class PerfectHashIndex {
+
+	/**
+	 * Version of the file layout
+	 */
+	private static final int VERSION = 1;
+
+	/**
+	 * Number of bytes preceding the level table
+	 */
+	private static final int HEADER_SIZE = 64;
+
+	/**
+	 * Maximal number of levels before the remaining keys are moved to the overflow table
+	 */
+	private static final int MAX_LEVELS = 32;
+
+	/**
+	 * Position of the first slot, following the level table
+	 */
+	private static final long SLOTS_OFFSET = HEADER_SIZE + (MAX_LEVELS + 1) * 8;
+
+	/**
+	 * Number of bits per remaining key on each level. Larger values use more space
+	 * but place more keys on the first levels.
+	 */
+	private static final double GAMMA = 2.0;
+
+	/**
+	 * Number of bytes per entry in the overflow table (hash and identifier)
+	 */
+	private static final int OVERFLOW_ENTRY_SIZE = 12;
+
+	/**
+	 * The mapped index
+	 */
+	private MappedArena arena = null;
+
+	/**
+	 * The sequences the identifiers are verified against
+	 */
+	private MappedInverseView inverse = null;
+
+	/**
+	 * Number of keys in the index
+	 */
+	private long count;
+
+	/**
+	 * The first word of each level, plus the end of the last level
+	 */
+	private long[] levelStart = null;
+
+	/**
+	 * Position of the bit vectors in the file
+	 */
+	private long bitsOffset;
+
+	/**
+	 * Position of the ranks in the file
+	 */
+	private long ranksOffset;
+
+	/**
+	 * Position of the overflow table in the file
+	 */
+	private long overflowOffset;
+
+	/**
+	 * Number of entries in the overflow table
+	 */
+	private int overflowSize;
+
+	private PerfectHashIndex(MappedArena arena, MappedInverseView inverse){
+
+		this.arena = arena;
+		this.inverse = inverse;
+
+		int levels = arena.getInt(4);
+		count = arena.getLong(8);
+		overflowSize = arena.getInt(20);
+		long words = arena.getLong(24);
+
+		levelStart = new long[levels + 1];
+		for (int x=0; x<=levels; x++){
+			levelStart[x] = arena.getLong(HEADER_SIZE + x * 8);
+		}
+
+		bitsOffset = SLOTS_OFFSET + count * 8;
+		ranksOffset = bitsOffset + words * 8;
+		overflowOffset = ranksOffset + words * 4;
+	}
+
+	/**
+	 * Opens the index stored at <code>file</code> if it was built from the current content
+	 * of <code>inverse</code>, otherwise a new index is built from <code>inverse</code> and
+	 * stored in its place.
+	 * @param file the location of the index on disk
+	 * @param inverse the id->aptamer view of the frozen pool
+	 * @return the index
+	 * @throws IOException
+	 */
+	public static PerfectHashIndex open(Path file, MappedInverseView inverse) throws IOException{
+
+		if (Files.exists(file)){
+
+			MappedArena arena = new MappedArena(file, true);
+
+			if (arena.capacity() >= HEADER_SIZE
+					&& arena.getInt(0) == VERSION
+					&& arena.getLong(8) == inverse.size()
+					&& arena.getInt(16) == inverse.getMaxId()){
+
+				return new PerfectHashIndex(arena, inverse);
+			}
+
+			arena.delete();
+		}
+
+		return build(file, inverse);
+	}
+
+	/**
+	 * Builds the index for all aptamers in <code>inverse</code> and stores it at <code>file</code>
+	 * @param file the location of the index on disk
+	 * @param inverse the id->aptamer view of the frozen pool
+	 * @return the index
+	 * @throws IOException
+	 */
+	private static PerfectHashIndex build(Path file, MappedInverseView inverse) throws IOException{
+
+		int maxId = inverse.getMaxId();
+
+		// Collect the hashes of all keys
+		long[] keys = new long[(int) inverse.size()];
+		int[] ids = new int[keys.length];
+		int remaining = 0;
+		for (int id=1; id<=maxId && remaining<keys.length; id++){
+
+			byte[] a = inverse.get(id);
+			if (a == null){
+				continue;
+			}
+
+			keys[remaining] = MappedBloomFilter.hash(a);
+			ids[remaining] = id;
+			remaining++;
+		}
+
+		long count = remaining;
+		long bitsOffset = SLOTS_OFFSET + count * 8;
+
+		MappedArena arena = new MappedArena(file, false);
+		arena.ensureCapacity(bitsOffset);
+
+		long[] levelStart = new long[MAX_LEVELS + 1];
+		long word = 0;
+		int assigned = 0;
+		int levels = 0;
+
+		while (remaining > 0 && levels < MAX_LEVELS){
+
+			int words = (int) Math.max(1, Math.ceil(GAMMA * remaining / 64));
+			long bits = words * 64L;
+
+			// Mark the positions taken by exactly one key
+			long[] taken = new long[words];
+			long[] collided = new long[words];
+			for (int x=0; x<remaining; x++){
+
+				long b = position(keys[x], levels, bits);
+				long mask = 1L << (b & 63);
+
+				if ((taken[(int) (b >>> 6)] & mask) != 0){
+					collided[(int) (b >>> 6)] |= mask;
+				}
+				else{
+					taken[(int) (b >>> 6)] |= mask;
+				}
+			}
+
+			arena.ensureCapacity(bitsOffset + (word + words) * 8);
+
+			int[] rank = new int[words];
+			int r = assigned;
+			for (int w=0; w<words; w++){
+
+				taken[w] &= ~collided[w];
+				rank[w] = r;
+				r += Long.bitCount(taken[w]);
+
+				arena.putLong(bitsOffset + (word + w) * 8, taken[w]);
+			}
+
+			// Store the keys placed on this level and retry the others on the next one
+			int kept = 0;
+			for (int x=0; x<remaining; x++){
+
+				long b = position(keys[x], levels, bits);
+				long mask = 1L << (b & 63);
+				long bitvector = taken[(int) (b >>> 6)];
+
+				if ((bitvector & mask) != 0){
+
+					long slot = rank[(int) (b >>> 6)] + Long.bitCount(bitvector & (mask - 1));
+					arena.putInt(SLOTS_OFFSET + slot * 8, fingerprint(keys[x]));
+					arena.putInt(SLOTS_OFFSET + slot * 8 + 4, ids[x]);
+				}
+				else{
+					keys[kept] = keys[x];
+					ids[kept] = ids[x];
+					kept++;
+				}
+			}
+
+			assigned = r;
+			word += words;
+			levels++;
+			levelStart[levels] = word;
+			remaining = kept;
+		}
+
+		// The rank of each word is the number of bits set in all preceding words
+		long ranksOffset = bitsOffset + word * 8;
+		arena.ensureCapacity(ranksOffset + word * 4);
+		int r = 0;
+		for (long w=0; w<word; w++){
+			arena.putInt(ranksOffset + w * 4, r);
+			r += Long.bitCount(arena.getLong(bitsOffset + w * 8));
+		}
+
+		// Keys which could not be placed go to the overflow table
+		long overflowOffset = ranksOffset + word * 4;
+		arena.ensureCapacity(overflowOffset + (long) remaining * OVERFLOW_ENTRY_SIZE);
+		Integer[] order = new Integer[remaining];
+		for (int x=0; x<remaining; x++){
+			order[x] = x;
+		}
+
+		final long[] overflowKeys = keys;
+		Arrays.sort(order, new Comparator<Integer>(){
+			@Override
+			public int compare(Integer o1, Integer o2) {
+				return Long.compare(overflowKeys[o1], overflowKeys[o2]);
+			}
+		});
+
+		for (int x=0; x<remaining; x++){
+			arena.putLong(overflowOffset + (long) x * OVERFLOW_ENTRY_SIZE, keys[order[x]]);
+			arena.putInt(overflowOffset + (long) x * OVERFLOW_ENTRY_SIZE + 8, ids[order[x]]);
+		}
+
+		for (int x=0; x<=levels; x++){
+			arena.putLong(HEADER_SIZE + x * 8, levelStart[x]);
+		}
+
+		arena.putInt(4, levels);
+		arena.putLong(8, count);
+		arena.putInt(16, maxId);
+		arena.putInt(20, remaining);
+		arena.putLong(24, word);
+		arena.force();
+
+		// Only now the index is complete
+		arena.putInt(0, VERSION);
+		arena.force();
+
+		return new PerfectHashIndex(arena, inverse);
+	}
+
+	/**
+	 * @param h the hash of the key
+	 * @param level the level of the bit vector
+	 * @param bits the size of the bit vector
+	 * @return the position of the key in the bit vector of <code>level</code>
+	 */
+	private static long position(long h, int level, long bits){
+
+		return (MappedBloomFilter.mix(h + level * 0x9E3779B97F4A7C15L) & Long.MAX_VALUE) % bits;
+
+	}
+
+	/**
+	 * @param h the hash of the key
+	 * @return the fingerprint stored along with the identifier
+	 */
+	private static int fingerprint(long h){
+
+		return (int) MappedBloomFilter.mix(h ^ 0xC2B2AE3D27D4EB4FL);
+
+	}
+
+	/**
+	 * @param a the aptamer sequence
+	 * @return the identifier of <code>a</code> or -1 if it is not part of the index
+	 */
+	public int getIdentifier(byte[] a){
+
+		long h = MappedBloomFilter.hash(a);
+
+		for (int level=0; level<levelStart.length-1; level++){
+
+			long b = position(h, level, (levelStart[level+1] - levelStart[level]) * 64);
+			long w = levelStart[level] + (b >>> 6);
+			long mask = 1L << (b & 63);
+			long bitvector = arena.getLong(bitsOffset + w * 8);
+
+			if ((bitvector & mask) == 0){
+				continue;
+			}
+
+			// The first level with a bit set is the only one a member of the index can be placed on
+			long slot = arena.getInt(ranksOffset + w * 4) + Long.bitCount(bitvector & (mask - 1));
+			if (arena.getInt(SLOTS_OFFSET + slot * 8) != fingerprint(h)){
+				return -1;
+			}
+
+			int id = arena.getInt(SLOTS_OFFSET + slot * 8 + 4);
+
+			return inverse.matches(id, a) ? id : -1;
+		}
+
+		return getOverflowIdentifier(h, a);
+	}
+
+	/**
+	 * Binary search in the overflow table, verifying all entries with hash <code>h</code>
+	 */
+	private int getOverflowIdentifier(long h, byte[] a){
+
+		int low = 0;
+		int high = overflowSize;
+		while (low < high){
+
+			int mid = (low + high) >>> 1;
+			if (arena.getLong(overflowOffset + (long) mid * OVERFLOW_ENTRY_SIZE) < h){
+				low = mid + 1;
+			}
+			else{
+				high = mid;
+			}
+		}
+
+		for (int x=low; x<overflowSize && arena.getLong(overflowOffset + (long) x * OVERFLOW_ENTRY_SIZE) == h; x++){
+
+			int id = arena.getInt(overflowOffset + (long) x * OVERFLOW_ENTRY_SIZE + 8);
+			if (inverse.matches(id, a)){
+				return id;
+			}
+		}
+
+		return -1;
+	}
+
+	/**
+	 * @param count the number of aptamers to index
+	 * @return the approximate number of bytes of heap required to build an index over <code>count</code> aptamers
+	 */
+	public static long getConstructionBytes(long count){
+
+		// hashes and identifiers, plus the bit vectors and ranks of the first level
+		return count * 12 + (long) (count * GAMMA / 64) * (8 + 8 + 4);
+
+	}
+
+	/**
+	 * @return the number of aptamers in the index
+	 */
+	public long size(){
+		return count;
+	}
+
+	/**
+	 * @return the number of levels of the hash function
+	 */
+	public int getNumberOfLevels(){
+		return levelStart.length - 1;
+	}
+
+	/**
+	 * @return the number of bits per aptamer used by the hash function, excluding the slots
+	 */
+	public double getBitsPerKey(){
+		return count == 0 ? 0 : levelStart[levelStart.length-1] * (64 + 32) / (double) count;
+	}
+
+	public void close(){
+		arena.close();
+	}
+
+	/**
+	 * Closes the index and removes the file from disk
+	 */
+	public void delete(){
+		arena.delete();
+	}
+
+	/**
+	 * @return the location of the index on disk
+	 */
+	public Path getPath(){
+		return arena.getPath();
+	}
+}
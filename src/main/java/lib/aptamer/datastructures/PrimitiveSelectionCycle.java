@@ -0,0 +1,898 @@
+/**
+ *
+ */
+package lib.aptamer.datastructures;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.ListIterator;
+import java.util.Map.Entry;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+
+import it.unimi.dsi.fastutil.ints.Int2IntMap;
+import it.unimi.dsi.fastutil.ints.Int2IntOpenHashMap;
+import it.unimi.dsi.fastutil.longs.LongArrays;
+import it.unimi.dsi.fastutil.objects.ObjectIterator;
+import utilities.AptaLogger;
+import utilities.Configuration;
+
+/**
+ * @author Jan Hoinka
+ *
+ * This class contains all information regarding a single selection cycle.
+ *
+ * In contrast to <code>MapDBSelectionCycle</code>, the counts are kept in primitive
+ * open addressing hash maps while the cycle is being modified, avoiding boxing and
+ * disk round trips for every increment. The maps are partitioned into
+ * <code>PrimitiveSelectionCycle.concurrentShards</code> stripes with one lock each.
+ *
+ * Upon <code>setReadOnly()</code> or <code>close()</code>, the counts are spilled into
+ * a memory mapped column of (id, count) pairs sorted by id and the maps are released.
+ * Lookups are then performed via binary search on the column. Any subsequent modification
+ * loads the column back into memory. <code>checkpoint()</code> writes the column as well,
+ * but keeps the maps.
+ */
+public class PrimitiveSelectionCycle implements SelectionCycle{
+
+	/**
+	 *
+	 */
+	private static final long serialVersionUID = -3417862261589934210L;
+
+	/**
+	 * Version of the layout of the column file
+	 */
+	private static final int COLUMN_VERSION = 1;
+
+	/**
+	 * Number of bytes preceding the (id, count) pairs in the column file
+	 */
+	private static final int COLUMN_HEADER_SIZE = 16;
+
+
+	/**
+	 * The name of this selection cycle as defined in the configuration file
+	 */
+	private String name;
+
+
+	/**
+	 * The selection cycle number corresponding to this instance. The initial
+	 * pool should have a value of 0.
+	 */
+	private int round;
+
+
+	/**
+	 * True if this cycle corresponds to a control cycle. A control cycle is defined
+	 * as a selection round performed on target homologs in order to identify non-specific
+	 * binders.
+	 *
+	 * The default value is false.
+	 */
+	private Boolean isControlSelection = false;
+
+
+	/**
+	 * True if this cycle corresponds to a counter selection. A counter selection is
+	 * performed between two selection rounds as a means of removing non-binders from
+	 * the pool.
+	 *
+	 * The default value is false.
+	 */
+	private Boolean isCounterSelection = false;
+
+
+	/**
+	 * The number of stripes the counts are partitioned into.
+	 * Aptamer ids are assigned to stripes via <code>id % numberOfStripes</code>.
+	 */
+	private int numberOfStripes = Math.max(1, Configuration.getParameters().getInt("PrimitiveSelectionCycle.concurrentShards"));
+
+
+	/**
+	 * The in-memory counts, one map per stripe. Each map is its own lock.
+	 * Null if the counts have been spilled to <code>column</code>.
+	 */
+	private transient volatile Int2IntOpenHashMap[] counts = null;
+
+
+	/**
+	 * The spilled counts, a sorted array of (id, count) pairs.
+	 * Only authoritative if <code>counts</code> is null.
+	 */
+	private transient volatile MappedArena column = null;
+
+
+	/**
+	 * The number of (id, count) pairs in <code>column</code>
+	 */
+	private transient volatile int columnEntries = 0;
+
+
+	/**
+	 * Counts the total number of aptamer molecules belonging to this selection cycle
+	 */
+	private AtomicInteger size = new AtomicInteger(0);
+
+
+	/**
+	 * Counts the total number of unique aptamers belonging to this selection cycle
+	 */
+	private AtomicInteger unique_size = new AtomicInteger(0);
+
+	public PrimitiveSelectionCycle(String name, int round, boolean isControlSelection, boolean isCounterSelection, boolean newdb) throws IOException{
+
+		// Set basic information
+		this.name = name;
+		this.round = round;
+		this.isControlSelection = isControlSelection;
+		this.isCounterSelection = isCounterSelection;
+
+		// Check if the data path exists, and if not create it
+		Files.createDirectories(getCycleDataPath());
+
+		// Creating a new database
+		if (newdb)
+		{
+			AptaLogger.log(Level.CONFIG, this.getClass(), "Creating new selection cycle " + name + " in memory. It will be stored in '" + getColumnPath() + "'.");
+
+			Files.deleteIfExists(getColumnPath());
+			initializeStripes();
+		}
+		else { // we need to read from file and update class members
+			AptaLogger.log(Level.CONFIG, this.getClass(), "Reading from file '" + getColumnPath() + "' for selection cycle " + name + ".");
+
+			openColumn();
+
+			size.set(column.getInt(8));
+			unique_size.set(columnEntries);
+		}
+	}
+
+	/**
+	 * @return the folder containing the data of all selection cycles
+	 */
+	private Path getCycleDataPath(){
+
+		Path projectPath = Paths.get(Configuration.getParameters().getString("Experiment.projectPath"));
+		return Paths.get(projectPath.toString(), "cycledata");
+
+	}
+
+	/**
+	 * @return the location of the column file of this cycle
+	 */
+	private Path getColumnPath(){
+		return Paths.get(getCycleDataPath().toString(), round + "_" + name + ".counts");
+	}
+
+	/**
+	 * Creates empty count maps for all stripes
+	 */
+	private void initializeStripes(){
+
+		Int2IntOpenHashMap[] maps = new Int2IntOpenHashMap[numberOfStripes];
+		for (int x=0; x<numberOfStripes; x++){
+			maps[x] = new Int2IntOpenHashMap();
+		}
+
+		counts = maps;
+	}
+
+	/**
+	 * Maps the column file of this cycle. A missing or incompatible file is treated as an empty cycle.
+	 * @throws IOException
+	 */
+	private void openColumn() throws IOException{
+
+		MappedArena arena = new MappedArena(getColumnPath(), false);
+
+		if (arena.capacity() < COLUMN_HEADER_SIZE || arena.getInt(0) != COLUMN_VERSION){
+
+			AptaLogger.log(Level.WARNING, this.getClass(), "No valid counts found in '" + getColumnPath() + "' for selection cycle " + name + ".");
+
+			arena.ensureCapacity(COLUMN_HEADER_SIZE);
+			arena.putInt(0, COLUMN_VERSION);
+			arena.putInt(4, 0);
+			arena.putInt(8, 0);
+		}
+
+		columnEntries = arena.getInt(4);
+		column = arena;
+	}
+
+	/**
+	 * Makes sure the counts are held in memory so they can be modified,
+	 * loading them from the column file if required.
+	 * @return the count maps
+	 */
+	private Int2IntOpenHashMap[] ensureWritable(){
+
+		Int2IntOpenHashMap[] maps = counts;
+		if (maps != null){
+			return maps;
+		}
+
+		synchronized(this){
+
+			if (counts == null){
+
+				AptaLogger.log(Level.CONFIG, this.getClass(), "Loading counts of selection cycle " + name + " into memory.");
+
+				maps = new Int2IntOpenHashMap[numberOfStripes];
+				for (int x=0; x<numberOfStripes; x++){
+					maps[x] = new Int2IntOpenHashMap(columnEntries / numberOfStripes + 1);
+				}
+
+				for (int x=0; x<columnEntries; x++){
+					int id = column.getInt(COLUMN_HEADER_SIZE + 8L * x);
+					maps[stripe(id)].put(id, column.getInt(COLUMN_HEADER_SIZE + 8L * x + 4));
+				}
+
+				counts = maps;
+			}
+
+			return counts;
+		}
+	}
+
+	/**
+	 * Writes the in-memory counts to the column file and releases the maps
+	 */
+	private synchronized void spill(){
+
+		if (counts == null){
+			return;
+		}
+
+		writeColumn();
+
+		// From here on, lookups are served by the column
+		counts = null;
+
+	}
+
+	/**
+	 * Replaces the column file by the content of the in-memory counts. The maps remain
+	 * authoritative until they are released by the caller.
+	 */
+	private synchronized void writeColumn(){
+
+		long[] entries = snapshot(counts);
+
+		if (column != null){
+			column.close();
+		}
+
+		try {
+			Files.deleteIfExists(getColumnPath());
+			column = new MappedArena(getColumnPath(), false);
+		} catch (IOException e) {
+			AptaLogger.log(Level.SEVERE, this.getClass(), "Could not write " + getColumnPath().toString());
+			throw new IllegalStateException("Could not write " + getColumnPath().toString(), e);
+		}
+
+		column.ensureCapacity(COLUMN_HEADER_SIZE + 8L * entries.length);
+
+		for (int x=0; x<entries.length; x++){
+			column.putInt(COLUMN_HEADER_SIZE + 8L * x, (int) (entries[x] >>> 32));
+			column.putInt(COLUMN_HEADER_SIZE + 8L * x + 4, (int) entries[x]);
+		}
+
+		column.putInt(0, COLUMN_VERSION);
+		column.putInt(4, entries.length);
+		column.putInt(8, size.get());
+		column.force();
+
+		columnEntries = entries.length;
+
+		AptaLogger.log(Level.CONFIG, this.getClass(), "Stored " + entries.length + " counts of selection cycle " + name + " in '" + getColumnPath() + "'.");
+	}
+
+	/**
+	 * @param maps the count maps
+	 * @return the content of <code>maps</code> as (id << 32 | count), sorted by id
+	 */
+	private long[] snapshot(Int2IntOpenHashMap[] maps){
+
+		int total = 0;
+		for (Int2IntOpenHashMap map : maps){
+			synchronized(map){
+				total += map.size();
+			}
+		}
+
+		long[] entries = new long[total];
+		int pos = 0;
+
+		for (Int2IntOpenHashMap map : maps){
+			synchronized(map){
+				ObjectIterator<Int2IntMap.Entry> it = map.int2IntEntrySet().fastIterator();
+				while (it.hasNext() && pos < total){
+					Int2IntMap.Entry entry = it.next();
+					entries[pos++] = ((long) entry.getIntKey() << 32) | (entry.getIntValue() & 0xFFFFFFFFL);
+				}
+			}
+		}
+
+		// Ids are positive, so sorting the packed values sorts by id
+		LongArrays.radixSort(entries, 0, pos);
+
+		return pos == total ? entries : Arrays.copyOf(entries, pos);
+	}
+
+	/**
+	 * @param id the aptamer id
+	 * @return the stripe <code>id</code> belongs to
+	 */
+	private int stripe(int id){
+		return (id & 0x7FFFFFFF) % numberOfStripes;
+	}
+
+	/**
+	 * Adds <code>count</code> to the count of <code>id</code> and updates the sizes accordingly.
+	 * The caller must hold the lock of <code>map</code>.
+	 */
+	private void increment(Int2IntOpenHashMap map, int id, int count){
+
+		if (map.addTo(id, count) == 0){
+			unique_size.incrementAndGet();
+		}
+
+	}
+
+	@Override
+	public String toString(){
+
+		return this.name + " (" + this.size.get() + ")";
+
+	}
+
+
+	public int addToSelectionCycle(byte[] a, int rr_start, int rr_end, int count) {
+
+		// Check if the aptamer is already present in the pool and add it if not
+		int id_a = Configuration.getExperiment().getAptamerPool().registerAptamer(a, rr_start, rr_end);
+
+		// skip aptamers the pool could not store
+		if (id_a < 1){
+			return id_a;
+		}
+
+		// Update the pool size
+		size.addAndGet(count);
+
+		// Only updates to the same stripe need to be serialized
+		Int2IntOpenHashMap map = ensureWritable()[stripe(id_a)];
+
+		synchronized(map){
+			increment(map, id_a, count);
+		}
+
+		return id_a;
+
+	}
+
+	public int addToSelectionCycle(byte[] a, int rr_start, int rr_end) {
+		return addToSelectionCycle(a, rr_start, rr_end, 1);
+	}
+
+	public int addToSelectionCycle(String a, int rr_start, int rr_end){
+		return addToSelectionCycle(a.getBytes(), rr_start, rr_end, 1);
+	}
+
+	public int addToSelectionCycle(String a, int rr_start, int rr_end, int count){
+		return addToSelectionCycle(a.getBytes(), rr_start, rr_end, count);
+	}
+
+	public int[] addToSelectionCycle(AptamerBatch batch){
+
+		// Register all aptamers with the pool in one go
+		int[] ids = Configuration.getExperiment().getAptamerPool().registerAptamers(batch);
+
+		Int2IntOpenHashMap[] maps = ensureWritable();
+
+		// Group the entries of the batch by stripe so that every stripe is only locked once
+		int[] offsets = new int[numberOfStripes+1];
+		int total = 0;
+		for (int x=0; x<ids.length; x++){
+			// skip the aptamers the pool could not store
+			if (ids[x] < 1){
+				continue;
+			}
+			offsets[stripe(ids[x])+1]++;
+			total += batch.getCount(x);
+		}
+
+		for (int x=0; x<numberOfStripes; x++){
+			offsets[x+1] += offsets[x];
+		}
+
+		int[] order = new int[ids.length];
+		int[] fill = Arrays.copyOf(offsets, numberOfStripes);
+		for (int x=0; x<ids.length; x++){
+			if (ids[x] >= 1){
+				order[fill[stripe(ids[x])]++] = x;
+			}
+		}
+
+		// Update the pool size
+		size.addAndGet(total);
+
+		for (int x=0; x<numberOfStripes; x++){
+
+			if (offsets[x] == offsets[x+1]){
+				continue;
+			}
+
+			Int2IntOpenHashMap map = maps[x];
+
+			synchronized(map){
+				for (int y=offsets[x]; y<offsets[x+1]; y++){
+					increment(map, ids[order[y]], batch.getCount(order[y]));
+				}
+			}
+		}
+
+		return ids;
+	}
+
+	public boolean containsAptamer(byte[] a) {
+
+		// Get the corresponding aptamer id from the pool
+		int id_a = Configuration.getExperiment().getAptamerPool().getIdentifier(a);
+
+		return id_a != -1 && getAptamerCardinality(id_a) != 0;
+	}
+
+	public boolean containsAptamer(String a){
+		return containsAptamer(a.getBytes());
+	}
+
+
+	public int getAptamerCardinality(byte[] a) {
+
+		int id_a = Configuration.getExperiment().getAptamerPool().getIdentifier(a);
+
+		return getAptamerCardinality(id_a);
+	}
+
+	public int getAptamerCardinality(String a) {
+		return getAptamerCardinality(a.getBytes());
+	}
+
+	public int getAptamerCardinality(int id){
+
+		Int2IntOpenHashMap[] maps = counts;
+
+		if (maps != null){
+
+			Int2IntOpenHashMap map = maps[stripe(id)];
+			synchronized(map){
+				return map.get(id);
+			}
+
+		}
+
+		// Binary search on the column
+		MappedArena arena = column;
+		int low = 0;
+		int high = columnEntries - 1;
+
+		while (low <= high){
+
+			int mid = (low + high) >>> 1;
+			int mid_id = arena.getInt(COLUMN_HEADER_SIZE + 8L * mid);
+
+			if (mid_id < id){
+				low = mid + 1;
+			}
+			else if (mid_id > id){
+				high = mid - 1;
+			}
+			else{
+				return arena.getInt(COLUMN_HEADER_SIZE + 8L * mid + 4);
+			}
+		}
+
+		return 0;
+
+	}
+
+	public int getSize() {
+		return size.get();
+	}
+
+	public int getUniqueSize() {
+		return unique_size.get();
+	}
+
+	public String getName(){
+		return this.name;
+	}
+
+	public int getRound() {
+		return this.round;
+	}
+
+	public SelectionCycle getNextSelectionCycle() {
+
+		ArrayList<SelectionCycle> cycles = Configuration.getExperiment().getSelectionCycles();
+
+		// The element we aim to find
+		SelectionCycle next = null;
+
+		// Create iterator starting at the selection cycle and advance until we find the next element
+		ListIterator<SelectionCycle> li = cycles.listIterator(this.round);
+		while (li.hasNext() && next==null){
+
+			SelectionCycle current_cycle = li.next();
+			if (current_cycle != null){
+				next = current_cycle;
+			}
+
+		}
+
+		return next;
+
+	}
+
+	public SelectionCycle getPreviousSelectionCycle() {
+		ArrayList<SelectionCycle> cycles = Configuration.getExperiment().getSelectionCycles();
+
+		// The element we aim to find
+		SelectionCycle previous = null;
+
+		// Create iterator starting at the selection cycle and advance until we find the next element
+		ListIterator<SelectionCycle> li = cycles.listIterator(this.round);
+		while (li.hasPrevious() && previous==null){
+
+			SelectionCycle current_cycle = li.previous();
+			if (current_cycle != null){
+				previous = current_cycle;
+			}
+
+		}
+
+		return previous;
+	}
+
+	public ArrayList<SelectionCycle> getControlCycles() {
+
+		// If no control cycle is present, we return an empty list as specified by the interface
+		if (Configuration.getExperiment().getControlSelectionCycles().get(this.round) == null){
+			return new ArrayList<SelectionCycle>();
+		}
+
+		// Otherwise, we return the actual cycles
+		return Configuration.getExperiment().getControlSelectionCycles().get(this.round);
+
+	}
+
+	public ArrayList<SelectionCycle> getCounterSelectionCycles() {
+
+		// If no control cycle is present, we return an empty list as specified by the interface
+		if (Configuration.getExperiment().getCounterSelectionCycles().get(this.round) == null){
+			return new ArrayList<SelectionCycle>();
+		}
+
+		// Otherwise, we return the actual cycles
+		return Configuration.getExperiment().getCounterSelectionCycles().get(this.round);
+
+	}
+
+	public boolean isControlSelection() {
+		return isControlSelection;
+	}
+
+	public boolean isCounterSelection() {
+		return isCounterSelection;
+	}
+
+	public void setReadOnly() {
+
+		// No further modifications are expected, so the counts can be moved out of memory
+		spill();
+
+	}
+
+	@Override
+	public void setReadWrite() {
+
+		// The counts are loaded lazily upon the next modification
+
+	}
+
+	@Override
+	public synchronized void checkpoint() {
+
+		// A spilled cycle is on disk already
+		if (counts != null){
+			writeColumn();
+		}
+
+	}
+
+
+	public void close(){
+
+		spill();
+		column.close();
+
+	}
+
+	/**
+	 * The counts are not part of the serialized state, they are
+	 * written to the column file instead.
+	 *
+	 * Note: Calling this function will spill the counts to disk
+	 *
+	 * @param oos
+	 * @throws IOException
+	 */
+	private void writeObject(ObjectOutputStream oos) throws IOException {
+
+		// default serialization
+	    oos.defaultWriteObject();
+
+	    // set into read-only mode
+	    this.setReadOnly();
+	}
+
+	/**
+	 * Maps the column file written by <code>writeObject</code>
+	 *
+	 * @param ois
+	 * @throws ClassNotFoundException
+	 * @throws IOException
+	 */
+	private void readObject(ObjectInputStream ois) throws ClassNotFoundException, IOException {
+
+		// default deserialization
+	    ois.defaultReadObject();
+
+	    openColumn();
+	}
+
+
+	/**
+	 * @author Jan Hoinka
+	 * Make use of internal classes so we can provide iterators for id->count and sequence->count to the API.
+	 * This class implements the id->count view in ascending order of the ids.
+	 * Eg. <code>for ( cycle_it : cycle.iterator() ){ }</code>
+	 */
+	private class SelectionCycleIterator implements Iterable<Entry<Integer, Integer>> {
+
+		public Iterator<Entry<Integer, Integer>> iterator() {
+
+			Int2IntOpenHashMap[] maps = counts;
+
+			// Iterate over a sorted copy of the in-memory counts...
+			if (maps != null){
+
+				final long[] entries = snapshot(maps);
+
+				return new Iterator<Entry<Integer, Integer>>() {
+
+					private int current = 0;
+
+					@Override
+					public boolean hasNext() {
+						return current < entries.length;
+					}
+
+					@Override
+					public Entry<Integer, Integer> next() {
+
+						if (!hasNext()){
+							throw new NoSuchElementException();
+						}
+
+						long entry = entries[current++];
+						return new AbstractMap.SimpleEntry<Integer, Integer>((int) (entry >>> 32), (int) entry);
+					}
+
+					@Override
+					public void remove() {
+						throw new UnsupportedOperationException();
+					}
+				};
+			}
+
+			// ... or directly over the column
+			final MappedArena arena = column;
+			final int entries = columnEntries;
+
+			return new Iterator<Entry<Integer, Integer>>() {
+
+				private int current = 0;
+
+				@Override
+				public boolean hasNext() {
+					return current < entries;
+				}
+
+				@Override
+				public Entry<Integer, Integer> next() {
+
+					if (!hasNext()){
+						throw new NoSuchElementException();
+					}
+
+					long pos = COLUMN_HEADER_SIZE + 8L * current++;
+					return new AbstractMap.SimpleEntry<Integer, Integer>(arena.getInt(pos), arena.getInt(pos + 4));
+				}
+
+				@Override
+				public void remove() {
+					throw new UnsupportedOperationException();
+				}
+			};
+		}
+
+	}
+
+	/**
+	 * @author Jan Hoinka
+	 * Make use of internal classes so we can provide iterators for id->count and sequence->count to the API.
+	 * This class implements the sequence->count view.
+	 */
+	private class SelectionCycleSequenceIterator implements Iterable<Entry<byte[], Integer>> {
+
+		@Override
+		public Iterator<Entry<byte[], Integer>> iterator() {
+			Iterator<Entry<byte[], Integer>> it = new Iterator<Entry<byte[], Integer>>() {
+
+				Iterator<Entry<Integer, Integer>> pool_iterator = new SelectionCycleIterator().iterator();
+
+	            @Override
+	            public boolean hasNext() {
+	                return pool_iterator.hasNext();
+	            }
+
+	            @Override
+	            public Entry<byte[], Integer> next() {
+
+	            	Entry<Integer, Integer> entry = pool_iterator.next();
+
+	            	//get the next Id from the map and look up the corresponding sequence
+	            	return new AbstractMap.SimpleEntry<byte[], Integer>(Configuration.getExperiment().getAptamerPool().getAptamer(entry.getKey()) , entry.getValue());
+
+	            }
+
+	            @Override
+	            public void remove() {
+	                throw new UnsupportedOperationException();
+	            }
+	        };
+	        return it;
+		}
+
+	}
+
+
+	/**
+	 * @author Jan Hoinka
+	 * Make use of internal classes so we can provide iterators for id to the API.
+	 */
+	private class IdIterator implements Iterable<Integer> {
+
+		public Iterator<Integer> iterator() {
+
+			final Iterator<Entry<Integer, Integer>> it = new SelectionCycleIterator().iterator();
+
+			return new Iterator<Integer>() {
+
+				@Override
+				public boolean hasNext() {
+					return it.hasNext();
+				}
+
+				@Override
+				public Integer next() {
+					return it.next().getKey();
+				}
+
+				@Override
+				public void remove() {
+					throw new UnsupportedOperationException();
+				}
+			};
+		}
+
+	}
+
+	public Iterable<Entry<Integer, Integer>> iterator(){
+		return new SelectionCycleIterator();
+	}
+
+	public Iterable<Entry<byte[], Integer>> sequence_iterator(){
+		return new SelectionCycleSequenceIterator();
+	}
+
+	@Override
+	public Iterable<Integer> id_iterator() {
+		return new IdIterator();
+	}
+
+	@Override
+	public Spliterator<Entry<Integer, Integer>> spliterator() {
+
+		Int2IntOpenHashMap[] maps = counts;
+
+		// Split a sorted copy of the in-memory counts...
+		if (maps != null){
+
+			final long[] entries = snapshot(maps);
+
+			return new SnapshotSpliterator(entries, 0, entries.length);
+		}
+
+		// ... or the column by position
+		return new ColumnSpliterator(column, 0, columnEntries);
+	}
+
+	/**
+	 * @author Jan Hoinka
+	 * Spliterator over a range of positions in a sorted copy of the in-memory counts
+	 */
+	private static class SnapshotSpliterator extends IndexRangeSpliterator<Entry<Integer, Integer>> {
+
+		private long[] entries;
+
+		public SnapshotSpliterator(long[] entries, int from, int to) {
+			super(from, to);
+			this.entries = entries;
+		}
+
+		@Override
+		protected Entry<Integer, Integer> get(int index) {
+			return new AbstractMap.SimpleEntry<Integer, Integer>((int) (entries[index] >>> 32), (int) entries[index]);
+		}
+
+		@Override
+		protected IndexRangeSpliterator<Entry<Integer, Integer>> create(int from, int to) {
+			return new SnapshotSpliterator(entries, from, to);
+		}
+	}
+
+	/**
+	 * @author Jan Hoinka
+	 * Spliterator over a range of positions in the column file
+	 */
+	private static class ColumnSpliterator extends IndexRangeSpliterator<Entry<Integer, Integer>> {
+
+		private MappedArena column;
+
+		public ColumnSpliterator(MappedArena column, int from, int to) {
+			super(from, to);
+			this.column = column;
+		}
+
+		@Override
+		protected Entry<Integer, Integer> get(int index) {
+
+			long pos = COLUMN_HEADER_SIZE + 8L * index;
+			return new AbstractMap.SimpleEntry<Integer, Integer>(column.getInt(pos), column.getInt(pos + 4));
+
+		}
+
+		@Override
+		protected IndexRangeSpliterator<Entry<Integer, Integer>> create(int from, int to) {
+			return new ColumnSpliterator(column, from, to);
+		}
+	}
+
+}
@@ -0,0 +1,318 @@
+/**
+ *
+ */
+package lib.aptamer.datastructures;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.LinkedHashMap;
+import java.util.logging.Level;
+
+import utilities.AptaLogger;
+import utilities.Configuration;
+
+/**
+ * @author Jan Hoinka
+ *
+ * Compact description of the data of a project, stored in <code>experiment.manifest</code> in the
+ * project folder. It lists the backends and codecs of the stores, the size of the pool, and the
+ * selection cycles together with their sizes.
+ *
+ * When a project is loaded from disk, the manifest allows the selection cycles to be registered
+ * without opening their stores, see <code>LazySelectionCycle</code>. A store is then only opened once
+ * its data is accessed, so inspecting a single cycle of a large project does not require all
+ * cycles to be read from disk.
+ *
+ * The manifest is written once the data of the project is complete and removed before it is
+ * modified, hence a project without a manifest is always loaded eagerly. A manifest of a different
+ * version or one which does not agree with the configuration is ignored.
+ */
+public class ProjectManifest {
+
+	/**
+	 * Name of the manifest in the project folder
+	 */
+	public static final String FILE_NAME = "experiment.manifest";
+
+	/**
+	 * Identifies the file as project manifest
+	 */
+	private static final int MAGIC = 0x4150534d;
+
+	/**
+	 * Version of the manifest layout
+	 */
+	private static final int VERSION = 1;
+
+	/**
+	 * Backend and codec of the aptamer pool
+	 */
+	private String poolBackend = null;
+
+	private String poolCodec = null;
+
+	/**
+	 * Folder containing the pool, differs from the project if the pool is shared
+	 */
+	private String poolPath = null;
+
+	/**
+	 * Number of aptamers in the pool when the manifest was written
+	 */
+	private int poolSize = 0;
+
+	/**
+	 * Backend of the selection cycles
+	 */
+	private String cycleBackend = null;
+
+	/**
+	 * Backend and codec of the structure pool
+	 */
+	private String structureBackend = null;
+
+	private String structureCodec = null;
+
+	/**
+	 * The selection cycles by name, in the order of their registration
+	 */
+	private LinkedHashMap<String, Cycle> cycles = new LinkedHashMap<String, Cycle>();
+
+	/**
+	 * @author Jan Hoinka
+	 * Description of a single selection cycle
+	 */
+	public static class Cycle {
+
+		private String name;
+
+		private int round;
+
+		private boolean isControlSelection;
+
+		private boolean isCounterSelection;
+
+		private int size;
+
+		private int uniqueSize;
+
+		public Cycle(String name, int round, boolean isControlSelection, boolean isCounterSelection, int size, int uniqueSize){
+			this.name = name;
+			this.round = round;
+			this.isControlSelection = isControlSelection;
+			this.isCounterSelection = isCounterSelection;
+			this.size = size;
+			this.uniqueSize = uniqueSize;
+		}
+
+		public String getName(){
+			return name;
+		}
+
+		public int getRound(){
+			return round;
+		}
+
+		public boolean isControlSelection(){
+			return isControlSelection;
+		}
+
+		public boolean isCounterSelection(){
+			return isCounterSelection;
+		}
+
+		public int getSize(){
+			return size;
+		}
+
+		public int getUniqueSize(){
+			return uniqueSize;
+		}
+	}
+
+	private ProjectManifest(){
+
+	}
+
+	/**
+	 * @param projectPath
+	 * @return the location of the manifest of the project
+	 */
+	public static Path getPath(Path projectPath){
+		return Paths.get(projectPath.toString(), FILE_NAME);
+	}
+
+	/**
+	 * Describes the current data of <code>experiment</code> in the manifest of the project. The
+	 * manifest is replaced atomically. All cycles are opened in the process.
+	 * @param experiment
+	 * @param projectPath
+	 * @throws IOException
+	 */
+	public static void write(Experiment experiment, Path projectPath) throws IOException{
+
+		Path manifest = getPath(projectPath);
+		Path temporary = Paths.get(projectPath.toString(), FILE_NAME + ".tmp");
+
+		try (FileOutputStream fileOut = new FileOutputStream(temporary.toFile())){
+
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fileOut));
+
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+
+			out.writeUTF(Configuration.getParameters().getString("AptamerPool.backend"));
+			out.writeUTF(Configuration.getParameters().getString("MapDBAptamerPool.codec"));
+			out.writeUTF(SharedPool.getDataPath(projectPath).toAbsolutePath().toString());
+			out.writeInt(experiment.getAptamerPool().size());
+
+			out.writeUTF(Configuration.getParameters().getString("SelectionCycle.backend"));
+
+			out.writeUTF(Configuration.getParameters().getString("StructurePool.backend"));
+			out.writeUTF(Configuration.getParameters().getString("MapDBStructurePool.codec"));
+
+			out.writeInt(experiment.getAllSelectionCycles().size());
+			for (SelectionCycle cycle : experiment.getAllSelectionCycles()){
+				out.writeUTF(cycle.getName());
+				out.writeInt(cycle.getRound());
+				out.writeBoolean(cycle.isControlSelection());
+				out.writeBoolean(cycle.isCounterSelection());
+				out.writeInt(cycle.getSize());
+				out.writeInt(cycle.getUniqueSize());
+			}
+
+			out.flush();
+			fileOut.getFD().sync();
+		}
+
+		Files.move(temporary, manifest, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+		AptaLogger.log(Level.CONFIG, ProjectManifest.class, "Wrote the project manifest " + manifest + " describing " + experiment.getAllSelectionCycles().size() + " selection cycles.");
+
+	}
+
+	/**
+	 * Reads the manifest of a project
+	 * @param projectPath
+	 * @return the manifest, or null if it does not exist or cannot be used by this version
+	 */
+	public static ProjectManifest read(Path projectPath){
+
+		Path path = getPath(projectPath);
+		if (!Files.exists(path)){
+			return null;
+		}
+
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(path.toFile())))){
+
+			if (in.readInt() != MAGIC || in.readInt() != VERSION){
+				AptaLogger.log(Level.INFO, ProjectManifest.class, "Ignoring the project manifest " + path + " as it was written by a different version.");
+				return null;
+			}
+
+			ProjectManifest manifest = new ProjectManifest();
+
+			manifest.poolBackend = in.readUTF();
+			manifest.poolCodec = in.readUTF();
+			manifest.poolPath = in.readUTF();
+			manifest.poolSize = in.readInt();
+
+			manifest.cycleBackend = in.readUTF();
+
+			manifest.structureBackend = in.readUTF();
+			manifest.structureCodec = in.readUTF();
+
+			int count = in.readInt();
+			for (int x=0; x<count; x++){
+				Cycle cycle = new Cycle(in.readUTF(), in.readInt(), in.readBoolean(), in.readBoolean(), in.readInt(), in.readInt());
+				manifest.cycles.put(cycle.getName(), cycle);
+			}
+
+			return manifest;
+
+		} catch (IOException e) {
+			AptaLogger.log(Level.WARNING, ProjectManifest.class, "Could not read the project manifest " + path + ": " + e.getMessage());
+			return null;
+		}
+
+	}
+
+	/**
+	 * Removes the manifest of a project, must be called before its data is modified
+	 * @param projectPath
+	 * @throws IOException
+	 */
+	public static void delete(Path projectPath) throws IOException{
+
+		Files.deleteIfExists(getPath(projectPath));
+
+	}
+
+	/**
+	 * Checks whether the manifest describes the data the configuration refers to
+	 * @param projectPath
+	 * @param pool the opened aptamer pool of the project
+	 * @return true if the manifest can be used
+	 */
+	public boolean matches(Path projectPath, AptamerPool pool){
+
+		if (!poolBackend.equals(Configuration.getParameters().getString("AptamerPool.backend"))
+				|| !cycleBackend.equals(Configuration.getParameters().getString("SelectionCycle.backend"))
+				|| !poolPath.equals(SharedPool.getDataPath(projectPath).toAbsolutePath().toString())){
+			return false;
+		}
+
+		// A shared pool may have grown since due to other projects
+		return SharedPool.isEnabled() ? pool.size() >= poolSize : pool.size() == poolSize;
+
+	}
+
+	/**
+	 * @param name
+	 * @param round
+	 * @param isControlSelection
+	 * @param isCounterSelection
+	 * @return the description of the cycle if it is part of the manifest with the same round and type, null otherwise
+	 */
+	public Cycle getCycle(String name, int round, boolean isControlSelection, boolean isCounterSelection){
+
+		Cycle cycle = cycles.get(name);
+
+		if (cycle == null || cycle.getRound() != round || cycle.isControlSelection() != isControlSelection || cycle.isCounterSelection() != isCounterSelection){
+			return null;
+		}
+
+		return cycle;
+	}
+
+	/**
+	 * @return the number of aptamers in the pool when the manifest was written
+	 */
+	public int getPoolSize(){
+		return poolSize;
+	}
+
+	/**
+	 * @return the number of selection cycles described by the manifest
+	 */
+	public int getCycleCount(){
+		return cycles.size();
+	}
+
+	@Override
+	public String toString(){
+
+		return String.format("pool %s (%s, %s aptamers in %s), cycles %s (%s), structures %s (%s)",
+				poolBackend, poolCodec, poolSize, poolPath, cycleBackend, cycles.size(), structureBackend, structureCodec);
+
+	}
+}
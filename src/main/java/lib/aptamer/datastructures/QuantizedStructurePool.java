@@ -0,0 +1,530 @@
+/**
+ *
+ */
+package lib.aptamer.datastructures;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.AbstractMap;
+import java.util.Iterator;
+import java.util.Map.Entry;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.logging.Level;
+
+import utilities.AptaLogger;
+import utilities.Configuration;
+
+/**
+ * @author Jan Hoinka
+ * Implementation of the StructurePool interface storing the structural profiles in
+ * fixed point rather than as <code>double[]</code>. Every value of a profile is a
+ * probability in [0,1] and is quantized to either 8 or 16 bits, depending on the
+ * maximal absolute error permitted by <code>QuantizedStructurePool.maxError</code>.
+ * The profiles are decoded back to <code>double[]</code> only when accessed.
+ *
+ * The data is stored in two memory mapped files in <code>structuredata</code>:
+ *
+ * <code>quantized.offsets</code> is a flat array of <code>long</code>s indexed by aptamer id, each
+ * pointing to the record of that aptamer in the heap. A value of 0 indicates that no
+ * structure was stored for that id.
+ *
+ * <code>quantized.heap</code> starts with a header of <code>HEADER_SIZE</code> bytes (version, number
+ * of bits per value, end of the heap, number of records, largest id), followed by one record
+ * per aptamer consisting of the number of values and the quantized values themselves.
+ *
+ * The number of bits is fixed when the pool is created. Reopening an existing pool uses
+ * the resolution it was created with.
+ */
+public class QuantizedStructurePool implements StructurePool {
+
+	/**
+	 * Version of the file layout
+	 */
+	private static final int VERSION = 1;
+
+	/**
+	 * Number of bytes preceding the records in the heap
+	 */
+	private static final int HEADER_SIZE = 32;
+
+	/**
+	 * Number of bytes preceding the values of each record
+	 */
+	private static final int RECORD_HEADER_SIZE = 4;
+
+	/**
+	 * Path on file system for the current experiment
+	 */
+	private Path projectPath = null;
+
+	/**
+	 * Folder in <code>projectPath</code> which contains the structure data
+	 */
+	private Path structureDataPath = null;
+
+	/**
+	 * Positions of the records in <code>heap</code> indexed by id
+	 */
+	private MappedArena offsets = null;
+
+	/**
+	 * The quantized profiles
+	 */
+	private MappedArena heap = null;
+
+	/**
+	 * Number of bits used per value, either 8 or 16
+	 */
+	private int bits = 8;
+
+	/**
+	 * Largest quantized value, corresponding to a probability of 1
+	 */
+	private int scale = 255;
+
+	/**
+	 * First unused position in <code>heap</code>
+	 */
+	private long heapSize = HEADER_SIZE;
+
+	/**
+	 * Number of structures stored
+	 */
+	private volatile long count = 0;
+
+	/**
+	 * The largest id stored
+	 */
+	private volatile int maxId = 0;
+
+	/**
+	 * Constructor
+	 * @param projectPath must point to the current projects working directory
+	 * all files related to the analysis of the HT-SELEX experiment are stored
+	 * in that path. It must exist and be writable for the user.
+	 * @param newdb if true, a new database is created on file.
+	 * Any previously existing database will be deleted. If false, the existing database
+	 * will be read from disk.
+	 * @throws FileNotFoundException if projectPath does not exist on file system.
+	 */
+	public QuantizedStructurePool(Path projectPath, boolean newdb) throws IOException{
+
+		AptaLogger.log(Level.INFO, this.getClass(), "Instantiating QuantizedStructurePool");
+
+		// Make sure the folder is writable
+		if (!Files.isWritable(projectPath)){
+			AptaLogger.log(Level.SEVERE, this.getClass(),"The project path is not writable.");
+			throw (new IllegalStateException("The project path is not writable.") );
+		}
+
+		// Set the project path and structure data path
+		this.projectPath = projectPath;
+
+		// Check if the data path exists, and if not create it
+		this.structureDataPath = Files.createDirectories(Paths.get(this.projectPath.toString(), "structuredata"));
+
+		Path offsetsPath = Paths.get(structureDataPath.toString(), "quantized.offsets");
+		Path heapPath = Paths.get(structureDataPath.toString(), "quantized.heap");
+
+		if (newdb){
+
+			Files.deleteIfExists(offsetsPath);
+			Files.deleteIfExists(heapPath);
+
+		}
+		else if (!Files.isRegularFile(heapPath)){
+
+			AptaLogger.log(Level.SEVERE, this.getClass(), "No structure data was found on disk but is required for this operation.");
+			throw new IllegalStateException("No structure data was found on disk but is required for this operation.");
+
+		}
+
+		offsets = new MappedArena(offsetsPath, false);
+		heap = new MappedArena(heapPath, false);
+
+		if (!newdb){
+
+			if (heap.capacity() < HEADER_SIZE || heap.getInt(0) != VERSION){
+				AptaLogger.log(Level.SEVERE, this.getClass(), "The structure data in " + heapPath.toString() + " is of an unsupported format.");
+				throw new IllegalStateException("The structure data in " + heapPath.toString() + " is of an unsupported format.");
+			}
+
+			setBits(heap.getInt(4));
+			heapSize = heap.getLong(8);
+			count = heap.getLong(16);
+			maxId = (int) heap.getLong(24);
+
+			AptaLogger.log(Level.INFO, this.getClass(), "Found and loaded a total of " + count + " structures quantized to " + bits + " bits on disk.");
+
+		}
+		else{
+
+			// Choose the smallest resolution satisfying the error bound. Rounding to the closest
+			// quantization level results in an error of at most half a step.
+			double maxError = Configuration.getParameters().getDouble("QuantizedStructurePool.maxError");
+
+			if (maxError >= 0.5 / 255){
+				setBits(8);
+			}
+			else{
+				if (maxError < 0.5 / 65535){
+					AptaLogger.log(Level.WARNING, this.getClass(), "QuantizedStructurePool.maxError of " + maxError + " cannot be met, using 16 bit resolution (maximal error " + (0.5 / 65535) + ").");
+				}
+				setBits(16);
+			}
+
+			heap.ensureCapacity(HEADER_SIZE);
+			heapSize = HEADER_SIZE;
+			count = 0;
+			maxId = 0;
+			writeHeader();
+
+			AptaLogger.log(Level.CONFIG, this.getClass(), "Storing structures quantized to " + bits + " bits.");
+		}
+
+	}
+
+	private void setBits(int bits){
+
+		if (bits != 8 && bits != 16){
+			throw new IllegalStateException("Unsupported number of bits per value: " + bits);
+		}
+
+		this.bits = bits;
+		this.scale = (1 << bits) - 1;
+
+	}
+
+	private void writeHeader(){
+
+		heap.putInt(0, VERSION);
+		heap.putInt(4, bits);
+		heap.putLong(8, heapSize);
+		heap.putLong(16, count);
+		heap.putLong(24, maxId);
+
+	}
+
+	/**
+	 * @param value a probability
+	 * @return the closest quantization level of <code>value</code>
+	 */
+	private int quantize(double value){
+
+		// Guard against numerical noise slightly outside of [0,1]
+		if (!(value > 0)){
+			return 0;
+		}
+		if (value >= 1){
+			return scale;
+		}
+
+		return (int) Math.round(value * scale);
+	}
+
+	/* (non-Javadoc)
+	 * @see lib.aptamer.datastructures.StructurePool#registerStructure(int, double[])
+	 */
+	@Override
+	public void registerStructure(int id, double[] structure) {
+
+		// Encode outside of the lock, only the copy into the heap is serialized
+		byte[] record = new byte[RECORD_HEADER_SIZE + structure.length * (bits / 8)];
+
+		record[0] = (byte) (structure.length >>> 24);
+		record[1] = (byte) (structure.length >>> 16);
+		record[2] = (byte) (structure.length >>> 8);
+		record[3] = (byte) structure.length;
+
+		int pos = RECORD_HEADER_SIZE;
+		for (double value : structure){
+
+			int q = quantize(value);
+
+			if (bits == 16){
+				record[pos++] = (byte) (q >>> 8);
+			}
+			record[pos++] = (byte) q;
+
+		}
+
+		synchronized(this){
+
+			long start = heapSize;
+
+			heap.ensureCapacity(start + record.length);
+			heap.put(start, record, 0, record.length);
+			heapSize += record.length;
+
+			// Publish the record only after it has been written completely
+			offsets.ensureCapacity(((long) id + 1) * 8);
+			if (offsets.getLong(((long) id) * 8) == 0){
+				count++;
+			}
+			offsets.putLong(((long) id) * 8, start);
+
+			maxId = Math.max(maxId, id);
+			writeHeader();
+
+		}
+
+	}
+
+	/**
+	 * @param id
+	 * @return the position of the record of <code>id</code> or 0 if none exists
+	 */
+	private long recordOf(int id){
+
+		long pos = ((long) id) * 8;
+
+		if (id <= 0 || pos + 8 > offsets.capacity()){
+			return 0;
+		}
+
+		return offsets.getLong(pos);
+	}
+
+	/* (non-Javadoc)
+	 * @see lib.aptamer.datastructures.StructurePool#getStructure(int)
+	 */
+	@Override
+	public double[] getStructure(int id) {
+
+		long record = recordOf(id);
+		if (record == 0){
+			return null;
+		}
+
+		double[] structure = new double[heap.getInt(record)];
+		long pos = record + RECORD_HEADER_SIZE;
+
+		if (bits == 16){
+			for (int x=0; x<structure.length; x++, pos+=2){
+				structure[x] = heap.getChar(pos) / (double) scale;
+			}
+		}
+		else{
+			for (int x=0; x<structure.length; x++, pos++){
+				structure[x] = (heap.getByte(pos) & 0xFF) / (double) scale;
+			}
+		}
+
+		return structure;
+	}
+
+	/**
+	 * @return the largest absolute difference between a registered and a retrieved value
+	 */
+	public double getMaxError(){
+		return 0.5 / scale;
+	}
+
+	/**
+	 * @return the number of structures stored
+	 */
+	public long size(){
+		return count;
+	}
+
+	/* (non-Javadoc)
+	 * @see lib.aptamer.datastructures.StructurePool#close()
+	 */
+	@Override
+	public synchronized void close(){
+
+		writeHeader();
+		offsets.close();
+		heap.close();
+
+	}
+
+	/* (non-Javadoc)
+	 * @see lib.aptamer.datastructures.StructurePool#setReadOnly()
+	 */
+	@Override
+	public synchronized void setReadOnly(){
+
+		// The files remain mapped, make sure everything written so far is on disk
+		writeHeader();
+		offsets.force();
+		heap.force();
+
+	}
+
+	/* (non-Javadoc)
+	 * @see lib.aptamer.datastructures.StructurePool#setReadWrite()
+	 */
+	@Override
+	public void setReadWrite(){
+
+		// Nothing to do, the files are always mapped read/write
+
+	}
+
+	/**
+	 * @author Jan Hoinka
+	 * Entry whose profile is only decoded once it is requested, so that consumers
+	 * interested in the ids only do not pay for the conversion.
+	 */
+	private class LazyStructureEntry implements Entry<Integer, double[]> {
+
+		private int id;
+
+		private double[] structure = null;
+
+		public LazyStructureEntry(int id){
+			this.id = id;
+		}
+
+		@Override
+		public Integer getKey() {
+			return id;
+		}
+
+		@Override
+		public double[] getValue() {
+
+			if (structure == null){
+				structure = getStructure(id);
+			}
+
+			return structure;
+		}
+
+		@Override
+		public double[] setValue(double[] value) {
+			throw new UnsupportedOperationException();
+		}
+	}
+
+	/**
+	 * @author Jan Hoinka
+	 * Make use of internal classes so we can provide iterators for id->structure to the API.
+	 * The ids are visited in ascending order.
+	 */
+	private class IdStructureIterator implements Iterable<Entry<Integer, double[]>> {
+
+		@Override
+		public Iterator<Entry<Integer, double[]>> iterator() {
+			Iterator<Entry<Integer, double[]>> it = new Iterator<Entry<Integer, double[]>>() {
+
+				private int currentId = 0;
+
+				private int nextId = 0;
+
+				@Override
+				public boolean hasNext() {
+
+					while (nextId == 0 && currentId < maxId){
+
+						currentId++;
+						if (recordOf(currentId) != 0){
+							nextId = currentId;
+						}
+					}
+
+					return nextId != 0;
+				}
+
+				@Override
+				public Entry<Integer, double[]> next() {
+
+					if (!hasNext()){
+						throw new NoSuchElementException();
+					}
+
+					Entry<Integer, double[]> entry = new LazyStructureEntry(nextId);
+					nextId = 0;
+
+					return entry;
+				}
+
+				@Override
+				public void remove() {
+					throw new UnsupportedOperationException();
+				}
+			};
+			return it;
+		}
+
+	}
+
+	/**
+	 * @author Jan Hoinka
+	 * Make use of internal classes so we can provide iterators for sequence->structure to the API.
+	 */
+	private class AptamerStructureIterator implements Iterable<Entry<byte[], double[]>> {
+
+		@Override
+		public Iterator<Entry<byte[], double[]>> iterator() {
+			Iterator<Entry<byte[], double[]>> it = new Iterator<Entry<byte[], double[]>>() {
+
+				Iterator<Entry<byte[], Integer>> pool_iterator = Configuration.getExperiment().getAptamerPool().iterator().iterator();
+
+				@Override
+				public boolean hasNext() {
+					return pool_iterator.hasNext();
+				}
+
+				@Override
+				public Entry<byte[], double[]> next() {
+
+					Entry<byte[], Integer> entry = pool_iterator.next();
+
+					//get the next Id from the map and look up the corresponding structure
+					return new AbstractMap.SimpleEntry<byte[], double[]>(entry.getKey(), getStructure(entry.getValue()));
+
+				}
+
+				@Override
+				public void remove() {
+					throw new UnsupportedOperationException();
+				}
+			};
+			return it;
+		}
+
+	}
+
+	/**
+	 * @author Jan Hoinka
+	 * Spliterator over the id range of the pool
+	 */
+	private class StructureSpliterator extends IndexRangeSpliterator<Entry<Integer, double[]>> {
+
+		public StructureSpliterator(int from, int to){
+			super(from, to);
+		}
+
+		@Override
+		protected Entry<Integer, double[]> get(int index) {
+			return recordOf(index) == 0 ? null : new LazyStructureEntry(index);
+		}
+
+		@Override
+		protected IndexRangeSpliterator<Entry<Integer, double[]>> create(int from, int to) {
+			return new StructureSpliterator(from, to);
+		}
+	}
+
+	@Override
+	public Iterable<Entry<Integer, double[]>> iterator() {
+		return new IdStructureIterator();
+	}
+
+	@Override
+	public Iterable<Entry<byte[], double[]>> sequence_iterator() {
+		return new AptamerStructureIterator();
+	}
+
+	@Override
+	public Spliterator<Entry<Integer, double[]>> spliterator() {
+		return new StructureSpliterator(1, maxId + 1);
+	}
+
+}
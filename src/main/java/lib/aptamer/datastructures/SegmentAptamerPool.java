@@ -0,0 +1,426 @@
+/**
+ *
+ */
+package lib.aptamer.datastructures;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.nio.file.Path;
+import java.util.AbstractMap;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map.Entry;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.logging.Level;
+
+import utilities.AptaLogger;
+
+/**
+ * @author Jan Hoinka
+ *
+ * Read only implementation of the AptamerPool interface serving the aptamers of a project
+ * which has been compacted into a <code>SegmentFile</code>. Aptamers and their bounds are
+ * located by binary search over the block directory of the segment, identifiers by binary
+ * search over the sorted hashes of all sequences.
+ *
+ * All modifications throw an <code>UnsupportedOperationException</code>. In order to modify
+ * the project, the segment must be removed so that the original backend is used again.
+ */
+public class SegmentAptamerPool implements AptamerPool {
+
+	private static final long serialVersionUID = -2687430179865925447L;
+
+	/**
+	 * Path on file system for the current experiment
+	 */
+	private Path projectPath = null;
+
+	/**
+	 * The segment containing the pool
+	 */
+	private transient SegmentFile segment = null;
+
+	/**
+	 * The aptamers by id
+	 */
+	private transient SegmentFile.Section aptamers = null;
+
+	/**
+	 * The ids by hash of the sequence
+	 */
+	private transient SegmentFile.Section sequences = null;
+
+	/**
+	 * The total number of aptamers in the pool
+	 */
+	private int poolSize = 0;
+
+	/**
+	 * Constructor
+	 * @param projectPath must point to the current projects working directory
+	 * which contains the segment.
+	 * @param newdb must be false, a segment cannot be created by registering aptamers
+	 * @throws FileNotFoundException if the project has not been compacted
+	 */
+	public SegmentAptamerPool(Path projectPath, boolean newdb) throws IOException{
+
+		AptaLogger.log(Level.INFO, this.getClass(), "Instantiating SegmentAptamerPool");
+
+		if (newdb){
+			throw new UnsupportedOperationException("The SegmentAptamerPool is read only and cannot be used to create a new pool.");
+		}
+
+		if (!SegmentFile.exists(projectPath)){
+			throw new FileNotFoundException("No segment was found in " + projectPath.toString() + ". Please compact the project first.");
+		}
+
+		this.projectPath = projectPath;
+
+		open();
+
+		AptaLogger.log(Level.INFO, this.getClass(), "Found and loaded a total of " + poolSize + " aptamers on disk.");
+
+	}
+
+	private void open() throws IOException{
+
+		segment = SegmentFile.acquire(projectPath);
+		aptamers = segment.getSection(SegmentFile.POOL, "pool");
+		sequences = segment.getSection(SegmentFile.SEQUENCES, "sequences");
+		poolSize = (int) aptamers.getAttribute(0);
+
+	}
+
+	@Override
+	public int registerAptamer(byte[] a, int rr_start, int rr_end) {
+
+		// Known aptamers are resolved so that readers using the registration as lookup keep working
+		int id = getIdentifier(a);
+		if (id != -1){
+			return id;
+		}
+
+		throw new UnsupportedOperationException("Cannot register aptamers. The pool is a read only segment.");
+	}
+
+	@Override
+	public int registerAptamer(String a, int rr_start, int rr_end) {
+		return registerAptamer(a.getBytes(), rr_start, rr_end);
+	}
+
+	@Override
+	public int[] registerAptamers(AptamerBatch batch) {
+
+		int[] ids = new int[batch.size()];
+		for (int x=0; x<ids.length; x++){
+			ids[x] = registerAptamer(batch.getSequence(x), batch.getRandomizedRegionStart(x), batch.getRandomizedRegionEnd(x));
+		}
+
+		return ids;
+	}
+
+	@Override
+	public int getIdentifier(byte[] a) {
+
+		int hash = SegmentFile.hash(a);
+		long lowest = (long) hash << 32;
+
+		// All entries of the preceding blocks are smaller than the first key of this block
+		int block = Math.max(0, sequences.findBlock(lowest));
+
+		for (; block < sequences.getBlocks(); block++){
+
+			byte[] data = segment.getBlock(sequences, block);
+			int entries = data.length / 8;
+
+			for (int x=0; x<entries; x++){
+
+				long entry = SegmentFile.getLong(data, x);
+
+				if (entry < lowest){
+					continue;
+				}
+				if ((int) (entry >> 32) != hash){
+					return -1;
+				}
+
+				// Resolve collisions by comparing the sequences
+				int id = (int) entry;
+				if (Arrays.equals(getAptamer(id), a)){
+					return id;
+				}
+			}
+		}
+
+		return -1;
+	}
+
+	@Override
+	public int getIdentifier(String a) {
+		return getIdentifier(a.getBytes());
+	}
+
+	@Override
+	public byte[] getAptamer(int id) {
+
+		byte[] record = segment.getRecord(aptamers, id);
+		return record == null ? null : Arrays.copyOfRange(record, 8, record.length);
+
+	}
+
+	@Override
+	public AptamerBounds getAptamerBounds(int id) {
+
+		byte[] record = segment.getRecord(aptamers, id);
+		return record == null ? null : new AptamerBounds(SegmentFile.getInt(record, 0), SegmentFile.getInt(record, 4));
+
+	}
+
+	@Override
+	public Boolean containsAptamer(byte[] a) {
+		return getIdentifier(a) != -1;
+	}
+
+	@Override
+	public Boolean containsAptamer(String a) {
+		return containsAptamer(a.getBytes());
+	}
+
+	@Override
+	public Boolean containsAptamer(int id) {
+		return segment.getRecord(aptamers, id) != null;
+	}
+
+	@Override
+	public int size() {
+		return poolSize;
+	}
+
+	@Override
+	public void clear() {
+		throw new UnsupportedOperationException("Cannot clear the pool. The pool is a read only segment.");
+	}
+
+	@Override
+	public void truncate(int size) {
+		throw new UnsupportedOperationException("Cannot truncate the pool. The pool is a read only segment.");
+	}
+
+	@Override
+	public void checkpoint() {
+
+		// Nothing to persist
+
+	}
+
+	@Override
+	public void close() {
+
+		segment.release();
+
+	}
+
+	@Override
+	public void setReadOnly() {
+
+		// The segment is always read only
+
+	}
+
+	@Override
+	public void setReadWrite() {
+		throw new UnsupportedOperationException("The pool is a read only segment. Please remove " + SegmentFile.getPath(projectPath) + " in order to modify the project.");
+	}
+
+	/**
+	 * Iterates over the records of the pool in the order of their ids
+	 */
+	private class RecordIterator {
+
+		private int block = 0;
+
+		private byte[] data = null;
+
+		private int index = 0;
+
+		public boolean hasNext() {
+
+			while (data == null || index == SegmentFile.getRecordCount(data)){
+
+				if (block == aptamers.getBlocks()){
+					return false;
+				}
+
+				data = segment.getBlock(aptamers, block++);
+				index = 0;
+			}
+
+			return true;
+		}
+
+		/**
+		 * Advances to the next record
+		 * @return its id
+		 */
+		public int next() {
+
+			if (!hasNext()){
+				throw new NoSuchElementException();
+			}
+
+			return SegmentFile.getRecordId(data, index++);
+		}
+
+		/**
+		 * @return the sequence of the record returned by the last call to <code>next</code>
+		 */
+		public byte[] aptamer() {
+
+			byte[] record = SegmentFile.getRecord(data, index-1);
+			return Arrays.copyOfRange(record, 8, record.length);
+
+		}
+	}
+
+	@Override
+	public Iterable<Entry<byte[], Integer>> iterator() {
+
+		return new Iterable<Entry<byte[], Integer>>(){
+
+			@Override
+			public Iterator<Entry<byte[], Integer>> iterator() {
+
+				return new Iterator<Entry<byte[], Integer>>(){
+
+					private RecordIterator records = new RecordIterator();
+
+					@Override
+					public boolean hasNext() {
+						return records.hasNext();
+					}
+
+					@Override
+					public Entry<byte[], Integer> next() {
+						int id = records.next();
+						return new AbstractMap.SimpleEntry<byte[], Integer>(records.aptamer(), id);
+					}
+
+					@Override
+					public void remove() {
+						throw new UnsupportedOperationException();
+					}
+				};
+			}
+		};
+	}
+
+	@Override
+	public Iterable<Entry<Integer, byte[]>> inverse_view_iterator() {
+
+		return new Iterable<Entry<Integer, byte[]>>(){
+
+			@Override
+			public Iterator<Entry<Integer, byte[]>> iterator() {
+
+				return new Iterator<Entry<Integer, byte[]>>(){
+
+					private RecordIterator records = new RecordIterator();
+
+					@Override
+					public boolean hasNext() {
+						return records.hasNext();
+					}
+
+					@Override
+					public Entry<Integer, byte[]> next() {
+						int id = records.next();
+						return new AbstractMap.SimpleEntry<Integer, byte[]>(id, records.aptamer());
+					}
+
+					@Override
+					public void remove() {
+						throw new UnsupportedOperationException();
+					}
+				};
+			}
+		};
+	}
+
+	@Override
+	public Iterable<Integer> id_iterator() {
+
+		return new Iterable<Integer>(){
+
+			@Override
+			public Iterator<Integer> iterator() {
+
+				return new Iterator<Integer>(){
+
+					private RecordIterator records = new RecordIterator();
+
+					@Override
+					public boolean hasNext() {
+						return records.hasNext();
+					}
+
+					@Override
+					public Integer next() {
+						return records.next();
+					}
+
+					@Override
+					public void remove() {
+						throw new UnsupportedOperationException();
+					}
+				};
+			}
+		};
+	}
+
+	@Override
+	public Spliterator<Entry<byte[], Integer>> spliterator() {
+		return spliterator(1, poolSize + 1);
+	}
+
+	@Override
+	public Spliterator<Entry<Integer, byte[]>> inverse_view_spliterator() {
+		return new InverseViewSpliterator(1, poolSize + 1);
+	}
+
+	/**
+	 * @author Jan Hoinka
+	 * Spliterator over the aptamers with ids in a given range, keyed by id
+	 */
+	private class InverseViewSpliterator extends IndexRangeSpliterator<Entry<Integer, byte[]>> {
+
+		public InverseViewSpliterator(int from, int to) {
+			super(from, to);
+		}
+
+		@Override
+		protected Entry<Integer, byte[]> get(int index) {
+
+			byte[] a = getAptamer(index);
+			return a == null ? null : new AbstractMap.SimpleImmutableEntry<Integer, byte[]>(index, a);
+
+		}
+
+		@Override
+		protected IndexRangeSpliterator<Entry<Integer, byte[]>> create(int from, int to) {
+			return new InverseViewSpliterator(from, to);
+		}
+	}
+
+	/**
+	 * The segment is not serialized, map it again
+	 */
+	private void readObject(ObjectInputStream ois) throws ClassNotFoundException, IOException {
+
+		ois.defaultReadObject();
+		open();
+
+	}
+
+}
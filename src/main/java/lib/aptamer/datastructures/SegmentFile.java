@@ -0,0 +1,1048 @@
+/**
+ *
+ */
+package lib.aptamer.datastructures;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.zip.CRC32;
+
+import it.unimi.dsi.fastutil.longs.LongArrays;
+import utilities.AptaLogger;
+import utilities.Configuration;
+
+/**
+ * @author Jan Hoinka
+ *
+ * Immutable snapshot of a finished experiment. The aptamer pool including the bounds of the
+ * randomized regions, the counts of all selection cycles and, if present, the structures
+ * are written into a single file <code>experiment.segment</code> in the project path which is
+ * subsequently memory mapped read only by <code>SegmentAptamerPool</code>,
+ * <code>SegmentSelectionCycle</code> and <code>SegmentStructurePool</code>.
+ *
+ * The file is a sequence of blocks of at most <code>SegmentFile.blockSize</code> uncompressed bytes,
+ * each optionally compressed with the codec specified in <code>SegmentFile.codec</code> and protected
+ * by a CRC32 checksum which is verified whenever the block is read. The blocks are grouped into
+ * sections, all of which are sorted by key:
+ *
+ * <code>POOL</code> the aptamers by id, as records consisting of the start and end of the randomized region and the sequence
+ * <code>SEQUENCES</code> (hash of the sequence << 32 | id) for every aptamer, used to find the id of a sequence
+ * <code>CYCLE</code> (id << 32 | count) for every aptamer of a selection cycle, one section per cycle
+ * <code>STRUCTURES</code> the structures by id, as records of <code>double</code>s
+ *
+ * Blocks of records start with the number of records, followed by their ids, the offsets of the records
+ * relative to the end of the header and the records themselves. Blocks of the other sections are plain
+ * arrays of <code>long</code>s.
+ *
+ * The footer lists all sections together with the key, position, length, checksum and number of items of
+ * every block. It is located via the trailer of <code>TRAILER_SIZE</code> bytes at the very end of the file
+ * (magic number, version, position, length and checksum of the footer). Since the footer is written last,
+ * an incomplete file is never mistaken for a valid segment.
+ *
+ * Instances are shared among all backends of a project, see <code>acquire</code> and <code>release</code>.
+ */
+public class SegmentFile {
+
+	/**
+	 * Name of the file in the project path
+	 */
+	public static final String FILE_NAME = "experiment.segment";
+
+	/**
+	 * Identifies segment files, "APSG"
+	 */
+	private static final int MAGIC = 0x41505347;
+
+	/**
+	 * Version of the file layout
+	 */
+	private static final int VERSION = 1;
+
+	/**
+	 * Number of bytes at the end of the file locating the footer
+	 */
+	private static final int TRAILER_SIZE = 24;
+
+	/**
+	 * Section types
+	 */
+	public static final byte POOL = 1;
+	public static final byte SEQUENCES = 2;
+	public static final byte CYCLE = 3;
+	public static final byte STRUCTURES = 4;
+
+	/**
+	 * Open instances by location, see <code>acquire</code>
+	 */
+	private static final HashMap<Path, SegmentFile> instances = new HashMap<Path, SegmentFile>();
+
+	/**
+	 * Location of the segment
+	 */
+	private Path file = null;
+
+	/**
+	 * The read only mapping of the segment
+	 */
+	private MappedArena arena = null;
+
+	/**
+	 * Codec the blocks were compressed with
+	 */
+	private Codec codec = null;
+
+	/**
+	 * All sections in the order they were written
+	 */
+	private ArrayList<Section> sections = new ArrayList<Section>();
+
+	/**
+	 * Recently decompressed blocks by position in the file
+	 */
+	private LinkedHashMap<Long, byte[]> cache = null;
+
+	/**
+	 * Number of backends using this instance
+	 */
+	private int references = 0;
+
+	/**
+	 * @author Jan Hoinka
+	 * A section of the segment and the directory of its blocks
+	 */
+	public static class Section {
+
+		private byte type;
+
+		private String name;
+
+		/**
+		 * Section specific values, such as the sizes of a selection cycle
+		 */
+		private long[] attributes;
+
+		/**
+		 * Total number of items in all blocks
+		 */
+		private long items = 0;
+
+		/**
+		 * Key of the first item of each block
+		 */
+		private long[] keys = new long[16];
+
+		/**
+		 * Number of items preceding each block
+		 */
+		private long[] first = new long[16];
+
+		private long[] positions = new long[16];
+
+		private int[] storedLengths = new int[16];
+
+		private int[] rawLengths = new int[16];
+
+		private int[] checksums = new int[16];
+
+		private boolean[] compressed = new boolean[16];
+
+		private int blocks = 0;
+
+		private Section(byte type, String name, long[] attributes){
+			this.type = type;
+			this.name = name;
+			this.attributes = attributes;
+		}
+
+		private void addBlock(long key, int count, long position, int storedLength, int rawLength, int checksum, boolean isCompressed){
+
+			if (blocks == keys.length){
+				int capacity = blocks * 2;
+				keys = Arrays.copyOf(keys, capacity);
+				first = Arrays.copyOf(first, capacity);
+				positions = Arrays.copyOf(positions, capacity);
+				storedLengths = Arrays.copyOf(storedLengths, capacity);
+				rawLengths = Arrays.copyOf(rawLengths, capacity);
+				checksums = Arrays.copyOf(checksums, capacity);
+				compressed = Arrays.copyOf(compressed, capacity);
+			}
+
+			keys[blocks] = key;
+			first[blocks] = items;
+			positions[blocks] = position;
+			storedLengths[blocks] = storedLength;
+			rawLengths[blocks] = rawLength;
+			checksums[blocks] = checksum;
+			compressed[blocks] = isCompressed;
+
+			items += count;
+			blocks++;
+		}
+
+		public byte getType(){
+			return type;
+		}
+
+		public String getName(){
+			return name;
+		}
+
+		public long getAttribute(int index){
+			return attributes[index];
+		}
+
+		public long getItems(){
+			return items;
+		}
+
+		public int getBlocks(){
+			return blocks;
+		}
+
+		/**
+		 * @param key
+		 * @return the last block whose first key is not larger than <code>key</code>, -1 if there is none
+		 */
+		public int findBlock(long key){
+
+			int low = 0;
+			int high = blocks - 1;
+
+			while (low <= high){
+				int mid = (low + high) >>> 1;
+				if (keys[mid] <= key){
+					low = mid + 1;
+				}
+				else{
+					high = mid - 1;
+				}
+			}
+
+			return high;
+		}
+
+		/**
+		 * @param position the index of an item in the section
+		 * @return the block containing that item
+		 */
+		public int locate(long position){
+
+			int low = 0;
+			int high = blocks - 1;
+
+			while (low <= high){
+				int mid = (low + high) >>> 1;
+				if (first[mid] <= position){
+					low = mid + 1;
+				}
+				else{
+					high = mid - 1;
+				}
+			}
+
+			return high;
+		}
+
+		/**
+		 * @param block
+		 * @return the number of items preceding <code>block</code> in this section
+		 */
+		public long getFirst(int block){
+			return first[block];
+		}
+	}
+
+	/**
+	 * Opens the segment at <code>file</code>
+	 * @param file
+	 * @throws IOException if the file is not a complete segment
+	 */
+	private SegmentFile(Path file) throws IOException{
+
+		this.file = file;
+		this.arena = new MappedArena(file, true);
+
+		long length = Files.size(file);
+		if (length < 8 + TRAILER_SIZE || arena.getInt(0) != MAGIC || arena.getInt(length - TRAILER_SIZE) != MAGIC){
+			arena.close();
+			throw new IOException(file.toString() + " is not a complete segment file.");
+		}
+
+		if (arena.getInt(length - TRAILER_SIZE + 4) != VERSION){
+			arena.close();
+			throw new IOException(file.toString() + " was written with an unsupported version.");
+		}
+
+		long footerPosition = arena.getLong(length - TRAILER_SIZE + 8);
+		int footerLength = arena.getInt(length - TRAILER_SIZE + 16);
+
+		byte[] footer = new byte[footerLength];
+		arena.get(footerPosition, footer, 0, footerLength);
+
+		if (checksum(footer, footerLength) != arena.getInt(length - TRAILER_SIZE + 20)){
+			arena.close();
+			throw new IOException("The footer of " + file.toString() + " is corrupt.");
+		}
+
+		readFooter(footer);
+
+		final int cacheSize = Math.max(1, Configuration.getParameters().getInt("SegmentFile.cacheSize"));
+		cache = new LinkedHashMap<Long, byte[]>(16, 0.75f, true){
+
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Long, byte[]> eldest) {
+				return size() > cacheSize;
+			}
+		};
+
+		AptaLogger.log(Level.CONFIG, this.getClass(), "Opened " + file.toString() + " with " + sections.size() + " sections.");
+	}
+
+	private void readFooter(byte[] footer) throws IOException{
+
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(footer));
+
+		String codecName = in.readUTF();
+		// The block size is only relevant to the writer
+		in.readInt();
+		codec = instantiateCodec(codecName, file);
+
+		int count = in.readInt();
+		for (int x=0; x<count; x++){
+
+			byte type = in.readByte();
+			String name = in.readUTF();
+			long[] attributes = new long[in.readInt()];
+			for (int y=0; y<attributes.length; y++){
+				attributes[y] = in.readLong();
+			}
+
+			Section section = new Section(type, name, attributes);
+
+			int blocks = in.readInt();
+			for (int y=0; y<blocks; y++){
+				section.addBlock(in.readLong(), in.readInt(), in.readLong(), in.readInt(), in.readInt(), in.readInt(), in.readBoolean());
+			}
+
+			sections.add(section);
+		}
+	}
+
+	/**
+	 * @param projectPath
+	 * @return the location of the segment of the project
+	 */
+	public static Path getPath(Path projectPath){
+		return Paths.get(projectPath.toString(), FILE_NAME);
+	}
+
+	/**
+	 * @param projectPath
+	 * @return true if the project has been compacted into a segment
+	 */
+	public static boolean exists(Path projectPath){
+		return Files.isRegularFile(getPath(projectPath));
+	}
+
+	/**
+	 * Removes the segment of the project, e.g. because the data it was created from is modified
+	 * @param projectPath
+	 * @throws IOException
+	 */
+	public static synchronized void delete(Path projectPath) throws IOException{
+
+		Path file = getPath(projectPath);
+
+		SegmentFile instance = instances.remove(file);
+		if (instance != null){
+			instance.arena.close();
+		}
+
+		if (Files.deleteIfExists(file)){
+			AptaLogger.log(Level.INFO, SegmentFile.class, "Removed the outdated segment " + file.toString());
+		}
+
+		// Auxiliary data of the codec, see ZstdCodec
+		Files.deleteIfExists(file.resolveSibling("experiment.dict"));
+	}
+
+	/**
+	 * Opens the segment of the project or returns the instance already opened by another backend.
+	 * Each call must be paired with a call to <code>release</code>.
+	 * @param projectPath
+	 * @return the segment
+	 * @throws IOException if the project has not been compacted or the segment is corrupt
+	 */
+	public static synchronized SegmentFile acquire(Path projectPath) throws IOException{
+
+		Path file = getPath(projectPath);
+
+		SegmentFile instance = instances.get(file);
+		if (instance == null){
+			instance = new SegmentFile(file);
+			instances.put(file, instance);
+		}
+
+		instance.references++;
+
+		return instance;
+	}
+
+	/**
+	 * Closes the segment once it is no longer used by any backend
+	 */
+	public void release(){
+
+		synchronized(SegmentFile.class){
+
+			if (--references > 0){
+				return;
+			}
+
+			if (instances.get(file) == this){
+				instances.remove(file);
+			}
+		}
+
+		arena.close();
+	}
+
+	/**
+	 * @param type
+	 * @param name
+	 * @return the section of the given type and name, null if no such section exists
+	 */
+	public Section getSection(byte type, String name){
+
+		for (Section section : sections){
+			if (section.type == type && section.name.equals(name)){
+				return section;
+			}
+		}
+
+		return null;
+	}
+
+	/**
+	 * @param projectPath
+	 * @param type
+	 * @param name
+	 * @return true if the segment of the project contains the section of the given type and name
+	 */
+	public static boolean hasSection(Path projectPath, byte type, String name){
+
+		if (!exists(projectPath)){
+			return false;
+		}
+
+		try {
+			SegmentFile segment = acquire(projectPath);
+			boolean found = segment.getSection(type, name) != null;
+			segment.release();
+
+			return found;
+		} catch (IOException e) {
+			AptaLogger.log(Level.WARNING, SegmentFile.class, e.getMessage());
+			return false;
+		}
+	}
+
+	/**
+	 * Reads, verifies and decompresses a block. Recently used blocks are served from memory.
+	 * The returned array is shared and must not be modified.
+	 * @param section
+	 * @param block
+	 * @return the uncompressed content of the block
+	 */
+	public byte[] getBlock(Section section, int block){
+
+		Long position = section.positions[block];
+
+		synchronized(cache){
+			byte[] data = cache.get(position);
+			if (data != null){
+				return data;
+			}
+		}
+
+		byte[] stored = new byte[section.storedLengths[block]];
+		arena.get(position, stored, 0, stored.length);
+
+		if (checksum(stored, stored.length) != section.checksums[block]){
+			AptaLogger.log(Level.SEVERE, this.getClass(), "Checksum mismatch in block " + block + " of section " + section.name + " of " + file.toString());
+			throw new IllegalStateException("The segment " + file.toString() + " is corrupt. Please recreate it with -compact.");
+		}
+
+		byte[] data = section.compressed[block] ? codec.decode(stored, section.rawLengths[block]) : stored;
+
+		synchronized(cache){
+			cache.put(position, data);
+		}
+
+		return data;
+	}
+
+	/**
+	 * @param section a section of records
+	 * @param id
+	 * @return a copy of the record stored under <code>id</code>, null if it does not exist
+	 */
+	public byte[] getRecord(Section section, int id){
+
+		int block = section.findBlock(id);
+		if (block < 0){
+			return null;
+		}
+
+		byte[] data = getBlock(section, block);
+		int index = findRecord(data, id);
+
+		return index < 0 ? null : getRecord(data, index);
+	}
+
+	/**
+	 * @param section a section of <code>long</code>s
+	 * @param position the index of the value in the section
+	 * @return the value
+	 */
+	public long getLong(Section section, long position){
+
+		int block = section.locate(position);
+		return getLong(getBlock(section, block), (int) (position - section.first[block]));
+
+	}
+
+	/**
+	 * @param section a section of (key << 32 | value) pairs
+	 * @param key a non-negative key
+	 * @return the value stored with <code>key</code>, 0 if it does not exist
+	 */
+	public int getValue(Section section, int key){
+
+		int block = section.findBlock(((long) key << 32) | 0xFFFFFFFFL);
+		if (block < 0){
+			return 0;
+		}
+
+		byte[] data = getBlock(section, block);
+
+		int low = 0;
+		int high = data.length / 8 - 1;
+
+		while (low <= high){
+
+			int mid = (low + high) >>> 1;
+			int mid_key = getInt(data, 8 * mid);
+
+			if (mid_key < key){
+				low = mid + 1;
+			}
+			else if (mid_key > key){
+				high = mid - 1;
+			}
+			else{
+				return getInt(data, 8 * mid + 4);
+			}
+		}
+
+		return 0;
+	}
+
+	/**
+	 * @param data a block of records
+	 * @return the number of records in the block
+	 */
+	public static int getRecordCount(byte[] data){
+		return getInt(data, 0);
+	}
+
+	/**
+	 * @param data a block of records
+	 * @param index
+	 * @return the id of the record at <code>index</code>
+	 */
+	public static int getRecordId(byte[] data, int index){
+		return getInt(data, 4 + 4 * index);
+	}
+
+	/**
+	 * @param data a block of records
+	 * @param index
+	 * @return a copy of the record at <code>index</code>
+	 */
+	public static byte[] getRecord(byte[] data, int index){
+
+		int count = getRecordCount(data);
+		int header = 4 + 8 * count + 4;
+		int start = getInt(data, 4 + 4 * count + 4 * index);
+		int end = getInt(data, 4 + 4 * count + 4 * (index + 1));
+
+		byte[] record = new byte[end - start];
+		System.arraycopy(data, header + start, record, 0, record.length);
+
+		return record;
+	}
+
+	/**
+	 * @param data a block of records
+	 * @param id
+	 * @return the index of the record with <code>id</code> in the block, -1 if it does not exist
+	 */
+	public static int findRecord(byte[] data, int id){
+
+		int low = 0;
+		int high = getRecordCount(data) - 1;
+
+		while (low <= high){
+
+			int mid = (low + high) >>> 1;
+			int mid_id = getRecordId(data, mid);
+
+			if (mid_id < id){
+				low = mid + 1;
+			}
+			else if (mid_id > id){
+				high = mid - 1;
+			}
+			else{
+				return mid;
+			}
+		}
+
+		return -1;
+	}
+
+	public static int getInt(byte[] data, int pos){
+		return ((data[pos] & 0xFF) << 24) | ((data[pos+1] & 0xFF) << 16) | ((data[pos+2] & 0xFF) << 8) | (data[pos+3] & 0xFF);
+	}
+
+	/**
+	 * @param data a block of <code>long</code>s
+	 * @param index
+	 * @return the value at <code>index</code>
+	 */
+	public static long getLong(byte[] data, int index){
+		return ((long) getInt(data, 8 * index) << 32) | (getInt(data, 8 * index + 4) & 0xFFFFFFFFL);
+	}
+
+	/**
+	 * @param a an aptamer sequence
+	 * @return the hash under which <code>a</code> is stored in the <code>SEQUENCES</code> section
+	 */
+	public static int hash(byte[] a){
+
+		// Murmur3 style mixing of the individual bytes
+		int h = 0x9747b28c ^ a.length;
+		for (int x=0; x<a.length; x++){
+			int k = a[x] * 0xcc9e2d51;
+			k = Integer.rotateLeft(k, 15) * 0x1b873593;
+			h = Integer.rotateLeft(h ^ k, 13) * 5 + 0xe6546b64;
+		}
+
+		h ^= h >>> 16;
+		h *= 0x85ebca6b;
+		h ^= h >>> 13;
+		h *= 0xc2b2ae35;
+		h ^= h >>> 16;
+
+		return h;
+	}
+
+	private static int checksum(byte[] data, int length){
+
+		CRC32 crc = new CRC32();
+		crc.update(data, 0, length);
+
+		return (int) crc.getValue();
+	}
+
+	private static Codec instantiateCodec(String name, Path file) throws IOException{
+
+		try {
+			return (Codec) Class.forName("lib.aptamer.datastructures." + name).getConstructor(Path.class).newInstance(file);
+		} catch (Exception e) {
+			throw new IOException("Could not instantiate the codec " + name + " for " + file.toString(), e);
+		}
+	}
+
+	/**
+	 * Writes the pool, all selection cycles and, if instantiated, the structures of <code>experiment</code>
+	 * into the segment of the project. The segment is first written to a temporary file which replaces any
+	 * existing segment once it is complete.
+	 * @param experiment
+	 * @param projectPath
+	 * @throws IOException
+	 */
+	public static void write(Experiment experiment, Path projectPath) throws IOException{
+
+		Path file = getPath(projectPath);
+		Path temporary = Paths.get(file.toString() + ".tmp");
+
+		delete(projectPath);
+
+		AptamerPool pool = experiment.getAptamerPool();
+		int poolSize = pool.size();
+
+		Writer writer = new Writer(temporary, file);
+
+		try{
+
+			// The aptamers and their bounds by id
+			long[] sequences = new long[poolSize];
+			int found = 0;
+
+			writer.beginSection(POOL, "pool", new long[]{ poolSize });
+			for (int id=1; id<=poolSize; id++){
+
+				byte[] a = pool.getAptamer(id);
+				if (a == null){
+					continue;
+				}
+
+				AptamerBounds bounds = pool.getAptamerBounds(id);
+
+				DataOutputStream record = writer.beginRecord(id);
+				record.writeInt(bounds.startIndex);
+				record.writeInt(bounds.endIndex);
+				record.write(a);
+
+				sequences[found++] = ((long) hash(a) << 32) | id;
+			}
+			writer.endSection();
+
+			// The ids by hash of their sequence
+			LongArrays.radixSort(sequences, 0, found);
+
+			writer.beginSection(SEQUENCES, "sequences", new long[0]);
+			for (int x=0; x<found; x++){
+				writer.addLong(sequences[x]);
+			}
+			writer.endSection();
+			sequences = null;
+
+			AptaLogger.log(Level.INFO, SegmentFile.class, "Wrote " + found + " aptamers to the segment.");
+
+			// The counts of each cycle by id
+			for (SelectionCycle cycle : experiment.getAllSelectionCycles()){
+
+				long[] counts = new long[cycle.getUniqueSize()];
+				int entries = 0;
+				for (Map.Entry<Integer, Integer> entry : cycle.iterator()){
+					if (entries == counts.length){
+						counts = Arrays.copyOf(counts, Math.max(16, entries * 2));
+					}
+					counts[entries++] = ((long) entry.getKey() << 32) | (entry.getValue() & 0xFFFFFFFFL);
+				}
+				LongArrays.radixSort(counts, 0, entries);
+
+				writer.beginSection(CYCLE, cycle.getName(), new long[]{
+						cycle.getRound(),
+						cycle.isControlSelection() ? 1 : 0,
+						cycle.isCounterSelection() ? 1 : 0,
+						cycle.getSize(),
+						entries
+				});
+				for (int x=0; x<entries; x++){
+					writer.addLong(counts[x]);
+				}
+				writer.endSection();
+
+				AptaLogger.log(Level.INFO, SegmentFile.class, "Wrote " + entries + " counts of selection cycle " + cycle.getName() + " to the segment.");
+			}
+
+			// The structures by id
+			StructurePool structures = experiment.getStructurePool();
+			if (structures != null){
+
+				int count = 0;
+
+				writer.beginSection(STRUCTURES, "structures", new long[0]);
+				for (int id=1; id<=poolSize; id++){
+
+					double[] structure = structures.getStructure(id);
+					if (structure == null){
+						continue;
+					}
+
+					DataOutputStream record = writer.beginRecord(id);
+					for (double value : structure){
+						record.writeDouble(value);
+					}
+					count++;
+				}
+				writer.endSection();
+
+				AptaLogger.log(Level.INFO, SegmentFile.class, "Wrote " + count + " structures to the segment.");
+			}
+
+			writer.finish();
+		}
+		catch (IOException e){
+			writer.abort();
+			throw e;
+		}
+
+		Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+		AptaLogger.log(Level.INFO, SegmentFile.class, "Compacted the experiment into " + file.toString() + " (" + Files.size(file) + " bytes).");
+	}
+
+	/**
+	 * @author Jan Hoinka
+	 * Appends the blocks of the sections to the file and writes the footer and trailer once all sections are complete
+	 */
+	private static class Writer {
+
+		private Path file = null;
+
+		private FileOutputStream fileOut = null;
+
+		private DataOutputStream out = null;
+
+		private Codec codec = null;
+
+		private String codecName = Configuration.getParameters().getString("SegmentFile.codec");
+
+		private int blockSize = Configuration.getParameters().getInt("SegmentFile.blockSize");
+
+		private ArrayList<Section> sections = new ArrayList<Section>();
+
+		private Section current = null;
+
+		/**
+		 * Position of the next block in the file
+		 */
+		private long position = 8;
+
+		/**
+		 * The ids and end offsets of the records of the current block
+		 */
+		private int[] ids = new int[1024];
+
+		private int[] ends = new int[1024];
+
+		private int count = 0;
+
+		/**
+		 * The first value of the current block if it is not a block of records
+		 */
+		private long first = 0;
+
+		/**
+		 * The content of the current block, records or <code>long</code>s
+		 */
+		private ByteArrayOutputStream payload = new ByteArrayOutputStream();
+
+		private DataOutputStream payloadOut = new DataOutputStream(payload);
+
+		private boolean records = false;
+
+		/**
+		 * @param temporary where the segment is written to
+		 * @param file the final location of the segment, used for the auxiliary data of the codec
+		 * @throws IOException
+		 */
+		public Writer(Path temporary, Path file) throws IOException{
+
+			this.file = temporary;
+			this.codec = instantiateCodec(codecName, file);
+
+			fileOut = new FileOutputStream(temporary.toFile());
+			out = new DataOutputStream(new BufferedOutputStream(fileOut, 1 << 20));
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+		}
+
+		public void beginSection(byte type, String name, long[] attributes){
+
+			current = new Section(type, name, attributes);
+			sections.add(current);
+
+		}
+
+		/**
+		 * Starts a new record in the current section. Records must be added in increasing order of their ids.
+		 * @param id
+		 * @return the stream the record must be written to
+		 * @throws IOException
+		 */
+		public DataOutputStream beginRecord(int id) throws IOException{
+
+			records = true;
+
+			if (count > 0){
+				ends[count-1] = payload.size();
+				if (payload.size() + 8 * count >= blockSize){
+					flush();
+				}
+			}
+
+			if (count == ids.length){
+				ids = Arrays.copyOf(ids, count * 2);
+				ends = Arrays.copyOf(ends, count * 2);
+			}
+
+			ids[count++] = id;
+
+			return payloadOut;
+		}
+
+		/**
+		 * Adds a value to the current section. Values must be added in increasing order.
+		 * @param value
+		 * @throws IOException
+		 */
+		public void addLong(long value) throws IOException{
+
+			if (count == 0){
+				first = value;
+			}
+
+			payloadOut.writeLong(value);
+			count++;
+
+			if (payload.size() >= blockSize){
+				flush();
+			}
+		}
+
+		public void endSection() throws IOException{
+
+			if (records && count > 0){
+				ends[count-1] = payload.size();
+			}
+
+			flush();
+			current = null;
+			records = false;
+		}
+
+		/**
+		 * Compresses the current block and appends it to the file
+		 * @throws IOException
+		 */
+		private void flush() throws IOException{
+
+			if (count == 0){
+				return;
+			}
+
+			byte[] raw = null;
+			long key = first;
+
+			if (records){
+
+				// Record ends are not known until the next record was started
+				ByteArrayOutputStream block = new ByteArrayOutputStream(payload.size() + 8 * count + 8);
+				DataOutputStream blockOut = new DataOutputStream(block);
+
+				blockOut.writeInt(count);
+				for (int x=0; x<count; x++){
+					blockOut.writeInt(ids[x]);
+				}
+				blockOut.writeInt(0);
+				for (int x=0; x<count; x++){
+					blockOut.writeInt(ends[x]);
+				}
+				payload.writeTo(blockOut);
+				blockOut.flush();
+
+				raw = block.toByteArray();
+				key = ids[0];
+			}
+			else{
+				raw = payload.toByteArray();
+			}
+
+			byte[] encoded = codec.encode(raw, raw.length);
+			byte[] stored = encoded == null ? raw : encoded;
+
+			out.write(stored);
+			current.addBlock(key, count, position, stored.length, raw.length, checksum(stored, stored.length), encoded != null);
+			position += stored.length;
+
+			payload.reset();
+			count = 0;
+		}
+
+		/**
+		 * Writes the footer and trailer and syncs the file to disk
+		 * @throws IOException
+		 */
+		public void finish() throws IOException{
+
+			ByteArrayOutputStream footer = new ByteArrayOutputStream();
+			DataOutputStream footerOut = new DataOutputStream(footer);
+
+			footerOut.writeUTF(codecName);
+			footerOut.writeInt(blockSize);
+			footerOut.writeInt(sections.size());
+
+			for (Section section : sections){
+
+				footerOut.writeByte(section.type);
+				footerOut.writeUTF(section.name);
+				footerOut.writeInt(section.attributes.length);
+				for (long attribute : section.attributes){
+					footerOut.writeLong(attribute);
+				}
+
+				footerOut.writeInt(section.blocks);
+				for (int x=0; x<section.blocks; x++){
+					footerOut.writeLong(section.keys[x]);
+					footerOut.writeInt((int) ((x+1 < section.blocks ? section.first[x+1] : section.items) - section.first[x]));
+					footerOut.writeLong(section.positions[x]);
+					footerOut.writeInt(section.storedLengths[x]);
+					footerOut.writeInt(section.rawLengths[x]);
+					footerOut.writeInt(section.checksums[x]);
+					footerOut.writeBoolean(section.compressed[x]);
+				}
+			}
+			footerOut.flush();
+
+			byte[] data = footer.toByteArray();
+			out.write(data);
+
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeLong(position);
+			out.writeInt(data.length);
+			out.writeInt(checksum(data, data.length));
+			out.flush();
+
+			fileOut.getFD().sync();
+			out.close();
+		}
+
+		/**
+		 * Closes and removes the incomplete file
+		 */
+		public void abort(){
+
+			try {
+				out.close();
+				Files.deleteIfExists(file);
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+}
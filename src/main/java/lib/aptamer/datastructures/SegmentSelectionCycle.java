@@ -0,0 +1,467 @@
+/**
+ *
+ */
+package lib.aptamer.datastructures;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.ListIterator;
+import java.util.Map.Entry;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.logging.Level;
+
+import utilities.AptaLogger;
+import utilities.Configuration;
+
+/**
+ * @author Jan Hoinka
+ *
+ * Read only implementation of the SelectionCycle interface serving the counts of a selection
+ * cycle from a project which has been compacted into a <code>SegmentFile</code>. The counts
+ * are stored as (id, count) pairs sorted by id, hence lookups are binary searches over the
+ * block directory and the block containing the id.
+ *
+ * All modifications throw an <code>UnsupportedOperationException</code>.
+ */
+public class SegmentSelectionCycle implements SelectionCycle{
+
+	private static final long serialVersionUID = 5312765934027616921L;
+
+	/**
+	 * The name of this selection cycle as defined in the configuration file
+	 */
+	private String name;
+
+	/**
+	 * The selection cycle number corresponding to this instance. The initial
+	 * pool should have a value of 0.
+	 */
+	private int round;
+
+	/**
+	 * True if this cycle corresponds to a control cycle.
+	 */
+	private Boolean isControlSelection = false;
+
+	/**
+	 * True if this cycle corresponds to a counter selection.
+	 */
+	private Boolean isCounterSelection = false;
+
+	/**
+	 * The segment containing the counts
+	 */
+	private transient SegmentFile segment = null;
+
+	/**
+	 * The (id, count) pairs of this cycle
+	 */
+	private transient SegmentFile.Section counts = null;
+
+	/**
+	 * The total number of aptamer molecules belonging to this selection cycle
+	 */
+	private int size = 0;
+
+	/**
+	 * The total number of unique aptamers belonging to this selection cycle
+	 */
+	private int unique_size = 0;
+
+	public SegmentSelectionCycle(String name, int round, boolean isControlSelection, boolean isCounterSelection, boolean newdb) throws IOException{
+
+		// Set basic information
+		this.name = name;
+		this.round = round;
+		this.isControlSelection = isControlSelection;
+		this.isCounterSelection = isCounterSelection;
+
+		if (newdb){
+			throw new UnsupportedOperationException("The SegmentSelectionCycle is read only and cannot be used to create a new selection cycle.");
+		}
+
+		AptaLogger.log(Level.CONFIG, this.getClass(), "Reading selection cycle " + name + " from the segment.");
+
+		open();
+
+	}
+
+	private void open() throws IOException{
+
+		Path projectPath = Paths.get(Configuration.getParameters().getString("Experiment.projectPath"));
+
+		segment = SegmentFile.acquire(projectPath);
+		counts = segment.getSection(SegmentFile.CYCLE, name);
+
+		if (counts == null || counts.getAttribute(0) != round){
+			segment.release();
+			throw new FileNotFoundException("The selection cycle " + name + " of round " + round + " is not part of the segment " + SegmentFile.getPath(projectPath) + ". Please compact the project again.");
+		}
+
+		size = (int) counts.getAttribute(3);
+		unique_size = (int) counts.getAttribute(4);
+
+	}
+
+	@Override
+	public String toString(){
+
+		return this.name + " (" + this.size + ")";
+
+	}
+
+	public int addToSelectionCycle(byte[] a, int rr_start, int rr_end, int count) {
+		throw new UnsupportedOperationException("Cannot add aptamers to selection cycle " + name + ". The selection cycle is a read only segment.");
+	}
+
+	public int addToSelectionCycle(byte[] a, int rr_start, int rr_end) {
+		return addToSelectionCycle(a, rr_start, rr_end, 1);
+	}
+
+	public int addToSelectionCycle(String a, int rr_start, int rr_end){
+		return addToSelectionCycle(a.getBytes(), rr_start, rr_end, 1);
+	}
+
+	public int addToSelectionCycle(String a, int rr_start, int rr_end, int count){
+		return addToSelectionCycle(a.getBytes(), rr_start, rr_end, count);
+	}
+
+	public int[] addToSelectionCycle(AptamerBatch batch){
+		throw new UnsupportedOperationException("Cannot add aptamers to selection cycle " + name + ". The selection cycle is a read only segment.");
+	}
+
+	public boolean containsAptamer(byte[] a) {
+
+		// Get the corresponding aptamer id from the pool
+		int id_a = Configuration.getExperiment().getAptamerPool().getIdentifier(a);
+
+		return id_a != -1 && getAptamerCardinality(id_a) != 0;
+	}
+
+	public boolean containsAptamer(String a){
+		return containsAptamer(a.getBytes());
+	}
+
+	public int getAptamerCardinality(byte[] a) {
+
+		int id_a = Configuration.getExperiment().getAptamerPool().getIdentifier(a);
+
+		return id_a == -1 ? 0 : getAptamerCardinality(id_a);
+	}
+
+	public int getAptamerCardinality(String a) {
+		return getAptamerCardinality(a.getBytes());
+	}
+
+	public int getAptamerCardinality(int id){
+
+		if (id <= 0){
+			return 0;
+		}
+
+		return segment.getValue(counts, id);
+
+	}
+
+	public int getSize() {
+		return size;
+	}
+
+	public int getUniqueSize() {
+		return unique_size;
+	}
+
+	public String getName(){
+		return this.name;
+	}
+
+	public int getRound() {
+		return this.round;
+	}
+
+	public SelectionCycle getNextSelectionCycle() {
+
+		ArrayList<SelectionCycle> cycles = Configuration.getExperiment().getSelectionCycles();
+
+		// The element we aim to find
+		SelectionCycle next = null;
+
+		// Create iterator starting at the selection cycle and advance until we find the next element
+		ListIterator<SelectionCycle> li = cycles.listIterator(this.round);
+		while (li.hasNext() && next==null){
+
+			SelectionCycle current_cycle = li.next();
+			if (current_cycle != null){
+				next = current_cycle;
+			}
+
+		}
+
+		return next;
+
+	}
+
+	public SelectionCycle getPreviousSelectionCycle() {
+		ArrayList<SelectionCycle> cycles = Configuration.getExperiment().getSelectionCycles();
+
+		// The element we aim to find
+		SelectionCycle previous = null;
+
+		// Create iterator starting at the selection cycle and advance until we find the next element
+		ListIterator<SelectionCycle> li = cycles.listIterator(this.round);
+		while (li.hasPrevious() && previous==null){
+
+			SelectionCycle current_cycle = li.previous();
+			if (current_cycle != null){
+				previous = current_cycle;
+			}
+
+		}
+
+		return previous;
+	}
+
+	public ArrayList<SelectionCycle> getControlCycles() {
+
+		// If no control cycle is present, we return an empty list as specified by the interface
+		if (Configuration.getExperiment().getControlSelectionCycles().get(this.round) == null){
+			return new ArrayList<SelectionCycle>();
+		}
+
+		// Otherwise, we return the actual cycles
+		return Configuration.getExperiment().getControlSelectionCycles().get(this.round);
+
+	}
+
+	public ArrayList<SelectionCycle> getCounterSelectionCycles() {
+
+		// If no control cycle is present, we return an empty list as specified by the interface
+		if (Configuration.getExperiment().getCounterSelectionCycles().get(this.round) == null){
+			return new ArrayList<SelectionCycle>();
+		}
+
+		// Otherwise, we return the actual cycles
+		return Configuration.getExperiment().getCounterSelectionCycles().get(this.round);
+
+	}
+
+	public boolean isControlSelection() {
+		return isControlSelection;
+	}
+
+	public boolean isCounterSelection() {
+		return isCounterSelection;
+	}
+
+	public void setReadOnly() {
+
+		// The segment is always read only
+
+	}
+
+	@Override
+	public void setReadWrite() {
+		throw new UnsupportedOperationException("Selection cycle " + name + " is a read only segment. Please remove " + SegmentFile.FILE_NAME + " in order to modify the project.");
+	}
+
+	@Override
+	public void checkpoint() {
+
+		// The segment is always on disk
+
+	}
+
+	public void close(){
+
+		segment.release();
+
+	}
+
+	/**
+	 * Maps the segment again after deserialization
+	 */
+	private void readObject(ObjectInputStream ois) throws ClassNotFoundException, IOException {
+
+	    ois.defaultReadObject();
+	    open();
+
+	}
+
+	/**
+	 * @author Jan Hoinka
+	 * Make use of internal classes so we can provide iterators for id->count and sequence->count to the API.
+	 * This class implements the id->count view in ascending order of the ids, decoding one block at a time.
+	 */
+	private class SelectionCycleIterator implements Iterable<Entry<Integer, Integer>> {
+
+		public Iterator<Entry<Integer, Integer>> iterator() {
+
+			return new Iterator<Entry<Integer, Integer>>() {
+
+				private int block = 0;
+
+				private byte[] data = null;
+
+				private int index = 0;
+
+				@Override
+				public boolean hasNext() {
+
+					while (data == null || index == data.length / 8){
+
+						if (block == counts.getBlocks()){
+							return false;
+						}
+
+						data = segment.getBlock(counts, block++);
+						index = 0;
+					}
+
+					return true;
+				}
+
+				@Override
+				public Entry<Integer, Integer> next() {
+
+					if (!hasNext()){
+						throw new NoSuchElementException();
+					}
+
+					long entry = SegmentFile.getLong(data, index++);
+					return new AbstractMap.SimpleEntry<Integer, Integer>((int) (entry >>> 32), (int) entry);
+				}
+
+				@Override
+				public void remove() {
+					throw new UnsupportedOperationException();
+				}
+			};
+		}
+
+	}
+
+	/**
+	 * @author Jan Hoinka
+	 * Make use of internal classes so we can provide iterators for id->count and sequence->count to the API.
+	 * This class implements the sequence->count view.
+	 */
+	private class SelectionCycleSequenceIterator implements Iterable<Entry<byte[], Integer>> {
+
+		@Override
+		public Iterator<Entry<byte[], Integer>> iterator() {
+			Iterator<Entry<byte[], Integer>> it = new Iterator<Entry<byte[], Integer>>() {
+
+				Iterator<Entry<Integer, Integer>> pool_iterator = new SelectionCycleIterator().iterator();
+
+	            @Override
+	            public boolean hasNext() {
+	                return pool_iterator.hasNext();
+	            }
+
+	            @Override
+	            public Entry<byte[], Integer> next() {
+
+	            	Entry<Integer, Integer> entry = pool_iterator.next();
+
+	            	//get the next Id from the map and look up the corresponding sequence
+	            	return new AbstractMap.SimpleEntry<byte[], Integer>(Configuration.getExperiment().getAptamerPool().getAptamer(entry.getKey()) , entry.getValue());
+
+	            }
+
+	            @Override
+	            public void remove() {
+	                throw new UnsupportedOperationException();
+	            }
+	        };
+	        return it;
+		}
+
+	}
+
+	/**
+	 * @author Jan Hoinka
+	 * Make use of internal classes so we can provide iterators for id to the API.
+	 */
+	private class IdIterator implements Iterable<Integer> {
+
+		public Iterator<Integer> iterator() {
+
+			final Iterator<Entry<Integer, Integer>> it = new SelectionCycleIterator().iterator();
+
+			return new Iterator<Integer>() {
+
+				@Override
+				public boolean hasNext() {
+					return it.hasNext();
+				}
+
+				@Override
+				public Integer next() {
+					return it.next().getKey();
+				}
+
+				@Override
+				public void remove() {
+					throw new UnsupportedOperationException();
+				}
+			};
+		}
+
+	}
+
+	public Iterable<Entry<Integer, Integer>> iterator(){
+		return new SelectionCycleIterator();
+	}
+
+	public Iterable<Entry<byte[], Integer>> sequence_iterator(){
+		return new SelectionCycleSequenceIterator();
+	}
+
+	@Override
+	public Iterable<Integer> id_iterator() {
+		return new IdIterator();
+	}
+
+	@Override
+	public Spliterator<Entry<Integer, Integer>> spliterator() {
+		return new CountSpliterator(segment, counts, 0, (int) counts.getItems());
+	}
+
+	/**
+	 * @author Jan Hoinka
+	 * Spliterator over a range of positions in the counts of the segment
+	 */
+	private static class CountSpliterator extends IndexRangeSpliterator<Entry<Integer, Integer>> {
+
+		private SegmentFile segment;
+
+		private SegmentFile.Section counts;
+
+		public CountSpliterator(SegmentFile segment, SegmentFile.Section counts, int from, int to) {
+			super(from, to);
+			this.segment = segment;
+			this.counts = counts;
+		}
+
+		@Override
+		protected Entry<Integer, Integer> get(int index) {
+
+			long entry = segment.getLong(counts, index);
+			return new AbstractMap.SimpleEntry<Integer, Integer>((int) (entry >>> 32), (int) entry);
+
+		}
+
+		@Override
+		protected IndexRangeSpliterator<Entry<Integer, Integer>> create(int from, int to) {
+			return new CountSpliterator(segment, counts, from, to);
+		}
+	}
+
+}
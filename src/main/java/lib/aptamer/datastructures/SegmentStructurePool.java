@@ -0,0 +1,262 @@
+/**
+ *
+ */
+package lib.aptamer.datastructures;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.AbstractMap;
+import java.util.Iterator;
+import java.util.Map.Entry;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.logging.Level;
+
+import utilities.AptaLogger;
+import utilities.Configuration;
+
+/**
+ * @author Jan Hoinka
+ * Read only implementation of the StructurePool interface serving the structures of a project
+ * which has been compacted into a <code>SegmentFile</code> after the structures were predicted.
+ * The structures are stored as records of <code>double</code>s sorted by aptamer id.
+ *
+ * <code>registerStructure</code> throws an <code>UnsupportedOperationException</code>.
+ */
+public class SegmentStructurePool implements StructurePool {
+
+	/**
+	 * The segment containing the structures
+	 */
+	private SegmentFile segment = null;
+
+	/**
+	 * The structures by id
+	 */
+	private SegmentFile.Section structures = null;
+
+	/**
+	 * Constructor
+	 * @param projectPath must point to the current projects working directory
+	 * which contains the segment.
+	 * @param newdb must be false, a segment cannot be created by registering structures
+	 * @throws FileNotFoundException if the segment does not contain any structures
+	 */
+	public SegmentStructurePool(Path projectPath, boolean newdb) throws IOException{
+
+		AptaLogger.log(Level.INFO, this.getClass(), "Instantiating SegmentStructurePool");
+
+		if (newdb){
+			throw new UnsupportedOperationException("The SegmentStructurePool is read only and cannot be used to create a new structure pool.");
+		}
+
+		segment = SegmentFile.acquire(projectPath);
+		structures = segment.getSection(SegmentFile.STRUCTURES, "structures");
+
+		if (structures == null){
+			segment.release();
+			AptaLogger.log(Level.SEVERE, this.getClass(), "No structure data was found in the segment but is required for this operation.");
+			throw new FileNotFoundException("The segment " + SegmentFile.getPath(projectPath) + " does not contain any structures. Please compact the project after predicting the structures.");
+		}
+
+		AptaLogger.log(Level.INFO, this.getClass(), "Found and loaded a total of " + structures.getItems() + " structures on disk.");
+
+	}
+
+	/**
+	 * @param record a record of the structures section
+	 * @return the structure it contains
+	 */
+	private static double[] decode(byte[] record){
+
+		double[] structure = new double[record.length / 8];
+		for (int x=0; x<structure.length; x++){
+			structure[x] = Double.longBitsToDouble(SegmentFile.getLong(record, x));
+		}
+
+		return structure;
+	}
+
+	/* (non-Javadoc)
+	 * @see lib.aptamer.datastructures.StructurePool#registerStructure(int, double[])
+	 */
+	@Override
+	public void registerStructure(int id, double[] structure) {
+		throw new UnsupportedOperationException("Cannot register structures. The structure pool is a read only segment.");
+	}
+
+	/* (non-Javadoc)
+	 * @see lib.aptamer.datastructures.StructurePool#getStructure(int)
+	 */
+	@Override
+	public double[] getStructure(int id) {
+
+		byte[] record = segment.getRecord(structures, id);
+		return record == null ? null : decode(record);
+
+	}
+
+	/**
+	 * @return the number of structures stored
+	 */
+	public long size(){
+		return structures.getItems();
+	}
+
+	/* (non-Javadoc)
+	 * @see lib.aptamer.datastructures.StructurePool#close()
+	 */
+	@Override
+	public void close(){
+
+		segment.release();
+
+	}
+
+	/* (non-Javadoc)
+	 * @see lib.aptamer.datastructures.StructurePool#setReadOnly()
+	 */
+	@Override
+	public void setReadOnly(){
+
+		// The segment is always read only
+
+	}
+
+	/* (non-Javadoc)
+	 * @see lib.aptamer.datastructures.StructurePool#setReadWrite()
+	 */
+	@Override
+	public void setReadWrite(){
+		throw new UnsupportedOperationException("The structure pool is a read only segment. Please remove " + SegmentFile.FILE_NAME + " in order to modify the project.");
+	}
+
+	/* (non-Javadoc)
+	 * @see lib.aptamer.datastructures.StructurePool#iterator()
+	 */
+	@Override
+	public Iterable<Entry<Integer, double[]>> iterator() {
+
+		return new Iterable<Entry<Integer, double[]>>(){
+
+			@Override
+			public Iterator<Entry<Integer, double[]>> iterator() {
+
+				return new Iterator<Entry<Integer, double[]>>(){
+
+					private int block = 0;
+
+					private byte[] data = null;
+
+					private int index = 0;
+
+					@Override
+					public boolean hasNext() {
+
+						while (data == null || index == SegmentFile.getRecordCount(data)){
+
+							if (block == structures.getBlocks()){
+								return false;
+							}
+
+							data = segment.getBlock(structures, block++);
+							index = 0;
+						}
+
+						return true;
+					}
+
+					@Override
+					public Entry<Integer, double[]> next() {
+
+						if (!hasNext()){
+							throw new NoSuchElementException();
+						}
+
+						int id = SegmentFile.getRecordId(data, index);
+						return new AbstractMap.SimpleEntry<Integer, double[]>(id, decode(SegmentFile.getRecord(data, index++)));
+					}
+
+					@Override
+					public void remove() {
+						throw new UnsupportedOperationException();
+					}
+				};
+			}
+		};
+	}
+
+	/* (non-Javadoc)
+	 * @see lib.aptamer.datastructures.StructurePool#sequence_iterator()
+	 */
+	@Override
+	public Iterable<Entry<byte[], double[]>> sequence_iterator() {
+
+		return new Iterable<Entry<byte[], double[]>>(){
+
+			@Override
+			public Iterator<Entry<byte[], double[]>> iterator() {
+
+				final Iterator<Entry<Integer, double[]>> it = SegmentStructurePool.this.iterator().iterator();
+
+				return new Iterator<Entry<byte[], double[]>>(){
+
+					@Override
+					public boolean hasNext() {
+						return it.hasNext();
+					}
+
+					@Override
+					public Entry<byte[], double[]> next() {
+
+						Entry<Integer, double[]> entry = it.next();
+						return new AbstractMap.SimpleEntry<byte[], double[]>(Configuration.getExperiment().getAptamerPool().getAptamer(entry.getKey()), entry.getValue());
+
+					}
+
+					@Override
+					public void remove() {
+						throw new UnsupportedOperationException();
+					}
+				};
+			}
+		};
+	}
+
+	/* (non-Javadoc)
+	 * @see lib.aptamer.datastructures.StructurePool#spliterator()
+	 */
+	@Override
+	public Spliterator<Entry<Integer, double[]>> spliterator() {
+		return new StructureSpliterator(0, (int) structures.getItems());
+	}
+
+	/**
+	 * @author Jan Hoinka
+	 * Spliterator over a range of positions in the structures of the segment
+	 */
+	private class StructureSpliterator extends IndexRangeSpliterator<Entry<Integer, double[]>> {
+
+		public StructureSpliterator(int from, int to) {
+			super(from, to);
+		}
+
+		@Override
+		protected Entry<Integer, double[]> get(int index) {
+
+			int block = structures.locate(index);
+			byte[] data = segment.getBlock(structures, block);
+			int position = (int) (index - structures.getFirst(block));
+
+			return new AbstractMap.SimpleEntry<Integer, double[]>(SegmentFile.getRecordId(data, position), decode(SegmentFile.getRecord(data, position)));
+
+		}
+
+		@Override
+		protected IndexRangeSpliterator<Entry<Integer, double[]>> create(int from, int to) {
+			return new StructureSpliterator(from, to);
+		}
+	}
+
+}
@@ -7,6 +7,10 @@ import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.Map.Entry;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 /**
  * @author Jan Hoinka
@@ -55,7 +59,8 @@ public interface SelectionCycle extends Serializable{
 	 * function also add it to the corresponding instance.
 	 * @param a the aptamer in question
 	 * @param the number by which the current count of <code>a</code> should be increased with
-	 * @return the unique id assigned to aptamer <code>a</code> 
+	 * @return the unique id assigned to aptamer <code>a</code>, -1 if the pool cannot store <code>a</code> 
+	 * in which case the cycle is not modified
 	 */
 	public int addToSelectionCycle(byte[] a, int rr_start, int rr_end, int count);
 	
@@ -69,6 +74,15 @@ public interface SelectionCycle extends Serializable{
 	 */
 	public int addToSelectionCycle(String a, int rr_start, int rr_end, int count);
 	
+	/**
+	 * Adds all aptamers of <code>batch</code> to this selection cycle, increasing their 
+	 * cardinalities by the corresponding counts. Aptamers which have never been observed in 
+	 * the <code>AptamerPool</code> are registered with the pool as a single batch.
+	 * @param batch the aptamers in question
+	 * @return the unique ids assigned to the aptamers in the same order as in <code>batch</code>
+	 */
+	public int[] addToSelectionCycle(AptamerBatch batch);
+	
 	/**
 	 * Checks whether an aptamer is part of this selection cycle
 	 * @param a the aptamer in question
@@ -189,6 +203,13 @@ public interface SelectionCycle extends Serializable{
 	 */
 	public void setReadWrite();	
 	
+	/**
+	 * Writes all counts added so far to disk without leaving read/write mode, such that the 
+	 * files of the cycle can be backed up in a consistent state. The cycle must not be modified 
+	 * concurrently.
+	 */
+	public void checkpoint();
+	
 	/**
 	 * Optional. Closes the underlying data structure, freeing any resources attached
 	 * to it.
@@ -217,4 +238,25 @@ public interface SelectionCycle extends Serializable{
 	 */
 	public Iterable<Integer> id_iterator();
 	
+	
+	/**
+	 * Provides a spliterator over every aptamer id (key) in this selection cycle  
+	 * together with its count (value), i.e. the same view as <code>iterator()</code>.
+	 * Implementing classes should split by key range so that the cycle can be 
+	 * consumed in parallel. The default implementation cannot be split efficiently.
+	 */
+	public default Spliterator<Entry<Integer, Integer>> spliterator(){
+		return Spliterators.spliterator(iterator().iterator(), getUniqueSize(), Spliterator.NONNULL);
+	}
+	
+	
+	/**
+	 * Provides a stream over every aptamer id (key) in this selection cycle  
+	 * together with its count (value).
+	 * Use <code>stream().parallel()</code> to process the cycle concurrently.
+	 */
+	public default Stream<Entry<Integer, Integer>> stream(){
+		return StreamSupport.stream(spliterator(), false);
+	}
+	
 }
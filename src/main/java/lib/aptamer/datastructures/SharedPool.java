@@ -0,0 +1,179 @@
+/**
+ *
+ */
+package lib.aptamer.datastructures;
+
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.Properties;
+import java.util.logging.Level;
+
+import utilities.AptaLogger;
+import utilities.Configuration;
+
+/**
+ * @author Jan Hoinka
+ *
+ * Manages an aptamer pool which is shared by several projects over the same library, as specified
+ * by <code>AptamerPool.sharedPath</code>. The pool and the structures, both of which are keyed by
+ * aptamer id, are then stored in that folder instead of the project folder, while each project keeps
+ * its own selection cycles. Hence, every unique sequence is stored and its structure predicted only once.
+ *
+ * The shared pool is an append-only dictionary. Ids are never reassigned, so that the selection cycles
+ * of all projects remain valid when another project adds aptamers. Consequently, the pool is never
+ * recreated or truncated below its own size on behalf of a single project.
+ *
+ * The projects referencing the pool are recorded in <code>shared.projects</code> together with the
+ * size of the pool when they last used it. All aptamers with an id up to that size may be referenced
+ * by the project. Since the backends are not safe for concurrent use by multiple processes, the pool
+ * is locked exclusively via <code>shared.lock</code> while it is in use.
+ */
+public class SharedPool {
+
+	/**
+	 * Name of the lock file in the shared folder
+	 */
+	private static final String LOCK_FILE = "shared.lock";
+
+	/**
+	 * Name of the registry of referencing projects in the shared folder
+	 */
+	private static final String REGISTRY_FILE = "shared.projects";
+
+	/**
+	 * The shared folder
+	 */
+	private Path sharedPath = null;
+
+	/**
+	 * File handle the lock is held on
+	 */
+	private RandomAccessFile lockFile = null;
+
+	/**
+	 * The exclusive lock of the shared folder
+	 */
+	private FileLock lock = null;
+
+	/**
+	 * Project path -> size of the pool when the project last used it
+	 */
+	private Properties projects = new Properties();
+
+	/**
+	 * Opens the shared folder, waiting until no other process uses it
+	 * @param sharedPath the shared folder, created if it does not exist
+	 * @throws IOException
+	 */
+	public SharedPool(Path sharedPath) throws IOException{
+
+		this.sharedPath = Files.createDirectories(sharedPath);
+
+		lockFile = new RandomAccessFile(Paths.get(sharedPath.toString(), LOCK_FILE).toFile(), "rw");
+		FileChannel channel = lockFile.getChannel();
+
+		lock = channel.tryLock();
+		if (lock == null){
+			AptaLogger.log(Level.INFO, this.getClass(), "The shared pool in " + sharedPath + " is in use by another process. Waiting for it to finish.");
+			lock = channel.lock();
+		}
+
+		Path registry = Paths.get(sharedPath.toString(), REGISTRY_FILE);
+		if (Files.exists(registry)){
+			try (FileInputStream in = new FileInputStream(registry.toFile())){
+				projects.load(in);
+			}
+		}
+
+	}
+
+	/**
+	 * @return true if the pool is shared among projects
+	 */
+	public static boolean isEnabled(){
+		return !Configuration.getParameters().getString("AptamerPool.sharedPath", "").trim().isEmpty();
+	}
+
+	/**
+	 * @param projectPath
+	 * @return the folder containing the pool and structures of the project
+	 */
+	public static Path getDataPath(Path projectPath){
+
+		if (!isEnabled()){
+			return projectPath;
+		}
+
+		return Paths.get(Configuration.getParameters().getString("AptamerPool.sharedPath").trim());
+	}
+
+	/**
+	 * @param folder e.g. <code>pooldata</code> or <code>structuredata</code>
+	 * @return true if <code>folder</code> of the shared folder contains any data
+	 */
+	public boolean contains(String folder){
+
+		String[] files = Paths.get(sharedPath.toString(), folder).toFile().list();
+		return files != null && files.length != 0;
+
+	}
+
+	/**
+	 * Records that the project references all aptamers up to <code>poolSize</code>
+	 * @param projectPath
+	 * @param poolSize
+	 * @throws IOException
+	 */
+	public void register(Path projectPath, int poolSize) throws IOException{
+
+		projects.setProperty(projectPath.toAbsolutePath().normalize().toString(), Integer.toString(poolSize));
+
+		// Replace the registry atomically
+		Path registry = Paths.get(sharedPath.toString(), REGISTRY_FILE);
+		Path temporary = Paths.get(sharedPath.toString(), REGISTRY_FILE + ".tmp");
+
+		try (FileOutputStream out = new FileOutputStream(temporary.toFile())){
+			projects.store(out, "Projects referencing the shared aptamer pool");
+			out.getFD().sync();
+		}
+
+		Files.move(temporary, registry, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+	}
+
+	/**
+	 * @return the number of projects referencing the pool
+	 */
+	public int getReferenceCount(){
+		return projects.size();
+	}
+
+	/**
+	 * @return the shared folder
+	 */
+	public Path getPath(){
+		return sharedPath;
+	}
+
+	/**
+	 * Releases the lock so that other processes can use the pool
+	 */
+	public void release(){
+
+		try {
+			lock.release();
+			lockFile.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+
+	}
+}
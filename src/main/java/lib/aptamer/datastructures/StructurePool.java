@@ -4,6 +4,10 @@
 package lib.aptamer.datastructures;
 
 import java.util.Map.Entry;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 /**
  * @author Jan Hoinka
@@ -64,4 +68,25 @@ public interface StructurePool {
 	 */
 	public Iterable<Entry<byte[],double[]>> sequence_iterator();
 	
+	
+	/**
+	 * Provides a spliterator over every aptamer id in the pool together with 
+	 * its corresponding structure, i.e. the same view as <code>iterator()</code>. 
+	 * Implementing classes should split along their internal partitions so that the 
+	 * pool can be consumed in parallel. The default implementation cannot be split 
+	 * efficiently.
+	 */
+	public default Spliterator<Entry<Integer, double[]>> spliterator(){
+		return Spliterators.spliteratorUnknownSize(iterator().iterator(), Spliterator.NONNULL);
+	}
+	
+	
+	/**
+	 * Provides a stream over every aptamer id in the pool together with its corresponding structure.
+	 * Use <code>stream().parallel()</code> to process the pool concurrently.
+	 */
+	public default Stream<Entry<Integer, double[]>> stream(){
+		return StreamSupport.stream(spliterator(), false);
+	}
+	
 }
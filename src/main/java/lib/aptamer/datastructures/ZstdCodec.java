@@ -0,0 +1,196 @@
+/**
+ *
+ */
+package lib.aptamer.datastructures;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.logging.Level;
+
+import com.github.luben.zstd.Zstd;
+import com.github.luben.zstd.ZstdDictCompress;
+import com.github.luben.zstd.ZstdDictDecompress;
+import com.github.luben.zstd.ZstdDictTrainer;
+import com.github.luben.zstd.ZstdException;
+
+import utilities.AptaLogger;
+import utilities.Configuration;
+
+/**
+ * @author Jan Hoinka
+ * Codec using Zstandard with a dictionary trained on the data of the file it is used for.
+ * Individual aptamers and structures are too small for Zstandard to find redundancy within
+ * a single record, but records share a lot of content with each other (e.g. primers), which
+ * a dictionary captures.
+ *
+ * The first <code>ZstdCodec.trainingSamples</code> records are compressed without a dictionary
+ * and simultaneously used as training samples. Once enough samples are collected, the dictionary
+ * is trained, persisted next to the file with the extension <code>.dict</code>, and used for all
+ * subsequent records. Each encoded record starts with a flag indicating whether it was compressed
+ * with the dictionary.
+ */
+public class ZstdCodec implements Codec {
+
+	/**
+	 * Flag of records compressed without dictionary
+	 */
+	private static final byte PLAIN = 0;
+
+	/**
+	 * Flag of records compressed with the dictionary
+	 */
+	private static final byte DICTIONARY = 1;
+
+	/**
+	 * The compression level
+	 */
+	private int level = Configuration.getParameters().getInt("ZstdCodec.level");
+
+	/**
+	 * Number of records to collect before training the dictionary
+	 */
+	private int trainingSamples = Configuration.getParameters().getInt("ZstdCodec.trainingSamples");
+
+	/**
+	 * Maximal size of the dictionary in bytes
+	 */
+	private int dictionarySize = Configuration.getParameters().getInt("ZstdCodec.dictionarySize");
+
+	/**
+	 * Location of the persisted dictionary
+	 */
+	private Path dictionaryPath = null;
+
+	/**
+	 * Collects the samples, null once the dictionary was trained or training was abandoned
+	 */
+	private ZstdDictTrainer trainer = null;
+
+	/**
+	 * Number of samples collected so far
+	 */
+	private int samples = 0;
+
+	/**
+	 * Dictionary used for compression, null until trained
+	 */
+	private volatile ZstdDictCompress compressDictionary = null;
+
+	/**
+	 * Dictionary used for decompression, null if none was trained
+	 */
+	private volatile ZstdDictDecompress decompressDictionary = null;
+
+	/**
+	 * @param file the file the codec is used for
+	 * @throws IOException
+	 */
+	public ZstdCodec(Path file) throws IOException{
+
+		String name = file.getFileName().toString();
+		int extension = name.lastIndexOf('.');
+		dictionaryPath = file.resolveSibling((extension > 0 ? name.substring(0, extension) : name) + ".dict");
+
+		if (Files.isRegularFile(dictionaryPath)){
+
+			setDictionary(Files.readAllBytes(dictionaryPath));
+			AptaLogger.log(Level.CONFIG, this.getClass(), "Loaded compression dictionary " + dictionaryPath.toString());
+
+		}
+		else{
+
+			trainer = new ZstdDictTrainer(Math.max(dictionarySize * 100, 1 << 20), dictionarySize);
+
+		}
+
+	}
+
+	private void setDictionary(byte[] dictionary){
+
+		decompressDictionary = new ZstdDictDecompress(dictionary);
+		compressDictionary = new ZstdDictCompress(dictionary, level);
+
+	}
+
+	/**
+	 * Adds a sample to the trainer and trains the dictionary once enough samples are available
+	 * @param sample
+	 */
+	private synchronized void train(byte[] sample){
+
+		if (trainer == null){
+			return;
+		}
+
+		samples++;
+		if (trainer.addSample(sample) && samples < trainingSamples){
+			return;
+		}
+
+		try {
+
+			byte[] dictionary = trainer.trainSamples();
+
+			// Persist the dictionary before the first record depends on it
+			Files.write(dictionaryPath, dictionary);
+			setDictionary(dictionary);
+
+			AptaLogger.log(Level.CONFIG, this.getClass(), "Trained compression dictionary of " + dictionary.length + " bytes on " + samples + " samples for " + dictionaryPath.toString());
+
+		} catch (ZstdException | IOException e) {
+
+			AptaLogger.log(Level.WARNING, this.getClass(), "Could not train compression dictionary for " + dictionaryPath.toString() + ", continuing without dictionary. " + e.getMessage());
+
+		}
+
+		trainer = null;
+
+	}
+
+	@Override
+	public byte[] encode(byte[] data, int length) {
+
+		byte[] raw = length == data.length ? data : Arrays.copyOf(data, length);
+
+		ZstdDictCompress dictionary = compressDictionary;
+		byte[] compressed = null;
+
+		if (dictionary != null){
+			compressed = Zstd.compress(raw, dictionary);
+		}
+		else{
+			compressed = Zstd.compress(raw, level);
+			train(raw);
+		}
+
+		if (compressed.length + 1 >= length){
+			return null;
+		}
+
+		byte[] encoded = new byte[compressed.length + 1];
+		encoded[0] = dictionary != null ? DICTIONARY : PLAIN;
+		System.arraycopy(compressed, 0, encoded, 1, compressed.length);
+
+		return encoded;
+	}
+
+	@Override
+	public byte[] decode(byte[] data, int rawLength) {
+
+		byte[] compressed = Arrays.copyOfRange(data, 1, data.length);
+
+		if (data[0] == DICTIONARY){
+
+			if (decompressDictionary == null){
+				throw new IllegalStateException("The compression dictionary " + dictionaryPath.toString() + " is missing.");
+			}
+
+			return Zstd.decompress(compressed, decompressDictionary, rawLength);
+		}
+
+		return Zstd.decompress(compressed, rawLength);
+	}
+
+}
@@ -6,8 +6,14 @@ package lib.export;
 import java.lang.reflect.InvocationTargetException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.util.Map;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map.Entry;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 import java.util.logging.Level;
 
 import exceptions.InvalidConfigurationException;
@@ -25,6 +31,10 @@ import utilities.Configuration;
  */
 public class Export {
 
+	/**
+	 * The number of items which are formatted in parallel before they are written to file
+	 */
+	private static final int CHUNK_SIZE = 4096;
 	
 	/**
 	 * Writes the specified pool <code>p</code> to 
@@ -56,9 +66,7 @@ public class Export {
 		}
 		
 		// Write sequences
-		for ( Entry<byte[], Integer> entry : ap.iterator()){
-			writer.write(formatter.format(entry.getValue(), entry.getKey()));
-		}
+		write(ap.inverse_view_stream(), formatter, writer);
 		
 		// Finalize
 		writer.close();
@@ -94,9 +102,13 @@ public class Export {
 		}
 		
 		// Write sequences
-		for ( Entry<byte[], Integer> entry : sc.sequence_iterator()){
-			writer.write(formatter.format(entry.getValue(), entry.getKey()));
-		}
+		final AptamerPool ap = Configuration.getExperiment().getAptamerPool();
+		write(sc.stream().map(new Function<Entry<Integer, Integer>, Entry<Integer, byte[]>>(){
+			@Override
+			public Entry<Integer, byte[]> apply(Entry<Integer, Integer> entry) {
+				return new AbstractMap.SimpleEntry<Integer, byte[]>(entry.getKey(), ap.getAptamer(entry.getKey()));
+			}
+		}), formatter, writer);
 		
 		// Finalize
 		writer.close();
@@ -118,13 +130,48 @@ public class Export {
 		ExportFormat<double[]> formatter= new StructureExportFormat();
 		
 		// Write structures 
-		for ( Map.Entry<Integer, double[]> entry : sp.iterator() ){
-			//ID and Sequence
-			writer.write(formatter.format(entry.getKey(), entry.getValue()));
-		}
+		write(sp.stream(), formatter, writer);
 		
 		// Finalize
 		writer.close();
 	}
 	
+	/**
+	 * Formats the items of <code>items</code> in parallel and writes them to <code>writer</code>.
+	 * The items are consumed sequentially in chunks so that the resulting file lists them in the 
+	 * iteration order of <code>items</code>.
+	 * @param items the ids and data to export
+	 * @param formatter the formatter converting the items into text
+	 * @param writer the destination
+	 */
+	private <T> void write(Stream<Entry<Integer, T>> items, final ExportFormat<T> formatter, ExportWriter writer){
+		
+		Function<Entry<Integer, T>, String> format = new Function<Entry<Integer, T>, String>(){
+			@Override
+			public String apply(Entry<Integer, T> entry) {
+				return formatter.format(entry.getKey(), entry.getValue());
+			}
+		};
+		
+		Iterator<Entry<Integer, T>> it = items.sequential().iterator();
+		List<Entry<Integer, T>> chunk = new ArrayList<Entry<Integer, T>>(CHUNK_SIZE);
+		
+		while (it.hasNext()){
+			
+			chunk.add(it.next());
+			
+			if (chunk.size() == CHUNK_SIZE || !it.hasNext()){
+				
+				// Formatting is performed concurrently, writing in order
+				List<String> formatted = chunk.parallelStream().map(format).collect(Collectors.toList());
+				for (String item : formatted){
+					writer.write(item);
+				}
+				
+				chunk.clear();
+			}
+		}
+		
+	}
+	
 }
@@ -19,9 +19,10 @@ public class FastqExportFormat implements ExportFormat<byte[]> {
 
 	/**
 	 * Provide a fast way of writing fake quality scores 
-	 * without having to recreate the string every time
+	 * without having to recreate the string every time. The string is 
+	 * replaced rather than modified so that items can be formatted concurrently
 	 */
-	StringBuilder qualityScores = new StringBuilder();
+	volatile String qualityScores = "";
 	
 	/**
 	 * The experiment name as specified in the configuration. If not name
@@ -57,14 +58,18 @@ public class FastqExportFormat implements ExportFormat<byte[]> {
 		int length = withPrimers ? sequence.length : bounds.endIndex - bounds.startIndex;
 		
 		// make sure the qualityScore is at least as long as the sequence
-		while (qualityScores.length() < sequence.length){
-			qualityScores.append('B');
+		String scores = qualityScores;
+		if (scores.length() < sequence.length){
+			char[] grown = new char[sequence.length];
+			Arrays.fill(grown, 'B');
+			scores = new String(grown);
+			qualityScores = scores;
 		}
 		
 		return String.format("@%s\n%s\n+\n%s\n", 
 				"AptaSuite_" + id + " " + name + " length=" + length,
 				(withPrimers ? new String(sequence) : new String(Arrays.copyOfRange(sequence, bounds.startIndex, bounds.startIndex))),
-				qualityScores.subSequence(0, length)
+				scores.substring(0, length)
 				);
 		
 	}
@@ -5,9 +5,14 @@ package lib.parser.aptaplex;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
 import java.util.NoSuchElementException;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.BrokenBarrierException;
+import java.util.concurrent.CyclicBarrier;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -24,6 +29,7 @@ import com.milaboratory.core.sequence.NSequenceWithQuality;
 import com.milaboratory.core.sequence.NucleotideSequence;
 
 import exceptions.InvalidConfigurationException;
+import lib.aptamer.datastructures.AptamerBatch;
 import lib.aptamer.datastructures.SelectionCycle;
 import lib.parser.aptaplex.distances.BitapDistance;
 import lib.parser.aptaplex.distances.Distance;
@@ -130,10 +136,81 @@ public class AptaPlexConsumer implements Runnable {
 	int primerTolerance = Configuration.getParameters().getInt("AptaplexParser.PrimerTolerance");
 	int barcodeTolerance = Configuration.getParameters().getInt("AptaplexParser.BarcodeTolerance");
 
+	/**
+	 * Accepted reads are collected per selection cycle and handed to the
+	 * backends in batches of this size
+	 */
+	int batchSize = Configuration.getParameters().getInt("AptaplexParser.BatchSize");
+
+	/**
+	 * If larger than 0, duplicate reads are aggregated per selection cycle and
+	 * the batches are handed to the backends once they contain this many distinct
+	 * sequences instead of <code>batchSize</code> reads
+	 */
+	int aggregationCapacity = Configuration.getParameters().getInt("AptaplexParser.AggregationCapacity");
+
+	/**
+	 * Number of reads and distinct sequences handed to the backends, for reporting
+	 * the effect of the aggregation
+	 */
+	private long flushedReads = 0;
+	private long flushedEntries = 0;
+
+	/**
+	 * Number of accepted reads which could not be added to their selection cycle
+	 */
+	private long droppedReads = 0;
+
+	/**
+	 * The batches of accepted reads which have not yet been added to their
+	 * selection cycle
+	 */
+	private Map<SelectionCycle, AptamerBatch> batches = new HashMap<SelectionCycle, AptamerBatch>();
+
+	/**
+	 * Barrier at which the producer and all consumers meet for a checkpoint, null if no
+	 * checkpoints are recorded
+	 */
+	private CyclicBarrier checkpointBarrier = null;
+
+	/**
+	 * Recycles the chunks of reads once processed, null if they are left to the garbage collector
+	 */
+	private ReadPool readPool = null;
+
+	/**
+	 * The matches of the primers and the barcodes of the current read. They are
+	 * overwritten for every read instead of being allocated by the distances.
+	 */
+	private Result primer5Result = new Result();
+	private Result primer3Result = new Result();
+	private Result barcodeResult = new Result();
+
+	/**
+	 * Buffers for the contigs of paired end reads and for the extracted
+	 * sequences, one per length
+	 */
+	private Buffers contigBuffers = new Buffers();
+	private Buffers sequenceBuffers = new Buffers();
+
 	public AptaPlexConsumer(BlockingQueue<Object> queue, AptaPlexProgress progress) {
 
+		this(queue, progress, null, null);
+
+	}
+
+	/**
+	 * @param queue the queue to consume from
+	 * @param progress the progress of the parser
+	 * @param checkpointBarrier the barrier to wait at upon <code>AptaPlexParser.CHECKPOINT</code>, or null
+	 * @param readPool the pool to return processed chunks of reads to, or null
+	 */
+	public AptaPlexConsumer(BlockingQueue<Object> queue, AptaPlexProgress progress, CyclicBarrier checkpointBarrier, ReadPool readPool) {
+
 		this.queue = queue;
 		this.progress = progress;
+		this.checkpointBarrier = checkpointBarrier;
+		this.readPool = readPool;
 
 		// get the barcodes in the correct format
 		for (String barcode : Configuration.getParameters().getStringArray("AptaplexParser.barcodes5Prime")) {
@@ -170,109 +247,222 @@ public class AptaPlexConsumer implements Runnable {
 
 				if (queueElement == Configuration.POISON_PILL) {
 					AptaLogger.log(Level.CONFIG, this.getClass(), "Encountered poison pill. Exiting thread.");
-					queue.put(Configuration.POISON_PILL); // notify other threads to stop
+					try {
+						flushBatches();
+						if (aggregationCapacity > 0){
+							AptaLogger.log(Level.CONFIG, this.getClass(), "Aggregated " + flushedReads + " reads into " + flushedEntries + " updates of the selection cycles.");
+						}
+						if (droppedReads > 0){
+							AptaLogger.log(Level.WARNING, this.getClass(), "A total of " + droppedReads + " accepted reads could not be added to their selection cycles.");
+						}
+					} finally {
+						queue.put(Configuration.POISON_PILL); // notify other threads to stop
+					}
 					return;
 				}
 
-				// Update the progress in a thread-safe manner
-				progress.totalProcessedReads.incrementAndGet();
+				// All reads taken before the checkpoint must be part of it
+				if (queueElement == AptaPlexParser.CHECKPOINT) {
+					try {
+						flushBatches();
+					} finally {
+						// The producer and the other consumers wait for this one, even if the flush failed
+						try {
+							checkpointBarrier.await();
+						} catch (BrokenBarrierException e) {
+							AptaLogger.log(Level.WARNING, this.getClass(), "Checkpoint was aborted.");
+						}
+					}
+					continue;
+				}
 
-				// process queueElement
-				read = (Read) queueElement;
+				// process the reads of the chunk one by one
+				ReadChunk chunk = (ReadChunk) queueElement;
+				for (int x = 0; x < chunk.size(); x++) {
+					read = chunk.get(x);
+					try {
+						processRead();
+					} catch (Exception e) {
+						e.printStackTrace();
+					}
+				}
+				
+				// none of the arrays of the reads are referenced anymore, they can be refilled
+				read = null;
+				if (readPool != null) {
+					readPool.release(chunk);
+				}
 
-				byte[] contig = null;
+			} catch (InterruptedException e) {
+				// The parse was aborted
+				return;
+			} catch (Exception e) {
+				e.printStackTrace();
+			}
+		}
 
-				// Differentiate between single-end and paired-end sequencing
-				if (read.reverse_read != null) {
+	}
 
-					// if paired end, we need to compute the transcribed inverse
-					// for the reverse read
-					computeTranscribedReverse();
+	/**
+	 * Extracts the randomized region of <code>read</code> and adds it to the batch of its selection cycle
+	 */
+	private void processRead() {
 
-					// and create the contig of the two
-					contig = computeContig();
-					
-					// if we failed to assemble, there is no need to continue at
-					// this point
-					if (contig == null) {
-						progress.totalContigAssemblyFails.incrementAndGet();
-						continue;
-					}
-				} else {
-					contig = read.forward_read;
-				}
+		// Update the progress
+		progress.totalProcessedReads.increment();
 
-				// check for undetermined nucleotides and fail if present
-				if (!isValidSequence(contig)) {
-					progress.totalInvalidContigs.incrementAndGet();
-					continue;
-				}
+		byte[] contig = null;
 
-				// Match the 5' primer
-				Result primer5_match = matchPrimer(contig, primer5);
+		// Differentiate between single-end and paired-end sequencing
+		if (read.reverse_read != null) {
 
-				if (primer5_match == null) { // no match
-					progress.totalUnmatchablePrimer3.incrementAndGet();
-					continue;
-				}
+			// if paired end, we need to compute the transcribed inverse
+			// for the reverse read
+			computeTranscribedReverse();
 
-				// Match the 3' primer if present
-				Result primer3_match = null;
-				if (primer3 != null) {
-					primer3_match = matchPrimer(contig, primer3);
+			// and create the contig of the two
+			contig = computeContig();
+			
+			// if we failed to assemble, there is no need to continue at
+			// this point
+			if (contig == null) {
+				progress.totalContigAssemblyFails.increment();
+				return;
+			}
+		} else {
+			contig = read.forward_read;
+		}
 
-					if (primer3_match == null){ // no match
-						progress.totalUnmatchablePrimer3.incrementAndGet();
-						continue;
-					}
-				}
+		// check for undetermined nucleotides and fail if present
+		if (!isValidSequence(contig)) {
+			progress.totalInvalidContigs.increment();
+			return;
+		}
 
-				// Identify the selection cycle this read corresponds to
-				if (!isPerFile) {
-					read.selection_cycle = matchBarcodes(contig, primer5_match, primer3_match);
-				}
+		// Match the 5' primer
+		Result primer5_match = matchPrimer(contig, primer5, primer5Result);
 
-				// Check for possible conflicts
+		if (primer5_match == null) { // no match
+			progress.totalUnmatchablePrimer3.increment();
+			return;
+		}
 
-				// selection cycle assignment failed
-				if (read.selection_cycle == null){
-					progress.totalInvalidCycle.getAndIncrement();
-					continue;
-				}
-				
-				// the primers need to be checked for overlap
-				 if (primer3 != null && isOverlapped(primer5_match, primer5, primer3_match, primer3)){
-					 progress.totalPrimerOverlaps.incrementAndGet();
-					 continue;
-				 }
-				
-				 // we can now extract the randomized region
-				 int randomized_region_start_index = primer5_match.index + primer5.length;
-				 int randomized_region_end_index = -1;
-				
-				 if (primer3 == null){ //use Experiment.randomizedRegionSize
-					 	randomized_region_end_index = randomized_region_start_index + randomizedRegionSize -1;
-				 }
-				 else{ // use the boundaries defined by the primer regions
-					 randomized_region_end_index = primer3_match.index-1;
-				 }
-				
-				 // if the sequence was exacted successfully, we can finally
-				 // add it to to the selection cycle
-				 if (randomized_region_start_index < randomized_region_end_index && randomized_region_end_index <= contig.length){
-					 read.selection_cycle.addToSelectionCycle(
-							 Arrays.copyOfRange(contig, randomized_region_start_index-primer5.length, randomized_region_end_index+primer3.length)
-							 ,randomized_region_start_index
-							 ,randomized_region_end_index
-							 );
-					 progress.totalAcceptedReads.incrementAndGet();
-				 }
+		// Match the 3' primer if present
+		Result primer3_match = null;
+		if (primer3 != null) {
+			primer3_match = matchPrimer(contig, primer3, primer3Result);
 
-			} catch (Exception e) {
-				e.printStackTrace();
+			if (primer3_match == null){ // no match
+				progress.totalUnmatchablePrimer3.increment();
+				return;
 			}
 		}
 
+		// Identify the selection cycle this read corresponds to
+		if (!isPerFile) {
+			read.selection_cycle = matchBarcodes(contig, primer5_match, primer3_match);
+		}
+
+		// Check for possible conflicts
+
+		// selection cycle assignment failed
+		if (read.selection_cycle == null){
+			progress.totalInvalidCycle.increment();
+			return;
+		}
+		
+		// the primers need to be checked for overlap
+		 if (primer3 != null && isOverlapped(primer5_match, primer5, primer3_match, primer3)){
+			 progress.totalPrimerOverlaps.increment();
+			 return;
+		 }
+		
+		 // we can now extract the randomized region
+		 int randomized_region_start_index = primer5_match.index + primer5.length;
+		 int randomized_region_end_index = -1;
+		
+		 if (primer3 == null){ //use Experiment.randomizedRegionSize
+			 	randomized_region_end_index = randomized_region_start_index + randomizedRegionSize -1;
+		 }
+		 else{ // use the boundaries defined by the primer regions
+			 randomized_region_end_index = primer3_match.index-1;
+		 }
+		
+		 // if the sequence was exacted successfully, we can finally
+		 // add it to to the selection cycle
+		 if (randomized_region_start_index < randomized_region_end_index && randomized_region_end_index <= contig.length){
+			 AptamerBatch batch = batches.get(read.selection_cycle);
+			 if (batch == null){
+				 batch = aggregationCapacity > 0 ? new AptamerBatch(aggregationCapacity, true) : new AptamerBatch(batchSize);
+				 batches.put(read.selection_cycle, batch);
+			 }
+			 
+			 // the contig is overwritten by the next read, the batch copies the sequence if required
+			 int sequence_start_index = randomized_region_start_index-primer5.length;
+			 int sequence_end_index = randomized_region_end_index+primer3.length;
+			 byte[] sequence = sequenceBuffers.get(sequence_end_index - sequence_start_index);
+			 int copied = Math.min(sequence_end_index, contig.length) - sequence_start_index;
+			 System.arraycopy(contig, sequence_start_index, sequence, 0, copied);
+			 Arrays.fill(sequence, copied, sequence.length, (byte) 0);
+			 
+			 batch.addCopy(
+					 sequence
+					 ,randomized_region_start_index
+					 ,randomized_region_end_index
+					 );
+			 progress.totalAcceptedReads.increment();
+			 
+			 // hand the reads over to the selection cycle once enough have been collected
+			 if (batch.size() >= (aggregationCapacity > 0 ? aggregationCapacity : batchSize)){
+				 flushBatch(read.selection_cycle, batch);
+			 }
+		 }
+
+	}
+
+	/**
+	 * Adds all pending reads to their respective selection cycles
+	 */
+	private void flushBatches() {
+
+		for (Entry<SelectionCycle, AptamerBatch> entry : batches.entrySet()) {
+
+			if (!entry.getValue().isEmpty()) {
+				flushBatch(entry.getKey(), entry.getValue());
+			}
+
+		}
+
+	}
+
+	/**
+	 * Adds the reads of <code>batch</code> to <code>cycle</code> and empties the batch.
+	 * If the backend rejects the batch, its reads are reported as dropped and are no 
+	 * longer counted as accepted, so that subsequent reads of the cycle are not affected.
+	 */
+	private void flushBatch(SelectionCycle cycle, AptamerBatch batch) {
+
+		try {
+
+			cycle.addToSelectionCycle(batch);
+
+			flushedReads += batch.getTotalCount();
+			flushedEntries += batch.size();
+
+		} catch (RuntimeException e) {
+
+			droppedReads += batch.getTotalCount();
+			progress.totalAcceptedReads.add(-batch.getTotalCount());
+
+			AptaLogger.log(Level.WARNING, this.getClass(), "Dropped " + batch.getTotalCount() + " reads (" + batch.size() + " distinct sequences) of selection cycle " + cycle.getName() + ": " + e);
+			e.printStackTrace();
+
+		} finally {
+
+			batch.clear();
+
+		}
+
 	}
 
 	/**
@@ -341,8 +531,14 @@ public class AptaPlexConsumer implements Runnable {
 			return null;
 		}
 
-		// if the merger was successful, we return it
-		return processed.getOverlappedSequence().getSequence().toString().getBytes();
+		// if the merger was successful, we return it in a buffer of this consumer
+		NucleotideSequence sequence = processed.getOverlappedSequence().getSequence();
+		byte[] contig = contigBuffers.get(sequence.size());
+		for (int x = 0; x < contig.length; x++) {
+			contig[x] = (byte) sequence.symbolAt(x);
+		}
+		
+		return contig;
 	}
 
 	/**
@@ -370,18 +566,20 @@ public class AptaPlexConsumer implements Runnable {
 	 * @param c
 	 *            contig
 	 * @param primer
+	 * @param result
+	 *            the instance to store the match in
 	 * @return Result object containing the start index of the position and the
 	 *         score. null if no match was found
 	 */
-	private Result matchPrimer(byte[] c, byte[] primer) {
+	private Result matchPrimer(byte[] c, byte[] primer, Result result) {
 		
 		if (primer.length > 32) { // we default to the slower edit distance
-			return editDistance.indexOf(c, primer, primerTolerance, 0, c.length);
+			return editDistance.indexOf(c, primer, primerTolerance, 0, c.length, result);
 		}
 		else{ // we can use the fast bitap algorithm
 			
 			// and an approximate match
-			Result best_match = bitapDistance.indexOf(c, primer, primerTolerance, 0, c.length);
+			Result best_match = bitapDistance.indexOf(c, primer, primerTolerance, 0, c.length, result);
 
 			// if matching failed, there is no need to continue
 			if (best_match == null) {
@@ -460,37 +658,37 @@ public class AptaPlexConsumer implements Runnable {
 	 */
 	private SelectionCycle matchBarcodes(byte[] c, Result primermatch5, Result primermatch3) {
 
-		// match the 5' barcode if it exists
-		Result barcodeMatch5 = null;
-		Integer barcode_index5 = null;
+		// match the 5' barcode if it exists, -1 if none matched
+		int barcodeErrors5 = -1;
+		int barcode_index5 = -1;
 		if (barcodes5.size() != 0) {
 
 			for (int x = 0; x < barcodes5.size(); x++) {
 				// restrict the search space to the left side of the 5' primer
 				Result current_match = bitapDistance.indexOf(c, barcodes5.get(x), barcodeTolerance, 0,
-						primermatch5.index + primer5.length);
+						primermatch5.index + primer5.length, barcodeResult);
 
-				if (current_match != null && (barcodeMatch5 == null || barcodeMatch5.errors > current_match.errors)
+				if (current_match != null && (barcode_index5 == -1 || barcodeErrors5 > current_match.errors)
 						&& current_match.errors <= barcodeTolerance) {
-					barcodeMatch5 = current_match;
+					barcodeErrors5 = current_match.errors;
 					barcode_index5 = x;
 				}
 			}
 		}
 
-		// match the 3' barcode if it exists
-		Result barcodeMatch3 = null;
-		Integer barcode_index3 = null;
+		// match the 3' barcode if it exists, -1 if none matched
+		int barcodeErrors3 = -1;
+		int barcode_index3 = -1;
 		if (barcodes3.size() != 0) {
 
 			for (int x = 0; x < barcodes3.size(); x++) {
 				// restrict the search space to the left side of the 5' primer
 				Result current_match = bitapDistance.indexOf(c, barcodes3.get(x), barcodeTolerance,
-						primermatch3.index + primer3.length, c.length);
+						primermatch3.index + primer3.length, c.length, barcodeResult);
 
-				if (current_match != null && (barcodeMatch3 == null || barcodeMatch3.errors > current_match.errors)
+				if (current_match != null && (barcode_index3 == -1 || barcodeErrors3 > current_match.errors)
 						&& current_match.errors <= barcodeTolerance) {
-					barcodeMatch3 = current_match;
+					barcodeErrors3 = current_match.errors;
 					barcode_index3 = x;
 				}
 			}
@@ -500,18 +698,18 @@ public class AptaPlexConsumer implements Runnable {
 		
 		// If both barcodes are present, the identified cycles have to coincide
 		if (barcodes5.size() != 0 && barcodes3.size() != 0){
-			if (barcode_index3 == barcode_index5){
+			if (barcode_index3 == barcode_index5 && barcode_index5 != -1){
 				return cycles.get(barcode_index5);
 			}
 		}
 		
 		// only the 5' barcode is present
-		else if (barcodes5.size() != 0 && barcode_index5 != null){
+		else if (barcodes5.size() != 0 && barcode_index5 != -1){
 			return cycles.get(barcode_index5);
 		}
 		
 		// only the 3' barcode is present
-		else if (barcodes3.size() != 0 && barcode_index3 != null){
+		else if (barcodes3.size() != 0 && barcode_index3 != -1){
 			return cycles.get(barcode_index3);
 		}
 
@@ -546,4 +744,30 @@ public class AptaPlexConsumer implements Runnable {
 		return false;
 	}
 
+	/**
+	 * @author Jan Hoinka
+	 * Byte arrays of exactly the requested length, allocated once per length and 
+	 * reused afterwards. The content of an array is only valid until it is requested again.
+	 */
+	private static class Buffers {
+
+		private byte[][] buffers = new byte[256][];
+
+		public byte[] get(int length) {
+
+			if (length >= buffers.length) {
+				buffers = Arrays.copyOf(buffers, Math.max(length + 1, buffers.length * 2));
+			}
+
+			byte[] buffer = buffers[length];
+			if (buffer == null) {
+				buffer = new byte[length];
+				buffers[length] = buffer;
+			}
+
+			return buffer;
+		}
+
+	}
+
 }
@@ -3,17 +3,30 @@
  */
 package lib.parser.aptaplex;
 
+import java.io.IOException;
+import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
 import java.util.Map.Entry;
 import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CyclicBarrier;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.SynchronousQueue;
+import java.util.logging.Level;
 
+import exceptions.InvalidSequenceReadFileException;
+import lib.aptamer.datastructures.AppendManifest;
+import lib.aptamer.datastructures.Experiment;
+import lib.aptamer.datastructures.SelectionCycle;
 import lib.parser.Parser;
 import lib.parser.ParserProgress;
+import utilities.AptaLogger;
 import utilities.Configuration;
+import utilities.MemoryBudget;
 
 /**
  * @author Jan Hoinka Java implementation of AptaPlex as described in Hoinka et
@@ -27,49 +40,253 @@ public class AptaPlexParser implements Parser, Runnable{
 	 */
 	private static final AptaPlexProgress progress = new AptaPlexProgress();
 	
+	/**
+	 * Approximate number of bytes a read occupies in the queue, used to size the queue
+	 */
+	private static final long READ_BYTES = 1024;
+	
+	/**
+	 * Queue element instructing the consumers to hand all pending reads to the 
+	 * selection cycles and to wait for the checkpoint to be recorded
+	 */
+	static final Object CHECKPOINT = new Object();
+	
+	/**
+	 * Records the parsed files and checkpoints of the project, null if neither is required
+	 */
+	private AppendManifest manifest = null;
+	
+	/**
+	 * The producers of the current parse
+	 */
+	private ArrayList<AptaPlexProducer> producers = new ArrayList<AptaPlexProducer>();
+	
+	/**
+	 * The first error or interruption which stopped the parse, null if none occurred
+	 */
+	private volatile Throwable failure = null;
+	
+	/**
+	 * True once all reads of the configured files have been parsed
+	 */
+	private volatile boolean completed = false;
+	
+	public AptaPlexParser(){
+		
+	}
+	
+	/**
+	 * Creates a parser which skips the forward read files recorded as parsed in <code>manifest</code>, 
+	 * resumes files from the positions recorded by an interrupted parse, and records a checkpoint 
+	 * every <code>AptaplexParser.checkpointInterval</code> reads.
+	 * @param manifest the manifest of the project
+	 */
+	public AptaPlexParser(AppendManifest manifest){
+		
+		this.manifest = manifest;
+		
+	}
+	
 	@Override
 	public void parse() {
 
-		// Creating shared object
-		BlockingQueue<Object> sharedQueue = new ArrayBlockingQueue<>(Configuration.getParameters().getInt("AptaplexParser.BlockingQueueSize"));																// this
+		// the files we need to process
+		String[] forward_files = Configuration.getParameters().getStringArray("AptaplexParser.forwardFiles");
+		String[] reverse_files = Configuration.getParameters().getStringArray("AptaplexParser.reverseFiles");
 
+		// Sanity checks
+		// make sure the forward read files exist
+		if (forward_files.length == 0)
+		{
+			throw new InvalidSequenceReadFileException("No forward read files where specified. Please check your configuration.");
+		}
+		
+		// if they exist, we need the same number of forward and reverse files, or no reverse files in 
+		// case of single end sequencing
+		if (reverse_files.length != 0 && forward_files.length!=reverse_files.length){
+			throw new InvalidSequenceReadFileException("The number of forward and reverse read files must be identical.");
+		}
+		
 		// We need to know how many threads we can use on the system
 		int num_threads = Math.min( Runtime.getRuntime().availableProcessors(), Configuration.getParameters().getInt("Performance.maxNumberOfCores"));
 		
-		// Creating Producer and Consumer Thread
-		Thread prodThread  = new Thread(new AptaPlexProducer(sharedQueue), "AptaPlex Producer");
-		
-		ArrayList<Thread> consumers = new ArrayList<Thread>();
+		// Each producer reads one file at a time, more than one per file would idle
+		int num_producers = Math.max(1, Math.min(Configuration.getParameters().getInt("AptaplexParser.producers"), forward_files.length));
 		
 		// We need at least one consumer
-		consumers.add(new Thread(new AptaPlexConsumer(sharedQueue, progress), "AptaPlex Consumer 1"));
+		int num_consumers = Math.max(1, num_threads-num_producers);
+		
+		// Creating shared object. The reads are transferred in chunks, the queue holds at least two per consumer
+		int transferBatchSize = Math.max(1, Configuration.getParameters().getInt("AptaplexParser.transferBatchSize"));
+		int queueReads = MemoryBudget.getQueueCapacity(Configuration.getParameters().getInt("AptaplexParser.BlockingQueueSize"), READ_BYTES);
+		int queueCapacity = Math.max(2 * num_consumers, queueReads / transferBatchSize);
+		BlockingQueue<Object> sharedQueue = new ArrayBlockingQueue<>(queueCapacity);
+		
+		// Every chunk is either queued, being filled by a producer or processed by a consumer
+		ReadPool readPool = new ReadPool(queueCapacity + num_producers + num_consumers, transferBatchSize);
+		
+		// Checkpoints are recorded once the consumers and the last producer reached the barrier
+		CyclicBarrier checkpointBarrier = null;
+		long checkpointInterval = Configuration.getParameters().getLong("AptaplexParser.checkpointInterval");
+		if (manifest != null && checkpointInterval > 0){
+			checkpointBarrier = new CyclicBarrier(num_consumers + 1, new Runnable(){
+				
+				@Override
+				public void run() {
+					checkpoint();
+				}
+				
+			});
+		}
 		
-		// Add remaining consumers
-		for (int x=1; x<num_threads-1; x++){
-			consumers.add(new Thread(new AptaPlexConsumer(sharedQueue, progress), "AptaPlex Consumer " + (x+1)));
+		AptaPlexScheduler scheduler = new AptaPlexScheduler(forward_files.length, num_producers, sharedQueue, checkpointBarrier, checkpointInterval);
+		
+		// Creating Producer and Consumer Threads
+		ArrayList<Thread> producerThreads = new ArrayList<Thread>();
+		
+		// A thread terminated by an exception leaves reads unprocessed, the parse cannot complete
+		Thread.UncaughtExceptionHandler failureHandler = new Thread.UncaughtExceptionHandler(){
+			
+			@Override
+			public void uncaughtException(Thread thread, Throwable e) {
+				fail(e);
+				AptaLogger.log(Level.SEVERE, AptaPlexParser.class, thread.getName() + " terminated unexpectedly: " + e);
+				e.printStackTrace();
+			}
+			
+		};
+		
+		for (int x=0; x<num_producers; x++){
+			AptaPlexProducer producer = new AptaPlexProducer(sharedQueue, manifest, scheduler, readPool);
+			producers.add(producer);
+			producerThreads.add(new Thread(producer, "AptaPlex Producer " + (x+1)));
+			producerThreads.get(x).setUncaughtExceptionHandler(failureHandler);
+		}
+		
+		ArrayList<Thread> consumers = new ArrayList<Thread>();
+		
+		for (int x=0; x<num_consumers; x++){
+			consumers.add(new Thread(new AptaPlexConsumer(sharedQueue, progress, checkpointBarrier, readPool), "AptaPlex Consumer " + (x+1)));
+			consumers.get(x).setUncaughtExceptionHandler(failureHandler);
 		}
 
+		AptaLogger.log(Level.CONFIG, this.getClass(), "Parsing with " + num_producers + " producers and " + num_consumers + " consumers");
+		
 		// Start the producer and consumer threads
 		for (int x=0; x<consumers.size(); x++){
 			consumers.get(x).start();
 		}
-		prodThread.start();
+		for (int x=0; x<producerThreads.size(); x++){
+			producerThreads.get(x).start();
+		}
 
 		// Make sure the threads wait until completion
 		try {
+			for (int x=0; x<producerThreads.size(); x++){
+				producerThreads.get(x).join();
+			}
+			
+			// at the end we need to add a poison pill to 
+			// the queue to let the consumers know when to stop
+			AptaLogger.log(Level.CONFIG, this.getClass(), "Added poison pill to parsing queue");
+			sharedQueue.put(Configuration.POISON_PILL);
+			
 			for (int x=0; x<consumers.size(); x++){
 				consumers.get(x).join();
 			}
-			prodThread.join();
 		} catch (InterruptedException e) {
-			e.printStackTrace();
+			
+			// Stop the remaining threads, the reads parsed after the last checkpoint are discarded by the next append
+			fail(e);
+			AptaLogger.log(Level.WARNING, this.getClass(), "Parsing was interrupted, stopping the producers and consumers.");
+			for (int x=0; x<producerThreads.size(); x++){
+				producerThreads.get(x).interrupt();
+			}
+			for (int x=0; x<consumers.size(); x++){
+				consumers.get(x).interrupt();
+			}
+			Thread.currentThread().interrupt();
+			
 		}
+		
+		completed = failure == null;
 
 		// Clear resources used by the threads
 		for (int x=0; x<consumers.size(); x++){
 			consumers.set(x, null);
 		}
-		prodThread  = null;
+		producerThreads.clear();
+		producers.clear();
+		
+	}
+	
+	/**
+	 * Writes the pool and selection cycles to disk and records the positions
+	 * of the producers in the manifest. Must only be called while the producers and all consumers are waiting.
+	 * A failed checkpoint is logged, the parse continues from the previous one.
+	 */
+	private void checkpoint(){
+		
+		// The reads of a failed parse are incomplete
+		if (failure != null){
+			return;
+		}
+		
+		Experiment experiment = Configuration.getExperiment();
+		
+		try{
+			
+			experiment.getAptamerPool().checkpoint();
+			
+			// Writes the cycles to disk so that they can be backed up, they remain writable
+			for (SelectionCycle cycle : experiment.getAllSelectionCycles()){
+				if (cycle != null){
+					cycle.checkpoint();
+				}
+			}
+			
+			// All producers are paused, hence their files and positions are consistent with the cycles
+			List<Path> parsedFiles = new ArrayList<Path>();
+			Map<Path, Long> positions = new HashMap<Path, Long>();
+			for (AptaPlexProducer producer : producers){
+				parsedFiles.addAll(producer.getParsedFiles());
+				if (producer.getCurrentFile() != null){
+					positions.put(producer.getCurrentFile(), producer.getCurrentFileReads());
+				}
+			}
+			
+			manifest.checkpoint(parsedFiles, positions, experiment.getAptamerPool().size());
+			
+		}
+		catch (IOException e){
+			AptaLogger.log(Level.SEVERE, this.getClass(), "Could not record the checkpoint: " + e.getMessage());
+		}
+		catch (RuntimeException e){
+			AptaLogger.log(Level.SEVERE, this.getClass(), "Could not record the checkpoint: " + e.getMessage());
+			e.printStackTrace();
+		}
+		
+	}
+
+	/**
+	 * Records the first reason for which the parse cannot complete
+	 * @param e
+	 */
+	private synchronized void fail(Throwable e){
+		
+		if (failure == null){
+			failure = e;
+		}
+		
+	}
+	
+	/**
+	 * @return true if all reads of the configured files have been parsed, false if the parse 
+	 * failed, was interrupted or has not finished yet
+	 */
+	public boolean isCompleted(){
+		
+		return completed;
 		
 	}
 
@@ -86,7 +303,13 @@ public class AptaPlexParser implements Parser, Runnable{
 	@Override
 	public void run() {
 		
-		parse();
+		try{
+			parse();
+		}
+		catch (RuntimeException e){
+			fail(e);
+			throw e;
+		}
 		
 		parsingCompleted();
 		
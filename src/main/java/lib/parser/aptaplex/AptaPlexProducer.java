@@ -6,11 +6,14 @@ package lib.parser.aptaplex;
 import java.lang.reflect.InvocationTargetException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.BlockingQueue;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
-import exceptions.InvalidSequenceReadFileException;
+import lib.aptamer.datastructures.AppendManifest;
+import lib.aptamer.datastructures.SelectionCycle;
 import utilities.AptaLogger;
 import utilities.Configuration;
 
@@ -30,10 +33,55 @@ public class AptaPlexProducer implements Runnable{
 	 */
 	BlockingQueue<Object> queue = null;
 	
+	/**
+	 * Files recorded as parsed in the manifest are skipped, files with a recorded 
+	 * position are resumed from there. Null if all files are parsed completely.
+	 */
+	AppendManifest manifest = null;
+	
+	/**
+	 * Hands out the files and pauses the producer for checkpoints
+	 */
+	AptaPlexScheduler scheduler = null;
+	
+	/**
+	 * The forward read files parsed completely by this producer
+	 */
+	private List<Path> parsedFiles = new ArrayList<Path>();
+	
+	/**
+	 * The forward read file currently parsed
+	 */
+	private Path currentFile = null;
 	
-	public AptaPlexProducer(BlockingQueue<Object> queue){
+	/**
+	 * The number of reads of <code>currentFile</code> put into the queue, including those
+	 * skipped because they were parsed before
+	 */
+	private long currentFileReads = 0;
+	
+	/**
+	 * Provides the chunks the reads are handed to the consumers in
+	 */
+	private ReadPool readPool = null;
+	
+	/**
+	 * The reads collected for the next transfer, null if none
+	 */
+	private ReadChunk chunk = null;
+	
+	/**
+	 * @param queue the queue to fill
+	 * @param manifest the manifest of the project, or null 
+	 * @param scheduler hands out the files to this and the other producers of the parse
+	 * @param readPool recycles the chunks of reads processed by the consumers
+	 */
+	public AptaPlexProducer(BlockingQueue<Object> queue, AppendManifest manifest, AptaPlexScheduler scheduler, ReadPool readPool){
 		
 		this.queue = queue;
+		this.manifest = manifest;
+		this.scheduler = scheduler;
+		this.readPool = readPool;
 	
 	}
 	
@@ -49,108 +97,182 @@ public class AptaPlexProducer implements Runnable{
 		String[] forward_files = Configuration.getParameters().getStringArray("AptaplexParser.forwardFiles");
 		String[] reverse_files = Configuration.getParameters().getStringArray("AptaplexParser.reverseFiles");
 
-		// Sanity checks
-		// make sure the forward read files exist
-		if (forward_files.length == 0)
-		{
-			throw new InvalidSequenceReadFileException("No forward read files where specified. Please check your configuration.");
+		// iterate over the files handed to this producer and populate the queue
+		try{
+			for (int x=scheduler.nextFile(); x!=-1 && !Thread.currentThread().isInterrupted(); x=scheduler.nextFile()){
+				parseFile(x, forward_files, reverse_files);
+			}
+		}
+		finally{
+			
+			// The consumers are stopped by the parser once all producers completed
+			scheduler.finished();
+			
 		}
 		
-		// if they exist, we need the same number of forward and reverse files, or no reverse files in 
-		// case of single end sequencing
-		if (reverse_files.length != 0 && forward_files.length!=reverse_files.length){
-			throw new InvalidSequenceReadFileException("The number of forward and reverse read files must be identical.");
+	}
+	
+	/**
+	 * Puts the reads of a pair of files into the queue
+	 * @param x the index of the files in the configuration
+	 * @param forward_files
+	 * @param reverse_files empty for single end sequencing
+	 */
+	private void parseFile(int x, String[] forward_files, String[] reverse_files){
+		
+		Path current_forward_file_path = Paths.get(forward_files[x]);
+		
+		// The cycle of a file is defined by its position, so files are skipped rather than removed from the list
+		if (manifest != null && manifest.isParsed(current_forward_file_path)){
+			AptaLogger.log(Level.INFO, this.getClass(), "Skipping " + current_forward_file_path + ", it has been parsed before.");
+			return;
 		}
 		
-		//iterate over all files and populate the queue
-		for (int x=0; x<forward_files.length; x++){
-			
-			Path current_forward_file_path = Paths.get(forward_files[x]);
-			
-			Path current_reverse_file_path = null;
-			// at this point we know reverse_files.length is either 0 or equal to forward_file.length
-			if (reverse_files.length != 0){
-				current_reverse_file_path = Paths.get(reverse_files[x]);
-			}
-			
-			// Create a new SelectionCycle instance. Use reflection so we can define the backend in the configuration
-			Reader reader = null;
-			Class reader_class = null;
-			try {
-				reader_class = Class.forName("lib.parser.aptaplex." + Configuration.getParameters().getString("AptaplexParser.reader"));
-			} catch (ClassNotFoundException e) {
+		Path current_reverse_file_path = null;
+		// at this point we know reverse_files.length is either 0 or equal to forward_file.length
+		if (reverse_files.length != 0){
+			current_reverse_file_path = Paths.get(reverse_files[x]);
+		}
+		
+		// Create a new SelectionCycle instance. Use reflection so we can define the backend in the configuration
+		Reader reader = null;
+		Class reader_class = null;
+		try {
+			reader_class = Class.forName("lib.parser.aptaplex." + Configuration.getParameters().getString("AptaplexParser.reader"));
+		} catch (ClassNotFoundException e) {
 
-				AptaLogger.log(Level.SEVERE, this.getClass(), "Error, the backend for the Reader could not be found.");
-				e.printStackTrace();
+			AptaLogger.log(Level.SEVERE, this.getClass(), "Error, the backend for the Reader could not be found.");
+			e.printStackTrace();
+			System.exit(0);
+		}
+		
+		// Try to instantiate the class
+		boolean instanceSuccess = false;
+		try {
+			reader = (Reader)reader_class.getConstructor(Path.class, Path.class).newInstance(current_forward_file_path, current_reverse_file_path);
+			instanceSuccess = true;
+		} catch (InstantiationException e) {
+			AptaLogger.log(Level.SEVERE, this.getClass(), "Error, could not instantiate the backend for the AptaplexParser.reader");
+			e.printStackTrace();
+		} catch (IllegalAccessException e) {
+			e.printStackTrace();
+		} catch (IllegalArgumentException e) {
+			e.printStackTrace();
+		} catch (InvocationTargetException e) {
+			AptaLogger.log(Level.SEVERE, this.getClass(), "Error invoking construtor of AptaplexParser.reader backend");
+			e.printStackTrace();
+		} catch (NoSuchMethodException e) {
+			e.printStackTrace();
+		} catch (SecurityException e) {
+			e.printStackTrace();
+		} finally{
+			if (!instanceSuccess){
+				AptaLogger.log(Level.SEVERE, this.getClass(), "Error invoking AptaplexParser.reader backend");
 				System.exit(0);
 			}
+		}
+		
+		currentFile = current_forward_file_path;
+		currentFileReads = 0;
+		
+		// Reads before the last checkpoint of an interrupted parse are part of the project already
+		long position = manifest == null ? 0 : manifest.getPosition(current_forward_file_path);
+		if (position > 0){
+			AptaLogger.log(Level.INFO, this.getClass(), "Resuming " + current_forward_file_path + " after " + position + " reads.");
+			Read skipped = new Read();
+			while (currentFileReads < position && reader.getNextRead(skipped)){
+				currentFileReads++;
+			}
+		}
+		
+		// are we multiplexing? If so, the cycle is defined by the file
+		SelectionCycle cycle = null;
+		if(Configuration.getParameters().getBoolean("AptaplexParser.isPerFile")){
+			cycle = Configuration.getExperiment().getAllSelectionCycles().get(x);
+		}
+		
+		try {
 			
-			// Try to instantiate the class
-			boolean instanceSuccess = false;
-			try {
-				reader = (Reader)reader_class.getConstructor(Path.class, Path.class).newInstance(current_forward_file_path, current_reverse_file_path);
-				instanceSuccess = true;
-			} catch (InstantiationException e) {
-				AptaLogger.log(Level.SEVERE, this.getClass(), "Error, could not instantiate the backend for the AptaplexParser.reader");
-				e.printStackTrace();
-			} catch (IllegalAccessException e) {
-				e.printStackTrace();
-			} catch (IllegalArgumentException e) {
-				e.printStackTrace();
-			} catch (InvocationTargetException e) {
-				AptaLogger.log(Level.SEVERE, this.getClass(), "Error invoking construtor of AptaplexParser.reader backend");
-				e.printStackTrace();
-			} catch (NoSuchMethodException e) {
-				e.printStackTrace();
-			} catch (SecurityException e) {
-				e.printStackTrace();
-			} finally{
-				if (!instanceSuccess){
-					AptaLogger.log(Level.SEVERE, this.getClass(), "Error invoking AptaplexParser.reader backend");
-					System.exit(0);
-				}
+			// the reads are filled in place, directly in the chunk handed to the consumers
+			if (chunk == null){
+				chunk = readPool.acquire();
 			}
 			
-			try {
-				// get the first read
-				Read read = reader.getNextRead();
+			while (reader.getNextRead(chunk.next())){
+				
+				// add cycle information to read
+				chunk.next().selection_cycle = cycle;
+				chunk.commit();
 				
-				// do the same for the remaining reads
-				while (read != null){
-					
-					// are we multiplexing?
-					if(Configuration.getParameters().getBoolean("AptaplexParser.isPerFile")){
-						
-						// add cycle information to read
-						read.selection_cycle = Configuration.getExperiment().getAllSelectionCycles().get(x);
-						
-					}
-					
-					// put read into to queue
-					queue.put(read);
-					totalProcessedReads++;
-					
-					// get the next read
-					read = reader.getNextRead();
+				if (chunk.isFull()){
+					transfer();
 				}
-			
-			} catch (InterruptedException e) {
-				e.printStackTrace();
+				
 			}
 			
+			// the remaining reads of the file
+			transfer();
+		
+		} catch (InterruptedException e) {
+			
+			// The parse was aborted, the file is incomplete and must not be recorded as parsed
 			reader.close();
-			reader = null;
+			Thread.currentThread().interrupt();
+			return;
 			
 		}
 		
-		// at the end we need to add a poison pill to 
-		// the queue to let the consumers know when to stop
-		AptaLogger.log(Level.CONFIG, this.getClass(), "Added poison pill to parsing queue");
-		try {
-			queue.put(Configuration.POISON_PILL);
-		} catch (InterruptedException e) {
-			e.printStackTrace();
+		reader.close();
+		reader = null;
+		
+		parsedFiles.add(current_forward_file_path);
+		currentFile = null;
+		
+	}
+	
+	/**
+	 * Puts the collected reads into the queue as a single element. The consumers only see whole 
+	 * chunks and a checkpoint can only take place in between, hence the position in the current 
+	 * file is advanced here and no read is held back by this producer during a checkpoint. 
+	 * @throws InterruptedException
+	 */
+	private void transfer() throws InterruptedException{
+		
+		if (chunk.isEmpty()){
+			return;
 		}
 		
+		// The chunk is owned by the consumer from now on, until it is released to the pool
+		int transferred = chunk.size();
+		queue.put(chunk);
+		totalProcessedReads += transferred;
+		currentFileReads += transferred;
+		
+		chunk = readPool.acquire();
+		
+		// pause here if the other producers and the consumers wait for a checkpoint
+		scheduler.readsQueued(transferred);
+		
+	}
+	
+	/**
+	 * @return the forward read files parsed completely by this producer
+	 */
+	public List<Path> getParsedFiles(){
+		return parsedFiles;
+	}
+	
+	/**
+	 * @return the forward read file currently parsed, null if none
+	 */
+	public Path getCurrentFile(){
+		return currentFile;
+	}
+	
+	/**
+	 * @return the number of reads of the current file put into the queue
+	 */
+	public long getCurrentFileReads(){
+		return currentFileReads;
 	}
 }
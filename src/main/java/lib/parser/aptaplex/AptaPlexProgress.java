@@ -3,7 +3,7 @@
  */
 package lib.parser.aptaplex;
 
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
 
 import lib.parser.ParserProgress;
 
@@ -11,7 +11,9 @@ import lib.parser.ParserProgress;
  * @author Jan Hoinka
  * Wrapper containing information regarding the progress of the parsing process.
  * Objects of this type should be accessible to all consumers and must guarantee 
- * thread-safe updating of members.
+ * thread-safe updating of members. The counters are striped across the updating
+ * threads so that the consumers do not contend for them, and are only summed up
+ * when the progress is reported.
  */
 public class AptaPlexProgress implements ParserProgress {
 
@@ -30,46 +32,46 @@ public class AptaPlexProgress implements ParserProgress {
 	 * The total number of currently processed reads. This member should
 	 * be updated by the consumers
 	 */
-	public AtomicInteger totalProcessedReads = new AtomicInteger(0);
+	public LongAdder totalProcessedReads = new LongAdder();
 	
 	/**
 	 * The total number of accepted reads. This member should
 	 * be updated by the consumers
 	 */
-	public AtomicInteger totalAcceptedReads = new AtomicInteger(0);
+	public LongAdder totalAcceptedReads = new LongAdder();
 	
 	/**
 	 * The total number of times, we were not able to assemble the contig.
 	 */
-	public AtomicInteger totalContigAssemblyFails = new AtomicInteger(0);
+	public LongAdder totalContigAssemblyFails = new LongAdder();
 	
 	/**
 	 * The total number of contigs with invalid alphabet, i.e. anything
 	 * other than A C G or T
 	 */
-	public AtomicInteger totalInvalidContigs = new AtomicInteger(0);
+	public LongAdder totalInvalidContigs = new LongAdder();
 	
 	/**
 	 * The total number of cases in which the 5' primer could not be matched
 	 */
-	public AtomicInteger totalUnmatchablePrimer5 = new AtomicInteger(0);
+	public LongAdder totalUnmatchablePrimer5 = new LongAdder();
 	
 	/**
 	 * The total number of cases in which the 3' primer could not be matched
 	 */
-	public AtomicInteger totalUnmatchablePrimer3 = new AtomicInteger(0);
+	public LongAdder totalUnmatchablePrimer3 = new LongAdder();
 	
 	/**
 	 * The total number of cases in which the 5' primer and the 3' primer 
 	 * overlap
 	 */
-	public AtomicInteger totalPrimerOverlaps = new AtomicInteger(0);
+	public LongAdder totalPrimerOverlaps = new LongAdder();
 	
 	/**
 	 * The total number of cases in which we were not able to determine a
 	 * selection cycle
 	 */
-	public AtomicInteger totalInvalidCycle = new AtomicInteger(0);
+	public LongAdder totalInvalidCycle = new LongAdder();
 
 	@Override
 	public String getHeader() {
@@ -78,14 +80,14 @@ public class AptaPlexProgress implements ParserProgress {
 
 	@Override
 	public String getProgress() {
-		return String.format(spacing + "\r", totalProcessedReads.get(),
-				totalAcceptedReads.get(),
-				totalContigAssemblyFails.get(),
-				totalInvalidContigs.get(),
-				totalUnmatchablePrimer5.get(),
-				totalUnmatchablePrimer3.get(),
-				totalInvalidCycle.get(), 
-				totalPrimerOverlaps.get()
+		return String.format(spacing + "\r", totalProcessedReads.sum(),
+				totalAcceptedReads.sum(),
+				totalContigAssemblyFails.sum(),
+				totalInvalidContigs.sum(),
+				totalUnmatchablePrimer5.sum(),
+				totalUnmatchablePrimer3.sum(),
+				totalInvalidCycle.sum(), 
+				totalPrimerOverlaps.sum()
 				);
 	}
 	
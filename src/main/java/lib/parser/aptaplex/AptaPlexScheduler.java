@@ -0,0 +1,167 @@
+/**
+ *
+ */
+package lib.parser.aptaplex;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.BrokenBarrierException;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.Phaser;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+
+import utilities.AptaLogger;
+
+/**
+ * @author Jan Hoinka
+ * Coordinates the producers of a parse. The sequencing files are handed out to the producers one
+ * at a time, in the order of the configuration, so that several files are read concurrently.
+ *
+ * A checkpoint requires that no read is put into the queue after the consumers have been instructed
+ * to wait for it. Once the number of reads queued by all producers since the last checkpoint reaches
+ * the interval, each producer therefore stops after its current chunk of reads and arrives at a phaser. The last
+ * producer to arrive puts the instructions for the consumers into the queue and waits with them at the
+ * checkpoint barrier, after which all producers continue. Producers without further files deregister
+ * from the phaser, so they do not hold up the checkpoints of the others.
+ */
+class AptaPlexScheduler {
+
+	/**
+	 * The number of forward read files of the configuration
+	 */
+	private int fileCount = 0;
+
+	/**
+	 * The index of the next file to hand out
+	 */
+	private AtomicInteger nextFile = new AtomicInteger(0);
+
+	/**
+	 * The queue shared by producers and consumers
+	 */
+	private BlockingQueue<Object> queue = null;
+
+	/**
+	 * Barrier at which the consumers and the last producer meet for a checkpoint, null if
+	 * no checkpoints are recorded
+	 */
+	private CyclicBarrier checkpointBarrier = null;
+
+	/**
+	 * The number of reads between two checkpoints
+	 */
+	private long checkpointInterval = 0;
+
+	/**
+	 * The number of reads put into the queue by all producers since the last checkpoint
+	 */
+	private AtomicLong readsSinceCheckpoint = new AtomicLong(0);
+
+	/**
+	 * True once the producers have to pause for a checkpoint
+	 */
+	private volatile boolean checkpointRequested = false;
+
+	/**
+	 * The producers still reading files
+	 */
+	private Phaser producers = null;
+
+	/**
+	 * @param fileCount the number of forward read files of the configuration
+	 * @param producerCount the number of producers
+	 * @param queue the queue shared by producers and consumers
+	 * @param checkpointBarrier the barrier shared with the consumers, or null if no checkpoints are recorded
+	 * @param checkpointInterval the number of reads between two checkpoints
+	 */
+	public AptaPlexScheduler(int fileCount, int producerCount, BlockingQueue<Object> queue, CyclicBarrier checkpointBarrier, long checkpointInterval){
+
+		this.fileCount = fileCount;
+		this.queue = queue;
+		this.checkpointBarrier = checkpointBarrier;
+		this.checkpointInterval = checkpointInterval;
+
+		this.producers = new Phaser(producerCount){
+
+			@Override
+			protected boolean onAdvance(int phase, int registeredParties) {
+
+				// Executed by the last producer to arrive while all others are waiting
+				if (registeredParties > 0 && checkpointRequested){
+					checkpoint();
+				}
+
+				return registeredParties == 0;
+			}
+
+		};
+
+	}
+
+	/**
+	 * @return the index of the next file to be read by the calling producer, or -1 if all files have been handed out
+	 */
+	public int nextFile(){
+
+		int file = nextFile.getAndIncrement();
+		return file < fileCount ? file : -1;
+
+	}
+
+	/**
+	 * Must be called by the producers after each chunk of reads put into the queue. Blocks while a checkpoint is recorded.
+	 * @param reads the number of reads in the chunk
+	 */
+	public void readsQueued(int reads){
+
+		if (checkpointBarrier == null){
+			return;
+		}
+
+		if (readsSinceCheckpoint.addAndGet(reads) >= checkpointInterval){
+			checkpointRequested = true;
+		}
+
+		if (checkpointRequested){
+			producers.arriveAndAwaitAdvance();
+		}
+
+	}
+
+	/**
+	 * Must be called by each producer once it has completed its last file
+	 */
+	public void finished(){
+
+		producers.arriveAndDeregister();
+
+	}
+
+	/**
+	 * Waits until the consumers have processed all reads put into the queue so far and
+	 * the checkpoint has been recorded
+	 */
+	private void checkpoint(){
+
+		try {
+
+			// Every consumer takes exactly one instruction as it waits at the barrier afterwards
+			for (int x=0; x<checkpointBarrier.getParties()-1; x++){
+				queue.put(AptaPlexParser.CHECKPOINT);
+			}
+
+			checkpointBarrier.await();
+
+		} catch (InterruptedException e) {
+			// The parse was aborted, the producer stops at its next transfer
+			Thread.currentThread().interrupt();
+		} catch (BrokenBarrierException e) {
+			AptaLogger.log(Level.WARNING, this.getClass(), "Checkpoint was aborted.");
+		}
+
+		readsSinceCheckpoint.set(0);
+		checkpointRequested = false;
+
+	}
+}
@@ -0,0 +1,331 @@
+/**
+ *
+ */
+package lib.parser.aptaplex;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.logging.Level;
+
+import utilities.AptaLogger;
+import utilities.Configuration;
+
+/**
+ * @author Jan Hoinka
+ * Implements the parsing logic for fastq files on the byte level. In contrast to <code>FastqReader</code>,
+ * the records are scanned for newlines directly in a large direct buffer which is filled from a
+ * <code>FileChannel</code>, or from a <code>ParallelGzipInputStream</code> for gzip compressed files. No charset decoding
+ * takes place and no <code>String</code> is created per line. The header and separator lines are skipped
+ * in place, only the bytes of the sequence and quality lines are copied into the arrays of the <code>Read</code>.
+ * When filling a recycled <code>Read</code>, its arrays are reused, so reads of constant length are parsed
+ * without any allocation.
+ */
+public class FastqChannelReader implements Reader {
+
+	/**
+	 * Scanner over the forward file
+	 */
+	private RecordScanner forward_scanner = null;
+
+	/**
+	 * Scanner over the reverse file, null for single end sequencing
+	 */
+	private RecordScanner reverse_scanner = null;
+
+	/**
+	 * Constructor
+	 *
+	 * @param forward_file
+	 *            forward reads in fastq format, optionally gzip compressed
+	 * @param reverse_file
+	 *            reverse reads in fastq format, optionally gzip compressed.
+	 *            Null if single end sequencing was performed
+	 */
+	public FastqChannelReader(Path forward_file, Path reverse_file) {
+
+		int bufferSize = Configuration.getParameters().getInt("FastqChannelReader.bufferSize");
+
+		forward_scanner = open(forward_file, "forward", bufferSize);
+
+		if (reverse_file != null){
+			reverse_scanner = open(reverse_file, "reverse", bufferSize);
+		}
+
+	}
+
+	/**
+	 * Opens a channel on the file, decompressing it if it starts with the gzip magic number
+	 * @param file
+	 * @param direction forward or reverse, for logging
+	 * @param bufferSize
+	 * @return the scanner over the records of <code>file</code>
+	 */
+	private RecordScanner open(Path file, String direction, int bufferSize){
+
+		try{
+
+			FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+
+			// Check for the magic number rather than relying on the gzip stream to fail
+			ByteBuffer magic = ByteBuffer.allocate(2);
+			channel.read(magic, 0);
+
+			if (magic.position() == 2 && (magic.get(0) & 0xff) == 0x1f && (magic.get(1) & 0xff) == 0x8b){
+
+				channel.close();
+				InputStream in = new ParallelGzipInputStream(file);
+				AptaLogger.log(Level.CONFIG, this.getClass(), "Opened gzip compressed " + direction + " file in fastq format " + file.toString());
+				return new RecordScanner(Channels.newChannel(in), bufferSize);
+
+			}
+
+			AptaLogger.log(Level.CONFIG, this.getClass(), "Opened " + direction + " file in fastq format " + file.toString());
+			return new RecordScanner(channel, bufferSize);
+
+		} catch (IOException e) {
+			AptaLogger.log(Level.SEVERE, this.getClass(), "Error opening " + direction + " file " + file.toString());
+			e.printStackTrace();
+			System.exit(0);
+		}
+
+		return null;
+	}
+
+	@Override
+	public Read getNextRead() {
+
+		Read r = new Read();
+
+		return getNextRead(r) ? r : null;
+	}
+
+	@Override
+	public boolean getNextRead(Read r) {
+
+		try {
+
+			// Forward reads, return false if we are at the end of the file
+			if (!forward_scanner.next(r.forward_read, r.forward_quality)){
+				return false;
+			}
+			r.forward_read = forward_scanner.getSequence();
+			r.forward_quality = forward_scanner.getQuality();
+
+			// Reverse reads, if applicable
+			if (reverse_scanner != null){
+
+				if (!reverse_scanner.next(r.reverse_read, r.reverse_quality)){
+					return false;
+				}
+				r.reverse_read = reverse_scanner.getSequence();
+				r.reverse_quality = reverse_scanner.getQuality();
+
+			}
+			else{
+
+				r.reverse_read = null;
+				r.reverse_quality = null;
+
+			}
+
+		} catch (IOException e) {
+			AptaLogger.log(Level.SEVERE, this.getClass(), "Error while parsing files.");
+			e.printStackTrace();
+			System.exit(0);
+		}
+
+		return true;
+	}
+
+	@Override
+	public void close(){
+
+		try {
+			this.forward_scanner.close();
+			if (this.reverse_scanner != null){
+				this.reverse_scanner.close();
+			}
+		} catch (IOException e) {
+			// TODO Auto-generated catch block
+			e.printStackTrace();
+		}
+
+	}
+
+	/**
+	 * @author Jan Hoinka
+	 * Splits the content of a channel into fastq records. The unconsumed bytes are kept
+	 * between <code>position()</code> and <code>limit()</code> of the buffer, which is
+	 * compacted and refilled once no complete line is left in it.
+	 */
+	private static class RecordScanner {
+
+		private ReadableByteChannel channel;
+
+		private ByteBuffer buffer;
+
+		/**
+		 * True once the channel has been read completely
+		 */
+		private boolean eof = false;
+
+		/**
+		 * The lines of the current record
+		 */
+		private byte[] sequence = null;
+
+		private byte[] quality = null;
+
+		public RecordScanner(ReadableByteChannel channel, int bufferSize){
+
+			this.channel = channel;
+			this.buffer = ByteBuffer.allocateDirect(bufferSize);
+
+			// Start out empty
+			this.buffer.flip();
+
+		}
+
+		/**
+		 * Advances to the next record
+		 * @param sequence array to reuse for the sequence if it has the correct length, or null
+		 * @param quality array to reuse for the quality scores if it has the correct length, or null
+		 * @return false if the end of the channel has been reached
+		 * @throws IOException
+		 */
+		public boolean next(byte[] sequence, byte[] quality) throws IOException{
+
+			// Header
+			if (!skipLine()){
+				return false;
+			}
+
+			this.sequence = copyLine(sequence);
+
+			// Separator
+			skipLine();
+
+			this.quality = copyLine(quality);
+
+			// A truncated record ends the file
+			return this.sequence != null && this.quality != null;
+
+		}
+
+		public byte[] getSequence(){
+			return sequence;
+		}
+
+		public byte[] getQuality(){
+			return quality;
+		}
+
+		/**
+		 * Locates the end of the line starting at the current position of the buffer, reading
+		 * from the channel as required.
+		 * @return the index of the terminating newline, the limit of the buffer if the last line
+		 * of the channel is not terminated, or -1 if no bytes are left
+		 * @throws IOException
+		 */
+		private int lineEnd() throws IOException{
+
+			int scanned = buffer.position();
+
+			while (true){
+
+				int limit = buffer.limit();
+				for (int x=scanned; x<limit; x++){
+					if (buffer.get(x) == '\n'){
+						return x;
+					}
+				}
+				scanned = limit;
+
+				if (eof){
+					return buffer.hasRemaining() ? limit : -1;
+				}
+
+				// Move the partial line to the front and refill the buffer behind it
+				int start = buffer.position();
+				buffer.compact();
+
+				// Lines longer than the buffer require a larger one
+				if (!buffer.hasRemaining()){
+					ByteBuffer larger = ByteBuffer.allocateDirect(buffer.capacity() * 2);
+					buffer.flip();
+					larger.put(buffer);
+					buffer = larger;
+				}
+
+				if (channel.read(buffer) == -1){
+					eof = true;
+				}
+				buffer.flip();
+
+				scanned -= start;
+			}
+
+		}
+
+		/**
+		 * Moves the position of the buffer past the line ending at <code>end</code>
+		 * @param end
+		 */
+		private void consume(int end){
+
+			buffer.position(Math.min(end + 1, buffer.limit()));
+
+		}
+
+		/**
+		 * Skips the current line without copying it
+		 * @return false if no line was left
+		 * @throws IOException
+		 */
+		private boolean skipLine() throws IOException{
+
+			int end = lineEnd();
+			if (end == -1){
+				return false;
+			}
+
+			consume(end);
+			return true;
+		}
+
+		/**
+		 * @param target array to copy the line into if it has the length of the line, or null
+		 * @return the bytes of the current line without line terminators, or null if no line was left
+		 * @throws IOException
+		 */
+		private byte[] copyLine(byte[] target) throws IOException{
+
+			int end = lineEnd();
+			if (end == -1){
+				return null;
+			}
+
+			int length = end - buffer.position();
+			if (length > 0 && buffer.get(end - 1) == '\r'){
+				length--;
+			}
+
+			byte[] line = Read.reuse(target, length);
+			buffer.get(line);
+
+			consume(end);
+			return line;
+		}
+
+		public void close() throws IOException{
+			channel.close();
+		}
+
+	}
+}
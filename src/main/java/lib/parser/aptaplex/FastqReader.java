@@ -11,7 +11,6 @@ import java.io.InputStreamReader;
 import java.nio.file.Path;
 import java.util.logging.Level;
 import java.util.logging.Logger;
-import java.util.zip.GZIPInputStream;
 
 import utilities.AptaLogger;
 
@@ -53,7 +52,7 @@ public class FastqReader implements Reader {
 		// Forward file
 		try { // This fill fail if the file is not gzip compressed
 			
-			forward_reader = new BufferedReader(new InputStreamReader(new GZIPInputStream((new FileInputStream(forward_file.toFile())))));
+			forward_reader = new BufferedReader(new InputStreamReader(new ParallelGzipInputStream(forward_file)));
 			AptaLogger.log(Level.CONFIG, this.getClass(), "Opened gzip compressed forward file in fastq format" + forward_file.toString());
 		
 		} catch (IOException e) {
@@ -72,7 +71,7 @@ public class FastqReader implements Reader {
 		if (reverse_file != null){
 			try {
 				
-				reverse_reader = new BufferedReader(new InputStreamReader(new GZIPInputStream((new FileInputStream(reverse_file.toFile())))));
+				reverse_reader = new BufferedReader(new InputStreamReader(new ParallelGzipInputStream(reverse_file)));
 				AptaLogger.log(Level.CONFIG, this.getClass(), "Opened gzip compressed reverse file in fastq format" + reverse_file.toString());
 				
 			} catch (IOException e) {
@@ -146,7 +145,9 @@ public class FastqReader implements Reader {
 		
 		try {
 			this.forward_reader.close();
-			this.reverse_reader.close();
+			if (this.reverse_reader != null){
+				this.reverse_reader.close();
+			}
 		} catch (IOException e) {
 			// TODO Auto-generated catch block
 			e.printStackTrace();
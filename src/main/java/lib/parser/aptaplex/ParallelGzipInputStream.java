@@ -0,0 +1,427 @@
+/**
+ *
+ */
+package lib.parser.aptaplex;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.logging.Level;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+import java.util.zip.ZipException;
+
+import utilities.AptaLogger;
+import utilities.Configuration;
+
+/**
+ * @author Jan Hoinka
+ * Decompresses gzip files ahead of the reader on separate threads.
+ *
+ * Files in the BGZF format, i.e. a sequence of independent gzip members each of which stores its
+ * compressed size in the <code>BC</code> extra field, are split into their members without decompressing
+ * them. The members are inflated in parallel on <code>AptaplexParser.gzipThreads</code> threads and their
+ * output is handed to the reader in file order. Any other gzip file, including concatenated members without
+ * size information, is inflated by a single thread running ahead of the reader.
+ *
+ * In both cases, the number of decompressed chunks waiting for the reader is bounded.
+ */
+public class ParallelGzipInputStream extends InputStream {
+
+	/**
+	 * Size of the chunks the output of non BGZF files is handed over in
+	 */
+	private static final int CHUNK_SIZE = 1 << 18;
+
+	/**
+	 * Fixed part of a gzip member header
+	 */
+	private static final int HEADER_SIZE = 12;
+
+	/**
+	 * Header flag indicating the presence of an extra field
+	 */
+	private static final int FEXTRA = 4;
+
+	/**
+	 * The compressed input
+	 */
+	private DataInputStream in = null;
+
+	/**
+	 * The decompressed chunks in file order. A chunk of <code>null</code> marks the end of the file.
+	 */
+	private BlockingQueue<Future<byte[]>> chunks = null;
+
+	/**
+	 * Inflates the members of BGZF files, null otherwise
+	 */
+	private ExecutorService executor = null;
+
+	/**
+	 * Reads the compressed input and fills <code>chunks</code>
+	 */
+	private Thread feeder = null;
+
+	/**
+	 * The chunk currently being read and the position therein
+	 */
+	private byte[] chunk = new byte[0];
+
+	private int position = 0;
+
+	/**
+	 * True once the end of the file has been reached
+	 */
+	private boolean eof = false;
+
+	private volatile boolean closed = false;
+
+	/**
+	 * Opens <code>file</code> and starts decompressing it
+	 * @param file
+	 * @throws ZipException if the file is not gzip compressed
+	 * @throws IOException
+	 */
+	public ParallelGzipInputStream(Path file) throws IOException{
+
+		in = new DataInputStream(new BufferedInputStream(new FileInputStream(file.toFile()), 1 << 20));
+
+		// Inspect the first header without consuming it
+		byte[] header = new byte[HEADER_SIZE + 6];
+		in.mark(header.length);
+		int length = 0;
+		while (length < header.length){
+			int read = in.read(header, length, header.length - length);
+			if (read == -1){
+				break;
+			}
+			length += read;
+		}
+		in.reset();
+
+		if (length < 2 || (header[0] & 0xff) != 0x1f || (header[1] & 0xff) != 0x8b){
+			in.close();
+			throw new ZipException("Not in GZIP format");
+		}
+
+		int threads = Math.max(1, Configuration.getParameters().getInt("AptaplexParser.gzipThreads"));
+		chunks = new ArrayBlockingQueue<Future<byte[]>>(threads * 4);
+
+		final boolean bgzf = length == header.length && isBGZF(header);
+		if (bgzf){
+
+			executor = Executors.newFixedThreadPool(threads, new ThreadFactory(){
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "AptaPlex gzip inflater");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+
+			AptaLogger.log(Level.CONFIG, this.getClass(), "Decompressing the BGZF file " + file.toString() + " using " + threads + " threads");
+
+		}
+		else{
+
+			AptaLogger.log(Level.CONFIG, this.getClass(), "Decompressing the gzip file " + file.toString() + " ahead of the reader");
+
+		}
+
+		feeder = new Thread(new Runnable(){
+			@Override
+			public void run() {
+
+				try{
+
+					if (bgzf){
+						splitMembers();
+					}
+					else{
+						inflateSequentially();
+					}
+
+					chunks.put(CompletableFuture.completedFuture((byte[]) null));
+
+				} catch (InterruptedException e) {
+
+					// The stream was closed
+
+				} catch (Exception e) {
+
+					CompletableFuture<byte[]> failure = new CompletableFuture<byte[]>();
+					failure.completeExceptionally(e);
+					try {
+						chunks.put(failure);
+					} catch (InterruptedException ie) {
+						// The stream was closed
+					}
+
+				}
+			}
+		}, "AptaPlex gzip reader");
+		feeder.setDaemon(true);
+		feeder.start();
+
+	}
+
+	/**
+	 * @param header the first bytes of the file
+	 * @return true if the file starts with a BGZF member, i.e. a gzip member with an extra field containing the <code>BC</code> subfield
+	 */
+	private static boolean isBGZF(byte[] header){
+
+		return (header[2] & 0xff) == 8
+				&& (header[3] & 0xff) == FEXTRA
+				&& getShort(header, 10) == 6
+				&& header[12] == 'B' && header[13] == 'C'
+				&& getShort(header, 14) == 2;
+
+	}
+
+	/**
+	 * @return the little endian unsigned short at <code>offset</code>
+	 */
+	private static int getShort(byte[] data, int offset){
+		return (data[offset] & 0xff) | ((data[offset+1] & 0xff) << 8);
+	}
+
+	/**
+	 * @return the little endian int at <code>offset</code>
+	 */
+	private static int getInt(byte[] data, int offset){
+		return getShort(data, offset) | (getShort(data, offset+2) << 16);
+	}
+
+	/**
+	 * Reads the BGZF members of the file and submits them for decompression in file order
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+	private void splitMembers() throws IOException, InterruptedException{
+
+		byte[] header = new byte[HEADER_SIZE];
+
+		while (!closed){
+
+			// Read the header of the next member
+			try{
+				in.readFully(header, 0, 1);
+			} catch (EOFException e){
+				return;
+			}
+			in.readFully(header, 1, HEADER_SIZE - 1);
+
+			if ((header[0] & 0xff) != 0x1f || (header[1] & 0xff) != 0x8b || (header[3] & FEXTRA) == 0){
+				throw new ZipException("Invalid BGZF member header");
+			}
+
+			byte[] extra = new byte[getShort(header, 10)];
+			in.readFully(extra);
+
+			// Locate the compressed size of the member
+			int blockSize = -1;
+			for (int x=0; x + 4 <= extra.length; x += 4 + getShort(extra, x + 2)){
+				if (extra[x] == 'B' && extra[x+1] == 'C' && getShort(extra, x + 2) == 2){
+					blockSize = getShort(extra, x + 4) + 1;
+				}
+			}
+			if (blockSize == -1){
+				throw new ZipException("BGZF member without block size");
+			}
+
+			// The deflated data followed by CRC32 and ISIZE
+			final byte[] member = new byte[blockSize - HEADER_SIZE - extra.length];
+			in.readFully(member);
+
+			chunks.put(executor.submit(new Callable<byte[]>(){
+				@Override
+				public byte[] call() throws Exception {
+					return inflateMember(member);
+				}
+			}));
+		}
+	}
+
+	/**
+	 * Inflaters of the decompressing threads
+	 */
+	private static final ThreadLocal<Inflater> inflaters = new ThreadLocal<Inflater>(){
+		@Override
+		protected Inflater initialValue() {
+			return new Inflater(true);
+		}
+	};
+
+	/**
+	 * @param member the deflated data of a BGZF member followed by its CRC32 and uncompressed size
+	 * @return the decompressed data
+	 * @throws ZipException if the member is corrupt
+	 */
+	private static byte[] inflateMember(byte[] member) throws ZipException{
+
+		int deflated = member.length - 8;
+		byte[] data = new byte[getInt(member, deflated + 4)];
+
+		Inflater inflater = inflaters.get();
+		inflater.reset();
+		inflater.setInput(member, 0, deflated);
+
+		try {
+			int length = 0;
+			while (length < data.length && !inflater.finished()){
+				int inflated = inflater.inflate(data, length, data.length - length);
+				if (inflated == 0 && (inflater.needsInput() || inflater.needsDictionary())){
+					break;
+				}
+				length += inflated;
+			}
+			if (length != data.length){
+				throw new ZipException("Truncated BGZF member");
+			}
+		} catch (DataFormatException e) {
+			throw new ZipException(e.getMessage());
+		}
+
+		CRC32 crc = new CRC32();
+		crc.update(data);
+		if ((int) crc.getValue() != getInt(member, deflated)){
+			throw new ZipException("Corrupt BGZF member, checksum mismatch");
+		}
+
+		return data;
+	}
+
+	/**
+	 * Inflates the file on the feeder thread and hands the output over in chunks
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+	private void inflateSequentially() throws IOException, InterruptedException{
+
+		// GZIPInputStream continues with concatenated members
+		GZIPInputStream gzip = new GZIPInputStream(in, 1 << 16);
+
+		while (!closed){
+
+			byte[] data = new byte[CHUNK_SIZE];
+			int length = 0;
+			while (length < data.length){
+				int read = gzip.read(data, length, data.length - length);
+				if (read == -1){
+					break;
+				}
+				length += read;
+			}
+
+			if (length == 0){
+				return;
+			}
+
+			chunks.put(CompletableFuture.completedFuture(length == data.length ? data : Arrays.copyOf(data, length)));
+
+			if (length < data.length){
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Makes sure <code>chunk</code> contains unread data
+	 * @return false at the end of the file
+	 * @throws IOException
+	 */
+	private boolean fill() throws IOException{
+
+		while (position == chunk.length){
+
+			if (eof || closed){
+				return false;
+			}
+
+			try {
+				byte[] next = chunks.take().get();
+				if (next == null){
+					eof = true;
+					return false;
+				}
+				chunk = next;
+				position = 0;
+			} catch (InterruptedException e) {
+				throw new IOException("Interrupted while decompressing", e);
+			} catch (ExecutionException e) {
+				throw e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+			}
+		}
+
+		return true;
+	}
+
+	@Override
+	public int read() throws IOException {
+
+		if (!fill()){
+			return -1;
+		}
+
+		return chunk[position++] & 0xff;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+
+		if (len == 0){
+			return 0;
+		}
+
+		if (!fill()){
+			return -1;
+		}
+
+		int length = Math.min(len, chunk.length - position);
+		System.arraycopy(chunk, position, b, off, length);
+		position += length;
+
+		return length;
+	}
+
+	@Override
+	public int available() throws IOException {
+		return chunk.length - position;
+	}
+
+	@Override
+	public void close() throws IOException {
+
+		if (closed){
+			return;
+		}
+		closed = true;
+
+		feeder.interrupt();
+		if (executor != null){
+			executor.shutdownNow();
+		}
+		chunks.clear();
+
+		in.close();
+
+	}
+}
@@ -9,6 +9,10 @@ import lib.aptamer.datastructures.SelectionCycle;
  * @author Jan Hoinka
  * Format independent implementation of a sequencing read with support for paired end sequencing.
  * This class is used to optimize passing reads between classes and functions
+ * 
+ * Instances are recycled by the parser, see <code>ReadChunk</code>. Readers filling an existing 
+ * read should therefore reuse its arrays via <code>reuse</code>, which avoids any allocation as long 
+ * as consecutive reads have the same length.
  */
 public class Read {
 
@@ -44,4 +48,16 @@ public class Read {
 	 * performed. We need to preassign the selection cycle
 	 */
 	public SelectionCycle selection_cycle = null;
+	
+	
+	/**
+	 * @param array the array currently held by a read, or null
+	 * @param length the required length
+	 * @return <code>array</code> if it has exactly <code>length</code> elements, a new array otherwise
+	 */
+	public static byte[] reuse(byte[] array, int length){
+		
+		return array != null && array.length == length ? array : new byte[length];
+		
+	}
 }
@@ -0,0 +1,75 @@
+/**
+ *
+ */
+package lib.parser.aptaplex;
+
+/**
+ * @author Jan Hoinka
+ * A fixed number of <code>Read</code> instances handed from a producer to a consumer as a single
+ * queue element. The reads are allocated once together with the chunk and refilled by the readers
+ * every time the chunk is recycled through the <code>ReadPool</code>.
+ */
+class ReadChunk {
+
+	/**
+	 * The reads of this chunk, only the first <code>size</code> are valid
+	 */
+	private Read[] reads;
+
+	private int size = 0;
+
+	/**
+	 * @param capacity the number of reads of this chunk
+	 */
+	public ReadChunk(int capacity){
+
+		reads = new Read[capacity];
+		for (int x=0; x<capacity; x++){
+			reads[x] = new Read();
+		}
+
+	}
+
+	/**
+	 * @return the read following the valid ones, to be filled by the producer
+	 */
+	public Read next(){
+		return reads[size];
+	}
+
+	/**
+	 * Marks the read returned by <code>next</code> as valid
+	 */
+	public void commit(){
+		size++;
+	}
+
+	public Read get(int index){
+		return reads[index];
+	}
+
+	public int size(){
+		return size;
+	}
+
+	public boolean isEmpty(){
+		return size == 0;
+	}
+
+	public boolean isFull(){
+		return size == reads.length;
+	}
+
+	/**
+	 * Invalidates all reads while keeping their arrays for reuse
+	 */
+	public void clear(){
+
+		// the selection cycles are reassigned to each read, there is no need to keep them reachable
+		for (int x=0; x<size; x++){
+			reads[x].selection_cycle = null;
+		}
+		size = 0;
+
+	}
+}
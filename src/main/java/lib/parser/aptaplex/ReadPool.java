@@ -0,0 +1,62 @@
+/**
+ *
+ */
+package lib.parser.aptaplex;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * @author Jan Hoinka
+ * Recycles the chunks of reads passed between the producers and the consumers of a parse. Once a consumer
+ * has processed a chunk, it is returned to the pool and handed to the next producer requiring one, so that
+ * the number of <code>Read</code> instances and their arrays is bounded by the number of chunks in flight
+ * rather than growing with the number of reads parsed.
+ *
+ * The consumers must not keep references to the arrays of a released read.
+ */
+class ReadPool {
+
+	/**
+	 * The chunks available for reuse
+	 */
+	private BlockingQueue<ReadChunk> free = null;
+
+	/**
+	 * Number of reads per chunk
+	 */
+	private int chunkSize = 0;
+
+	/**
+	 * @param capacity the maximal number of chunks kept for reuse
+	 * @param chunkSize the number of reads per chunk
+	 */
+	public ReadPool(int capacity, int chunkSize){
+
+		this.free = new ArrayBlockingQueue<ReadChunk>(Math.max(1, capacity));
+		this.chunkSize = Math.max(1, chunkSize);
+
+	}
+
+	/**
+	 * @return an empty chunk, recycled if one is available
+	 */
+	public ReadChunk acquire(){
+
+		ReadChunk chunk = free.poll();
+
+		return chunk != null ? chunk : new ReadChunk(chunkSize);
+
+	}
+
+	/**
+	 * Returns a processed chunk to the pool. Chunks exceeding the capacity are left to the garbage collector.
+	 * @param chunk
+	 */
+	public void release(ReadChunk chunk){
+
+		chunk.clear();
+		free.offer(chunk);
+
+	}
+}
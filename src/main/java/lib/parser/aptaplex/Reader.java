@@ -20,6 +20,29 @@ public interface Reader {
 	public Read getNextRead();
 	
 	
+	/**
+	 * Overwrites <code>read</code> with the next read according to the file order. 
+	 * Implementations should reuse the arrays of <code>read</code> where possible, 
+	 * the selection cycle is left to the caller.
+	 * @param read the instance to fill
+	 * @return false if no more reads are present, in which case the content of <code>read</code> is undefined
+	 */
+	public default boolean getNextRead(Read read){
+		
+		Read next = getNextRead();
+		if (next == null){
+			return false;
+		}
+		
+		read.forward_read = next.forward_read;
+		read.forward_quality = next.forward_quality;
+		read.reverse_read = next.reverse_read;
+		read.reverse_quality = next.reverse_quality;
+		
+		return true;
+	}
+	
+	
 	/**
 	 * Perform any cleanup if necessary. This function is expected to be called
 	 * by the Producer once all reads have been put into the queue.
@@ -22,40 +22,53 @@ import java.util.Map;
  * @param pattern
  *            The pattern to search for.
  * @return Best match index or -1.
+ * 
+ * Instances keep their bit arrays between calls and are hence not thread-safe.
  */
 public class BitapDistance implements Distance{
 
 	
 	/**
 	 * The alphabet for the bitap algorithm, adapted for DNA. Since we are matching a limited
-	 * number of barcodes and primers, we can lazy load these as they come in.
+	 * number of barcodes and primers, we can lazy load these as they come in. Each alphabet 
+	 * maps the unsigned value of a character to its bit mask, 0 if it is not part of the pattern. 
 	 */
-	private Map<byte[], HashMap<Byte, Integer>> alphabets = new HashMap<byte[], HashMap<Byte, Integer>>();
+	private Map<byte[], int[]> alphabets = new HashMap<byte[], int[]>();
 
+	/**
+	 * The bit arrays of the current and the previous pass, reused for all searches
+	 */
+	private int[] rd = new int[0];
+	
+	private int[] last_rd = new int[0];
 	
 	@Override
-	public Result indexOf(byte[] text, byte[] pattern, int tolerance, int doc_range_lower, int doc_range_upper) {
+	public Result indexOf(byte[] text, byte[] pattern, int tolerance, int doc_range_lower, int doc_range_upper, Result result) {
 		
-		Result result = null;
-
 		// Initialize the alphabet.
-        Map<Byte, Integer> alphabet = initAlphabet(pattern);
+        int[] alphabet = initAlphabet(pattern);
 
 		// Initialize the bit arrays.
 		int matchmask = 1 << (pattern.length - 1);
 
-		int[] last_rd = new int[0];
+		if (rd.length < text.length + pattern.length + 2){
+			rd = new int[text.length + pattern.length + 2];
+			last_rd = new int[text.length + pattern.length + 2];
+		}
+		
+		// Only the entry past the searched range is read before being written in each pass 
+		int boundary = doc_range_upper + pattern.length + 1;
+		
 		for (int d = 0; d <= tolerance; d++) {
 
-			int[] rd = new int[text.length + pattern.length + 2];
-			rd[text.length + pattern.length + 1] = (1 << d) - 1;
+			rd[boundary] = boundary == text.length + pattern.length + 1 ? (1 << d) - 1 : 0;
 			for (int j = doc_range_upper + pattern.length; j > doc_range_lower; j--) {
 				int charMatch;
-				if (text.length <= j - 1 || !alphabet.containsKey(text[j - 1])) {
+				if (text.length <= j - 1) {
 					// Out of range.
 					charMatch = 0;
 				} else {
-					charMatch = alphabet.get(text[j - 1]);
+					charMatch = alphabet[text[j - 1] & 0xff];
 				}
 				if (d == 0) {
 					// First pass: exact match.
@@ -66,38 +79,38 @@ public class BitapDistance implements Distance{
 							| last_rd[j + 1];
 				}
 				if ((rd[j] & matchmask) != 0) {
-					result = new Result();
 					result.index = j - 1;
 					result.errors = d;
 					return result;
 				}
 			}
+			
+			int[] swap = last_rd;
 			last_rd = rd;
+			rd = swap;
 		}
-		return result;
+		return null;
 	}
 
     /**
      * Initialize the alphabet for the Bitap algorithm.
      *
      * @param pattern The text to encode.
-     * @return Hash of character locations.
+     * @return Table of character locations, indexed by the unsigned value of the character.
      */
-    public Map<Byte, Integer> initAlphabet(byte[] pattern) {
+    public int[] initAlphabet(byte[] pattern) {
     	
     	// check if we have previously computed the patterns alphabet
-    	if ( alphabets.containsKey(pattern) ){
-    		return alphabets.get(pattern);
+    	int[] s = alphabets.get(pattern);
+    	if ( s != null ){
+    		return s;
     	}
     	
     	// else we need to compute it
-        HashMap<Byte, Integer> s = new HashMap<Byte, Integer>();
-        for (byte c : pattern) {
-            s.put(c, 0);
-        }
+        s = new int[256];
         int i = 0;
         for (byte c : pattern) {
-            s.put(c, s.get(c) | (1 << (pattern.length - i - 1)));
+            s[c & 0xff] |= (1 << (pattern.length - i - 1));
             i++;
         }
         
@@ -21,6 +21,18 @@ public interface Distance {
 	 * @param doc_range_upper End index (exclusive) of the range to search in the document. 
 	 * @return Result instance containing start index of the match and score. null if matching failed.
 	 */
-	public Result indexOf(byte[] doc, byte[] pattern, int tolerance, int doc_range_lower, int doc_range_upper);
+	public default Result indexOf(byte[] doc, byte[] pattern, int tolerance, int doc_range_lower, int doc_range_upper){
+		
+		return indexOf(doc, pattern, tolerance, doc_range_lower, doc_range_upper, new Result());
+		
+	}
+	
+	/**
+	 * Performs the distance calculation without allocating a new result
+	 * @see Distance#indexOf(byte[], byte[], int, int, int)
+	 * @param result the instance to store the match in, its content is undefined if matching failed
+	 * @return <code>result</code> containing start index of the match and score. null if matching failed.
+	 */
+	public Result indexOf(byte[] doc, byte[] pattern, int tolerance, int doc_range_lower, int doc_range_upper, Result result);
 	
 }
@@ -12,15 +12,16 @@ package lib.parser.aptaplex.distances;
 public class EditDistance implements Distance{
 	
 	@Override
-	public Result indexOf(byte[] doc, byte[] pattern, int tolerance, int doc_range_lower, int doc_range_upper) {
+	public Result indexOf(byte[] doc, byte[] pattern, int tolerance, int doc_range_lower, int doc_range_upper, Result result) {
 		
 		// no match
 		if (doc_range_upper - doc_range_lower + 1 < pattern.length){
 			return null; 
 		}
 		
-		Integer best_index = null;
-		Integer best_score = null;
+		// -1 if no position within the tolerance has been found yet
+		int best_index = -1;
+		int best_score = -1;
 		
 		for (int k=0; k<doc_range_upper - doc_range_lower - pattern.length + 1; k++){
 			
@@ -35,22 +36,21 @@ public class EditDistance implements Distance{
 				
 			}
 			
-			if ((best_score == null || current_best_score < best_score) && current_best_score <= tolerance){
+			if ((best_index == -1 || current_best_score < best_score) && current_best_score <= tolerance){
 				best_index = current_best_index;
 				best_score = current_best_score;
 			}
 		
 		}	
 		
-		if (best_index == null){
+		if (best_index == -1){
 			return null;
 		}
 			
-		Result best_match = new Result();
-		best_match.index = best_index;
-		best_match.errors = best_score;
+		result.index = best_index;
+		result.errors = best_score;
 		
-		return best_match;
+		return result;
 	}
 
 }
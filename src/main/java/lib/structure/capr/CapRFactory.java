@@ -1,24 +1,31 @@
 /**
- * 
+ *
  */
 package lib.structure.capr;
 
-import java.util.ArrayList;
-import java.util.Iterator;
 import java.util.Map.Entry;
-import java.util.concurrent.ArrayBlockingQueue;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingQueue;
-import java.util.concurrent.SynchronousQueue;
+import java.util.Spliterator;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.stream.StreamSupport;
 
-import lib.parser.Parser;
+import lib.aptamer.datastructures.StructurePool;
+import utilities.AptaLogger;
 import utilities.Configuration;
 
 /**
- * @author Jan Hoinka Java implementation of AptaPlex as described in Hoinka et
- *         al. 2016, Methods This class controls the producer-consumer pattern
- *         implemented in lib.parser.aptaplex
+ * @author Jan Hoinka
+ *
+ *         Computes the structural profiles of a collection of aptamers in parallel
+ *         and stores them in the <code>StructurePool</code> of the current experiment.
+ *
+ *         The aptamers are consumed as a parallel stream on a dedicated fork-join pool,
+ *         hence the work is distributed by splitting the underlying data structure
+ *         (e.g. by shard or id range) rather than by a single producer feeding a queue.
  */
 public class CapRFactory implements Runnable{
 
@@ -26,70 +33,101 @@ public class CapRFactory implements Runnable{
 	 * The progress of the parser instance. Writable to the consumers and thread-safe
 	 */
 	private static final AtomicInteger progress = new AtomicInteger();
-	
-	private Iterable<Entry<byte[], Integer>> items = null;
-	
-	public CapRFactory(Iterable<Entry<byte[], Integer>> items){
-		
+
+	/**
+	 * The aptamers to process. The key contains the aptamer and the value its
+	 * corresponding unique id.
+	 */
+	private Spliterator<Entry<byte[], Integer>> items = null;
+
+	/**
+	 * The instance of StructurePool to store the data in
+	 */
+	private StructurePool pool = Configuration.getExperiment().getStructurePool();
+
+	/**
+	 * One CapR instance per worker thread, since CapR is not thread-safe
+	 */
+	private ThreadLocal<CapR> capr = new ThreadLocal<CapR>(){
+		@Override
+		protected CapR initialValue() {
+			return new CapR();
+		}
+	};
+
+	/**
+	 * The constructor expects a Spliterator over either an aptamer pool or a selection
+	 * cycle. The key contains the aptamer and the value its corresponding unique id.
+	 * @param items
+	 */
+	public CapRFactory(Spliterator<Entry<byte[], Integer>> items){
+
 		this.items = items;
-		
+
 	}
-	
-	public void predict() {
 
-		// Creating shared object
-		BlockingQueue<Object> sharedQueue = new ArrayBlockingQueue<>(500); //TODO: MAKE THIS A PARAMETER
+	public void predict() {
 
 		// We need to know how many threads we can use on the system
 		int num_threads = Math.min( Runtime.getRuntime().availableProcessors(), Configuration.getParameters().getInt("Performance.maxNumberOfCores"));
-		
-		// Creating Producer and Consumer Thread
-		Thread prodThread  = new Thread(new CapRFactoryProducer(items, sharedQueue), "CapR Producer");
-		
-		ArrayList<Thread> consumers = new ArrayList<Thread>();
-		
-		// We need at least one consumer
-		consumers.add(new Thread(new CapRFactoryConsumer(sharedQueue, progress), "CapR Consumer 1"));
-		
-		// Add remaining consumers
-		for (int x=1; x<num_threads-1; x++){
-			consumers.add(new Thread(new CapRFactoryConsumer(sharedQueue, progress), ("CapR Consumer " + (x+1)) ));
-		}
 
-		// Start the producer and consumer threads
-		for (int x=0; x<consumers.size(); x++){
-			consumers.get(x).start();
-		}
-		prodThread.start();
+		// A dedicated pool so that the number of threads is bound by the configuration
+		ForkJoinPool forkJoinPool = new ForkJoinPool(Math.max(1, num_threads));
+
+		ForkJoinTask<?> task = forkJoinPool.submit(new Runnable(){
+			@Override
+			public void run() {
+
+				StreamSupport.stream(items, true).forEach(new Consumer<Entry<byte[], Integer>>(){
+					@Override
+					public void accept(Entry<byte[], Integer> item) {
+
+						// Update the progress in a thread-safe manner
+						progress.incrementAndGet();
+
+						try {
+
+							// process item
+							CapR local_capr = capr.get();
+							local_capr.ComputeStructuralProfile(item.getKey(), item.getKey().length);
+
+							// add item to storage
+							pool.registerStructure(item.getValue(), local_capr.getStructuralProfile());
+
+						} catch (Exception e) {
+							e.printStackTrace();
+						}
+
+					}
+				});
 
-		// Make sure the threads wait until completion
-		try {
-			for (int x=0; x<consumers.size(); x++){
-				consumers.get(x).join();
 			}
-			prodThread.join();
+		});
+
+		// Wait until completion
+		try {
+			task.get();
 		} catch (InterruptedException e) {
+			AptaLogger.log(Level.CONFIG, this.getClass(), "Structure prediction interrupted.");
+			Thread.currentThread().interrupt();
+		} catch (ExecutionException e) {
+			AptaLogger.log(Level.SEVERE, this.getClass(), "Error during structure prediction: " + e.getCause());
 			e.printStackTrace();
+		} finally {
+			forkJoinPool.shutdownNow();
 		}
 
-		// Clear resources used by the threads
-		for (int x=0; x<consumers.size(); x++){
-			consumers.set(x, null);
-		}
-		prodThread  = null;
-		
 	}
 
-
 	public AtomicInteger getProgress() {
 		return progress;
 	}
 
 	@Override
 	public void run() {
-		
+
 		predict();
-		
+
 	}
 
 }
@@ -23,19 +23,29 @@ public class CLIOptions {
 		// Data input options, these are mutually exclusive
 				
 		// AptaPLEX 
-		Option aptaplex = new Option("parse", false, "Creates a new aptamer pool and associated selection cycles according to the configuration file. Note, this option is mutually exclusive with -simulate.");
+		Option aptaplex = new Option("parse", false, "Creates a new aptamer pool and associated selection cycles according to the configuration file. Together with -resume, an interrupted parse of the same sequencing files is continued from its last checkpoint. Note, this option is mutually exclusive with -simulate and -append.");
+	
+		// AptaPLEX on top of an existing project
+		Option append = new Option("append", false, "Adds the sequencing files of the configuration file which have not been parsed before to the existing aptamer pool and selection cycles. An interrupted append is resumed from its last checkpoint by the next call. Note, this option is mutually exclusive with -parse and -simulate.");
 	
 		// AptaSIM
-		Option aptasim = new Option("simulate", false, "Creates a new aptamer pool using AptaSIM according to the configuration file. Note, this option is mutually exclusive with -parse");
+		Option aptasim = new Option("simulate", false, "Creates a new aptamer pool using AptaSIM according to the configuration file. Note, this option is mutually exclusive with -parse and -append");
 		
 		OptionGroup datainput = new OptionGroup();
 		datainput.addOption(aptaplex);
+		datainput.addOption(append);
 		datainput.addOption(aptasim);
 		
 		parameters.addOptionGroup(datainput);
 		
+		// Resume an interrupted parse
+		parameters.addOption("resume", false, "Continues an interrupted -parse from its last checkpoint instead of starting over, provided the configuration lists the same sequencing files.");
+		
 		// Structure Prediction
-		parameters.addOption("structures", false, "Predicts the structural ensamble of all aptamers in the pool and stores them on disk");
+		parameters.addOption("structures", false, "Predicts the structural ensamble of all aptamers in the pool and stores them on disk. Together with -append, only the new aptamers are predicted if structures exist already.");
+		
+		// Segment
+		parameters.addOption("compact", false, "Writes the aptamer pool, selection cycles and, if predicted, the structures into a single read only segment file which is used by all subsequent analyses. The segment is removed by -parse, -append, -simulate and -structures.");
 		
 		// AptaTRACE
 		parameters.addOption("trace", false, "Applies AptaTRACE to the dataset using the parameters as specified in the configuration file");
@@ -81,40 +81,82 @@ public class Configuration {
 				put("Experiment.name", "Sample Experiment");
 				
 			     // PoolBackend
-			     put("AptamerPool.backend", "MapDBAptamerPool");
+			     put("AptamerPool.backend", "MapDBAptamerPool"); // MapDBAptamerPool or PackedAptamerPool
+			     put("AptamerPool.cacheSize", 0); // number of aptamers, bounds and identifiers each kept in memory for repeated lookups, 0 disables the cache, -1 sizes it from Performance.memoryBudget
+			     put("AptamerPool.sharedPath", ""); // folder of an aptamer pool and structure pool shared by several projects over the same library, empty to keep them in the project
 				
 				 // PoolMapDB Options
-			     put("MapDBAptamerPool.bloomFilterCapacity", 500000000);
+			     put("MapDBAptamerPool.bloomFilterCapacity", 500000000); // upper bound of the initial capacity of the bloom filters, which grow as required
 			     put("MapDBAptamerPool.bloomFilterCollisionProbability", 0.001);
-			     put("MapDBAptamerPool.maxTreeMapCapacity", 7500000);  
-			     
+			     put("MapDBAptamerPool.maxTreeMapCapacity", 7500000);
+			     put("MapDBAptamerPool.concurrentShards", 1); // number of independently locked partitions for concurrent registration
+			     put("MapDBAptamerPool.codec", "NoneCodec"); // compression of the aptamers in new files: NoneCodec, LZFCodec, LZ4Codec, ZstdCodec or DNA2BitCodec
+			     put("MapDBAptamerPool.perfectHashIndex", true); // build a minimal perfect hash index for lookups by sequence once the pool is read only
+
+			     // PoolPacked Options
+			     put("PackedAptamerPool.initialCapacity", 16777216); // initial number of slots in the hash index, grows as required
+
 
 			     // SelectionCycle Backend
-			     put("SelectionCycle.backend", "MapDBSelectionCycle");
+			     put("SelectionCycle.backend", "MapDBSelectionCycle"); // MapDBSelectionCycle or PrimitiveSelectionCycle
 			     
 			     // StructureBackend
-			     put("StructurePool.backend", "MapDBStructurePool");
+			     put("StructurePool.backend", "MapDBStructurePool"); // MapDBStructurePool or QuantizedStructurePool
 			     
 			     // StructurePoolMapDB Options
 			     put("MapDBStructurePool.bloomFilterCollisionProbability", 0.001);
 			     put("MapDBStructurePool.maxTreeMapCapacity", 2000000); 
+			     put("MapDBStructurePool.codec", "LZFCodec"); // compression of the structures in new files: NoneCodec, LZFCodec, LZ4Codec or ZstdCodec
+			     put("MapDBStructurePool.writeBehindCapacity", 10000); // number of structures buffered for the background writer, 0 writes synchronously
+			     put("MapDBStructurePool.writeBehindBatchSize", 1000); // maximal number of structures the background writer inserts at once
+			     
+			     // QuantizedStructurePool Options
+			     put("QuantizedStructurePool.maxError", 0.002); // largest absolute error tolerated per probability, 8 bit values if at least 0.00196, 16 bit otherwise
 			     
 			     // BloomFilterSelectionCycle  Options
 			     put("MapDBSelectionCycle.bloomFilterCollisionProbability", 0.001); //the capacity must be the same as MapDBAptamerPool.bloomFilterCapacity
+			     put("MapDBSelectionCycle.concurrentShards", 1); // number of lock stripes guarding the count updates
+
+			     // PrimitiveSelectionCycle Options
+			     put("PrimitiveSelectionCycle.concurrentShards", 1); // number of lock stripes guarding the in-memory counts
 			     
+			     // ProjectManifest Options
+			     put("ProjectManifest.enabled", true); // open the selection cycles of projects loaded from disk on first access using experiment.manifest
+			     
+			     
+			     // SegmentFile Options
+			     put("SegmentFile.enabled", true); // read compacted projects (see -compact) from the segment instead of the configured backends
+			     put("SegmentFile.codec", "LZ4Codec"); // compression of the blocks of new segments: NoneCodec, LZFCodec, LZ4Codec or ZstdCodec
+			     put("SegmentFile.blockSize", 65536); // uncompressed size of the blocks of new segments in bytes
+			     put("SegmentFile.cacheSize", 256); // number of decompressed blocks kept in memory
+			     
+			     // ZstdCodec Options
+			     put("ZstdCodec.level", 3); // compression level, 1 (fastest) to 22 (smallest)
+			     put("ZstdCodec.trainingSamples", 10000); // number of records used to train the dictionary of each file
+			     put("ZstdCodec.dictionarySize", 16384); // maximal size of the dictionary in bytes
 			     
 			     // Parser Options
 			     put("Parser.backend", "AptaplexParser");
 			     
 			     // AptaplexParser Options
 			     put("AptaplexParser.isPerFile", false);
-			     put("AptaplexParser.BlockingQueueSize", 500); // 10
+			     put("AptaplexParser.reader", "FastqReader"); // FastqReader, or FastqChannelReader to scan the files on the byte level without decoding lines into strings
+			     put("AptaplexParser.producers", 1); // Number of files read concurrently, each by its own producer thread
+			     put("AptaplexParser.gzipThreads", 4); // Number of threads decompressing gzip files in the BGZF format, other gzip files are decompressed by a single thread ahead of the reader
+			     put("AptaplexParser.BlockingQueueSize", 500); // Number of reads waiting for the consumers, the queue holds at least two chunks per consumer
+			     put("AptaplexParser.transferBatchSize", 4096); // Number of reads a producer collects before handing them to the consumers as a single queue element
+			     put("AptaplexParser.BatchSize", 1000); // Number of accepted reads each consumer collects per selection cycle before adding them to the pool, if AggregationCapacity is 0
+			     put("AptaplexParser.AggregationCapacity", 10000); // Number of distinct sequences each consumer aggregates per selection cycle before adding their counts to the pool, 0 disables the aggregation of duplicate reads
+			     put("AptaplexParser.checkpointInterval", 100000000); // Number of reads between two checkpoints from which an interrupted parse can be resumed, 0 disables checkpoints
 			     put("AptaplexParser.PairedEndMinOverlap", 15); // Milab option: smallest overlap required when creating contig
 			     put("AptaplexParser.PairedEndMaxMutations", 5); // Maximal number of mutations in the overlapping region for a sequence to be accepted
 			     put("AptaplexParser.PairedEndMaxScoreValue", 55); // Highest score of the current quality score model 55 for phred
 			     put("AptaplexParser.BarcodeTolerance", 1); // Maximal number of mutations allowed in the barcodes
 			     put("AptaplexParser.PrimerTolerance", 3); // Maximal number of mutations allowed in the primers
 			     
+			     // FastqChannelReader Options
+			     put("FastqChannelReader.bufferSize", 4194304); // Size of the direct buffer the records are scanned in, per file, in bytes
+			     
 			     // AptaSIM Options
 			     put("Aptasim.HmmDegree", 2); // Degree of the Markov model
 			     put("Aptasim.RandomizedRegionSize", 40); // Length of the randomized region in the aptamers
@@ -137,6 +179,9 @@ public class Configuration {
 			     
 			     // Performance Options
 			     put("Performance.maxNumberOfCores", 30); // if larger than available, min of both is taken
+			     put("Performance.memoryBudget", 0L); // bytes of heap used to size filters, files, queues and caches, 0 for the maximal heap of the JVM
+			     put("Performance.offHeapBudget", 0L); // bytes of memory mapped data to keep resident, 0 for the same as Performance.memoryBudget
+			     put("Performance.expectedReads", 0L); // number of reads expected in the experiment, 0 if unknown
 			     
 			}};
 			
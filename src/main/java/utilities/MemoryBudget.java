@@ -0,0 +1,153 @@
+/**
+ *
+ */
+package utilities;
+
+import java.util.logging.Level;
+
+/**
+ * @author Jan Hoinka
+ *
+ * Derives the dimensions of the memory hungry data structures, such as bloom filters,
+ * the capacity of individual files, queues and caches, from the memory available to the
+ * application and the expected size of the experiment. The configured capacities,
+ * e.g. <code>MapDBAptamerPool.maxTreeMapCapacity</code>, act as upper bounds.
+ *
+ * The budget is defined by
+ * <code>Performance.memoryBudget</code>, the number of bytes of heap to use (0 for the maximal heap size of the JVM),
+ * <code>Performance.offHeapBudget</code>, the number of bytes of memory mapped data to keep resident (0 for the same as the heap), and
+ * <code>Performance.expectedReads</code>, the number of reads expected in the experiment (0 if unknown).
+ */
+public class MemoryBudget {
+
+	/**
+	 * Capacity of the first layer of a bloom filter if the number of reads is unknown
+	 */
+	private static final long DEFAULT_FILTER_CAPACITY = 1L << 20;
+
+	/**
+	 * Number of bytes per item of a bloom filter at a false positive rate of 0.001
+	 */
+	private static final double BLOOM_FILTER_BYTES_PER_ITEM = 1.8;
+
+	/**
+	 * Fraction of the off-heap budget the bloom filters of a single store may occupy
+	 */
+	private static final double FILTER_SHARE = 0.125;
+
+	/**
+	 * Fraction of the off-heap budget a single data file may occupy
+	 */
+	private static final double FILE_SHARE = 0.25;
+
+	/**
+	 * Fraction of the heap budget a single queue may occupy
+	 */
+	private static final double QUEUE_SHARE = 0.0625;
+
+	/**
+	 * Whether the budget has been logged already
+	 */
+	private static boolean logged = false;
+
+	/**
+	 * @return the number of bytes of heap available to the data structures
+	 */
+	public static long getHeapBudget(){
+
+		long budget = Configuration.getParameters().getLong("Performance.memoryBudget");
+		long max = Runtime.getRuntime().maxMemory();
+
+		return budget > 0 ? Math.min(budget, max) : max;
+	}
+
+	/**
+	 * @return the number of bytes of memory mapped data which should be kept resident
+	 */
+	public static long getOffHeapBudget(){
+
+		long budget = Configuration.getParameters().getLong("Performance.offHeapBudget");
+
+		return budget > 0 ? budget : getHeapBudget();
+	}
+
+	/**
+	 * @return the number of reads expected in the experiment or 0 if unknown
+	 */
+	public static long getExpectedReads(){
+
+		return Math.max(0, Configuration.getParameters().getLong("Performance.expectedReads"));
+
+	}
+
+	private static synchronized void log(){
+
+		if (logged){
+			return;
+		}
+		logged = true;
+
+		AptaLogger.log(Level.CONFIG, MemoryBudget.class, String.format("Memory budget: heap %.1f MB, off-heap %.1f MB, expected reads %s",
+				getHeapBudget() / 1048576.0, getOffHeapBudget() / 1048576.0, getExpectedReads() > 0 ? getExpectedReads() : "unknown"));
+	}
+
+	/**
+	 * Dimensions the first layer of a bloom filter. Filters grow beyond this capacity as required.
+	 * @param configured the upper bound of the capacity
+	 * @return the number of items the filter should initially be dimensioned for
+	 */
+	public static long getBloomFilterCapacity(long configured){
+
+		log();
+
+		// There cannot be more unique aptamers than reads
+		long expected = getExpectedReads() > 0 ? getExpectedReads() : DEFAULT_FILTER_CAPACITY;
+		long affordable = (long) (getOffHeapBudget() * FILTER_SHARE / BLOOM_FILTER_BYTES_PER_ITEM);
+
+		return Math.max(1, Math.min(configured, Math.min(expected, affordable)));
+	}
+
+	/**
+	 * Dimensions the number of items stored in a single data file
+	 * @param configured the upper bound of the capacity
+	 * @param bytesPerItem the approximate size of an item on disk
+	 * @return the maximal number of items per file
+	 */
+	public static int getFileCapacity(int configured, long bytesPerItem){
+
+		log();
+
+		long affordable = (long) (getOffHeapBudget() * FILE_SHARE / Math.max(1, bytesPerItem));
+
+		return (int) Math.max(1024, Math.min(configured, affordable));
+	}
+
+	/**
+	 * Dimensions a queue holding items of <code>bytesPerItem</code> bytes
+	 * @param configured the upper bound of the capacity
+	 * @param bytesPerItem the approximate size of an item in memory
+	 * @return the number of items the queue should hold
+	 */
+	public static int getQueueCapacity(int configured, long bytesPerItem){
+
+		log();
+
+		long affordable = (long) (getHeapBudget() * QUEUE_SHARE / Math.max(1, bytesPerItem));
+
+		return (int) Math.max(Math.min(configured, 16), Math.min(configured, affordable));
+	}
+
+	/**
+	 * Dimensions a cache holding items of <code>bytesPerItem</code> bytes
+	 * @param share the fraction of the heap budget the cache may occupy
+	 * @param bytesPerItem the approximate size of an item in memory
+	 * @return the number of items the cache should hold
+	 */
+	public static int getCacheCapacity(double share, long bytesPerItem){
+
+		log();
+
+		return (int) Math.min(Integer.MAX_VALUE, (long) (getHeapBudget() * share / Math.max(1, bytesPerItem)));
+	}
+
+}